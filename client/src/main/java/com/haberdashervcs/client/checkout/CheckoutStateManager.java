@@ -65,6 +65,17 @@ public final class CheckoutStateManager {
         final LocalBranchState branchStateToSyncTo;
         Optional<LocalBranchState> localBranchMaybe = db.getBranchState(branchName);
 
+        // If we're moving forward on the current branch, the server can skip subtrees that haven't changed since.
+        final Optional<Long> syncedFromCommitId;
+        LocalBranchState currentBranch = db.getCurrentBranch();
+        if (syncType == SyncType.DOWNLOAD_AND_SYNC_LOCAL
+                && currentBranch.getBranchName().equals(branchName)
+                && currentBranch.getCurrentlySyncedCommitId() < commitIdToSyncTo) {
+            syncedFromCommitId = Optional.of(currentBranch.getCurrentlySyncedCommitId());
+        } else {
+            syncedFromCommitId = Optional.empty();
+        }
+
         // TODO: Can all this (coordinating local branch state w/ server branch state) be simplified?
         if (localBranchMaybe.isPresent() && localBranchMaybe.get().getHeadCommitId() >= commitIdToSyncTo) {
             branchStateToSyncTo = localBranchMaybe.get();
@@ -106,7 +117,8 @@ public final class CheckoutStateManager {
         ServerCheckoutSpec serverSpec = serverTalker.queryForCheckout(
                 branchStateToSyncTo.getBranchName(),
                 commitIdToSyncTo,
-                globalCheckedOutPaths);
+                globalCheckedOutPaths,
+                syncedFromCommitId);
 
 
         List<String> fileIdsServerWantsToSend = serverSpec.getAllFileIdsFromServer();
@@ -117,7 +129,14 @@ public final class CheckoutStateManager {
                 fileIdsClientNeeds.add(fileIdFromServer);
             }
         }
-        ClientCheckoutSpec clientSpec = ClientCheckoutSpec.withFilesClientNeeds(fileIdsClientNeeds);
+        // Passing the session back lets the server skip re-crawling the folders it just crawled for the query.
+        final ClientCheckoutSpec clientSpec;
+        if (serverSpec.getCheckoutSessionId().isPresent()) {
+            clientSpec = ClientCheckoutSpec.withFilesClientNeedsForSession(
+                    fileIdsClientNeeds, serverSpec.getCheckoutSessionId().get());
+        } else {
+            clientSpec = ClientCheckoutSpec.withFilesClientNeeds(fileIdsClientNeeds);
+        }
 
         serverTalker.checkout(branchName, globalCheckedOutPaths, commitIdToSyncTo, db, clientSpec);
 
@@ -1,7 +1,10 @@
 package com.haberdashervcs.client.commands;
 
+import java.io.Console;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
 
 import com.google.common.collect.Lists;
 import com.haberdashervcs.client.localdb.LocalDb;
@@ -30,39 +33,113 @@ final class LogCommand implements Command {
     }
 
 
+    private static final String USAGE = "Usage: hd log [/some/path/] [--from <commit #>]";
+
+
+    // The path and starting commit from the command line.
+    static final class LogArgs {
+
+        static LogArgs parse(List<String> args) {
+            String path = "/";
+            boolean pathGiven = false;
+            Optional<Long> fromCommitId = Optional.empty();
+            for (int i = 0; i < args.size(); ++i) {
+                String arg = args.get(i);
+                if (arg.equals("--from") && i + 1 < args.size() && fromCommitId.isEmpty()) {
+                    try {
+                        fromCommitId = Optional.of(Long.parseLong(args.get(++i)));
+                    } catch (NumberFormatException badNumberEx) {
+                        throw new IllegalArgumentException(USAGE);
+                    }
+                } else if (arg.startsWith("/") && !pathGiven) {
+                    path = arg.endsWith("/") ? arg : arg + "/";
+                    pathGiven = true;
+                } else {
+                    throw new IllegalArgumentException(USAGE);
+                }
+            }
+            return new LogArgs(path, fromCommitId);
+        }
+
+
+        private final String path;
+        private final Optional<Long> fromCommitId;
+
+        private LogArgs(String path, Optional<Long> fromCommitId) {
+            this.path = path;
+            this.fromCommitId = fromCommitId;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        Optional<Long> getFromCommitId() {
+            return fromCommitId;
+        }
+    }
+
+
+    // Reads one page of the log at a commit id, and returns where the next page starts.
+    interface PageReader {
+        Optional<Long> readPage(long atCommitId) throws Exception;
+    }
+
+
+    /**
+     * Reads more pages as long as there are some and the user wants them. Returns the commit id of the next page that
+     * wasn't read, if any.
+     */
+    static Optional<Long> readMorePages(
+            Optional<Long> nextCommitId, PageReader reader, BooleanSupplier wantsMore) throws Exception {
+        while (nextCommitId.isPresent() && wantsMore.getAsBoolean()) {
+            nextCommitId = reader.readPage(nextCommitId.get());
+        }
+        return nextCommitId;
+    }
+
+
     @Override
     public void perform() throws Exception {
-        if (otherArgs.size() != 0) {
-            throw new IllegalArgumentException("Usage: hd log");
-        }
+        LogArgs logArgs = LogArgs.parse(otherArgs);
+        final String path = logArgs.getPath();
+        final Optional<Long> fromCommitId = logArgs.getFromCommitId();
 
         db.startTransaction();
 
         LocalBranchState currentBranch = db.getCurrentBranch();
         String branchName = currentBranch.getBranchName();
-        // TODO: Take a path prefix as an optional argument.
-        String path = "/";
-        long atCommitId = currentBranch.getCurrentlySyncedCommitId();
+        long atCommitId = fromCommitId.orElse(currentBranch.getCurrentlySyncedCommitId());
 
         ServerTalker server = JettyServerTalker.forConfig(repoConfig);
 
-        List<CommitEntry> serverCommits = server.log(branchName, path, atCommitId);
-
-        long maxServerCommitId = 0;
-        for (CommitEntry commit : serverCommits) {
+        // Commits are printed as they arrive, one page at a time.
+        long[] maxServerCommitId = { 0 };
+        Optional<Long> nextCommitId = server.log(branchName, path, atCommitId, commit -> {
             printOneCommit(commit, false);
-            if (commit.getCommitId() > maxServerCommitId) {
-                maxServerCommitId = commit.getCommitId();
+            maxServerCommitId[0] = Math.max(maxServerCommitId[0], commit.getCommitId());
+        });
+
+        // Local commits are only on the first page.
+        if (fromCommitId.isEmpty()) {
+            // TODO: Apply `atCommitId` to the db call, for filtering/range in the query?
+            List<CommitEntry> localCommitsUnfiltered = db.getCommitsSince(branchName, maxServerCommitId[0]);
+            localCommitsUnfiltered = Lists.reverse(localCommitsUnfiltered);
+            List<CommitEntry> localCommits = filter(localCommitsUnfiltered, path, atCommitId);
+
+            for (CommitEntry commit : localCommits) {
+                printOneCommit(commit.withAuthor("(local)"), true);
             }
         }
 
-        // TODO: Apply `atCommitId` to the db call, for filtering/range in the query?
-        List<CommitEntry> localCommitsUnfiltered = db.getCommitsSince(branchName, maxServerCommitId);
-        localCommitsUnfiltered = Lists.reverse(localCommitsUnfiltered);
-        List<CommitEntry> localCommits = filter(localCommitsUnfiltered, path, atCommitId);
-
-        for (CommitEntry commit : localCommits) {
-            printOneCommit(commit.withAuthor("(local)"), true);
+        // At a terminal, older pages are read when the user asks for them. Otherwise this prints how to get them.
+        final Console console = System.console();
+        nextCommitId = readMorePages(
+                nextCommitId,
+                pageAt -> server.log(branchName, path, pageAt, commit -> printOneCommit(commit, false)),
+                () -> (console != null) && wantsMore(console));
+        if (nextCommitId.isPresent()) {
+            LOG.info("For older commits: hd log %s --from %d", path, nextCommitId.get());
         }
 
         // Ensure no writes.
@@ -70,6 +147,12 @@ final class LogCommand implements Command {
     }
 
 
+    private static boolean wantsMore(Console console) {
+        String answer = console.readLine("-- Older commits: Enter to show them, q to stop --");
+        return (answer != null) && !answer.trim().equalsIgnoreCase("q");
+    }
+
+
     private List<CommitEntry> filter(List<CommitEntry> localCommitsUnfiltered, String path, long atCommitId) {
         List<CommitEntry> out = new ArrayList<>();
         for (CommitEntry commit : localCommitsUnfiltered) {
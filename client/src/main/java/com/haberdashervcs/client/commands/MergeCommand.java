@@ -46,6 +46,9 @@ final class MergeCommand implements Command {
 
         LOG.info("Result: %s", result.getResultType());
         LOG.info("Message: %s", result.getMessage());
+        for (String conflictingPath : result.getConflictingPaths()) {
+            LOG.info("Changed on both main and the branch: %s", conflictingPath);
+        }
 
         if (result.getResultType() == MergeResult.ResultType.SUCCESSFUL) {
             long newCommitIdOnMain = result.getNewCommitIdOnMain();
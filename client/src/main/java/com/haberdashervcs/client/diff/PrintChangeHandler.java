@@ -163,8 +163,8 @@ final class PrintChangeHandler implements LocalChangeHandler {
         FileRandomAccessBytes localFileContents = FileRandomAccessBytes.of(comparison.getPathInLocalRepo().toFile());
         return String.format(
                 "%d bytes -> %d bytes",
-                commitContents.getContents().length(),
-                localFileContents.length());
+                commitContents.getContents().longLength(),
+                localFileContents.longLength());
     }
 
 
@@ -42,18 +42,29 @@ final class LocalFolderLargeFileStore {
 
 
     RandomAccessBytes get(String fileId) throws IOException {
+        return FileRandomAccessBytes.of(existingFile(fileId));
+    }
+
+
+    // Without reading or mapping the file.
+    long size(String fileId) throws IOException {
+        return existingFile(fileId).length();
+    }
+
+
+    private File existingFile(String fileId) throws IOException {
         Path path = pathForId(fileId, false);
         File file = path.toFile();
         if (!file.isFile()) {
             throw new IllegalStateException("Large file path not found: " + path.toAbsolutePath());
         }
-        return FileRandomAccessBytes.of(file);
+        return file;
     }
 
 
     void putRab(String fileId, RandomAccessBytes contents) throws IOException {
-        if (contents.length() <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
-            throw new IllegalStateException("Expected large file contents, got size: " + contents.length());
+        if (contents.longLength() <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+            throw new IllegalStateException("Expected large file contents, got size: " + contents.longLength());
         }
 
         Path path = pathForId(fileId, true);
@@ -28,7 +28,7 @@ import com.haberdashervcs.client.localdb.objects.LocalRepoState;
 import com.haberdashervcs.client.localdb.objects.ProtobufLocalDbObjectByteConverter;
 import com.haberdashervcs.common.HdConstants;
 import com.haberdashervcs.common.diff.HdHasher;
-import com.haberdashervcs.common.diff.git.GitDeltaDiffer;
+import com.haberdashervcs.common.diff.git.DeltaStoragePolicy;
 import com.haberdashervcs.common.diff.git.PatchedViewRandomAccessBytes;
 import com.haberdashervcs.common.io.HdObjectByteConverter;
 import com.haberdashervcs.common.io.ProtobufObjectByteConverter;
@@ -69,6 +69,7 @@ public final class SqliteLocalDb implements LocalDb {
     private final HdObjectByteConverter byteConv;
     private final LocalDbObjectByteConverter localByteConv;
     private final LocalFolderLargeFileStore largeFileStore;
+    private final DeltaStoragePolicy deltaPolicy;
 
     private SqliteLocalDb(Path dotHdLocalDir) {
         this.dbFilePath = dotHdLocalDir.resolve(DB_FILENAME);
@@ -76,6 +77,7 @@ public final class SqliteLocalDb implements LocalDb {
         this.byteConv = ProtobufObjectByteConverter.getInstance();
         this.localByteConv = ProtobufLocalDbObjectByteConverter.getInstance();
         this.largeFileStore = new LocalFolderLargeFileStore(dotHdLocalDir);
+        this.deltaPolicy = DeltaStoragePolicy.withDefaults();
     }
 
 
@@ -474,7 +476,7 @@ public final class SqliteLocalDb implements LocalDb {
         LOG.info("New file: %s (%s...)", localPath, hash.substring(0, 6));
         RandomAccessBytes contents = FileRandomAccessBytes.of(localPath.toFile());
         FileEntry newEntry;
-        if (contents.length() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+        if (contents.longLength() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
             newEntry = FileEntry.forFullContents(
                     hash, ByteArrayRandomAccessBytes.of(new byte[0]), FileEntry.StorageType.LARGE_FILE_STORE);
             largeFileStore.putRab(hash, contents);
@@ -490,8 +492,8 @@ public final class SqliteLocalDb implements LocalDb {
 
     private void putLargeFileEntryWithRab(FileEntry entry, RandomAccessBytes contents) throws IOException {
         Preconditions.checkArgument(entry.getEntryContents().length() == 0, "Invalid entry for large file");
-        if (contents.length() <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
-            throw new IllegalStateException("Expected large file contents, got size: " + contents.length());
+        if (contents.longLength() <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+            throw new IllegalStateException("Expected large file contents, got size: " + contents.longLength());
         }
 
         putFileEntry(entry);
@@ -517,7 +519,7 @@ public final class SqliteLocalDb implements LocalDb {
                 return;
             }
 
-            byte[] entryBytes = byteConv.fileToBytes(entry);
+            byte[] entryBytes = byteConv.fileToCompressedBytes(entry);
             PreparedStatement stmt = conn.get().prepareStatement(
                     "INSERT INTO Files (id, contents) VALUES (?, ?)");
             stmt.setString(1, key);
@@ -533,61 +535,73 @@ public final class SqliteLocalDb implements LocalDb {
     }
 
 
-    // TODO: Write a full entry anyway if the diff is some percent size of the original/base contents.
     @Override
     public void putFileHandlingDiffEntries(
             String localFileHash, Path localFilePath, FileEntry commitEntry)
             throws IOException {
 
+        // Follow the commit entry's chain back to its full entry, to see how deep it is and how much it costs to read.
         FileEntry currentBase = commitEntry;
-        for (int diffSearchLength = 0; diffSearchLength < HdConstants.MAX_DIFF_SEARCH; ++diffSearchLength) {
-
-            if (currentBase.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
-                currentBase = getFile(currentBase.getBaseEntryId().get()).getEntry();
-                continue;
-
-            } else if (currentBase.getContentsType() == FileEntry.ContentsType.FULL) {
-                RandomAccessBytes commitContents = getFile(commitEntry.getId()).getContents();
-                RandomAccessBytes gitDeltaContents = ByteArrayRandomAccessBytes.of(GitDeltaDiffer.computeGitDiff(
-                        commitContents, FileRandomAccessBytes.of(localFilePath.toFile())));
-                FileEntry diffEntry;
-                if (gitDeltaContents.length() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
-                    diffEntry = FileEntry.forDiffGit(
-                            localFileHash,
-                            ByteArrayRandomAccessBytes.of(new byte[0]),
-                            commitEntry.getId(),
-                            FileEntry.StorageType.LARGE_FILE_STORE);
-                    putLargeFileEntryWithRab(diffEntry, gitDeltaContents);
-                } else {
-                    diffEntry = FileEntry.forDiffGit(
-                            localFileHash,
-                            gitDeltaContents,
-                            commitEntry.getId(),
-                            FileEntry.StorageType.DATASTORE);
-                    putFileEntry(diffEntry);
-                }
-                return;
-
+        int baseChainDepth = 0;
+        long baseChainReadBytes = 0;
+        // Only the entries are read here, not the patched contents of each base.
+        while (currentBase.getContentsType() == FileEntry.ContentsType.DIFF_GIT
+                && baseChainDepth < HdConstants.MAX_DIFF_SEARCH) {
+            baseChainReadBytes += getRawSizeForEntry(currentBase);
+            final String baseId = currentBase.getBaseEntryId().get();
+            currentBase = getFileEntry(baseId)
+                    .orElseThrow(() -> new IllegalStateException("No such file found: " + baseId));
+            ++baseChainDepth;
+        }
+        if (currentBase.getContentsType() == FileEntry.ContentsType.FULL) {
+            baseChainReadBytes += getRawSizeForEntry(currentBase);
+        } else if (currentBase.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
+            // Past the search limit, so the policy will say to store it in full.
+            ++baseChainDepth;
+        } else {
+            throw new IllegalStateException("Unexpected contents type: " + currentBase.getContentsType());
+        }
+
+        RandomAccessBytes localContents = FileRandomAccessBytes.of(localFilePath.toFile());
+        DeltaStoragePolicy.Result result = deltaPolicy.decide(
+                () -> getFile(commitEntry.getId()).getContents(),
+                localContents,
+                baseChainDepth,
+                baseChainReadBytes);
+        LOG.debug("Storing %s: %s (so far: %s)", localFileHash, result.getDecision(), deltaPolicy.getStats());
+
+        if (result.getDecision() == DeltaStoragePolicy.Decision.DELTA) {
+            RandomAccessBytes gitDeltaContents = ByteArrayRandomAccessBytes.of(result.getDelta().get());
+            FileEntry diffEntry;
+            if (gitDeltaContents.length() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+                diffEntry = FileEntry.forDiffGit(
+                        localFileHash,
+                        ByteArrayRandomAccessBytes.of(new byte[0]),
+                        commitEntry.getId(),
+                        FileEntry.StorageType.LARGE_FILE_STORE);
+                putLargeFileEntryWithRab(diffEntry, gitDeltaContents);
             } else {
-                throw new IllegalStateException("Unexpected contents type: " + currentBase.getContentsType());
+                diffEntry = FileEntry.forDiffGit(
+                        localFileHash,
+                        gitDeltaContents,
+                        commitEntry.getId(),
+                        FileEntry.StorageType.DATASTORE);
+                putFileEntry(diffEntry);
             }
+            return;
         }
 
-        // TODO: Reconsider this policy if there are large file entries along the way -- the longer diff path
-        // might be worth it. (And make corresponding changes on the server, if any.)
-        LOG.debug("Putting a full FileEntry for %s (too many diffs)", localFileHash);
-        RandomAccessBytes fullFileContents = FileRandomAccessBytes.of(localFilePath.toFile());
         FileEntry fullEntry;
-        if (fullFileContents.length() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+        if (localContents.longLength() > HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
             fullEntry = FileEntry.forFullContents(
                     localFileHash,
                     ByteArrayRandomAccessBytes.of(new byte[0]),
                     FileEntry.StorageType.LARGE_FILE_STORE);
-            putLargeFileEntryWithRab(fullEntry, fullFileContents);
+            putLargeFileEntryWithRab(fullEntry, localContents);
         } else {
             fullEntry = FileEntry.forFullContents(
                     localFileHash,
-                    fullFileContents,
+                    localContents,
                     FileEntry.StorageType.DATASTORE);
             putFileEntry(fullEntry);
         }
@@ -614,6 +628,15 @@ public final class SqliteLocalDb implements LocalDb {
     }
 
 
+    private long getRawSizeForEntry(FileEntry entry) throws IOException {
+        if (entry.getStorageType() == FileEntry.StorageType.DATASTORE) {
+            return entry.getEntryContents().longLength();
+        } else {
+            return largeFileStore.size(entry.getId());
+        }
+    }
+
+
     private RandomAccessBytes resolveDiffsToBytes(final FileEntry file) throws IOException {
         if (file.getContentsType() == FileEntry.ContentsType.FULL) {
             return getRawContentsForEntry(file);
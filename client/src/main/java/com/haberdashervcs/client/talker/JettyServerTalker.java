@@ -2,17 +2,17 @@ package com.haberdashervcs.client.talker;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.ImmutableList;
 import com.haberdashervcs.client.ClientVersionNumber;
 import com.haberdashervcs.client.commands.RepoConfig;
 import com.haberdashervcs.client.localdb.LocalDb;
 import com.haberdashervcs.client.localdb.objects.LocalBranchState;
 import com.haberdashervcs.client.push.PushObjectSet;
+import com.haberdashervcs.common.io.FileContentsCodec;
 import com.haberdashervcs.common.io.HdObjectByteConverter;
 import com.haberdashervcs.common.io.HdObjectId;
 import com.haberdashervcs.common.io.HdObjectInputStream;
@@ -54,6 +54,9 @@ public final class JettyServerTalker implements ServerTalker {
     private final RepoConfig config;
     private final HdObjectByteConverter byteConv;
 
+    // Set from the push query response, for the push that follows it.
+    private boolean serverAcceptsCompressedFiles = false;
+
     private JettyServerTalker(RepoConfig config) {
         this.config = config;
         // TODO: Pass this in
@@ -96,7 +99,7 @@ public final class JettyServerTalker implements ServerTalker {
 
     @Override
     public ServerCheckoutSpec queryForCheckout(
-            String branchName, long commitId, CheckoutPathSet allPaths)
+            String branchName, long commitId, CheckoutPathSet allPaths, Optional<Long> syncedFromCommitId)
             throws Exception {
         String serverUrl = String.format(
                 "%s/vcs/%s/%s/checkoutQuery?branchName=%s&commitId=%d&paths=%s",
@@ -106,6 +109,9 @@ public final class JettyServerTalker implements ServerTalker {
                 urlEnc(branchName),
                 commitId,
                 urlEnc(PATH_PARAM_JOINER.join(allPaths.toList())));
+        if (syncedFromCommitId.isPresent()) {
+            serverUrl += "&syncedFromCommitId=" + syncedFromCommitId.get();
+        }
         LOG.debug("Checkout query url: %s", serverUrl);
 
         HttpClient httpClient = new HttpClient();
@@ -153,7 +159,10 @@ public final class JettyServerTalker implements ServerTalker {
         byte[] clientSpecBody = byteConv.clientCheckoutSpecToBytes(clientSpec);
         httpClient.newRequest(serverUrl)
                 .method(HttpMethod.POST)
-                .headers(httpFields -> addCommonHeaders(httpFields))
+                .headers(httpFields -> {
+                    addCommonHeaders(httpFields);
+                    httpFields.add(FileContentsCodec.ACCEPT_HEADER, FileContentsCodec.DEFLATE);
+                })
                 .body(new BytesRequestContent("application/octet-stream", clientSpecBody))
                 .send(listener);
 
@@ -210,6 +219,9 @@ public final class JettyServerTalker implements ServerTalker {
                 throw new RuntimeException(errorMessageFromResponse(response));
 
             } else {
+                String acceptedCodecs = response.getHeaders().get(FileContentsCodec.ACCEPT_HEADER);
+                serverAcceptsCompressedFiles = (
+                        acceptedCodecs != null && acceptedCodecs.contains(FileContentsCodec.DEFLATE));
                 byte[] responseBody = listener.getInputStream().readAllBytes();
                 return ServerProto.PushQueryResponse.parseFrom(responseBody);
             }
@@ -251,7 +263,12 @@ public final class JettyServerTalker implements ServerTalker {
                     .body(outStream)
                     .send(listener);
 
-            HdObjectOutputStream objectsOut = ProtobufObjectOutputStream.forOutputStream(outStream.getOutputStream());
+            final HdObjectOutputStream objectsOut;
+            if (serverAcceptsCompressedFiles) {
+                objectsOut = ProtobufObjectOutputStream.withCompressedFiles(outStream.getOutputStream());
+            } else {
+                objectsOut = ProtobufObjectOutputStream.forOutputStream(outStream.getOutputStream());
+            }
             objectsOut.writePushSpec(pushSpec);
             objectsToPush.writeToStream(objectsOut);
 
@@ -268,7 +285,8 @@ public final class JettyServerTalker implements ServerTalker {
 
 
     @Override
-    public List<CommitEntry> log(String branchName, String path, long atCommitId) throws Exception {
+    public Optional<Long> log(String branchName, String path, long atCommitId, Consumer<CommitEntry> eachCommit)
+            throws Exception {
         String serverUrl = String.format(
                 "%s/vcs/%s/%s/log?branchName=%s&path=%s&commitId=%d",
                 getHostString(), config.getOrg(), config.getRepo(), urlEnc(branchName), urlEnc(path), atCommitId);
@@ -288,7 +306,7 @@ public final class JettyServerTalker implements ServerTalker {
                 throw new RuntimeException(errorMessageFromResponse(response));
 
             } else {
-                ImmutableList.Builder<CommitEntry> commits = ImmutableList.builder();
+                String nextCommitId = response.getHeaders().get("X-Haberdasher-Log-Next-Commit-Id");
                 HdObjectInputStream inStream = ProtobufObjectInputStream.forInputStream(listener.getInputStream());
                 Optional<HdObjectId> next;
                 while ((next = inStream.next()).isPresent()) {
@@ -296,10 +314,9 @@ public final class JettyServerTalker implements ServerTalker {
                         throw new IllegalStateException(
                                 "Unexpected object in the server reponse: " + next.get().getType());
                     }
-                    CommitEntry commit = inStream.getCommit();
-                    commits.add(commit);
+                    eachCommit.accept(inStream.getCommit());
                 }
-                return commits.build();
+                return (nextCommitId == null) ? Optional.empty() : Optional.of(Long.parseLong(nextCommitId));
             }
         } finally {
             httpClient.stop();
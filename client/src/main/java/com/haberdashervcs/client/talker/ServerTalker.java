@@ -1,7 +1,7 @@
 package com.haberdashervcs.client.talker;
 
-import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import com.haberdashervcs.client.localdb.LocalDb;
 import com.haberdashervcs.client.localdb.objects.LocalBranchState;
@@ -23,7 +23,8 @@ public interface ServerTalker {
     ServerCheckoutSpec queryForCheckout(
             String branchName,
             long commitId,
-            CheckoutPathSet allPaths)
+            CheckoutPathSet allPaths,
+            Optional<Long> syncedFromCommitId)
             throws Exception;
 
     void checkout(
@@ -48,7 +49,12 @@ public interface ServerTalker {
             throws Exception;
 
 
-    List<CommitEntry> log(String branchName, String path, long atCommitId) throws Exception;
+    /**
+     * Reads one page of the log for the path, newest first, passing each commit along as it arrives. Returns the
+     * commit id to read the next page at, if there is one.
+     */
+    Optional<Long> log(String branchName, String path, long atCommitId, Consumer<CommitEntry> eachCommit)
+            throws Exception;
 
 
     MergeResult merge(LocalBranchState branch) throws Exception;
@@ -0,0 +1,161 @@
+package com.haberdashervcs.client.commands;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.haberdashervcs.client.talker.JettyServerTalker;
+import com.haberdashervcs.common.io.ProtobufObjectOutputStream;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class LogCommandTest {
+
+    private static LogCommand.LogArgs parse(String... args) {
+        return LogCommand.LogArgs.parse(ImmutableList.copyOf(args));
+    }
+
+    private static void assertRejected(String... args) {
+        try {
+            parse(args);
+            fail("Expected a usage error for: " + ImmutableList.copyOf(args));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+
+    @Test
+    public void parsesPathAndStartingCommit() throws Exception {
+        LogCommand.LogArgs noArgs = parse();
+        assertEquals("/", noArgs.getPath());
+        assertEquals(Optional.empty(), noArgs.getFromCommitId());
+
+        LogCommand.LogArgs withPath = parse("/some/path");
+        assertEquals("/some/path/", withPath.getPath());
+        assertEquals(Optional.empty(), withPath.getFromCommitId());
+
+        LogCommand.LogArgs both = parse("--from", "42", "/some/path/");
+        assertEquals("/some/path/", both.getPath());
+        assertEquals(Optional.of(42L), both.getFromCommitId());
+
+        assertEquals(Optional.of(7L), parse("/", "--from", "7").getFromCommitId());
+    }
+
+
+    @Test
+    public void rejectsBadArgs() throws Exception {
+        assertRejected("relative/path");
+        assertRejected("/one/", "/two/");
+        assertRejected("--from");
+        assertRejected("--from", "latest");
+        assertRejected("--from", "1", "--from", "2");
+        assertRejected("--verbose");
+    }
+
+
+    @Test
+    public void readsPagesUntilTheUserStops() throws Exception {
+        // Each page's start, and where the page after it starts.
+        Map<Long, Optional<Long>> pages = ImmutableMap.of(
+                30L, Optional.of(20L),
+                20L, Optional.of(10L),
+                10L, Optional.empty());
+        List<Long> read = new ArrayList<>();
+        LogCommand.PageReader reader = atCommitId -> {
+            read.add(atCommitId);
+            return pages.get(atCommitId);
+        };
+
+        Iterator<Boolean> answers = ImmutableList.of(true, false).iterator();
+        assertEquals(
+                Optional.of(10L),
+                LogCommand.readMorePages(Optional.of(20L), reader, answers::next));
+        assertEquals(ImmutableList.of(20L), read);
+
+        // The user is only asked while there are more pages.
+        read.clear();
+        assertEquals(
+                Optional.empty(),
+                LogCommand.readMorePages(Optional.of(20L), reader, () -> true));
+        assertEquals(ImmutableList.of(20L, 10L), read);
+
+        read.clear();
+        assertEquals(
+                Optional.empty(),
+                LogCommand.readMorePages(Optional.empty(), reader, () -> { throw new AssertionError(); }));
+        assertEquals(ImmutableList.of(), read);
+    }
+
+
+    @Test
+    public void serverLogReturnsTheNextPageCursor() throws Exception {
+        // Serves two pages: commits 30 and 20 with a cursor at 10, then commit 10 with no cursor.
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/vcs/test_org/", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            List<Long> commitIds;
+            if (query.contains("commitId=30")) {
+                exchange.getResponseHeaders().add("X-Haberdasher-Log-Next-Commit-Id", "10");
+                commitIds = ImmutableList.of(30L, 20L);
+            } else {
+                commitIds = ImmutableList.of(10L);
+            }
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                ProtobufObjectOutputStream objectsOut = ProtobufObjectOutputStream.forOutputStream(body);
+                for (long commitId : commitIds) {
+                    objectsOut.writeCommit(
+                            String.valueOf(commitId),
+                            CommitEntry.of("main", commitId, "author", "commit " + commitId, ImmutableList.of()));
+                }
+            }
+        });
+        server.start();
+
+        // RepoConfig.create() makes the repo's folder under the working directory.
+        final String repoName = "log-test-" + System.nanoTime();
+        try {
+            RepoConfig config = RepoConfig.create(
+                    "localhost:" + server.getAddress().getPort(), "test_org", repoName, "token");
+            JettyServerTalker talker = JettyServerTalker.forConfig(config);
+
+            List<Long> received = new ArrayList<>();
+            Optional<Long> next = talker.log("main", "/", 30, commit -> received.add(commit.getCommitId()));
+            assertEquals(ImmutableList.of(30L, 20L), received);
+            assertEquals(Optional.of(10L), next);
+
+            received.clear();
+            next = talker.log("main", "/", next.get(), commit -> received.add(commit.getCommitId()));
+            assertEquals(ImmutableList.of(10L), received);
+            assertEquals(Optional.empty(), next);
+
+        } finally {
+            server.stop(0);
+            Path repoDir = Paths.get(repoName);
+            if (Files.exists(repoDir)) {
+                try (Stream<Path> paths = Files.walk(repoDir)) {
+                    for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -7,8 +7,13 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 
 import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.objects.FolderListing;
 
 
 public final class HdHasher {
@@ -57,4 +62,34 @@ public final class HdHasher {
         }
     }
 
+
+    /**
+     * Returns a Merkle hash of a folder's contents: its entries, where each subfolder entry carries the subfolder's
+     * own tree hash. Two folders with the same tree hash have identical contents all the way down.
+     *
+     * Returns empty if any subfolder entry doesn't have a tree hash.
+     */
+    public static Optional<String> treeHash(List<FolderListing.Entry> entries) throws IOException {
+        List<FolderListing.Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(FolderListing.Entry::getName));
+
+        StringBuilder sb = new StringBuilder();
+        for (FolderListing.Entry entry : sorted) {
+            final String id;
+            if (entry.getType() == FolderListing.Entry.Type.FOLDER) {
+                Optional<String> subfolderHash = entry.getTreeHash();
+                if (subfolderHash.isEmpty()) {
+                    return Optional.empty();
+                }
+                id = subfolderHash.get();
+                sb.append("D ");
+            } else {
+                id = entry.getId();
+                sb.append("F ");
+            }
+            sb.append(entry.getName()).append(' ').append(id).append('\n');
+        }
+        return Optional.of(sha256HashString(sb.toString()));
+    }
+
 }
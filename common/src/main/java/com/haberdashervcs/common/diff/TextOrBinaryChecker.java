@@ -1,5 +1,6 @@
 package com.haberdashervcs.common.diff;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
@@ -32,10 +33,15 @@ public final class TextOrBinaryChecker {
      */
     public static TextOrBinaryResult check(RandomAccessBytes contents) {
         final int bufLen = Math.min(8192, contents.length());
-        for (int i = 0; i < bufLen; ++i) {
-            if (contents.at(i) == 0) {
-                return new TextOrBinaryResult(false);
+        int idx = 0;
+        while (idx < bufLen) {
+            ByteBuffer buf = contents.bufferAt(idx, bufLen - idx);
+            for (int i = 0; i < buf.limit(); ++i) {
+                if (buf.get(i) == 0) {
+                    return new TextOrBinaryResult(false);
+                }
             }
+            idx += buf.limit();
         }
         return new TextOrBinaryResult(true);
     }
@@ -50,6 +50,29 @@ class BinaryDelta {
 	}
 
 
+	/**
+	 * Returns the size of the result of applying the delta, read from the delta's header.
+	 */
+	static final int getResultSize(RandomAccessBytes delta) {
+		int deltaPtr = 0;
+
+		// Skip the length of the base object.
+		int c;
+		do {
+			c = delta.at(deltaPtr++) & 0xff;
+		} while ((c & 0x80) != 0);
+
+		int resLen = 0;
+		int shift = 0;
+		do {
+			c = delta.at(deltaPtr++) & 0xff;
+			resLen |= (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return resLen;
+	}
+
+
 	/**
      * Calculate the byte ranges from the base or delta that correspond to the byte ranges of the patched result.
 	 */
@@ -14,6 +14,7 @@ package com.haberdashervcs.common.diff.git;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 
@@ -50,6 +51,9 @@ class DeltaEncoder {
 
     private final byte[] buf = new byte[MAX_COPY_CMD_SIZE * 4];
 
+    // Bytes on their way from a ByteBuffer to the stream, for insert(ByteBuffer, int, int).
+    private final byte[] insertBuf = new byte[MAX_INSERT_DATA_SIZE];
+
     private final int limit;
 
     private int size;
@@ -133,9 +137,7 @@ class DeltaEncoder {
             out.write((byte) n);
 
             byte[] toWrite = new byte[n];
-            for (int i = 0; i < n; i++) {
-                toWrite[i] = text.at(off + i);
-            }
+            RandomAccessBytes.readFully(text, off, n, toWrite, 0);
             out.write(toWrite);
 
             off += n;
@@ -145,6 +147,32 @@ class DeltaEncoder {
         return true;
     }
 
+    /**
+     * Like {@link #insert(RandomAccessBytes, int, int)}, for the ByteBuffer encoding path in DeltaIndex.
+     */
+    public boolean insert(ByteBuffer text, int off, int cnt)
+            throws IOException {
+        if (cnt <= 0)
+            return true;
+        if (limit != 0) {
+            int hdrs = cnt / MAX_INSERT_DATA_SIZE;
+            if (cnt % MAX_INSERT_DATA_SIZE != 0)
+                hdrs++;
+            if (limit < size + hdrs + cnt)
+                return false;
+        }
+        ByteBuffer from = text.duplicate().position(off);
+        do {
+            int n = Math.min(MAX_INSERT_DATA_SIZE, cnt);
+            out.write((byte) n);
+            from.get(insertBuf, 0, n);
+            out.write(insertBuf, 0, n);
+            cnt -= n;
+            size += 1 + n;
+        } while (0 < cnt);
+        return true;
+    }
+
     /**
      * Create a copy instruction to copy from the base object.
      *
@@ -15,13 +15,17 @@
  * These files were copied and pasted out of JGit, then adapted for our streamy purposes. The changes:
  * - byte[] -> RandomAccessBytes
  * - long (for sizes and offsets) is replaced with int. If we assume a file size limit of <= 2GB, this isn't a problem?
+ * - The original byte[] versions of the index and encoder are kept alongside over ByteBuffers, as a fast path for
+ *   contents that can be viewed whole without copying (see GitDeltaDiffer).
  */
 package com.haberdashervcs.common.diff.git;
 
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 
 
@@ -57,6 +61,11 @@ class DeltaIndex {
      */
     private final RandomAccessBytes src;
 
+    /**
+     * A whole view of {@link #src}, if the index was built with one. Only then can it encode a ByteBuffer result.
+     */
+    private final ByteBuffer srcView;
+
     /**
      * Pointers into the {@link #entries} table, indexed by block hash.
      * <p>
@@ -93,9 +102,24 @@ class DeltaIndex {
      *                     be modified by the caller.
      */
     public DeltaIndex(RandomAccessBytes sourceBuffer) {
-        src = sourceBuffer;
+        this(sourceBuffer, null, new DeltaIndexScanner(sourceBuffer, sourceBuffer.length()));
+    }
 
-        DeltaIndexScanner scan = new DeltaIndexScanner(src, src.length());
+    /**
+     * Construct an index from a source file and a view of all of its bytes, which can then encode a ByteBuffer result
+     * without going through {@link RandomAccessBytes#at(int)} for each byte.
+     *
+     * @param sourceBuffer the source file's raw contents. As above, the caller must not modify it.
+     * @param sourceView   all of sourceBuffer, from position 0.
+     */
+    public DeltaIndex(RandomAccessBytes sourceBuffer, ByteBuffer sourceView) {
+        this(sourceBuffer, sourceView, new DeltaIndexScanner(sourceView, sourceView.limit()));
+        Preconditions.checkArgument(sourceView.limit() == sourceBuffer.length(), "The view isn't the whole source");
+    }
+
+    private DeltaIndex(RandomAccessBytes src, ByteBuffer srcView, DeltaIndexScanner scan) {
+        this.src = src;
+        this.srcView = srcView;
 
         // Reuse the same table the scanner made. We will replace the
         // values at each position, but we want the same-length array.
@@ -322,6 +346,92 @@ class DeltaIndex {
         return true;
     }
 
+    /**
+     * Like {@link #encode(OutputStream, RandomAccessBytes, int)}, for an index built with a view of its source and a
+     * result that's a view from position 0 to its limit. Block hashes, and the matching on either side of each block,
+     * read the buffers directly.
+     */
+    public boolean encode(OutputStream out, ByteBuffer res, int deltaSizeLimit)
+            throws IOException {
+        Preconditions.checkState(srcView != null, "This index wasn't built with a view of its source");
+        final int end = res.limit();
+        final DeltaEncoder enc = newEncoder(out, end, deltaSizeLimit);
+
+        if (end < BLKSZ || table.length == 0)
+            return enc.insert(res, 0, end);
+
+        int blkPtr = 0;
+        int blkEnd = BLKSZ;
+        int hash = hashBlock(res, 0);
+
+        int resPtr = 0;
+        while (blkEnd < end) {
+            final int tableIdx = hash & tableMask;
+            int entryIdx = table[tableIdx];
+            if (entryIdx == 0) {
+                hash = step(hash, res.get(blkPtr), res.get(blkEnd));
+                ++blkPtr;
+                ++blkEnd;
+                continue;
+            }
+
+            int bestLen = -1;
+            int bestPtr = -1;
+            int bestNeg = 0;
+            do {
+                long ent = entries[entryIdx++];
+                if (keyOf(ent) == hash) {
+                    int neg = 0;
+                    if (resPtr < blkPtr) {
+                        neg = blkPtr - resPtr;
+                        neg = negmatch(res, blkPtr, srcView, valOf(ent), neg);
+                    }
+
+                    int len = neg + fwdmatch(res, blkPtr, srcView, valOf(ent));
+                    if (bestLen < len) {
+                        bestLen = len;
+                        bestPtr = valOf(ent);
+                        bestNeg = neg;
+                    }
+                } else if ((keyOf(ent) & tableMask) != tableIdx)
+                    break;
+            } while (bestLen < 4096 && entryIdx < entries.length);
+
+            if (bestLen < BLKSZ) {
+                hash = step(hash, res.get(blkPtr), res.get(blkEnd));
+                ++blkPtr;
+                ++blkEnd;
+                continue;
+            }
+
+            blkPtr -= bestNeg;
+
+            if (resPtr < blkPtr) {
+                int cnt = blkPtr - resPtr;
+                if (!enc.insert(res, resPtr, cnt))
+                    return false;
+            }
+
+            if (!enc.copy(bestPtr - bestNeg, bestLen))
+                return false;
+
+            blkPtr += bestLen;
+            resPtr = blkPtr;
+            blkEnd = blkPtr + BLKSZ;
+
+            if (end <= blkEnd)
+                break;
+
+            hash = hashBlock(res, blkPtr);
+        }
+
+        if (resPtr < end) {
+            int cnt = end - resPtr;
+            return enc.insert(res, resPtr, cnt);
+        }
+        return true;
+    }
+
     private DeltaEncoder newEncoder(OutputStream out, long resSize, int limit)
             throws IOException {
         return new DeltaEncoder(out, getSourceSize(), resSize, limit);
@@ -354,6 +464,31 @@ class DeltaIndex {
     }
 
 
+    private static int fwdmatch(ByteBuffer res, int resPtr, ByteBuffer src, int srcPtr) {
+        // ByteBuffer.mismatch() compares many bytes at a time.
+        int maxLen = Math.min(res.limit() - resPtr, src.limit() - srcPtr);
+        int mismatch = res.duplicate().limit(resPtr + maxLen).position(resPtr)
+                .mismatch(src.duplicate().limit(srcPtr + maxLen).position(srcPtr));
+        return (mismatch < 0) ? maxLen : mismatch;
+    }
+
+    private static int negmatch(ByteBuffer res, int resPtr, ByteBuffer src, int srcPtr, int limit) {
+        if (srcPtr == 0)
+            return 0;
+
+        resPtr--;
+        srcPtr--;
+        int start = resPtr;
+        do {
+            if (res.get(resPtr) != src.get(srcPtr))
+                break;
+            resPtr--;
+            srcPtr--;
+        } while (0 <= srcPtr && 0 < --limit);
+        return start - resPtr;
+    }
+
+
     static int hashBlock(RandomAccessBytes raw, int ptr) {
         int hash;
 
@@ -384,6 +519,36 @@ class DeltaIndex {
         return hash;
     }
 
+    static int hashBlock(ByteBuffer raw, int ptr) {
+        int hash;
+
+        // The first 4 steps collapse out into a 4 byte big-endian decode,
+        // with a larger right shift as we combined shift lefts together.
+        //
+        hash = ((raw.get(ptr) & 0xff) << 24) //
+                | ((raw.get(ptr + 1) & 0xff) << 16) //
+                | ((raw.get(ptr + 2) & 0xff) << 8) //
+                | (raw.get(ptr + 3) & 0xff);
+        hash ^= T[hash >>> 31];
+
+        hash = ((hash << 8) | (raw.get(ptr + 4) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 5) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 6) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 7) & 0xff)) ^ T[hash >>> 23];
+
+        hash = ((hash << 8) | (raw.get(ptr + 8) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 9) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 10) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 11) & 0xff)) ^ T[hash >>> 23];
+
+        hash = ((hash << 8) | (raw.get(ptr + 12) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 13) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 14) & 0xff)) ^ T[hash >>> 23];
+        hash = ((hash << 8) | (raw.get(ptr + 15) & 0xff)) ^ T[hash >>> 23];
+
+        return hash;
+    }
+
     private static int step(int hash, byte toRemove, byte toAdd) {
         hash ^= U[toRemove & 0xff];
         return ((hash << 8) | (toAdd & 0xff)) ^ T[hash >>> 23];
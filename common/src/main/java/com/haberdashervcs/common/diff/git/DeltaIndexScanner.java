@@ -12,6 +12,8 @@
 package com.haberdashervcs.common.diff.git;
 
 
+import java.nio.ByteBuffer;
+
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 
 /**
@@ -33,11 +35,21 @@ class DeltaIndexScanner {
     private int entryCnt;
 
     DeltaIndexScanner(RandomAccessBytes raw, int len) {
-        // Clip the length so it falls on a block boundary. We won't
-        // bother to scan the final partial block.
-        //
-        len -= (len % DeltaIndex.BLKSZ);
+        this(clipToBlock(len));
+        if (entries.length > 0) {
+            scan(raw, clipToBlock(len));
+        }
+    }
 
+    // For DeltaIndex's ByteBuffer path, which hashes blocks straight out of the buffer.
+    DeltaIndexScanner(ByteBuffer raw, int len) {
+        this(clipToBlock(len));
+        if (entries.length > 0) {
+            scan(raw, clipToBlock(len));
+        }
+    }
+
+    private DeltaIndexScanner(int len) {
         final int worstCaseBlockCnt = len / DeltaIndex.BLKSZ;
         if (worstCaseBlockCnt < 1) {
             table = new int[] {};
@@ -55,11 +67,16 @@ class DeltaIndexScanner {
             //
             entries = new long[1 + worstCaseBlockCnt];
             next = new int[entries.length];
-
-            scan(raw, len);
         }
     }
 
+    // Clip the length so it falls on a block boundary. We won't
+    // bother to scan the final partial block.
+    //
+    private static int clipToBlock(int len) {
+        return len - (len % DeltaIndex.BLKSZ);
+    }
+
     private void scan(RandomAccessBytes raw, int end) {
         // We scan the input backwards, and always insert onto the
         // front of the chain. This ensures that chains will have lower
@@ -91,6 +108,29 @@ class DeltaIndexScanner {
         } while (0 <= ptr);
     }
 
+    private void scan(ByteBuffer raw, int end) {
+        // Same as above.
+        int lastHash = 0;
+        int ptr = end - DeltaIndex.BLKSZ;
+        do {
+            final int key = DeltaIndex.hashBlock(raw, ptr);
+            final int tIdx = key & tableMask;
+
+            final int head = table[tIdx];
+            if (head != 0 && lastHash == key) {
+                entries[head] = (((long) key) << 32) | ptr;
+            } else {
+                final int eIdx = ++entryCnt;
+                entries[eIdx] = (((long) key) << 32) | ptr;
+                next[eIdx] = head;
+                table[tIdx] = eIdx;
+            }
+
+            lastHash = key;
+            ptr -= DeltaIndex.BLKSZ;
+        } while (0 <= ptr);
+    }
+
     private static int tableSize(int worstCaseBlockCnt) {
         int shift = 32 - Integer.numberOfLeadingZeros(worstCaseBlockCnt);
         int sz = 1 << (shift - 1);
@@ -0,0 +1,217 @@
+package com.haberdashervcs.common.diff.git;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+
+
+/**
+ * Decides whether a new version of a file should be stored as a delta on an existing entry, or in full. Used when the
+ * client commits, and when the server repacks delta chains.
+ *
+ * A delta is only worth it when it's small next to the file, and when reading through the whole chain doesn't cost
+ * much more than reading the file itself. Otherwise every later checkout and review pays for it.
+ */
+public final class DeltaStoragePolicy {
+
+    // A delta must be at most this fraction of the file's size.
+    public static final double DEFAULT_MAX_DELTA_RATIO = 0.5;
+
+    // Resolving the file (its full base plus each delta in the chain) may read at most this many times its size.
+    public static final double DEFAULT_MAX_READ_AMPLIFICATION = 4.0;
+
+
+    public static DeltaStoragePolicy withDefaults() {
+        return new DeltaStoragePolicy(
+                DEFAULT_MAX_DELTA_RATIO, DEFAULT_MAX_READ_AMPLIFICATION, HdConstants.MAX_DIFF_SEARCH);
+    }
+
+    public static DeltaStoragePolicy of(double maxDeltaRatio, double maxReadAmplification, int maxChainDepth) {
+        Preconditions.checkArgument(maxDeltaRatio > 0 && maxDeltaRatio <= 1);
+        Preconditions.checkArgument(maxReadAmplification >= 1);
+        Preconditions.checkArgument(maxChainDepth >= 1 && maxChainDepth <= HdConstants.MAX_DIFF_SEARCH);
+        return new DeltaStoragePolicy(maxDeltaRatio, maxReadAmplification, maxChainDepth);
+    }
+
+
+    public enum Decision {
+        DELTA,
+        FULL_CHAIN_TOO_DEEP,
+        FULL_READ_COST,
+        FULL_DELTA_TOO_LARGE
+    }
+
+
+    /**
+     * Loads the resolved contents of the base, only once the policy knows it may want a delta.
+     */
+    public interface BaseContents {
+        RandomAccessBytes load() throws IOException;
+    }
+
+
+    /**
+     * The outcome for one file: a delta, or a reason to store it in full.
+     */
+    public static final class Result {
+
+        private final Decision decision;
+        private final Optional<byte[]> delta;
+
+        private Result(Decision decision, Optional<byte[]> delta) {
+            this.decision = decision;
+            this.delta = delta;
+        }
+
+        public Decision getDecision() {
+            return decision;
+        }
+
+        public Optional<byte[]> getDelta() {
+            return delta;
+        }
+    }
+
+
+    private final double maxDeltaRatio;
+    private final double maxReadAmplification;
+    private final int maxChainDepth;
+
+    private final AtomicLong numDeltas = new AtomicLong(0);
+    private final AtomicLong numFullChainTooDeep = new AtomicLong(0);
+    private final AtomicLong numFullReadCost = new AtomicLong(0);
+    private final AtomicLong numFullDeltaTooLarge = new AtomicLong(0);
+    private final AtomicLong deltaBytes = new AtomicLong(0);
+    private final AtomicLong deltaFileBytes = new AtomicLong(0);
+
+    private DeltaStoragePolicy(double maxDeltaRatio, double maxReadAmplification, int maxChainDepth) {
+        this.maxDeltaRatio = maxDeltaRatio;
+        this.maxReadAmplification = maxReadAmplification;
+        this.maxChainDepth = maxChainDepth;
+    }
+
+
+    /**
+     * Decides how to store the modified contents, computing the delta if it should be one.
+     *
+     * @param baseChainDepth The number of deltas between the base and its full entry: 0 if the base is full.
+     * @param baseChainReadBytes The bytes read to resolve the base: its full entry plus each delta in its chain.
+     */
+    public Result decide(
+            BaseContents base, RandomAccessBytes modified, int baseChainDepth, long baseChainReadBytes)
+            throws IOException {
+        if (baseChainDepth + 1 > maxChainDepth) {
+            numFullChainTooDeep.incrementAndGet();
+            return new Result(Decision.FULL_CHAIN_TOO_DEEP, Optional.empty());
+        }
+
+        final long maxReadBytes = (long) (modified.longLength() * maxReadAmplification);
+        final long deltaSizeLimit = Math.min(
+                (long) (modified.longLength() * maxDeltaRatio),
+                maxReadBytes - baseChainReadBytes);
+        // A limit of 0 means no limit to DeltaIndex.
+        if (deltaSizeLimit < 1) {
+            numFullReadCost.incrementAndGet();
+            return new Result(Decision.FULL_READ_COST, Optional.empty());
+        }
+
+        Optional<byte[]> delta = GitDeltaDiffer.computeGitDiffWithLimit(
+                base.load(), modified, (int) Math.min(deltaSizeLimit, Integer.MAX_VALUE));
+        if (delta.isEmpty()) {
+            numFullDeltaTooLarge.incrementAndGet();
+            return new Result(Decision.FULL_DELTA_TOO_LARGE, Optional.empty());
+        }
+
+        numDeltas.incrementAndGet();
+        deltaBytes.addAndGet(delta.get().length);
+        deltaFileBytes.addAndGet(modified.longLength());
+        return new Result(Decision.DELTA, delta);
+    }
+
+
+    public Stats getStats() {
+        return new Stats(
+                numDeltas.get(),
+                numFullChainTooDeep.get(),
+                numFullReadCost.get(),
+                numFullDeltaTooLarge.get(),
+                deltaBytes.get(),
+                deltaFileBytes.get());
+    }
+
+
+    /**
+     * A snapshot of the decisions made so far.
+     */
+    public static final class Stats {
+
+        private final long numDeltas;
+        private final long numFullChainTooDeep;
+        private final long numFullReadCost;
+        private final long numFullDeltaTooLarge;
+        private final long deltaBytes;
+        private final long deltaFileBytes;
+
+        private Stats(
+                long numDeltas,
+                long numFullChainTooDeep,
+                long numFullReadCost,
+                long numFullDeltaTooLarge,
+                long deltaBytes,
+                long deltaFileBytes) {
+            this.numDeltas = numDeltas;
+            this.numFullChainTooDeep = numFullChainTooDeep;
+            this.numFullReadCost = numFullReadCost;
+            this.numFullDeltaTooLarge = numFullDeltaTooLarge;
+            this.deltaBytes = deltaBytes;
+            this.deltaFileBytes = deltaFileBytes;
+        }
+
+        public long getNumDeltas() {
+            return numDeltas;
+        }
+
+        public long getNumFull() {
+            return numFullChainTooDeep + numFullReadCost + numFullDeltaTooLarge;
+        }
+
+        public long getNumFull(Decision reason) {
+            switch (reason) {
+                case FULL_CHAIN_TOO_DEEP:
+                    return numFullChainTooDeep;
+                case FULL_READ_COST:
+                    return numFullReadCost;
+                case FULL_DELTA_TOO_LARGE:
+                    return numFullDeltaTooLarge;
+                default:
+                    throw new IllegalArgumentException("Not a reason for a full entry: " + reason);
+            }
+        }
+
+        // The total size of the deltas written, and of the files they stand for.
+        public long getDeltaBytes() {
+            return deltaBytes;
+        }
+
+        public long getDeltaFileBytes() {
+            return deltaFileBytes;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("numDeltas", numDeltas)
+                    .add("numFullChainTooDeep", numFullChainTooDeep)
+                    .add("numFullReadCost", numFullReadCost)
+                    .add("numFullDeltaTooLarge", numFullDeltaTooLarge)
+                    .add("deltaBytes", deltaBytes)
+                    .add("deltaFileBytes", deltaFileBytes)
+                    .toString();
+        }
+    }
+}
@@ -2,7 +2,12 @@ package com.haberdashervcs.common.diff.git;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
 
+import com.google.common.base.Preconditions;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.FileRandomAccessBytes;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
@@ -17,13 +22,73 @@ public final class GitDeltaDiffer {
     private static final HdLogger LOG = HdLoggers.create(GitDeltaDiffer.class);
 
 
-    // TODO: Use the delta size limit parameter to bail if the diff is very large, so we can save a full copy instead?
-    // And/or return a RAB instead of a byte[] ?
+
+    // TODO: Return a RAB instead of a byte[] ?
     public static byte[] computeGitDiff(RandomAccessBytes original, RandomAccessBytes modified) throws IOException {
-        DeltaIndex originalIndex = new DeltaIndex(original);
         ByteArrayOutputStream result = new ByteArrayOutputStream();
-        originalIndex.encode(result, modified);
+        encode(original, modified, result, 0 /* no limit */);
         return result.toByteArray();
     }
 
+
+    /**
+     * Like computeGitDiff(), but gives up and returns empty once the diff would be longer than deltaSizeLimit bytes, or
+     * if either side is past 2GB. See DeltaStoragePolicy.
+     */
+    public static Optional<byte[]> computeGitDiffWithLimit(
+            RandomAccessBytes original, RandomAccessBytes modified, int deltaSizeLimit)
+            throws IOException {
+        Preconditions.checkArgument(deltaSizeLimit > 0);
+        // Deltas address their base and result with ints.
+        if (original.longLength() > Integer.MAX_VALUE || modified.longLength() > Integer.MAX_VALUE) {
+            return Optional.empty();
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        if (encode(original, modified, result, deltaSizeLimit)) {
+            return Optional.of(result.toByteArray());
+        } else {
+            return Optional.empty();
+        }
+    }
+
+
+    private static boolean encode(
+            RandomAccessBytes original, RandomAccessBytes modified, ByteArrayOutputStream result, int deltaSizeLimit)
+            throws IOException {
+        Optional<ByteBuffer> originalView = wholeView(original);
+        Optional<ByteBuffer> modifiedView = wholeView(modified);
+        if (originalView.isPresent() && modifiedView.isPresent()) {
+            DeltaIndex originalIndex = new DeltaIndex(original, originalView.get());
+            return originalIndex.encode(result, modifiedView.get(), deltaSizeLimit);
+        } else {
+            DeltaIndex originalIndex = new DeltaIndex(original);
+            return originalIndex.encode(result, modified, deltaSizeLimit);
+        }
+    }
+
+
+    // Encoding through RandomAccessBytes.at() costs a call and a bounds check per byte, which dominates diffing for large
+    // files. Contents in the heap or mapped from a file can be viewed whole instead, without copying them. Other
+    // sources would copy into the view, so they go through at().
+    private static Optional<ByteBuffer> wholeView(RandomAccessBytes contents) {
+        if (!(contents instanceof ByteArrayRandomAccessBytes) && !(contents instanceof FileRandomAccessBytes)) {
+            return Optional.empty();
+        }
+        // Files are mapped in chunks, and only a file within one chunk has a whole view.
+        final long length = contents.longLength();
+        if (length > Integer.MAX_VALUE) {
+            return Optional.empty();
+        }
+        ByteBuffer view = (length == 0) ? ByteBuffer.allocate(0) : contents.bufferAt(0, (int) length);
+        return (view.limit() == length) ? Optional.of(view) : Optional.empty();
+    }
+
+
+    /**
+     * Returns the size of the file that results from applying this diff to its base.
+     */
+    public static int getResultSize(RandomAccessBytes gitDiff) {
+        return BinaryDelta.getResultSize(gitDiff);
+    }
+
 }
@@ -2,7 +2,10 @@ package com.haberdashervcs.common.diff.git;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.haberdashervcs.common.diff.DiffHunk;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
@@ -14,24 +17,100 @@ import org.eclipse.jgit.diff.HistogramDiff;
 import org.eclipse.jgit.diff.SequenceComparator;
 
 
+/**
+ * Line diffs for display. A differ can have budgets for the number of edits and the time spent, since a diff of a big
+ * generated file can take very long and isn't worth reading anyway. Over budget, the result is "too large", with one
+ * hunk for the whole changed region instead of the real edits.
+ *
+ * Interrupting the diffing thread cancels it, with a CancellationException.
+ */
 public final class HistogramDiffer {
 
     private static final HdLogger LOG = HdLoggers.create(HistogramDiffer.class);
 
+    public static final int DEFAULT_MAX_EDITS = 5000;
+    public static final long DEFAULT_MAX_MILLIS = 2000;
 
+
+    /**
+     * A differ without budgets.
+     */
     public HistogramDiffer() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public static HistogramDiffer withBudgets(int maxEdits, long maxMillis) {
+        Preconditions.checkArgument(maxEdits > 0);
+        Preconditions.checkArgument(maxMillis > 0);
+        return new HistogramDiffer(maxEdits, maxMillis);
+    }
+
+
+    public static final class Result {
+
+        public enum Status {
+            DIFFED,
+            TOO_LARGE
+        }
+
+
+        private final Status status;
+        private final List<DiffHunk> hunks;
+
+        private Result(Status status, List<DiffHunk> hunks) {
+            this.status = status;
+            this.hunks = hunks;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isTooLarge() {
+            return status == Status.TOO_LARGE;
+        }
+
+        /**
+         * For a diff that was too large, this is one hunk from the first changed line to the last.
+         */
+        public List<DiffHunk> getHunks() {
+            return hunks;
+        }
+    }
+
+
+    private final int maxEdits;
+    private final long maxMillis;
+
+    private HistogramDiffer(int maxEdits, long maxMillis) {
+        this.maxEdits = maxEdits;
+        this.maxMillis = maxMillis;
     }
 
 
     public List<DiffHunk> computeLineDiffs(RandomAccessBytes original, RandomAccessBytes modified) {
-        RabTextSequence originalSeq = new RabTextSequence(original);
-        RabTextSequence modifiedSeq = new RabTextSequence(modified);
-        SequenceComparator<RabTextSequence> comp = new RabTextComparator();
+        return diff(new RabTextSequence(original), new RabTextSequence(modified)).getHunks();
+    }
+
+
+    public Result diff(RabTextSequence original, RabTextSequence modified) {
+        RabTextComparator comp = new RabTextComparator();
+        BudgetedComparator budgeted = new BudgetedComparator(comp, maxMillis);
         HistogramDiff differ = new HistogramDiff();
-        // TODO: Limit the number of edits to some maximum, since it's only for display.
-        EditList edits = differ.diff(comp, originalSeq, modifiedSeq);
-        if (edits.size() == 0) {
-            return ImmutableList.of();
+
+        final EditList edits;
+        try {
+            edits = differ.diff(budgeted, original, modified);
+        } catch (OverBudgetException ex) {
+            LOG.info("Line diff ran over %d ms", maxMillis);
+            return tooLarge(comp, original, modified);
+        }
+
+        if (edits.size() > maxEdits) {
+            LOG.info("Line diff has %d edits, over the limit of %d", edits.size(), maxEdits);
+            return tooLarge(comp, original, modified);
+        } else if (edits.size() == 0) {
+            return new Result(Result.Status.DIFFED, ImmutableList.of());
         }
 
         ArrayList<DiffHunk> out = new ArrayList<>();
@@ -44,7 +123,94 @@ public final class HistogramDiffer {
                     edit.getEndB() + 1);
             out.add(hunk);
         }
-        return out;
+        return new Result(Result.Status.DIFFED, out);
+    }
+
+
+    // Trims the lines that are the same at the start and end, and calls the rest one change. This is linear, unlike
+    // the diff.
+    private static Result tooLarge(RabTextComparator comp, RabTextSequence original, RabTextSequence modified) {
+        final int originalSize = original.size();
+        final int modifiedSize = modified.size();
+
+        int prefix = 0;
+        while (prefix < originalSize
+                && prefix < modifiedSize
+                && comp.equals(original, prefix, modified, prefix)) {
+            ++prefix;
+        }
+        if (prefix == originalSize && prefix == modifiedSize) {
+            return new Result(Result.Status.TOO_LARGE, ImmutableList.of());
+        }
+        int suffix = 0;
+        while (suffix < originalSize - prefix
+                && suffix < modifiedSize - prefix
+                && comp.equals(original, originalSize - 1 - suffix, modified, modifiedSize - 1 - suffix)) {
+            ++suffix;
+        }
+
+        DiffHunk hunk = new DiffHunk(
+                prefix + 1,
+                originalSize - suffix + 1,
+                prefix + 1,
+                modifiedSize - suffix + 1);
+        return new Result(Result.Status.TOO_LARGE, ImmutableList.of(hunk));
     }
 
+
+    /**
+     * Checks the time budget, and for interrupts, every so often as HistogramDiff compares lines.
+     */
+    private static final class BudgetedComparator extends SequenceComparator<RabTextSequence> {
+
+        private static final int CHECK_INTERVAL = 4096;
+
+        private final RabTextComparator delegate;
+        private final boolean hasDeadline;
+        private final long deadlineNanos;
+        private int calls = 0;
+
+        private BudgetedComparator(RabTextComparator delegate, long maxMillis) {
+            this.delegate = delegate;
+            this.hasDeadline = (maxMillis != Long.MAX_VALUE);
+            this.deadlineNanos = hasDeadline ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis) : 0;
+        }
+
+        private void check() {
+            if (++calls % CHECK_INTERVAL != 0) {
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Line diff was interrupted");
+            }
+            if (hasDeadline && System.nanoTime() - deadlineNanos > 0) {
+                throw new OverBudgetException();
+            }
+        }
+
+        @Override
+        public boolean equals(RabTextSequence a, int ai, RabTextSequence b, int bi) {
+            check();
+            return delegate.equals(a, ai, b, bi);
+        }
+
+        @Override
+        public int hash(RabTextSequence seq, int lno) {
+            check();
+            return delegate.hash(seq, lno);
+        }
+
+        @Override
+        public Edit reduceCommonStartEnd(RabTextSequence a, RabTextSequence b, Edit e) {
+            return delegate.reduceCommonStartEnd(a, b, e);
+        }
+    }
+
+
+    private static final class OverBudgetException extends RuntimeException {
+        private OverBudgetException() {
+            // No stack trace: this is just for unwinding out of HistogramDiff.
+            super(null, null, false, false);
+        }
+    }
 }
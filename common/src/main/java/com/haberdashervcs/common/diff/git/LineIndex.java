@@ -0,0 +1,111 @@
+package com.haberdashervcs.common.diff.git;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+
+
+/**
+ * Where each line of some text starts, and a hash of each line, found in one pass over the bytes. Diffing compares
+ * lines by their hashes before their bytes.
+ *
+ * An index only depends on the bytes, so it can be cached by file id and shared.
+ */
+public final class LineIndex {
+
+    // Like RawTextComparator.DEFAULT, over the line's bytes including its LF.
+    private static final int HASH_SEED = 5381;
+
+    private static final int SCAN_BYTES = 64 * 1024;
+
+
+    public static LineIndex of(RandomAccessBytes content) {
+        final int end = content.length();
+        int[] starts = new int[Math.max(16, end / 36)];
+        int[] hashes = new int[starts.length];
+        int numLines = 0;
+
+        int hash = HASH_SEED;
+        int ptr = 0;
+        while (ptr < end) {
+            ByteBuffer buf = content.bufferAt(ptr, Math.min(end - ptr, SCAN_BYTES));
+            final int bufLen = buf.limit();
+            for (int i = 0; i < bufLen; ++i) {
+                final byte b = buf.get(i);
+                hash = ((hash << 5) + hash) + (b & 0xff);
+                if (b == '\n') {
+                    if (numLines + 1 >= starts.length) {
+                        starts = Arrays.copyOf(starts, starts.length * 2);
+                        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                    }
+                    // The line that just ended began after the last LF.
+                    starts[numLines + 1] = ptr + i + 1;
+                    hashes[numLines] = hash;
+                    ++numLines;
+                    hash = HASH_SEED;
+                }
+            }
+            ptr += bufLen;
+        }
+
+        // A last line without an LF.
+        if (numLines == 0 ? end > 0 : starts[numLines] < end) {
+            if (numLines + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length + 1);
+                hashes = Arrays.copyOf(hashes, hashes.length + 1);
+            }
+            hashes[numLines] = hash;
+            ++numLines;
+        }
+        starts[numLines] = end;
+
+        return new LineIndex(Arrays.copyOf(starts, numLines + 1), Arrays.copyOf(hashes, numLines));
+    }
+
+
+    // starts[n] is where line n (0-indexed) starts, and the last entry is the end of the text.
+    private final int[] starts;
+    private final int[] hashes;
+
+    private LineIndex(int[] starts, int[] hashes) {
+        this.starts = starts;
+        this.hashes = hashes;
+    }
+
+
+    public int getNumLines() {
+        return hashes.length;
+    }
+
+
+    public int getContentLength() {
+        return starts[starts.length - 1];
+    }
+
+
+    // For cache weighing.
+    public long getEstimatedBytes() {
+        return 32 + 4L * (starts.length + hashes.length);
+    }
+
+
+    int lineHash(int lno) {
+        return hashes[lno];
+    }
+
+
+    // Like the line map in JGit's RawText: index 0 is unused, index n + 1 is where line n (0-indexed) starts, and the
+    // last index is the end of the text.
+    int get(int idx) {
+        if (idx == 0) {
+            return Integer.MIN_VALUE;
+        }
+        return starts[idx - 1];
+    }
+
+
+    int size() {
+        return starts.length + 1;
+    }
+}
@@ -1,9 +1,10 @@
 package com.haberdashervcs.common.diff.git;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
@@ -11,6 +12,13 @@ import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 
 
+/**
+ * A view of a base file with a chain of git deltas applied, without copying out the result.
+ *
+ * The deltas' mappings are composed when the view is built, into one table of segments: each one a range of the
+ * result that reads straight from the base or from one delta. So a read costs one binary search however deep the
+ * chain is, plus bulk reads of the segments it covers.
+ */
 public final class PatchedViewRandomAccessBytes implements RandomAccessBytes {
 
     private static final HdLogger LOG = HdLoggers.create(PatchedViewRandomAccessBytes.class);
@@ -20,38 +28,56 @@ public final class PatchedViewRandomAccessBytes implements RandomAccessBytes {
     public static PatchedViewRandomAccessBytes build(RandomAccessBytes base, List<RandomAccessBytes> patches) {
         Preconditions.checkArgument(!patches.isEmpty());
 
-        PatchedViewRandomAccessBytes out = new PatchedViewRandomAccessBytes(base, null);
-        for (RandomAccessBytes patch : patches) {
-            out = new PatchedViewRandomAccessBytes(patch, out);
+        RandomAccessBytes[] sources = new RandomAccessBytes[patches.size() + 1];
+        sources[0] = Preconditions.checkNotNull(base);
+        Segments segments = new Segments(1);
+        if (base.length() > 0) {
+            segments.add(0, 0, base.length());
         }
-        return out;
-    }
-
 
-    private final RandomAccessBytes thisData;
-    @Nullable private final PatchedViewRandomAccessBytes underlying;  // null iff this is the base
+        for (int i = 0; i < patches.size(); ++i) {
+            sources[i + 1] = Preconditions.checkNotNull(patches.get(i));
+            segments = applyPatch(segments, i + 1, sources[i + 1]);
+        }
+        return new PatchedViewRandomAccessBytes(sources, segments);
+    }
 
-    private List<BinaryDelta.PatchMapping> patchMappings;
-    private int length = -1;
 
-    private BinaryDelta.PatchMapping cachedPm = null;
+    // Maps the patch's output onto the segments of its base: its inserts read from the patch itself, and its copies
+    // from whatever the base's segments read from.
+    private static Segments applyPatch(Segments base, int patchSource, RandomAccessBytes patch) {
+        List<BinaryDelta.PatchMapping> patchMappings = computePatchMappings(patch);
+        Segments out = new Segments(base.size + patchMappings.size());
 
-    private PatchedViewRandomAccessBytes(RandomAccessBytes thisData, @Nullable PatchedViewRandomAccessBytes underlying) {
-        this.thisData = Preconditions.checkNotNull(thisData);
-        this.underlying = underlying;
+        for (BinaryDelta.PatchMapping mapping : patchMappings) {
+            if (mapping.baseStart < 0) {
+                out.add(patchSource, mapping.deltaStart, mapping.rangeSize);
+                continue;
+            }
 
-        if (!isBase()) {
-            computePatchMappings();
-        } else {
-            patchMappings = null;
-            length = thisData.length();
+            if (mapping.baseStart + mapping.rangeSize > base.length) {
+                throw new IllegalStateException(String.format(
+                        "Patch copies %d bytes at %d from a base of %d bytes",
+                        mapping.rangeSize, mapping.baseStart, base.length));
+            }
+            int baseIdx = mapping.baseStart;
+            int remaining = mapping.rangeSize;
+            int segment = base.find(baseIdx);
+            while (remaining > 0) {
+                int offset = baseIdx - base.outStarts[segment];
+                int numBytes = Math.min(remaining, base.lengths[segment] - offset);
+                out.add(base.sources[segment], base.sourceStarts[segment] + offset, numBytes);
+                baseIdx += numBytes;
+                remaining -= numBytes;
+                ++segment;
+            }
         }
+        return out;
     }
 
 
-    private void computePatchMappings() {
-        Preconditions.checkState(!isBase());
-        patchMappings = BinaryDelta.computePatchMappings(thisData);
+    private static List<BinaryDelta.PatchMapping> computePatchMappings(RandomAccessBytes patch) {
+        List<BinaryDelta.PatchMapping> patchMappings = BinaryDelta.computePatchMappings(patch);
 
         // Sort by index in the result, so that the mappings go continuously from result start to end.
         Collections.sort(patchMappings, new Comparator<BinaryDelta.PatchMapping>() {
@@ -76,109 +102,161 @@ public final class PatchedViewRandomAccessBytes implements RandomAccessBytes {
             }
             previous = mapping;
         }
-
-        //LOG.info("TEMP: Built patch mappings: " + patchMappings.size());
-        BinaryDelta.PatchMapping last = patchMappings.get(patchMappings.size() - 1);
-        length = last.outStart + last.rangeSize;
+        return patchMappings;
     }
 
 
-    private boolean isBase() {
-        return (underlying == null);
-    }
+    /**
+     * Contiguous ranges of the result, in order, each read from one source starting at some index.
+     */
+    private static final class Segments {
+
+        private int[] outStarts;
+        private int[] lengths;
+        private int[] sources;
+        private int[] sourceStarts;
+        private int size = 0;
+        private int length = 0;
+
+        private Segments(int capacity) {
+            capacity = Math.max(capacity, 1);
+            outStarts = new int[capacity];
+            lengths = new int[capacity];
+            sources = new int[capacity];
+            sourceStarts = new int[capacity];
+        }
 
+        private void add(int source, int sourceStart, int numBytes) {
+            if (numBytes == 0) {
+                return;
+            }
 
-    // TODO!!! Toss at() entirely, in favor of readInto() ?
-    @Override
-    public byte at(int index) {
-        if (index < 0 || index >= length) {
-            throw new IndexOutOfBoundsException("Bad index: " + index);
-        }
+            // Copies of neighboring ranges (common when a delta copies across a segment of the base unchanged) make
+            // one segment.
+            int last = size - 1;
+            if (last >= 0
+                    && sources[last] == source
+                    && sourceStarts[last] + lengths[last] == sourceStart) {
+                lengths[last] += numBytes;
+                length += numBytes;
+                return;
+            }
 
-        if (isBase()) {
-            return thisData.at(index);
+            if (size == outStarts.length) {
+                int newCapacity = size * 2;
+                outStarts = Arrays.copyOf(outStarts, newCapacity);
+                lengths = Arrays.copyOf(lengths, newCapacity);
+                sources = Arrays.copyOf(sources, newCapacity);
+                sourceStarts = Arrays.copyOf(sourceStarts, newCapacity);
+            }
+            outStarts[size] = length;
+            lengths[size] = numBytes;
+            sources[size] = source;
+            sourceStarts[size] = sourceStart;
+            ++size;
+            length += numBytes;
         }
 
-        BinaryDelta.PatchMapping pm = binarySearch(index);
-        int idxInOutRange = index - pm.outStart;
-        if (pm.baseStart >= 0) {
-            return underlying.at(pm.baseStart + idxInOutRange);
-        } else {
-            return thisData.at(pm.deltaStart + idxInOutRange);
+        // Returns the segment holding the given index of the result.
+        private int find(int index) {
+            int found = Arrays.binarySearch(outStarts, 0, size, index);
+            if (found < 0) {
+                // The insertion point is the next segment.
+                found = -found - 2;
+            }
+            return found;
         }
     }
 
 
-    // TEMP! thoughts on faster reading (without a binsearch for each byte):
-    // - patchmappings are sequential...
-    // - There should be some caching of contiguous byte[] blocks in each pvrab...
-    // - But how does a sub-pvrab fill in a top-down byte[] request?...
-    // - each pvrab caches its last used *base* (thisData) mapping / byte[]...
-    //
-    // TODO!!! Toss at() entirely, in favor of readInto() ?
-    // TODO!!! TESTS!
-    @Override
-    public int readInto(int fromIdx, int numBytes, byte[] dest) {
-        if (fromIdx < 0 || fromIdx >= length) {
-            throw new IndexOutOfBoundsException("Bad fromIdx: " + fromIdx);
-        }
+    private final RandomAccessBytes[] sources;
+    private final Segments segments;
+
+    // The segment of the last read, since reads tend to be sequential. Not shared across threads, just checked.
+    private int cachedSegment = 0;
+
+    private PatchedViewRandomAccessBytes(RandomAccessBytes[] sources, Segments segments) {
+        this.sources = sources;
+        this.segments = segments;
+    }
+
 
-        if (isBase()) {
-            return thisData.readInto(fromIdx, numBytes, dest);
+    private int segmentFor(int index) {
+        int segment = cachedSegment;
+        if (segment < segments.size
+                && index >= segments.outStarts[segment]
+                && index < segments.outStarts[segment] + segments.lengths[segment]) {
+            return segment;
         }
 
-        // - either the pm for fromIdx is base or under...
-        // - if base, read a block of bytes from thisData using readInto()
-        // - if under, just delegate the call to under? and return it directly?
-        if (cachedPm == null) {
-            cachedPm = binarySearch(fromIdx);
-        } else if (fromIdx < cachedPm.outStart) {
-            cachedPm = binarySearch(fromIdx);
-        } else if (fromIdx >= (cachedPm.outStart + cachedPm.rangeSize)) {
-            cachedPm = binarySearch(fromIdx);
+        // Most often the read just ran off the end of the last one.
+        ++segment;
+        if (segment >= segments.size
+                || index < segments.outStarts[segment]
+                || index >= segments.outStarts[segment] + segments.lengths[segment]) {
+            segment = segments.find(index);
         }
+        cachedSegment = segment;
+        return segment;
+    }
 
-        int idxInPmRange = fromIdx - cachedPm.outStart;
-        numBytes = Math.min(numBytes, cachedPm.rangeSize - idxInPmRange);
-        if (cachedPm.baseStart >= 0) {
-            int startIdx = cachedPm.baseStart + idxInPmRange;
-            int bytesRead = underlying.readInto(startIdx, numBytes, dest);
-            return bytesRead;
-        } else {
-            int startIdx = cachedPm.deltaStart + idxInPmRange;
-            int bytesRead = thisData.readInto(startIdx, numBytes, dest);
-            return bytesRead;
+
+    @Override
+    public byte at(int index) {
+        if (index < 0 || index >= segments.length) {
+            throw new IndexOutOfBoundsException("Bad index: " + index);
         }
+
+        int segment = segmentFor(index);
+        int offset = index - segments.outStarts[segment];
+        return sources[segments.sources[segment]].at(segments.sourceStarts[segment] + offset);
     }
 
 
-    // Cribbed from: https://en.wikipedia.org/wiki/Binary_search_algorithm
-    private BinaryDelta.PatchMapping binarySearch(final int targetIdx) {
-        int leftIdx = 0;
-        int rightIdx = patchMappings.size() - 1;
+    @Override
+    public int readInto(int fromIdx, int numBytes, byte[] dest) {
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
 
-        while (leftIdx != rightIdx) {
-            int midIdx = (int) Math.ceil((double) (leftIdx + rightIdx) / 2);
-            BinaryDelta.PatchMapping pm = patchMappings.get(midIdx);
-            if (targetIdx < pm.outStart) {
-                rightIdx = midIdx - 1;
-            } else {
-                leftIdx = midIdx;
-            }
+
+    // Reads up to the end of one segment.
+    @Override
+    public int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        Preconditions.checkArgument(numBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, segments.length);
+        if (fromIdx == segments.length) {
+            return 0;
         }
+        int segment = segmentFor((int) fromIdx);
+        int offset = (int) fromIdx - segments.outStarts[segment];
+        numBytes = Math.min(numBytes, segments.lengths[segment] - offset);
+        return sources[segments.sources[segment]].readInto(
+                segments.sourceStarts[segment] + offset, numBytes, dest, destOffset);
+    }
+
 
-        BinaryDelta.PatchMapping pm = patchMappings.get(leftIdx);
-        if (targetIdx >= pm.outStart && targetIdx < (pm.outStart + pm.rangeSize)) {
-            return pm;
-        } else {
-            throw new IndexOutOfBoundsException("Unmapped index: " + targetIdx);
+    // A view from the source of one segment, so it's only a copy if that source's views are.
+    @Override
+    public ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, segments.length);
+        if (fromIdx == segments.length) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
         }
+        int segment = segmentFor((int) fromIdx);
+        int offset = (int) fromIdx - segments.outStarts[segment];
+        return sources[segments.sources[segment]].bufferAt(
+                segments.sourceStarts[segment] + offset, Math.min(maxBytes, segments.lengths[segment] - offset));
     }
 
 
     @Override
     public int length() {
-        return length;
+        return segments.length;
     }
 
+
+    int numSegments() {
+        return segments.size;
+    }
 }
@@ -16,7 +16,6 @@ package com.haberdashervcs.common.diff.git;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.SequenceComparator;
-import org.eclipse.jgit.util.IntList;
 
 
 final class RabTextComparator extends SequenceComparator<RabTextSequence> {
@@ -24,11 +23,10 @@ final class RabTextComparator extends SequenceComparator<RabTextSequence> {
     RabTextComparator() {}
 
 
+    // Hashed when the line index was built.
     @Override
     public int hash(RabTextSequence seq, int lno) {
-        final int begin = seq.getLines().get(lno + 1);
-        final int end = seq.getLines().get(lno + 2);
-        return hashRegion(seq.getContent(), begin, end);
+        return seq.getLines().lineHash(lno);
     }
 
 
@@ -90,14 +88,14 @@ final class RabTextComparator extends SequenceComparator<RabTextSequence> {
         return super.reduceCommonStartEnd(a, b, newEdit);
     }
 
-    private static int findForwardLine(IntList lines, int idx, int ptr) {
+    private static int findForwardLine(LineIndex lines, int idx, int ptr) {
         final int end = lines.size() - 2;
         while (idx < end && lines.get(idx + 2) < ptr)
             idx++;
         return idx;
     }
 
-    private static int findReverseLine(IntList lines, int idx, int ptr) {
+    private static int findReverseLine(LineIndex lines, int idx, int ptr) {
         while (0 < idx && ptr <= lines.get(idx))
             idx--;
         return idx;
@@ -106,6 +104,10 @@ final class RabTextComparator extends SequenceComparator<RabTextSequence> {
 
     @Override
     public boolean equals(RabTextSequence a, int ai, RabTextSequence b, int bi) {
+        if (a.getLines().lineHash(ai) != b.getLines().lineHash(bi)) {
+            return false;
+        }
+
         ai++;
         bi++;
 
@@ -123,13 +125,4 @@ final class RabTextComparator extends SequenceComparator<RabTextSequence> {
         }
         return true;
     }
-
-
-    // Based on RawTextComparator.DEFAULT
-    private int hashRegion(RandomAccessBytes raw, int ptr, int end) {
-        int hash = 5381;
-        for (; ptr < end; ptr++)
-            hash = ((hash << 5) + hash) + (raw.at(ptr) & 0xff);
-        return hash;
-    }
 }
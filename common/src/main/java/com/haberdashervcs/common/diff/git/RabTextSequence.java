@@ -19,7 +19,6 @@ import java.nio.charset.StandardCharsets;
 import com.haberdashervcs.common.diff.TextLinesSource;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import org.eclipse.jgit.diff.Sequence;
-import org.eclipse.jgit.util.IntList;
 
 
 public final class RabTextSequence
@@ -33,16 +32,24 @@ public final class RabTextSequence
     private final RandomAccessBytes content;
 
     /**
-     * Map of line number to starting position within {@link #content}.
+     * Where each line starts, and its hash.
      */
-    private final IntList lines;
+    private final LineIndex lines;
 
     public RabTextSequence(RandomAccessBytes content) {
+        this(content, LineIndex.of(content));
+    }
+
+    /**
+     * For an index built earlier from the same content, like one cached by file id.
+     */
+    public RabTextSequence(RandomAccessBytes content, LineIndex lines) {
+        if (lines.getContentLength() != content.length()) {
+            throw new IllegalArgumentException(String.format(
+                    "Line index is for %d bytes, but the content is %d", lines.getContentLength(), content.length()));
+        }
         this.content = content;
-        // TODO: Consider evaluating the line map lazily, like only N lines at a time as called for, since for example
-        // diffing may stop after the first M lines of a file, so we wouldn't need to compute the whole line map. Or,
-        // would this be obviated by precomputing diffs on push?
-        this.lines = lineMap(content);
+        this.lines = lines;
     }
 
 
@@ -65,46 +72,17 @@ public final class RabTextSequence
     }
 
 
-    IntList getLines() {
+    LineIndex getLines() {
         return lines;
     }
 
 
-    // Based on JGit RawParseUtils.lineMap()
-    private static IntList lineMap(RandomAccessBytes content) {
-        final int end = content.length();
-        int ptr = 0;
-
-        IntList map = new IntList(end / 36);
-        map.fillTo(1, Integer.MIN_VALUE);
-
-        for (; ptr < end; ptr = nextLF(content, ptr, end)) {
-            map.add(ptr);
-        }
-        map.add(end);
-        return map;
-    }
-
-
-    // Based on RawParseUtils.nextLF()
-    private static int nextLF(RandomAccessBytes content, int ptr, int end) {
-        while (ptr < end) {
-            if (content.at(ptr++) == '\n') {
-                return ptr;
-            }
-        }
-        return ptr;
-    }
-
-
     @Override
     public String getLine(int lineNumber) {
         int lineStart = lines.get(lineNumber);
         int lineEnd = lines.get(lineNumber + 1);
         byte[] bytes = new byte[lineEnd - lineStart];
-        for (int i = lineStart; i < lineEnd; ++i) {
-            bytes[i - lineStart] = content.at(i);
-        }
+        RandomAccessBytes.readFully(content, lineStart, bytes.length, bytes, 0);
         // TODO: Support different encodings, how?
         return new String(bytes, StandardCharsets.UTF_8);
     }
@@ -0,0 +1,159 @@
+package com.haberdashervcs.common.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.io.ByteStreams;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.diff.TextOrBinaryChecker;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+
+
+/**
+ * Compresses file entry contents, where it's worthwhile.
+ *
+ * Contents are left alone if they're small, if they look binary (a full entry, by the same check used for diffs), or if
+ * a sample of them looks like it's already compressed. Compressed contents are only kept if they're noticeably smaller.
+ */
+public final class FileContentsCodec {
+
+    private FileContentsCodec() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Sent by a client or server that can read compressed file entries from the other side. The value is a
+     * comma-separated list of codecs, like "deflate".
+     */
+    public static final String ACCEPT_HEADER = "X-Haberdasher-Accept-File-Codecs";
+    public static final String DEFLATE = "deflate";
+
+    static final int DEFLATE_LEVEL = 6;
+
+    private static final int MIN_COMPRESSIBLE_SIZE = 256;
+    private static final int ENTROPY_SAMPLE_SIZE = 8192;
+    // Already compressed data (images, archives, ...) is close to 8 bits per byte.
+    private static final double MAX_ENTROPY_BITS_PER_BYTE = 7.5;
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    // Contents bigger than this go in the large file store, so no encoded entry should ever inflate past it.
+    private static final int MAX_DECODED_SIZE = HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES;
+
+
+    public static final class Encoded {
+
+        private final FilesProto.FileEntry.Codec codec;
+        private final byte[] bytes;
+
+        private Encoded(FilesProto.FileEntry.Codec codec, byte[] bytes) {
+            this.codec = codec;
+            this.bytes = bytes;
+        }
+
+        public FilesProto.FileEntry.Codec getCodec() {
+            return codec;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+
+    public static Encoded encode(byte[] contents, FileEntry.ContentsType contentsType) {
+        if (!isWorthCompressing(contents, contentsType)) {
+            return new Encoded(FilesProto.FileEntry.Codec.NONE, contents);
+        }
+
+        byte[] deflated = deflate(contents, DEFLATE_LEVEL);
+        if (deflated.length > contents.length * MAX_COMPRESSED_RATIO) {
+            return new Encoded(FilesProto.FileEntry.Codec.NONE, contents);
+        } else {
+            return new Encoded(FilesProto.FileEntry.Codec.DEFLATE, deflated);
+        }
+    }
+
+
+    public static byte[] decode(FilesProto.FileEntry.Codec codec, byte[] bytes) throws IOException {
+        switch (codec) {
+            case NONE:
+                return bytes;
+            case DEFLATE:
+                return inflate(bytes);
+            default:
+                throw new IOException("Unknown file codec: " + codec);
+        }
+    }
+
+
+    // Stops once the output is over the limit, so a small, malicious entry can't inflate into gigabytes.
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] inflated = ByteStreams.limit(in, MAX_DECODED_SIZE + 1L).readAllBytes();
+            if (inflated.length > MAX_DECODED_SIZE) {
+                throw new IOException(String.format(
+                        "Compressed file contents are too large: over %d bytes", MAX_DECODED_SIZE));
+            }
+            return inflated;
+        }
+    }
+
+
+    static boolean isWorthCompressing(byte[] contents, FileEntry.ContentsType contentsType) {
+        if (contents.length < MIN_COMPRESSIBLE_SIZE) {
+            return false;
+        } else if (contentsType == FileEntry.ContentsType.FULL
+                && TextOrBinaryChecker.check(ByteArrayRandomAccessBytes.of(contents)).isBinary()) {
+            return false;
+        } else {
+            return entropyBitsPerByte(contents, ENTROPY_SAMPLE_SIZE) <= MAX_ENTROPY_BITS_PER_BYTE;
+        }
+    }
+
+
+    // Shannon entropy of the byte values in the first sampleSize bytes.
+    static double entropyBitsPerByte(byte[] contents, int sampleSize) {
+        final int length = Math.min(contents.length, sampleSize);
+        if (length == 0) {
+            return 0;
+        }
+
+        int[] counts = new int[256];
+        for (int i = 0; i < length; ++i) {
+            ++counts[contents[i] & 0xff];
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = count / (double) length;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+
+    static byte[] deflate(byte[] contents, int level) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(contents);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int numBytes = deflater.deflate(buf);
+                out.write(buf, 0, numBytes);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.haberdashervcs.common.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+
+
+/**
+ * Reports the size and CPU trade-off of each file codec and level over the files under a directory: the compressed
+ * ratio, and encode and decode throughput. Run by hand, like:
+ *
+ * <pre>java -cp common.jar:... com.haberdashervcs.common.io.FileContentsCodecBenchmark /path/to/some/checkout</pre>
+ *
+ * Files over the large file threshold are skipped, since they go in the large file store and are never encoded.
+ */
+public final class FileContentsCodecBenchmark {
+
+    private static final int[] DEFLATE_LEVELS = { 1, 3, FileContentsCodec.DEFLATE_LEVEL, 9 };
+    private static final int ROUNDS = 3;
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: FileContentsCodecBenchmark <directory>");
+            System.exit(1);
+        }
+
+        List<byte[]> files = readAll(Paths.get(args[0]));
+        long totalBytes = 0;
+        for (byte[] file : files) {
+            totalBytes += file.length;
+        }
+        System.out.printf("%d files, %d bytes, best of %d rounds%n", files.size(), totalBytes, ROUNDS);
+        System.out.printf("%-16s %8s %14s %14s%n", "codec", "ratio", "encode MB/s", "decode MB/s");
+
+        List<FilesProto.FileEntry.Codec> codecs = new ArrayList<>(files.size());
+        List<byte[]> encoded = new ArrayList<>(files.size());
+
+        for (int level : DEFLATE_LEVELS) {
+            long bestEncodeNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; ++round) {
+                codecs.clear();
+                encoded.clear();
+                long start = System.nanoTime();
+                for (byte[] file : files) {
+                    encoded.add(FileContentsCodec.deflate(file, level));
+                    codecs.add(FilesProto.FileEntry.Codec.DEFLATE);
+                }
+                bestEncodeNanos = Math.min(bestEncodeNanos, System.nanoTime() - start);
+            }
+            report("deflate-" + level, totalBytes, codecs, encoded, bestEncodeNanos);
+        }
+
+        // What's actually stored: the default level, skipping binary and high-entropy contents.
+        long bestEncodeNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            codecs.clear();
+            encoded.clear();
+            long start = System.nanoTime();
+            for (byte[] file : files) {
+                FileContentsCodec.Encoded stored = FileContentsCodec.encode(file, FileEntry.ContentsType.FULL);
+                encoded.add(stored.getBytes());
+                codecs.add(stored.getCodec());
+            }
+            bestEncodeNanos = Math.min(bestEncodeNanos, System.nanoTime() - start);
+        }
+        report("encode()", totalBytes, codecs, encoded, bestEncodeNanos);
+    }
+
+
+    private static List<byte[]> readAll(Path dir) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        List<byte[]> out = new ArrayList<>(paths.size());
+        for (Path path : paths) {
+            if (Files.size(path) <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+                out.add(Files.readAllBytes(path));
+            }
+        }
+        return out;
+    }
+
+
+    private static void report(
+            String name,
+            long rawBytes,
+            List<FilesProto.FileEntry.Codec> codecs,
+            List<byte[]> encoded,
+            long bestEncodeNanos)
+            throws IOException {
+        long encodedBytes = 0;
+        for (byte[] bytes : encoded) {
+            encodedBytes += bytes.length;
+        }
+
+        long bestDecodeNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < encoded.size(); ++i) {
+                FileContentsCodec.decode(codecs.get(i), encoded.get(i));
+            }
+            bestDecodeNanos = Math.min(bestDecodeNanos, System.nanoTime() - start);
+        }
+
+        System.out.printf(
+                "%-16s %8.3f %14.1f %14.1f%n",
+                name,
+                (rawBytes == 0) ? 1.0 : encodedBytes / (double) rawBytes,
+                mbPerSec(rawBytes, bestEncodeNanos),
+                mbPerSec(rawBytes, bestDecodeNanos));
+    }
+
+
+    private static double mbPerSec(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / Math.max(nanos / 1e9, 1e-9);
+    }
+}
@@ -22,6 +22,10 @@ import com.haberdashervcs.common.objects.user.UserAuthToken;
 public interface HdObjectByteConverter {
 
     byte[] fileToBytes(FileEntry file) throws IOException;
+    /**
+     * Like fileToBytes(), but the contents may be compressed. Only for readers that understand FileContentsCodec.
+     */
+    byte[] fileToCompressedBytes(FileEntry file) throws IOException;
     FileEntry fileFromBytes(byte[] fileBytes) throws IOException;
 
     byte[] folderToBytes(FolderListing folder) throws IOException;
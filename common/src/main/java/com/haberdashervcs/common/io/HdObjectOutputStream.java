@@ -16,6 +16,12 @@ public interface HdObjectOutputStream {
 
     void writeFile(String fileId, FileEntry file) throws IOException;
 
+    /**
+     * Writes a file entry that's already been converted by HdObjectByteConverter.fileToCompressedBytes(), such as one
+     * read straight from the datastore, without decoding it first if the reader can take it as it is.
+     */
+    void writeStoredFile(String fileId, byte[] fileBytes) throws IOException;
+
     void writeCommit(String commitId, CommitEntry commit) throws IOException;
 
     void writeLargeFileContents(FileEntry entry, InputStream contents, int sizeInBytes) throws IOException;
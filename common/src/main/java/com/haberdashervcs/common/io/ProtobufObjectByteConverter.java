@@ -50,12 +50,29 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
 
     @Override
     public byte[] fileToBytes(FileEntry file) {
+        return fileToBytes(file, false);
+    }
+
+
+    @Override
+    public byte[] fileToCompressedBytes(FileEntry file) {
+        return fileToBytes(file, true);
+    }
+
+
+    private byte[] fileToBytes(FileEntry file, boolean compress) {
         FilesProto.FileEntry.Builder proto = FilesProto.FileEntry.newBuilder();
 
         proto.setId(file.getId());
 
         byte[] contents = RandomAccessBytes.toByteArray(file.getEntryContents());
-        proto.setContents(ByteString.copyFrom(contents));
+        if (compress) {
+            FileContentsCodec.Encoded encoded = FileContentsCodec.encode(contents, file.getContentsType());
+            proto.setContents(ByteString.copyFrom(encoded.getBytes()));
+            proto.setCodec(encoded.getCodec());
+        } else {
+            proto.setContents(ByteString.copyFrom(contents));
+        }
 
         final FilesProto.FileEntry.ContentsType contentsType;
         switch (file.getContentsType()) {
@@ -160,7 +177,8 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
                         ? FileEntry.StorageType.LARGE_FILE_STORE
                         : FileEntry.StorageType.DATASTORE;
 
-        RandomAccessBytes contents = ByteArrayRandomAccessBytes.of(proto.getContents().toByteArray());
+        RandomAccessBytes contents = ByteArrayRandomAccessBytes.of(
+                FileContentsCodec.decode(proto.getCodec(), proto.getContents().toByteArray()));
         if (proto.getContentsType() == FilesProto.FileEntry.ContentsType.FULL) {
             return FileEntry.forFullContents(proto.getId(), contents, storageType);
 
@@ -181,8 +199,10 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
         for (FoldersProto.FolderListingEntry protoEntry : proto.getEntriesList()) {
             if (protoEntry.getType() == FoldersProto.FolderListingEntry.Type.FILE) {
                 entries.add(FolderListing.Entry.forFile(protoEntry.getName(), protoEntry.getId()));
-            } else {
+            } else if (protoEntry.getId().isEmpty()) {
                 entries.add(FolderListing.Entry.forSubFolder(protoEntry.getName()));
+            } else {
+                entries.add(FolderListing.Entry.forSubFolderWithTreeHash(protoEntry.getName(), protoEntry.getId()));
             }
         }
 
@@ -365,6 +385,7 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
                 .setType(type)
                 .setMessage(mergeResult.getMessage())
                 .setNewCommitIdOnMain(mergeResult.getNewCommitIdOnMain())
+                .addAllConflictingPaths(mergeResult.getConflictingPaths())
                 .build()
                 .toByteArray();
     }
@@ -442,7 +463,11 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
                 throw new IllegalStateException("Unknown type in MergeResult proto");
         }
 
-        return MergeResult.of(type, proto.getMessage(), proto.getNewCommitIdOnMain());
+        MergeResult result = MergeResult.of(type, proto.getMessage(), proto.getNewCommitIdOnMain());
+        if (proto.getConflictingPathsCount() > 0) {
+            result = result.withConflictingPaths(proto.getConflictingPathsList());
+        }
+        return result;
     }
 
 
@@ -455,33 +480,47 @@ public final class ProtobufObjectByteConverter implements HdObjectByteConverter
 
     @Override
     public byte[] serverCheckoutSpecToBytes(ServerCheckoutSpec spec) throws IOException {
-        return ServerProto.ServerCheckoutSpec.newBuilder()
-                .addAllAllFileIdsFromServer(spec.getAllFileIdsFromServer())
-                .build()
-                .toByteArray();
+        ServerProto.ServerCheckoutSpec.Builder proto = ServerProto.ServerCheckoutSpec.newBuilder()
+                .addAllAllFileIdsFromServer(spec.getAllFileIdsFromServer());
+        if (spec.getCheckoutSessionId().isPresent()) {
+            proto.setCheckoutSessionId(spec.getCheckoutSessionId().get());
+        }
+        return proto.build().toByteArray();
     }
 
 
     @Override
     public ServerCheckoutSpec serverCheckoutSpecFromBytes(byte[] bytes) throws IOException {
         ServerProto.ServerCheckoutSpec proto = ServerProto.ServerCheckoutSpec.parseFrom(bytes);
-        return ServerCheckoutSpec.withServerFileIds(proto.getAllFileIdsFromServerList());
+        if (proto.getCheckoutSessionId().isEmpty()) {
+            return ServerCheckoutSpec.withServerFileIds(proto.getAllFileIdsFromServerList());
+        } else {
+            return ServerCheckoutSpec.withServerFileIdsAndSession(
+                    proto.getAllFileIdsFromServerList(), proto.getCheckoutSessionId());
+        }
     }
 
 
     @Override
     public byte[] clientCheckoutSpecToBytes(ClientCheckoutSpec spec) throws IOException {
-        return ServerProto.ClientCheckoutSpec.newBuilder()
-                .addAllFileIdsClientNeeds(spec.getFileIdsClientNeeds())
-                .build()
-                .toByteArray();
+        ServerProto.ClientCheckoutSpec.Builder proto = ServerProto.ClientCheckoutSpec.newBuilder()
+                .addAllFileIdsClientNeeds(spec.getFileIdsClientNeeds());
+        if (spec.getCheckoutSessionId().isPresent()) {
+            proto.setCheckoutSessionId(spec.getCheckoutSessionId().get());
+        }
+        return proto.build().toByteArray();
     }
 
 
     @Override
     public ClientCheckoutSpec clientCheckoutSpecFromBytes(byte[] bytes) throws IOException {
         ServerProto.ClientCheckoutSpec proto = ServerProto.ClientCheckoutSpec.parseFrom(bytes);
-        return ClientCheckoutSpec.withFilesClientNeeds(proto.getFileIdsClientNeedsList());
+        if (proto.getCheckoutSessionId().isEmpty()) {
+            return ClientCheckoutSpec.withFilesClientNeeds(proto.getFileIdsClientNeedsList());
+        } else {
+            return ClientCheckoutSpec.withFilesClientNeedsForSession(
+                    proto.getFileIdsClientNeedsList(), proto.getCheckoutSessionId());
+        }
     }
 
 
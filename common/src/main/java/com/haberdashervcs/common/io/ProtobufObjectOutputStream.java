@@ -16,16 +16,27 @@ import com.haberdashervcs.common.protobuf.ServerProto;
 public final class ProtobufObjectOutputStream implements HdObjectOutputStream {
 
     public static ProtobufObjectOutputStream forOutputStream(OutputStream out) {
-        return new ProtobufObjectOutputStream(out);
+        return new ProtobufObjectOutputStream(out, false);
+    }
+
+
+    /**
+     * File entries are written with compressed contents, where it's worthwhile. Only use this if the reader has said it
+     * understands them, see FileContentsCodec.ACCEPT_HEADER.
+     */
+    public static ProtobufObjectOutputStream withCompressedFiles(OutputStream out) {
+        return new ProtobufObjectOutputStream(out, true);
     }
 
 
     private final OutputStream out;
     private final HdObjectByteConverter byteConv;
+    private final boolean compressFiles;
 
-    private ProtobufObjectOutputStream(OutputStream out) {
+    private ProtobufObjectOutputStream(OutputStream out, boolean compressFiles) {
         this.out = out;
         this.byteConv = ProtobufObjectByteConverter.getInstance();
+        this.compressFiles = compressFiles;
     }
 
 
@@ -38,7 +49,15 @@ public final class ProtobufObjectOutputStream implements HdObjectOutputStream {
 
     @Override
     public void writeFile(String fileId, FileEntry file) throws IOException {
-        byte[] converted = byteConv.fileToBytes(file);
+        byte[] converted = (compressFiles) ? byteConv.fileToCompressedBytes(file) : byteConv.fileToBytes(file);
+        write(new HdObjectId(HdObjectId.ObjectType.FILE, fileId), converted);
+    }
+
+
+    @Override
+    public void writeStoredFile(String fileId, byte[] fileBytes) throws IOException {
+        // The contents may be compressed. Readers that can't take that get them decoded.
+        byte[] converted = (compressFiles) ? fileBytes : byteConv.fileToBytes(byteConv.fileFromBytes(fileBytes));
         write(new HdObjectId(HdObjectId.ObjectType.FILE, fileId), converted);
     }
 
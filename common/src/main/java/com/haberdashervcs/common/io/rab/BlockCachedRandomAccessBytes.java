@@ -0,0 +1,145 @@
+package com.haberdashervcs.common.io.rab;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * Reads a remote source in fixed-size blocks, on demand, and keeps the most recently used blocks. Good for sparse
+ * access to big files, like patching a diff on top of a large file, where reading the whole file would be wasteful.
+ *
+ * Like the other RandomAccessBytes, this isn't thread-safe.
+ */
+public final class BlockCachedRandomAccessBytes implements RandomAccessBytes {
+
+    /**
+     * Reads a range of the source, like PositionedReadable.readFully().
+     */
+    public interface RangeReader {
+        void readFully(long position, byte[] dest, int offset, int length) throws IOException;
+    }
+
+
+    private static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_CACHED_BLOCKS = 16;
+
+
+    public static BlockCachedRandomAccessBytes of(RangeReader reader, int length) {
+        return of(reader, length, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_CACHED_BLOCKS);
+    }
+
+    public static BlockCachedRandomAccessBytes of(RangeReader reader, int length, int blockSize, int maxCachedBlocks) {
+        Preconditions.checkArgument(length >= 0);
+        Preconditions.checkArgument(blockSize > 0);
+        Preconditions.checkArgument(maxCachedBlocks > 0);
+        return new BlockCachedRandomAccessBytes(reader, length, blockSize, maxCachedBlocks);
+    }
+
+
+    private final RangeReader reader;
+    private final int length;
+    private final int blockSize;
+    private final LinkedHashMap<Integer, byte[]> blocks;
+
+    // at() is called byte by byte, so this skips the map lookup for runs in the same block.
+    private int lastBlockNum = -1;
+    private byte[] lastBlock = null;
+
+    private BlockCachedRandomAccessBytes(RangeReader reader, int length, int blockSize, int maxCachedBlocks) {
+        this.reader = reader;
+        this.length = length;
+        this.blockSize = blockSize;
+        // In access order, for LRU eviction.
+        this.blocks = new LinkedHashMap<>(maxCachedBlocks + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > maxCachedBlocks;
+            }
+        };
+    }
+
+
+    @Override
+    public byte at(int index) {
+        Preconditions.checkElementIndex(index, length);
+        return blockFor(index)[index % blockSize];
+    }
+
+
+    @Override
+    public int readInto(int fromIdx, int numBytes, byte[] dest) {
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
+
+
+    @Override
+    public int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        Preconditions.checkArgument(numBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, length);
+        if (numBytes == 0 || fromIdx == length) {
+            return 0;
+        }
+
+        byte[] block = blockFor((int) fromIdx);
+        int idxInBlock = (int) fromIdx % blockSize;
+        // Like FileRandomAccessBytes, this doesn't read past the end of one block.
+        int bytesRead = Math.min(numBytes, block.length - idxInBlock);
+        System.arraycopy(block, idxInBlock, dest, destOffset, bytesRead);
+        return bytesRead;
+    }
+
+
+    // A view of one cached block, or the part of it from fromIdx.
+    @Override
+    public ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, length);
+        if (fromIdx == length) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        byte[] block = blockFor((int) fromIdx);
+        int idxInBlock = (int) fromIdx % blockSize;
+        return ByteBuffer.wrap(block, idxInBlock, Math.min(maxBytes, block.length - idxInBlock))
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+
+    private byte[] blockFor(int index) {
+        int blockNum = index / blockSize;
+        if (blockNum == lastBlockNum) {
+            return lastBlock;
+        }
+
+        byte[] block = blocks.get(blockNum);
+        if (block == null) {
+            block = readBlock(blockNum);
+            blocks.put(blockNum, block);
+        }
+        lastBlockNum = blockNum;
+        lastBlock = block;
+        return block;
+    }
+
+
+    private byte[] readBlock(int blockNum) {
+        long blockStart = (long) blockNum * blockSize;
+        byte[] block = new byte[(int) Math.min(blockSize, length - blockStart)];
+        try {
+            reader.readFully(blockStart, block, 0, block.length);
+        } catch (IOException ioEx) {
+            throw new RuntimeException(ioEx);
+        }
+        return block;
+    }
+}
@@ -1,8 +1,10 @@
 package com.haberdashervcs.common.io.rab;
 
+import java.nio.ByteBuffer;
 
 import com.google.common.base.Preconditions;
 
+
 public final class ByteArrayRandomAccessBytes implements RandomAccessBytes {
 
     public static ByteArrayRandomAccessBytes of(byte[] bytes) {
@@ -30,12 +32,37 @@ public final class ByteArrayRandomAccessBytes implements RandomAccessBytes {
 
     @Override
     public int readInto(int fromIdx, int numBytes, byte[] dest) {
-        Preconditions.checkArgument(fromIdx + numBytes <= bytes.length);
-        System.arraycopy(bytes, fromIdx, dest, 0, numBytes);
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
+
+
+    @Override
+    public int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        Preconditions.checkArgument(numBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, bytes.length);
+        numBytes = Math.min(numBytes, bytes.length - (int) fromIdx);
+        System.arraycopy(bytes, (int) fromIdx, dest, destOffset, numBytes);
         return numBytes;
     }
 
 
+    @Override
+    public ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, bytes.length);
+        int numBytes = Math.min(maxBytes, bytes.length - (int) fromIdx);
+        return ByteBuffer.wrap(bytes, (int) fromIdx, numBytes).slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * The backing array itself, not a copy, for code that can work on arrays directly. Callers must not modify it.
+     */
+    public byte[] backingArray() {
+        return bytes;
+    }
+
+
     @Override
     public int length() {
         return bytes.length;
@@ -2,97 +2,142 @@ package com.haberdashervcs.common.io.rab;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
+import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 
 
+/**
+ * Reads a file through memory maps, so that reads in any order are served from the page cache without copying the
+ * file into the heap. Files past 2GB are mapped in chunks, and are read through the long-indexed methods.
+ *
+ * Small files are read into the heap instead. Mapping one costs a system call and page faults, plus a mapping that
+ * lingers until the buffer is garbage collected, which is more than reading it.
+ *
+ * NOTE: The file shouldn't be truncated while this is in use. Reading mapped pages past the new end fails with an
+ * InternalError.
+ */
 public final class FileRandomAccessBytes implements RandomAccessBytes {
 
     private static final HdLogger LOG = HdLoggers.create(FileRandomAccessBytes.class);
 
-    private static final int DEFAULT_BUFSIZE = 1 * 1024 * 1024;
+    // A power of 2, so an index splits into a chunk and an offset with shifts.
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Files smaller than this are read into the heap.
+    private static final int MIN_MAPPED_SIZE = 1024 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
 
-    // TODO: Configurable buffer size?
     public static FileRandomAccessBytes of(File file) throws IOException {
         return new FileRandomAccessBytes(file);
     }
 
 
-    private final RandomAccessFile raFile;
-    private final int length;
-    private final BufferIndexer bufferIndexer;
-    private final int bufferSize;
-
-    private int bufferOffset = -1;
-    private byte[] buffer = null;
+    private final long length;
+    private final ByteBuffer[] chunks;
 
     private FileRandomAccessBytes(File file) throws IOException {
-        this.raFile = new RandomAccessFile(file, "r");
-        this.length = Math.toIntExact(raFile.length());
-        this.bufferSize = Math.min(this.length, DEFAULT_BUFSIZE);
-        this.bufferIndexer = new BufferIndexer(bufferSize, length);
+        // The maps stay valid after the channel is closed, so no file handle is held open.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.length = channel.size();
+            this.chunks = (length < MIN_MAPPED_SIZE)
+                    ? new ByteBuffer[] { readWhole(channel, (int) length) }
+                    : mapChunks(channel, length);
+        }
     }
 
 
-    /* Some notes, basic buffering strategy:
-     * - Say my buffer size is 1MB...
-     * - And I access byte 10,000,000 in a 100MB file.
-     * - Just extend the buffer by 1MB? You're going to go out of bounds either to the left (lower) or right (higher)...
-     * - So whichever direction, add the buffer in that direction?
-     * - The new buffer is *centered* on the new index? or... no?......
-     * - Should I write (and test) some NextBufferIndexer class to do these calculations?...
-     *     - And it also does bounds checking?
-     */
+    private static ByteBuffer[] mapChunks(FileChannel channel, long length) throws IOException {
+        int numChunks = Math.toIntExact((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        ByteBuffer[] chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; ++i) {
+            long chunkStart = i * CHUNK_SIZE;
+            chunks[i] = channel.map(
+                    FileChannel.MapMode.READ_ONLY, chunkStart, Math.min(CHUNK_SIZE, length - chunkStart));
+        }
+        return chunks;
+    }
+
+
+    private static ByteBuffer readWhole(FileChannel channel, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new IOException("The file was truncated while being read");
+            }
+        }
+        return buf.flip().asReadOnlyBuffer();
+    }
 
 
     @Override
     public byte at(int index) {
-        try {
-            checkBuffer(index);
-            return buffer[index - bufferOffset];
-        } catch (IOException ioEx) {
-            throw new RuntimeException(ioEx);
+        return at((long) index);
+    }
+
+
+    public byte at(long index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Bad index: " + index);
         }
+        return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
     }
 
 
     @Override
     public int readInto(int fromIdx, int numBytes, byte[] dest) {
-        try {
-            checkBuffer(fromIdx);
-            int bufferIdxStart = fromIdx - bufferOffset;
-            // We won't rebuffer in the middle of this read, only at the start of the next one.
-            numBytes = Math.min(
-                    numBytes,
-                    buffer.length - bufferIdxStart);
-            System.arraycopy(buffer, bufferIdxStart, dest, 0, numBytes);
-            return numBytes;
-        } catch (IOException ioEx) {
-            throw new RuntimeException(ioEx);
-        }
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
+
+
+    // Reads up to the end of one chunk.
+    @Override
+    public int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        ByteBuffer view = bufferAt(fromIdx, numBytes);
+        numBytes = view.remaining();
+        view.get(dest, destOffset, numBytes);
+        return numBytes;
     }
 
 
-    // TODO: Smarter buffering. Use a circular buffer? Use two, where one is for expanding to the left or right from
-    // the other?
-    private void checkBuffer(int index) throws IOException {
-        Optional<BufferIndexer.BufferRange> rebuffer = bufferIndexer.shouldRebufferFor(index);
-        if (rebuffer.isPresent()) {
-            bufferOffset = rebuffer.get().getLeftIdx();
-            // TODO: Reduce redundant byte reads/copies.
-            buffer = new byte[bufferSize];
-            raFile.seek(bufferOffset);
-            raFile.readFully(buffer);
+    // The view is of the mapped pages (or the heap copy of a small file), up to the end of one chunk.
+    @Override
+    public ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, length);
+        if (fromIdx == length) {
+            // There may be no chunk past the last one.
+            return EMPTY;
         }
+
+        // A duplicate, so that concurrent reads don't share a position.
+        ByteBuffer chunk = chunks[(int) (fromIdx >>> CHUNK_SHIFT)].duplicate();
+        int offset = (int) (fromIdx & CHUNK_MASK);
+        chunk.position(offset);
+        chunk.limit(offset + Math.min(maxBytes, chunk.limit() - offset));
+        return chunk.slice();
     }
 
 
     @Override
     public int length() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("File is too big for an int length: " + length);
+        }
+        return (int) length;
+    }
+
+
+    @Override
+    public long longLength() {
         return length;
     }
 
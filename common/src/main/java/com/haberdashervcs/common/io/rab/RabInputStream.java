@@ -10,15 +10,15 @@ import com.google.common.base.Verify;
 final class RabInputStream extends InputStream {
 
     private final RandomAccessBytes contents;
-    private final int entireLength;
-    private int currentPos;
-    private int bufStartIdx;
+    private final long entireLength;
+    private long currentPos;
+    private long bufStartIdx;
     private int bufSize;
     private final byte[] buf;
 
     RabInputStream(RandomAccessBytes contents, int bufferSize) {
         this.contents = contents;
-        this.entireLength = contents.length();
+        this.entireLength = contents.longLength();
         this.currentPos = 0;
         this.bufStartIdx = 0;
         this.bufSize = -1;
@@ -34,7 +34,7 @@ final class RabInputStream extends InputStream {
 
         rebufferIfNeeded();
 
-        byte nextByte = buf[currentPos - bufStartIdx];
+        byte nextByte = buf[(int) (currentPos - bufStartIdx)];
         ++currentPos;
         // Convert a byte to an int correctly, to avoid signed / two's-complement interpretation of the leading bit.
         return nextByte & 0xff;
@@ -53,9 +53,20 @@ final class RabInputStream extends InputStream {
             return -1;
         }
 
+        // Reads as big as the buffer skip it, once it's used up.
+        boolean bufferUsedUp = (bufSize == -1 || currentPos >= bufStartIdx + bufSize);
+        if (bufferUsedUp && length >= buf.length) {
+            int bytesRead = contents.readInto(
+                    currentPos, (int) Math.min(length, entireLength - currentPos), dest, off);
+            currentPos += bytesRead;
+            bufStartIdx = currentPos;
+            bufSize = 0;
+            return bytesRead;
+        }
+
         rebufferIfNeeded();
 
-        int bufCopyStartIdx = currentPos - bufStartIdx;
+        int bufCopyStartIdx = (int) (currentPos - bufStartIdx);
         int numBytesToCopy = Math.min(bufSize - bufCopyStartIdx, length);
         // TODO: Use our own byte-specific arraycopy to avoid boxing the bytes as Objects.
         System.arraycopy(buf, bufCopyStartIdx, dest, off, numBytesToCopy);
@@ -66,7 +77,7 @@ final class RabInputStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        return entireLength - currentPos;
+        return (int) Math.min(Integer.MAX_VALUE, entireLength - currentPos);
     }
 
 
@@ -87,7 +98,7 @@ final class RabInputStream extends InputStream {
 
         if (bufSize == -1) {
             Verify.verify(currentPos == 0);
-            int bytesActuallyRead = contents.readInto(0, Math.min(buf.length, entireLength), buf);
+            int bytesActuallyRead = contents.readInto(0L, (int) Math.min(buf.length, entireLength), buf);
             bufStartIdx = 0;
             bufSize = bytesActuallyRead;
 
@@ -95,8 +106,8 @@ final class RabInputStream extends InputStream {
             return;
 
         } else {
-            int newStartIdx = bufStartIdx + bufSize;
-            int numBytesMax = Math.min(entireLength - newStartIdx, buf.length);
+            long newStartIdx = bufStartIdx + bufSize;
+            int numBytesMax = (int) Math.min(entireLength - newStartIdx, buf.length);
             int bytesActuallyRead = contents.readInto(newStartIdx, numBytesMax, buf);
             bufStartIdx = newStartIdx;
             bufSize = bytesActuallyRead;
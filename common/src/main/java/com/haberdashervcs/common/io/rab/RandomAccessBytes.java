@@ -3,10 +3,20 @@ package com.haberdashervcs.common.io.rab;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.google.common.base.Preconditions;
 
 
 /**
  * Accesses any backing data source as if it were a byte array, by an index into its bytes.
+ *
+ * Prefer the bulk methods (readInto(), bufferAt(), transferTo()) to at() for anything more than a few bytes.
+ *
+ * All implementations take the same bounds in readInto() and bufferAt(): fromIdx may be anywhere from 0 to the length,
+ * inclusive, and a read at the length gets 0 bytes. A read that runs past the end stops there, like any short read.
+ * Anything else throws an IndexOutOfBoundsException.
  */
 public interface RandomAccessBytes {
 
@@ -14,11 +24,16 @@ public interface RandomAccessBytes {
      * Callers are responsible for buffering and closing the given OutputStream.
      */
     static void copyToStream(RandomAccessBytes contents, OutputStream out) throws IOException {
+        if (contents instanceof ByteArrayRandomAccessBytes) {
+            out.write(((ByteArrayRandomAccessBytes) contents).backingArray());
+            return;
+        }
+
         byte[] buf = new byte[8192];
-        int idx = 0;
-        final int length = contents.length();
+        long idx = 0;
+        final long length = contents.longLength();
         while (idx < length) {
-            int numBytes = Math.min(buf.length, length - idx);
+            int numBytes = (int) Math.min(buf.length, length - idx);
             int bytesRead = contents.readInto(idx, numBytes, buf);
             out.write(buf, 0, bytesRead);
             idx += bytesRead;
@@ -30,17 +45,26 @@ public interface RandomAccessBytes {
     static byte[] toByteArray(RandomAccessBytes contents) {
         final int length = contents.length();
         byte[] out = new byte[length];
-        byte[] buf = new byte[1024];
-        int idx = 0;
+        readFully(contents, 0, length, out, 0);
+        return out;
+    }
 
-        while (idx < length) {
-            int numBytes = Math.min(buf.length, length - idx);
-            int bytesRead = contents.readInto(idx, numBytes, buf);
-            System.arraycopy(buf, 0, out, idx, bytesRead);
-            idx += bytesRead;
-        }
 
-        return out;
+    /**
+     * Reads exactly numBytes into dest at destOffset, in as many readInto() calls as it takes.
+     */
+    static void readFully(RandomAccessBytes contents, long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        Preconditions.checkPositionIndexes(destOffset, destOffset + numBytes, dest.length);
+        // Short reads stop at the end, so this would never finish.
+        checkFromIdx(fromIdx, contents.longLength());
+        if (fromIdx + numBytes > contents.longLength()) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "Can't read %d bytes at %d of %d", numBytes, fromIdx, contents.longLength()));
+        }
+        int done = 0;
+        while (done < numBytes) {
+            done += contents.readInto(fromIdx + done, numBytes - done, dest, destOffset + done);
+        }
     }
 
 
@@ -49,6 +73,16 @@ public interface RandomAccessBytes {
     }
 
 
+    /**
+     * Checks a readInto() or bufferAt() index against the bounds above.
+     */
+    static void checkFromIdx(long fromIdx, long length) {
+        if (fromIdx < 0 || fromIdx > length) {
+            throw new IndexOutOfBoundsException(String.format("Bad fromIdx: %d of %d bytes", fromIdx, length));
+        }
+    }
+
+
     // TODO! Toss this for readInto() ?
     byte at(int index);
 
@@ -57,5 +91,58 @@ public interface RandomAccessBytes {
      */
     int readInto(int fromIdx, int numBytes, byte[] dest);
 
+    /**
+     * Like readInto() with an int index, for sources that may be bigger than 2GB.
+     */
+    default int readInto(long fromIdx, int numBytes, byte[] dest) {
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
+
+    /**
+     * Like readInto(), but writes starting at destOffset, so callers can fill one array without a buffer between.
+     */
+    int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset);
+
+    /**
+     * Returns a read-only view of up to maxBytes starting at fromIdx, from position 0 to its limit. Sources backed by
+     * memory return their own bytes, without copying. Like readInto(), the view may hold fewer bytes than asked for.
+     */
+    default ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        checkFromIdx(fromIdx, longLength());
+        byte[] buf = new byte[(int) Math.min(maxBytes, longLength() - fromIdx)];
+        int bytesRead = (buf.length == 0) ? 0 : readInto(fromIdx, buf.length, buf);
+        return ByteBuffer.wrap(buf, 0, bytesRead).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Bytes fromIdx (inclusive) to toIdx (exclusive), without copying them.
+     */
+    default RandomAccessBytes slice(long fromIdx, long toIdx) {
+        return SlicedRandomAccessBytes.of(this, fromIdx, toIdx);
+    }
+
+    /**
+     * Writes all the bytes to the channel, from bufferAt() views. Returns the number of bytes written.
+     */
+    default long transferTo(WritableByteChannel out) throws IOException {
+        final long length = longLength();
+        long idx = 0;
+        while (idx < length) {
+            ByteBuffer buf = bufferAt(idx, (int) Math.min(1024 * 1024, length - idx));
+            while (buf.hasRemaining()) {
+                idx += out.write(buf);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Sources that may be bigger than 2GB throw from this when they are. Use longLength() for those.
+     */
     int length();
+
+    default long longLength() {
+        return length();
+    }
 }
@@ -0,0 +1,83 @@
+package com.haberdashervcs.common.io.rab;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * A range of another RandomAccessBytes, read through to it.
+ */
+final class SlicedRandomAccessBytes implements RandomAccessBytes {
+
+    static RandomAccessBytes of(RandomAccessBytes source, long fromIdx, long toIdx) {
+        Preconditions.checkArgument(fromIdx >= 0 && fromIdx <= toIdx && toIdx <= source.longLength(),
+                "Bad slice [%s, %s) of %s bytes", fromIdx, toIdx, source.longLength());
+        if (fromIdx == 0 && toIdx == source.longLength()) {
+            return source;
+        }
+
+        // Slices of slices read from the original.
+        if (source instanceof SlicedRandomAccessBytes) {
+            SlicedRandomAccessBytes sliced = (SlicedRandomAccessBytes) source;
+            return new SlicedRandomAccessBytes(sliced.source, sliced.offset + fromIdx, toIdx - fromIdx);
+        }
+        return new SlicedRandomAccessBytes(source, fromIdx, toIdx - fromIdx);
+    }
+
+
+    private final RandomAccessBytes source;
+    private final long offset;
+    private final long length;
+
+    private SlicedRandomAccessBytes(RandomAccessBytes source, long offset, long length) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+
+    @Override
+    public byte at(int index) {
+        Preconditions.checkElementIndex(index, length());
+        return source.at(Math.toIntExact(offset + index));
+    }
+
+
+    @Override
+    public int readInto(int fromIdx, int numBytes, byte[] dest) {
+        return readInto(fromIdx, numBytes, dest, 0);
+    }
+
+
+    @Override
+    public int readInto(long fromIdx, int numBytes, byte[] dest, int destOffset) {
+        Preconditions.checkArgument(numBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, length);
+        numBytes = (int) Math.min(numBytes, length - fromIdx);
+        return source.readInto(offset + fromIdx, numBytes, dest, destOffset);
+    }
+
+
+    @Override
+    public ByteBuffer bufferAt(long fromIdx, int maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        RandomAccessBytes.checkFromIdx(fromIdx, length);
+        return source.bufferAt(offset + fromIdx, (int) Math.min(maxBytes, length - fromIdx));
+    }
+
+
+    @Override
+    public int length() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Slice is too big for an int length: " + length);
+        }
+        return (int) length;
+    }
+
+
+    @Override
+    public long longLength() {
+        return length;
+    }
+}
@@ -6,6 +6,7 @@ import java.util.Optional;
 import javax.annotation.Nullable;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
 
@@ -37,6 +38,14 @@ public final class FolderListing {
             return new Entry(Type.FOLDER, name, "");
         }
 
+        /**
+         * A subfolder entry whose id is the tree hash of the subfolder's contents. See HdHasher.treeHash().
+         */
+        public static Entry forSubFolderWithTreeHash(String name, String treeHash) {
+            Preconditions.checkArgument(!treeHash.isEmpty());
+            return new Entry(Type.FOLDER, name, treeHash);
+        }
+
 
         private final Type type;
         private final String name;
@@ -60,6 +69,14 @@ public final class FolderListing {
             return objectId;
         }
 
+        public Optional<String> getTreeHash() {
+            if (type == Type.FOLDER && !objectId.isEmpty()) {
+                return Optional.of(objectId);
+            } else {
+                return Optional.empty();
+            }
+        }
+
         public String toString() {
             return MoreObjects.toStringHelper(this)
                     .add("type", type)
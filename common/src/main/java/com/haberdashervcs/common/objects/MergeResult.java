@@ -1,13 +1,16 @@
 package com.haberdashervcs.common.objects;
 
 
+import java.util.List;
+
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 public final class MergeResult {
 
     public static MergeResult of (ResultType resultType, String message, long newCommitIdOnMain) {
-        return new MergeResult(resultType, message, newCommitIdOnMain);
+        return new MergeResult(resultType, message, newCommitIdOnMain, ImmutableList.of());
     }
 
     public enum ResultType {
@@ -18,12 +21,20 @@ public final class MergeResult {
     private final String message;
     private final ResultType resultType;
     private final long newCommitIdOnMain;
+    private final ImmutableList<String> conflictingPaths;
 
-    private MergeResult(ResultType resultType, String message, long newCommitIdOnMain) {
+    private MergeResult(
+            ResultType resultType, String message, long newCommitIdOnMain, List<String> conflictingPaths) {
         Preconditions.checkState(resultType != ResultType.SUCCESSFUL ^ newCommitIdOnMain > 0);
         this.resultType = resultType;
         this.message = message;
         this.newCommitIdOnMain = newCommitIdOnMain;
+        this.conflictingPaths = ImmutableList.copyOf(conflictingPaths);
+    }
+
+    public MergeResult withConflictingPaths(List<String> conflictingPaths) {
+        Preconditions.checkState(resultType == ResultType.FAILED);
+        return new MergeResult(resultType, message, newCommitIdOnMain, conflictingPaths);
     }
 
     public String getMessage() {
@@ -38,10 +49,15 @@ public final class MergeResult {
         return newCommitIdOnMain;
     }
 
+    public List<String> getConflictingPaths() {
+        return conflictingPaths;
+    }
+
     public String getDisplayString() {
         return MoreObjects.toStringHelper(this)
                 .add("resultType", resultType)
                 .add("message", message)
+                .add("conflictingPaths", conflictingPaths)
                 .toString();
     }
 }
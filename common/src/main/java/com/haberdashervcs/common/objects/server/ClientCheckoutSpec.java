@@ -1,25 +1,41 @@
 package com.haberdashervcs.common.objects.server;
 
 import java.util.Collection;
+import java.util.Optional;
 import java.util.Set;
+import javax.annotation.Nullable;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 
 
 public class ClientCheckoutSpec {
 
     public static ClientCheckoutSpec withFilesClientNeeds(Collection<String> fileIds) {
-        return new ClientCheckoutSpec(fileIds);
+        return new ClientCheckoutSpec(fileIds, null);
+    }
+
+    public static ClientCheckoutSpec withFilesClientNeedsForSession(
+            Collection<String> fileIds, String checkoutSessionId) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(checkoutSessionId));
+        return new ClientCheckoutSpec(fileIds, checkoutSessionId);
     }
 
 
     private final Set<String> fileIdsClientNeeds;
+    private final Optional<String> checkoutSessionId;
 
-    private ClientCheckoutSpec(Collection<String> fileIdsClientNeeds) {
+    private ClientCheckoutSpec(Collection<String> fileIdsClientNeeds, @Nullable String checkoutSessionId) {
         this.fileIdsClientNeeds = ImmutableSet.copyOf(fileIdsClientNeeds);
+        this.checkoutSessionId = Optional.ofNullable(checkoutSessionId);
     }
 
     public Set<String> getFileIdsClientNeeds() {
         return fileIdsClientNeeds;
     }
+
+    public Optional<String> getCheckoutSessionId() {
+        return checkoutSessionId;
+    }
 }
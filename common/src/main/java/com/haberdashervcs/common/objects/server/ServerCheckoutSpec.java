@@ -2,24 +2,43 @@ package com.haberdashervcs.common.objects.server;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
 
 public final class ServerCheckoutSpec {
 
     public static ServerCheckoutSpec withServerFileIds(Collection<String> fileIds) {
-        return new ServerCheckoutSpec(fileIds);
+        return new ServerCheckoutSpec(fileIds, null);
+    }
+
+    public static ServerCheckoutSpec withServerFileIdsAndSession(Collection<String> fileIds, String checkoutSessionId) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(checkoutSessionId));
+        return new ServerCheckoutSpec(fileIds, checkoutSessionId);
     }
 
 
     private final List<String> allFileIdsFromServer;
+    private final Optional<String> checkoutSessionId;
 
-    private ServerCheckoutSpec(Collection<String> allFileIdsFromServer) {
+    private ServerCheckoutSpec(Collection<String> allFileIdsFromServer, @Nullable String checkoutSessionId) {
         this.allFileIdsFromServer = ImmutableList.copyOf(allFileIdsFromServer);
+        this.checkoutSessionId = Optional.ofNullable(checkoutSessionId);
     }
 
     public List<String> getAllFileIdsFromServer() {
         return allFileIdsFromServer;
     }
+
+    /**
+     * If present, the client should pass this back in its ClientCheckoutSpec so the server can reuse the results of
+     * this query.
+     */
+    public Optional<String> getCheckoutSessionId() {
+        return checkoutSessionId;
+    }
 }
@@ -1,6 +1,7 @@
 package com.haberdashervcs.common.objects.user;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Optional;
 import javax.annotation.Nullable;
@@ -17,6 +18,10 @@ public interface HdUserStore {
 
     Optional<HdUserWithPassword> getUserByEmail(String email) throws IOException;
     Optional<HdUser> getUserById(String userId) throws IOException;
+    /**
+     * Looks up several users at once. Ids with no user are left out of the result.
+     */
+    Map<String, HdUser> getUsersByIds(Collection<String> userIds) throws IOException;
     void updateUserPreferences(String userId, UsersProto.HdUserPreferences newPrefs) throws IOException;
 
 
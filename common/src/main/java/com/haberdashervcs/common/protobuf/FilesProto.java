@@ -74,6 +74,17 @@ public final class FilesProto {
      */
     com.google.protobuf.ByteString
         getDiffBaseEntryIdBytes();
+
+    /**
+     * <code>.FileEntry.Codec codec = 6;</code>
+     * @return The enum numeric value on the wire for codec.
+     */
+    int getCodecValue();
+    /**
+     * <code>.FileEntry.Codec codec = 6;</code>
+     * @return The codec.
+     */
+    com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec getCodec();
   }
   /**
    * Protobuf type {@code FileEntry}
@@ -93,6 +104,7 @@ public final class FilesProto {
       contentsType_ = 0;
       storageType_ = 0;
       diffBaseEntryId_ = "";
+      codec_ = 0;
     }
 
     @java.lang.Override
@@ -154,6 +166,12 @@ public final class FilesProto {
               diffBaseEntryId_ = s;
               break;
             }
+            case 48: {
+              int rawValue = input.readEnum();
+
+              codec_ = rawValue;
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -427,6 +445,118 @@ public final class FilesProto {
       // @@protoc_insertion_point(enum_scope:FileEntry.StorageType)
     }
 
+    /**
+     * <pre>
+     * How the contents bytes are encoded. See FileContentsCodec.
+     * </pre>
+     *
+     * Protobuf enum {@code FileEntry.Codec}
+     */
+    public enum Codec
+        implements com.google.protobuf.ProtocolMessageEnum {
+      /**
+       * <code>NONE = 0;</code>
+       */
+      NONE(0),
+      /**
+       * <code>DEFLATE = 1;</code>
+       */
+      DEFLATE(1),
+      UNRECOGNIZED(-1),
+      ;
+
+      /**
+       * <code>NONE = 0;</code>
+       */
+      public static final int NONE_VALUE = 0;
+      /**
+       * <code>DEFLATE = 1;</code>
+       */
+      public static final int DEFLATE_VALUE = 1;
+
+
+      public final int getNumber() {
+        if (this == UNRECOGNIZED) {
+          throw new java.lang.IllegalArgumentException(
+              "Can't get the number of an unknown enum value.");
+        }
+        return value;
+      }
+
+      /**
+       * @param value The numeric wire value of the corresponding enum entry.
+       * @return The enum associated with the given numeric wire value.
+       * @deprecated Use {@link #forNumber(int)} instead.
+       */
+      @java.lang.Deprecated
+      public static Codec valueOf(int value) {
+        return forNumber(value);
+      }
+
+      /**
+       * @param value The numeric wire value of the corresponding enum entry.
+       * @return The enum associated with the given numeric wire value.
+       */
+      public static Codec forNumber(int value) {
+        switch (value) {
+          case 0: return NONE;
+          case 1: return DEFLATE;
+          default: return null;
+        }
+      }
+
+      public static com.google.protobuf.Internal.EnumLiteMap<Codec>
+          internalGetValueMap() {
+        return internalValueMap;
+      }
+      private static final com.google.protobuf.Internal.EnumLiteMap<
+          Codec> internalValueMap =
+            new com.google.protobuf.Internal.EnumLiteMap<Codec>() {
+              public Codec findValueByNumber(int number) {
+                return Codec.forNumber(number);
+              }
+            };
+
+      public final com.google.protobuf.Descriptors.EnumValueDescriptor
+          getValueDescriptor() {
+        if (this == UNRECOGNIZED) {
+          throw new java.lang.IllegalStateException(
+              "Can't get the descriptor of an unrecognized enum value.");
+        }
+        return getDescriptor().getValues().get(ordinal());
+      }
+      public final com.google.protobuf.Descriptors.EnumDescriptor
+          getDescriptorForType() {
+        return getDescriptor();
+      }
+      public static final com.google.protobuf.Descriptors.EnumDescriptor
+          getDescriptor() {
+        return com.haberdashervcs.common.protobuf.FilesProto.FileEntry.getDescriptor().getEnumTypes().get(2);
+      }
+
+      private static final Codec[] VALUES = values();
+
+      public static Codec valueOf(
+          com.google.protobuf.Descriptors.EnumValueDescriptor desc) {
+        if (desc.getType() != getDescriptor()) {
+          throw new java.lang.IllegalArgumentException(
+            "EnumValueDescriptor is not for this type.");
+        }
+        if (desc.getIndex() == -1) {
+          return UNRECOGNIZED;
+        }
+        return VALUES[desc.getIndex()];
+      }
+
+      private final int value;
+
+      private Codec(int value) {
+        this.value = value;
+      }
+
+      // @@protoc_insertion_point(enum_scope:FileEntry.Codec)
+    }
+
     public static final int ID_FIELD_NUMBER = 1;
     private volatile java.lang.Object id_;
     /**
@@ -557,6 +687,25 @@ public final class FilesProto {
       }
     }
 
+    public static final int CODEC_FIELD_NUMBER = 6;
+    private int codec_;
+    /**
+     * <code>.FileEntry.Codec codec = 6;</code>
+     * @return The enum numeric value on the wire for codec.
+     */
+    @java.lang.Override public int getCodecValue() {
+      return codec_;
+    }
+    /**
+     * <code>.FileEntry.Codec codec = 6;</code>
+     * @return The codec.
+     */
+    @java.lang.Override public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec getCodec() {
+      @SuppressWarnings("deprecation")
+      com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.valueOf(codec_);
+      return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.UNRECOGNIZED : result;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -586,6 +735,9 @@ public final class FilesProto {
       if (!getDiffBaseEntryIdBytes().isEmpty()) {
         com.google.protobuf.GeneratedMessageV3.writeString(output, 5, diffBaseEntryId_);
       }
+      if (codec_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.NONE.getNumber()) {
+        output.writeEnum(6, codec_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -613,6 +765,10 @@ public final class FilesProto {
       if (!getDiffBaseEntryIdBytes().isEmpty()) {
         size += com.google.protobuf.GeneratedMessageV3.computeStringSize(5, diffBaseEntryId_);
       }
+      if (codec_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.NONE.getNumber()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(6, codec_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -636,6 +792,7 @@ public final class FilesProto {
       if (storageType_ != other.storageType_) return false;
       if (!getDiffBaseEntryId()
           .equals(other.getDiffBaseEntryId())) return false;
+      if (codec_ != other.codec_) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -657,6 +814,8 @@ public final class FilesProto {
       hash = (53 * hash) + storageType_;
       hash = (37 * hash) + DIFFBASEENTRYID_FIELD_NUMBER;
       hash = (53 * hash) + getDiffBaseEntryId().hashCode();
+      hash = (37 * hash) + CODEC_FIELD_NUMBER;
+      hash = (53 * hash) + codec_;
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -800,6 +959,8 @@ public final class FilesProto {
 
         diffBaseEntryId_ = "";
 
+        codec_ = 0;
+
         return this;
       }
 
@@ -831,6 +992,7 @@ public final class FilesProto {
         result.contentsType_ = contentsType_;
         result.storageType_ = storageType_;
         result.diffBaseEntryId_ = diffBaseEntryId_;
+        result.codec_ = codec_;
         onBuilt();
         return result;
       }
@@ -896,6 +1058,9 @@ public final class FilesProto {
           diffBaseEntryId_ = other.diffBaseEntryId_;
           onChanged();
         }
+        if (other.codec_ != 0) {
+          setCodecValue(other.getCodecValue());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -1233,6 +1398,60 @@ public final class FilesProto {
         onChanged();
         return this;
       }
+
+      private int codec_ = 0;
+      /**
+       * <code>.FileEntry.Codec codec = 6;</code>
+       * @return The enum numeric value on the wire for codec.
+       */
+      @java.lang.Override public int getCodecValue() {
+        return codec_;
+      }
+      /**
+       * <code>.FileEntry.Codec codec = 6;</code>
+       * @param value The enum numeric value on the wire for codec to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCodecValue(int value) {
+        
+        codec_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.Codec codec = 6;</code>
+       * @return The codec.
+       */
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec getCodec() {
+        @SuppressWarnings("deprecation")
+        com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.valueOf(codec_);
+        return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec.UNRECOGNIZED : result;
+      }
+      /**
+       * <code>.FileEntry.Codec codec = 6;</code>
+       * @param value The codec to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCodec(com.haberdashervcs.common.protobuf.FilesProto.FileEntry.Codec value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        
+        codec_ = value.getNumber();
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.Codec codec = 6;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearCodec() {
+        
+        codec_ = 0;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -1286,40 +1505,1120 @@ public final class FilesProto {
 
   }
 
-  private static final com.google.protobuf.Descriptors.Descriptor
-    internal_static_FileEntry_descriptor;
-  private static final 
-    com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
-      internal_static_FileEntry_fieldAccessorTable;
+  public interface FileMetadataOrBuilder extends
+      // @@protoc_insertion_point(interface_extends:FileMetadata)
+      com.google.protobuf.MessageOrBuilder {
 
-  public static com.google.protobuf.Descriptors.FileDescriptor
-      getDescriptor() {
-    return descriptor;
+    /**
+     * <code>.FileEntry.ContentsType contentsType = 1;</code>
+     * @return The enum numeric value on the wire for contentsType.
+     */
+    int getContentsTypeValue();
+    /**
+     * <code>.FileEntry.ContentsType contentsType = 1;</code>
+     * @return The contentsType.
+     */
+    com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType getContentsType();
+
+    /**
+     * <code>.FileEntry.StorageType storageType = 2;</code>
+     * @return The enum numeric value on the wire for storageType.
+     */
+    int getStorageTypeValue();
+    /**
+     * <code>.FileEntry.StorageType storageType = 2;</code>
+     * @return The storageType.
+     */
+    com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType getStorageType();
+
+    /**
+     * <code>string diffBaseEntryId = 3;</code>
+     * @return The diffBaseEntryId.
+     */
+    java.lang.String getDiffBaseEntryId();
+    /**
+     * <code>string diffBaseEntryId = 3;</code>
+     * @return The bytes for diffBaseEntryId.
+     */
+    com.google.protobuf.ByteString
+        getDiffBaseEntryIdBytes();
+
+    /**
+     * <pre>
+     * The number of diffs between this entry and a full entry: 0 for full contents, or -1 if unknown.
+     * </pre>
+     *
+     * <code>int32 chainDepth = 4;</code>
+     * @return The chainDepth.
+     */
+    int getChainDepth();
+
+    /**
+     * <pre>
+     * The size of the stored entry contents: the diff itself for a diff, or the whole file otherwise.
+     * </pre>
+     *
+     * <code>int64 rawSizeBytes = 5;</code>
+     * @return The rawSizeBytes.
+     */
+    long getRawSizeBytes();
+
+    /**
+     * <pre>
+     * The size of the whole file once any diffs are applied, or -1 if unknown.
+     * </pre>
+     *
+     * <code>int64 resolvedSizeBytes = 6;</code>
+     * @return The resolvedSizeBytes.
+     */
+    long getResolvedSizeBytes();
   }
-  private static  com.google.protobuf.Descriptors.FileDescriptor
-      descriptor;
-  static {
-    java.lang.String[] descriptorData = {
-      "\n\013files.proto\"\207\002\n\tFileEntry\022\n\n\002id\030\001 \001(\t\022" +
-      "\020\n\010contents\030\002 \001(\014\022-\n\014contentsType\030\003 \001(\0162" +
-      "\027.FileEntry.ContentsType\022+\n\013storageType\030" +
-      "\004 \001(\0162\026.FileEntry.StorageType\022\027\n\017diffBas" +
-      "eEntryId\030\005 \001(\t\"3\n\014ContentsType\022\010\n\004FULL\020\000" +
-      "\022\014\n\010DIFF_GIT\020\001\022\013\n\007DIFF_BS\020\002\"2\n\013StorageTy" +
-      "pe\022\r\n\tDATASTORE\020\000\022\024\n\020LARGE_FILE_STORE\020\001B" +
-      "2\n\"com.haberdashervcs.common.protobufB\nF" +
-      "ilesProtoP\000b\006proto3"
-    };
-    descriptor = com.google.protobuf.Descriptors.FileDescriptor
-      .internalBuildGeneratedFileFrom(descriptorData,
-        new com.google.protobuf.Descriptors.FileDescriptor[] {
-        });
-    internal_static_FileEntry_descriptor =
-      getDescriptor().getMessageTypes().get(0);
-    internal_static_FileEntry_fieldAccessorTable = new
-      com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
-        internal_static_FileEntry_descriptor,
-        new java.lang.String[] { "Id", "Contents", "ContentsType", "StorageType", "DiffBaseEntryId", });
+  /**
+   * <pre>
+   * Stored next to a FileEntry, so that code following diff chains or planning checkouts doesn't have to read contents.
+   * </pre>
+   *
+   * Protobuf type {@code FileMetadata}
+   */
+  public static final class FileMetadata extends
+      com.google.protobuf.GeneratedMessageV3 implements
+      // @@protoc_insertion_point(message_implements:FileMetadata)
+      FileMetadataOrBuilder {
+  private static final long serialVersionUID = 0L;
+    // Use FileMetadata.newBuilder() to construct.
+    private FileMetadata(com.google.protobuf.GeneratedMessageV3.Builder<?> builder) {
+      super(builder);
+    }
+    private FileMetadata() {
+      contentsType_ = 0;
+      storageType_ = 0;
+      diffBaseEntryId_ = "";
+    }
+
+    @java.lang.Override
+    @SuppressWarnings({"unused"})
+    protected java.lang.Object newInstance(
+        UnusedPrivateParameter unused) {
+      return new FileMetadata();
+    }
+
+    @java.lang.Override
+    public final com.google.protobuf.UnknownFieldSet
+    getUnknownFields() {
+      return this.unknownFields;
+    }
+    private FileMetadata(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      this();
+      if (extensionRegistry == null) {
+        throw new java.lang.NullPointerException();
+      }
+      com.google.protobuf.UnknownFieldSet.Builder unknownFields =
+          com.google.protobuf.UnknownFieldSet.newBuilder();
+      try {
+        boolean done = false;
+        while (!done) {
+          int tag = input.readTag();
+          switch (tag) {
+            case 0:
+              done = true;
+              break;
+            case 8: {
+              int rawValue = input.readEnum();
+
+              contentsType_ = rawValue;
+              break;
+            }
+            case 16: {
+              int rawValue = input.readEnum();
+
+              storageType_ = rawValue;
+              break;
+            }
+            case 26: {
+              java.lang.String s = input.readStringRequireUtf8();
+
+              diffBaseEntryId_ = s;
+              break;
+            }
+            case 32: {
+
+              chainDepth_ = input.readInt32();
+              break;
+            }
+            case 40: {
+
+              rawSizeBytes_ = input.readInt64();
+              break;
+            }
+            case 48: {
+
+              resolvedSizeBytes_ = input.readInt64();
+              break;
+            }
+            default: {
+              if (!parseUnknownField(
+                  input, unknownFields, extensionRegistry, tag)) {
+                done = true;
+              }
+              break;
+            }
+          }
+        }
+      } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+        throw e.setUnfinishedMessage(this);
+      } catch (java.io.IOException e) {
+        throw new com.google.protobuf.InvalidProtocolBufferException(
+            e).setUnfinishedMessage(this);
+      } finally {
+        this.unknownFields = unknownFields.build();
+        makeExtensionsImmutable();
+      }
+    }
+    public static final com.google.protobuf.Descriptors.Descriptor
+        getDescriptor() {
+      return com.haberdashervcs.common.protobuf.FilesProto.internal_static_FileMetadata_descriptor;
+    }
+
+    @java.lang.Override
+    protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+        internalGetFieldAccessorTable() {
+      return com.haberdashervcs.common.protobuf.FilesProto.internal_static_FileMetadata_fieldAccessorTable
+          .ensureFieldAccessorsInitialized(
+              com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.class, com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.Builder.class);
+    }
+
+    public static final int CONTENTSTYPE_FIELD_NUMBER = 1;
+    private int contentsType_;
+    /**
+     * <code>.FileEntry.ContentsType contentsType = 1;</code>
+     * @return The enum numeric value on the wire for contentsType.
+     */
+    @java.lang.Override public int getContentsTypeValue() {
+      return contentsType_;
+    }
+    /**
+     * <code>.FileEntry.ContentsType contentsType = 1;</code>
+     * @return The contentsType.
+     */
+    @java.lang.Override public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType getContentsType() {
+      @SuppressWarnings("deprecation")
+      com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.valueOf(contentsType_);
+      return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.UNRECOGNIZED : result;
+    }
+
+    public static final int STORAGETYPE_FIELD_NUMBER = 2;
+    private int storageType_;
+    /**
+     * <code>.FileEntry.StorageType storageType = 2;</code>
+     * @return The enum numeric value on the wire for storageType.
+     */
+    @java.lang.Override public int getStorageTypeValue() {
+      return storageType_;
+    }
+    /**
+     * <code>.FileEntry.StorageType storageType = 2;</code>
+     * @return The storageType.
+     */
+    @java.lang.Override public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType getStorageType() {
+      @SuppressWarnings("deprecation")
+      com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.valueOf(storageType_);
+      return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.UNRECOGNIZED : result;
+    }
+
+    public static final int DIFFBASEENTRYID_FIELD_NUMBER = 3;
+    private volatile java.lang.Object diffBaseEntryId_;
+    /**
+     * <code>string diffBaseEntryId = 3;</code>
+     * @return The diffBaseEntryId.
+     */
+    @java.lang.Override
+    public java.lang.String getDiffBaseEntryId() {
+      java.lang.Object ref = diffBaseEntryId_;
+      if (ref instanceof java.lang.String) {
+        return (java.lang.String) ref;
+      } else {
+        com.google.protobuf.ByteString bs = 
+            (com.google.protobuf.ByteString) ref;
+        java.lang.String s = bs.toStringUtf8();
+        diffBaseEntryId_ = s;
+        return s;
+      }
+    }
+    /**
+     * <code>string diffBaseEntryId = 3;</code>
+     * @return The bytes for diffBaseEntryId.
+     */
+    @java.lang.Override
+    public com.google.protobuf.ByteString
+        getDiffBaseEntryIdBytes() {
+      java.lang.Object ref = diffBaseEntryId_;
+      if (ref instanceof java.lang.String) {
+        com.google.protobuf.ByteString b = 
+            com.google.protobuf.ByteString.copyFromUtf8(
+                (java.lang.String) ref);
+        diffBaseEntryId_ = b;
+        return b;
+      } else {
+        return (com.google.protobuf.ByteString) ref;
+      }
+    }
+
+    public static final int CHAINDEPTH_FIELD_NUMBER = 4;
+    private int chainDepth_;
+    /**
+     * <pre>
+     * The number of diffs between this entry and a full entry: 0 for full contents, or -1 if unknown.
+     * </pre>
+     *
+     * <code>int32 chainDepth = 4;</code>
+     * @return The chainDepth.
+     */
+    @java.lang.Override
+    public int getChainDepth() {
+      return chainDepth_;
+    }
+
+    public static final int RAWSIZEBYTES_FIELD_NUMBER = 5;
+    private long rawSizeBytes_;
+    /**
+     * <pre>
+     * The size of the stored entry contents: the diff itself for a diff, or the whole file otherwise.
+     * </pre>
+     *
+     * <code>int64 rawSizeBytes = 5;</code>
+     * @return The rawSizeBytes.
+     */
+    @java.lang.Override
+    public long getRawSizeBytes() {
+      return rawSizeBytes_;
+    }
+
+    public static final int RESOLVEDSIZEBYTES_FIELD_NUMBER = 6;
+    private long resolvedSizeBytes_;
+    /**
+     * <pre>
+     * The size of the whole file once any diffs are applied, or -1 if unknown.
+     * </pre>
+     *
+     * <code>int64 resolvedSizeBytes = 6;</code>
+     * @return The resolvedSizeBytes.
+     */
+    @java.lang.Override
+    public long getResolvedSizeBytes() {
+      return resolvedSizeBytes_;
+    }
+
+    private byte memoizedIsInitialized = -1;
+    @java.lang.Override
+    public final boolean isInitialized() {
+      byte isInitialized = memoizedIsInitialized;
+      if (isInitialized == 1) return true;
+      if (isInitialized == 0) return false;
+
+      memoizedIsInitialized = 1;
+      return true;
+    }
+
+    @java.lang.Override
+    public void writeTo(com.google.protobuf.CodedOutputStream output)
+                        throws java.io.IOException {
+      if (contentsType_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.FULL.getNumber()) {
+        output.writeEnum(1, contentsType_);
+      }
+      if (storageType_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.DATASTORE.getNumber()) {
+        output.writeEnum(2, storageType_);
+      }
+      if (!getDiffBaseEntryIdBytes().isEmpty()) {
+        com.google.protobuf.GeneratedMessageV3.writeString(output, 3, diffBaseEntryId_);
+      }
+      if (chainDepth_ != 0) {
+        output.writeInt32(4, chainDepth_);
+      }
+      if (rawSizeBytes_ != 0L) {
+        output.writeInt64(5, rawSizeBytes_);
+      }
+      if (resolvedSizeBytes_ != 0L) {
+        output.writeInt64(6, resolvedSizeBytes_);
+      }
+      unknownFields.writeTo(output);
+    }
+
+    @java.lang.Override
+    public int getSerializedSize() {
+      int size = memoizedSize;
+      if (size != -1) return size;
+
+      size = 0;
+      if (contentsType_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.FULL.getNumber()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(1, contentsType_);
+      }
+      if (storageType_ != com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.DATASTORE.getNumber()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeEnumSize(2, storageType_);
+      }
+      if (!getDiffBaseEntryIdBytes().isEmpty()) {
+        size += com.google.protobuf.GeneratedMessageV3.computeStringSize(3, diffBaseEntryId_);
+      }
+      if (chainDepth_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(4, chainDepth_);
+      }
+      if (rawSizeBytes_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(5, rawSizeBytes_);
+      }
+      if (resolvedSizeBytes_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(6, resolvedSizeBytes_);
+      }
+      size += unknownFields.getSerializedSize();
+      memoizedSize = size;
+      return size;
+    }
+
+    @java.lang.Override
+    public boolean equals(final java.lang.Object obj) {
+      if (obj == this) {
+       return true;
+      }
+      if (!(obj instanceof com.haberdashervcs.common.protobuf.FilesProto.FileMetadata)) {
+        return super.equals(obj);
+      }
+      com.haberdashervcs.common.protobuf.FilesProto.FileMetadata other = (com.haberdashervcs.common.protobuf.FilesProto.FileMetadata) obj;
+
+      if (contentsType_ != other.contentsType_) return false;
+      if (storageType_ != other.storageType_) return false;
+      if (!getDiffBaseEntryId()
+          .equals(other.getDiffBaseEntryId())) return false;
+      if (getChainDepth()
+          != other.getChainDepth()) return false;
+      if (getRawSizeBytes()
+          != other.getRawSizeBytes()) return false;
+      if (getResolvedSizeBytes()
+          != other.getResolvedSizeBytes()) return false;
+      if (!unknownFields.equals(other.unknownFields)) return false;
+      return true;
+    }
+
+    @java.lang.Override
+    public int hashCode() {
+      if (memoizedHashCode != 0) {
+        return memoizedHashCode;
+      }
+      int hash = 41;
+      hash = (19 * hash) + getDescriptor().hashCode();
+      hash = (37 * hash) + CONTENTSTYPE_FIELD_NUMBER;
+      hash = (53 * hash) + contentsType_;
+      hash = (37 * hash) + STORAGETYPE_FIELD_NUMBER;
+      hash = (53 * hash) + storageType_;
+      hash = (37 * hash) + DIFFBASEENTRYID_FIELD_NUMBER;
+      hash = (53 * hash) + getDiffBaseEntryId().hashCode();
+      hash = (37 * hash) + CHAINDEPTH_FIELD_NUMBER;
+      hash = (53 * hash) + getChainDepth();
+      hash = (37 * hash) + RAWSIZEBYTES_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getRawSizeBytes());
+      hash = (37 * hash) + RESOLVEDSIZEBYTES_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getResolvedSizeBytes());
+      hash = (29 * hash) + unknownFields.hashCode();
+      memoizedHashCode = hash;
+      return hash;
+    }
+
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        java.nio.ByteBuffer data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        java.nio.ByteBuffer data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        com.google.protobuf.ByteString data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        com.google.protobuf.ByteString data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(byte[] data)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        byte[] data,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws com.google.protobuf.InvalidProtocolBufferException {
+      return PARSER.parseFrom(data, extensionRegistry);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseDelimitedFrom(java.io.InputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseDelimitedFrom(
+        java.io.InputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseDelimitedWithIOException(PARSER, input, extensionRegistry);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        com.google.protobuf.CodedInputStream input)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input);
+    }
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parseFrom(
+        com.google.protobuf.CodedInputStream input,
+        com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+        throws java.io.IOException {
+      return com.google.protobuf.GeneratedMessageV3
+          .parseWithIOException(PARSER, input, extensionRegistry);
+    }
+
+    @java.lang.Override
+    public Builder newBuilderForType() { return newBuilder(); }
+    public static Builder newBuilder() {
+      return DEFAULT_INSTANCE.toBuilder();
+    }
+    public static Builder newBuilder(com.haberdashervcs.common.protobuf.FilesProto.FileMetadata prototype) {
+      return DEFAULT_INSTANCE.toBuilder().mergeFrom(prototype);
+    }
+    @java.lang.Override
+    public Builder toBuilder() {
+      return this == DEFAULT_INSTANCE
+          ? new Builder() : new Builder().mergeFrom(this);
+    }
+
+    @java.lang.Override
+    protected Builder newBuilderForType(
+        com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+      Builder builder = new Builder(parent);
+      return builder;
+    }
+    /**
+     * <pre>
+     * Stored next to a FileEntry, so that code following diff chains or planning checkouts doesn't have to read contents.
+     * </pre>
+     *
+     * Protobuf type {@code FileMetadata}
+     */
+    public static final class Builder extends
+        com.google.protobuf.GeneratedMessageV3.Builder<Builder> implements
+        // @@protoc_insertion_point(builder_implements:FileMetadata)
+        com.haberdashervcs.common.protobuf.FilesProto.FileMetadataOrBuilder {
+      public static final com.google.protobuf.Descriptors.Descriptor
+          getDescriptor() {
+        return com.haberdashervcs.common.protobuf.FilesProto.internal_static_FileMetadata_descriptor;
+      }
+
+      @java.lang.Override
+      protected com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+          internalGetFieldAccessorTable() {
+        return com.haberdashervcs.common.protobuf.FilesProto.internal_static_FileMetadata_fieldAccessorTable
+            .ensureFieldAccessorsInitialized(
+                com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.class, com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.Builder.class);
+      }
+
+      // Construct using com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.newBuilder()
+      private Builder() {
+        maybeForceBuilderInitialization();
+      }
+
+      private Builder(
+          com.google.protobuf.GeneratedMessageV3.BuilderParent parent) {
+        super(parent);
+        maybeForceBuilderInitialization();
+      }
+      private void maybeForceBuilderInitialization() {
+        if (com.google.protobuf.GeneratedMessageV3
+                .alwaysUseFieldBuilders) {
+        }
+      }
+      @java.lang.Override
+      public Builder clear() {
+        super.clear();
+        contentsType_ = 0;
+
+        storageType_ = 0;
+
+        diffBaseEntryId_ = "";
+
+        chainDepth_ = 0;
+
+        rawSizeBytes_ = 0L;
+
+        resolvedSizeBytes_ = 0L;
+
+        return this;
+      }
+
+      @java.lang.Override
+      public com.google.protobuf.Descriptors.Descriptor
+          getDescriptorForType() {
+        return com.haberdashervcs.common.protobuf.FilesProto.internal_static_FileMetadata_descriptor;
+      }
+
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileMetadata getDefaultInstanceForType() {
+        return com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.getDefaultInstance();
+      }
+
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileMetadata build() {
+        com.haberdashervcs.common.protobuf.FilesProto.FileMetadata result = buildPartial();
+        if (!result.isInitialized()) {
+          throw newUninitializedMessageException(result);
+        }
+        return result;
+      }
+
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileMetadata buildPartial() {
+        com.haberdashervcs.common.protobuf.FilesProto.FileMetadata result = new com.haberdashervcs.common.protobuf.FilesProto.FileMetadata(this);
+        result.contentsType_ = contentsType_;
+        result.storageType_ = storageType_;
+        result.diffBaseEntryId_ = diffBaseEntryId_;
+        result.chainDepth_ = chainDepth_;
+        result.rawSizeBytes_ = rawSizeBytes_;
+        result.resolvedSizeBytes_ = resolvedSizeBytes_;
+        onBuilt();
+        return result;
+      }
+
+      @java.lang.Override
+      public Builder clone() {
+        return super.clone();
+      }
+      @java.lang.Override
+      public Builder setField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return super.setField(field, value);
+      }
+      @java.lang.Override
+      public Builder clearField(
+          com.google.protobuf.Descriptors.FieldDescriptor field) {
+        return super.clearField(field);
+      }
+      @java.lang.Override
+      public Builder clearOneof(
+          com.google.protobuf.Descriptors.OneofDescriptor oneof) {
+        return super.clearOneof(oneof);
+      }
+      @java.lang.Override
+      public Builder setRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          int index, java.lang.Object value) {
+        return super.setRepeatedField(field, index, value);
+      }
+      @java.lang.Override
+      public Builder addRepeatedField(
+          com.google.protobuf.Descriptors.FieldDescriptor field,
+          java.lang.Object value) {
+        return super.addRepeatedField(field, value);
+      }
+      @java.lang.Override
+      public Builder mergeFrom(com.google.protobuf.Message other) {
+        if (other instanceof com.haberdashervcs.common.protobuf.FilesProto.FileMetadata) {
+          return mergeFrom((com.haberdashervcs.common.protobuf.FilesProto.FileMetadata)other);
+        } else {
+          super.mergeFrom(other);
+          return this;
+        }
+      }
+
+      public Builder mergeFrom(com.haberdashervcs.common.protobuf.FilesProto.FileMetadata other) {
+        if (other == com.haberdashervcs.common.protobuf.FilesProto.FileMetadata.getDefaultInstance()) return this;
+        if (other.contentsType_ != 0) {
+          setContentsTypeValue(other.getContentsTypeValue());
+        }
+        if (other.storageType_ != 0) {
+          setStorageTypeValue(other.getStorageTypeValue());
+        }
+        if (!other.getDiffBaseEntryId().isEmpty()) {
+          diffBaseEntryId_ = other.diffBaseEntryId_;
+          onChanged();
+        }
+        if (other.getChainDepth() != 0) {
+          setChainDepth(other.getChainDepth());
+        }
+        if (other.getRawSizeBytes() != 0L) {
+          setRawSizeBytes(other.getRawSizeBytes());
+        }
+        if (other.getResolvedSizeBytes() != 0L) {
+          setResolvedSizeBytes(other.getResolvedSizeBytes());
+        }
+        this.mergeUnknownFields(other.unknownFields);
+        onChanged();
+        return this;
+      }
+
+      @java.lang.Override
+      public final boolean isInitialized() {
+        return true;
+      }
+
+      @java.lang.Override
+      public Builder mergeFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws java.io.IOException {
+        com.haberdashervcs.common.protobuf.FilesProto.FileMetadata parsedMessage = null;
+        try {
+          parsedMessage = PARSER.parsePartialFrom(input, extensionRegistry);
+        } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+          parsedMessage = (com.haberdashervcs.common.protobuf.FilesProto.FileMetadata) e.getUnfinishedMessage();
+          throw e.unwrapIOException();
+        } finally {
+          if (parsedMessage != null) {
+            mergeFrom(parsedMessage);
+          }
+        }
+        return this;
+      }
+
+      private int contentsType_ = 0;
+      /**
+       * <code>.FileEntry.ContentsType contentsType = 1;</code>
+       * @return The enum numeric value on the wire for contentsType.
+       */
+      @java.lang.Override public int getContentsTypeValue() {
+        return contentsType_;
+      }
+      /**
+       * <code>.FileEntry.ContentsType contentsType = 1;</code>
+       * @param value The enum numeric value on the wire for contentsType to set.
+       * @return This builder for chaining.
+       */
+      public Builder setContentsTypeValue(int value) {
+        
+        contentsType_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.ContentsType contentsType = 1;</code>
+       * @return The contentsType.
+       */
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType getContentsType() {
+        @SuppressWarnings("deprecation")
+        com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.valueOf(contentsType_);
+        return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType.UNRECOGNIZED : result;
+      }
+      /**
+       * <code>.FileEntry.ContentsType contentsType = 1;</code>
+       * @param value The contentsType to set.
+       * @return This builder for chaining.
+       */
+      public Builder setContentsType(com.haberdashervcs.common.protobuf.FilesProto.FileEntry.ContentsType value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        
+        contentsType_ = value.getNumber();
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.ContentsType contentsType = 1;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearContentsType() {
+        
+        contentsType_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private int storageType_ = 0;
+      /**
+       * <code>.FileEntry.StorageType storageType = 2;</code>
+       * @return The enum numeric value on the wire for storageType.
+       */
+      @java.lang.Override public int getStorageTypeValue() {
+        return storageType_;
+      }
+      /**
+       * <code>.FileEntry.StorageType storageType = 2;</code>
+       * @param value The enum numeric value on the wire for storageType to set.
+       * @return This builder for chaining.
+       */
+      public Builder setStorageTypeValue(int value) {
+        
+        storageType_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.StorageType storageType = 2;</code>
+       * @return The storageType.
+       */
+      @java.lang.Override
+      public com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType getStorageType() {
+        @SuppressWarnings("deprecation")
+        com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType result = com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.valueOf(storageType_);
+        return result == null ? com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType.UNRECOGNIZED : result;
+      }
+      /**
+       * <code>.FileEntry.StorageType storageType = 2;</code>
+       * @param value The storageType to set.
+       * @return This builder for chaining.
+       */
+      public Builder setStorageType(com.haberdashervcs.common.protobuf.FilesProto.FileEntry.StorageType value) {
+        if (value == null) {
+          throw new NullPointerException();
+        }
+        
+        storageType_ = value.getNumber();
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>.FileEntry.StorageType storageType = 2;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearStorageType() {
+        
+        storageType_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private java.lang.Object diffBaseEntryId_ = "";
+      /**
+       * <code>string diffBaseEntryId = 3;</code>
+       * @return The diffBaseEntryId.
+       */
+      public java.lang.String getDiffBaseEntryId() {
+        java.lang.Object ref = diffBaseEntryId_;
+        if (!(ref instanceof java.lang.String)) {
+          com.google.protobuf.ByteString bs =
+              (com.google.protobuf.ByteString) ref;
+          java.lang.String s = bs.toStringUtf8();
+          diffBaseEntryId_ = s;
+          return s;
+        } else {
+          return (java.lang.String) ref;
+        }
+      }
+      /**
+       * <code>string diffBaseEntryId = 3;</code>
+       * @return The bytes for diffBaseEntryId.
+       */
+      public com.google.protobuf.ByteString
+          getDiffBaseEntryIdBytes() {
+        java.lang.Object ref = diffBaseEntryId_;
+        if (ref instanceof String) {
+          com.google.protobuf.ByteString b = 
+              com.google.protobuf.ByteString.copyFromUtf8(
+                  (java.lang.String) ref);
+          diffBaseEntryId_ = b;
+          return b;
+        } else {
+          return (com.google.protobuf.ByteString) ref;
+        }
+      }
+      /**
+       * <code>string diffBaseEntryId = 3;</code>
+       * @param value The diffBaseEntryId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setDiffBaseEntryId(
+          java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  
+        diffBaseEntryId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>string diffBaseEntryId = 3;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearDiffBaseEntryId() {
+        
+        diffBaseEntryId_ = getDefaultInstance().getDiffBaseEntryId();
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>string diffBaseEntryId = 3;</code>
+       * @param value The bytes for diffBaseEntryId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setDiffBaseEntryIdBytes(
+          com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  checkByteStringIsUtf8(value);
+        
+        diffBaseEntryId_ = value;
+        onChanged();
+        return this;
+      }
+
+      private int chainDepth_ ;
+      /**
+       * <pre>
+       * The number of diffs between this entry and a full entry: 0 for full contents, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int32 chainDepth = 4;</code>
+       * @return The chainDepth.
+       */
+      @java.lang.Override
+      public int getChainDepth() {
+        return chainDepth_;
+      }
+      /**
+       * <pre>
+       * The number of diffs between this entry and a full entry: 0 for full contents, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int32 chainDepth = 4;</code>
+       * @param value The chainDepth to set.
+       * @return This builder for chaining.
+       */
+      public Builder setChainDepth(int value) {
+        
+        chainDepth_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * The number of diffs between this entry and a full entry: 0 for full contents, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int32 chainDepth = 4;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearChainDepth() {
+        
+        chainDepth_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private long rawSizeBytes_ ;
+      /**
+       * <pre>
+       * The size of the stored entry contents: the diff itself for a diff, or the whole file otherwise.
+       * </pre>
+       *
+       * <code>int64 rawSizeBytes = 5;</code>
+       * @return The rawSizeBytes.
+       */
+      @java.lang.Override
+      public long getRawSizeBytes() {
+        return rawSizeBytes_;
+      }
+      /**
+       * <pre>
+       * The size of the stored entry contents: the diff itself for a diff, or the whole file otherwise.
+       * </pre>
+       *
+       * <code>int64 rawSizeBytes = 5;</code>
+       * @param value The rawSizeBytes to set.
+       * @return This builder for chaining.
+       */
+      public Builder setRawSizeBytes(long value) {
+        
+        rawSizeBytes_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * The size of the stored entry contents: the diff itself for a diff, or the whole file otherwise.
+       * </pre>
+       *
+       * <code>int64 rawSizeBytes = 5;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearRawSizeBytes() {
+        
+        rawSizeBytes_ = 0L;
+        onChanged();
+        return this;
+      }
+
+      private long resolvedSizeBytes_ ;
+      /**
+       * <pre>
+       * The size of the whole file once any diffs are applied, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int64 resolvedSizeBytes = 6;</code>
+       * @return The resolvedSizeBytes.
+       */
+      @java.lang.Override
+      public long getResolvedSizeBytes() {
+        return resolvedSizeBytes_;
+      }
+      /**
+       * <pre>
+       * The size of the whole file once any diffs are applied, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int64 resolvedSizeBytes = 6;</code>
+       * @param value The resolvedSizeBytes to set.
+       * @return This builder for chaining.
+       */
+      public Builder setResolvedSizeBytes(long value) {
+        
+        resolvedSizeBytes_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * The size of the whole file once any diffs are applied, or -1 if unknown.
+       * </pre>
+       *
+       * <code>int64 resolvedSizeBytes = 6;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearResolvedSizeBytes() {
+        
+        resolvedSizeBytes_ = 0L;
+        onChanged();
+        return this;
+      }
+      @java.lang.Override
+      public final Builder setUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.setUnknownFields(unknownFields);
+      }
+
+      @java.lang.Override
+      public final Builder mergeUnknownFields(
+          final com.google.protobuf.UnknownFieldSet unknownFields) {
+        return super.mergeUnknownFields(unknownFields);
+      }
+
+
+      // @@protoc_insertion_point(builder_scope:FileMetadata)
+    }
+
+    // @@protoc_insertion_point(class_scope:FileMetadata)
+    private static final com.haberdashervcs.common.protobuf.FilesProto.FileMetadata DEFAULT_INSTANCE;
+    static {
+      DEFAULT_INSTANCE = new com.haberdashervcs.common.protobuf.FilesProto.FileMetadata();
+    }
+
+    public static com.haberdashervcs.common.protobuf.FilesProto.FileMetadata getDefaultInstance() {
+      return DEFAULT_INSTANCE;
+    }
+
+    private static final com.google.protobuf.Parser<FileMetadata>
+        PARSER = new com.google.protobuf.AbstractParser<FileMetadata>() {
+      @java.lang.Override
+      public FileMetadata parsePartialFrom(
+          com.google.protobuf.CodedInputStream input,
+          com.google.protobuf.ExtensionRegistryLite extensionRegistry)
+          throws com.google.protobuf.InvalidProtocolBufferException {
+        return new FileMetadata(input, extensionRegistry);
+      }
+    };
+
+    public static com.google.protobuf.Parser<FileMetadata> parser() {
+      return PARSER;
+    }
+
+    @java.lang.Override
+    public com.google.protobuf.Parser<FileMetadata> getParserForType() {
+      return PARSER;
+    }
+
+    @java.lang.Override
+    public com.haberdashervcs.common.protobuf.FilesProto.FileMetadata getDefaultInstanceForType() {
+      return DEFAULT_INSTANCE;
+    }
+
+  }
+
+  private static final com.google.protobuf.Descriptors.Descriptor
+    internal_static_FileEntry_descriptor;
+  private static final 
+    com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+      internal_static_FileEntry_fieldAccessorTable;
+  private static final com.google.protobuf.Descriptors.Descriptor
+    internal_static_FileMetadata_descriptor;
+  private static final 
+    com.google.protobuf.GeneratedMessageV3.FieldAccessorTable
+      internal_static_FileMetadata_fieldAccessorTable;
+
+  public static com.google.protobuf.Descriptors.FileDescriptor
+      getDescriptor() {
+    return descriptor;
+  }
+  private static  com.google.protobuf.Descriptors.FileDescriptor
+      descriptor;
+  static {
+    java.lang.String[] descriptorData = {
+      "\n\013files.proto\"\310\002\n\tFileEntry\022\n\n\002id\030\001 \001(\t\022" +
+      "\020\n\010contents\030\002 \001(\014\022-\n\014contentsType\030\003 \001(\0162" +
+      "\027.FileEntry.ContentsType\022+\n\013storageType\030" +
+      "\004 \001(\0162\026.FileEntry.StorageType\022\027\n\017diffBas" +
+      "eEntryId\030\005 \001(\t\022\037\n\005codec\030\006 \001(\0162\020.FileEntr" +
+      "y.Codec\"3\n\014ContentsType\022\010\n\004FULL\020\000\022\014\n\010DIF" +
+      "F_GIT\020\001\022\013\n\007DIFF_BS\020\002\"2\n\013StorageType\022\r\n\tD" +
+      "ATASTORE\020\000\022\024\n\020LARGE_FILE_STORE\020\001\"\036\n\005Code" +
+      "c\022\010\n\004NONE\020\000\022\013\n\007DEFLATE\020\001\"\310\001\n\014FileMetadat" +
+      "a\022-\n\014contentsType\030\001 \001(\0162\027.FileEntry.Cont" +
+      "entsType\022+\n\013storageType\030\002 \001(\0162\026.FileEntr" +
+      "y.StorageType\022\027\n\017diffBaseEntryId\030\003 \001(\t\022\022" +
+      "\n\nchainDepth\030\004 \001(\005\022\024\n\014rawSizeBytes\030\005 \001(\003" +
+      "\022\031\n\021resolvedSizeBytes\030\006 \001(\003B2\n\"com.haber" +
+      "dashervcs.common.protobufB\nFilesProtoP\000b" +
+      "\006proto3"
+    };
+    descriptor = com.google.protobuf.Descriptors.FileDescriptor
+      .internalBuildGeneratedFileFrom(descriptorData,
+        new com.google.protobuf.Descriptors.FileDescriptor[] {
+        });
+    internal_static_FileEntry_descriptor =
+      getDescriptor().getMessageTypes().get(0);
+    internal_static_FileEntry_fieldAccessorTable = new
+      com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
+        internal_static_FileEntry_descriptor,
+        new java.lang.String[] { "Id", "Contents", "ContentsType", "StorageType", "DiffBaseEntryId", "Codec", });
+    internal_static_FileMetadata_descriptor =
+      getDescriptor().getMessageTypes().get(1);
+    internal_static_FileMetadata_fieldAccessorTable = new
+      com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
+        internal_static_FileMetadata_descriptor,
+        new java.lang.String[] { "ContentsType", "StorageType", "DiffBaseEntryId", "ChainDepth", "RawSizeBytes", "ResolvedSizeBytes", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
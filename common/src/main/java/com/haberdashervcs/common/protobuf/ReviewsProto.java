@@ -1374,6 +1374,17 @@ public final class ReviewsProto {
      * <code>.BinaryDiff binaryDiff = 2;</code>
      */
     com.haberdashervcs.common.protobuf.ReviewsProto.BinaryDiffOrBuilder getBinaryDiffOrBuilder();
+
+    /**
+     * <pre>
+     * Set when the text diff was too large to compute. Then textDiffHunks holds one hunk over the whole changed
+     * region, instead of the real edits.
+     * </pre>
+     *
+     * <code>bool tooLarge = 3;</code>
+     * @return The tooLarge.
+     */
+    boolean getTooLarge();
   }
   /**
    * Protobuf type {@code FileDiffHunks}
@@ -1444,6 +1455,11 @@ public final class ReviewsProto {
 
               break;
             }
+            case 24: {
+
+              tooLarge_ = input.readBool();
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -1565,6 +1581,22 @@ public final class ReviewsProto {
       return getBinaryDiff();
     }
 
+    public static final int TOOLARGE_FIELD_NUMBER = 3;
+    private boolean tooLarge_;
+    /**
+     * <pre>
+     * Set when the text diff was too large to compute. Then textDiffHunks holds one hunk over the whole changed
+     * region, instead of the real edits.
+     * </pre>
+     *
+     * <code>bool tooLarge = 3;</code>
+     * @return The tooLarge.
+     */
+    @java.lang.Override
+    public boolean getTooLarge() {
+      return tooLarge_;
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -1585,6 +1617,9 @@ public final class ReviewsProto {
       if (binaryDiff_ != null) {
         output.writeMessage(2, getBinaryDiff());
       }
+      if (tooLarge_ != false) {
+        output.writeBool(3, tooLarge_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -1602,6 +1637,10 @@ public final class ReviewsProto {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(2, getBinaryDiff());
       }
+      if (tooLarge_ != false) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(3, tooLarge_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -1624,6 +1663,8 @@ public final class ReviewsProto {
         if (!getBinaryDiff()
             .equals(other.getBinaryDiff())) return false;
       }
+      if (getTooLarge()
+          != other.getTooLarge()) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -1643,6 +1684,9 @@ public final class ReviewsProto {
         hash = (37 * hash) + BINARYDIFF_FIELD_NUMBER;
         hash = (53 * hash) + getBinaryDiff().hashCode();
       }
+      hash = (37 * hash) + TOOLARGE_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashBoolean(
+          getTooLarge());
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -1789,6 +1833,8 @@ public final class ReviewsProto {
           binaryDiff_ = null;
           binaryDiffBuilder_ = null;
         }
+        tooLarge_ = false;
+
         return this;
       }
 
@@ -1830,6 +1876,7 @@ public final class ReviewsProto {
         } else {
           result.binaryDiff_ = binaryDiffBuilder_.build();
         }
+        result.tooLarge_ = tooLarge_;
         onBuilt();
         return result;
       }
@@ -1907,6 +1954,9 @@ public final class ReviewsProto {
         if (other.hasBinaryDiff()) {
           mergeBinaryDiff(other.getBinaryDiff());
         }
+        if (other.getTooLarge() != false) {
+          setTooLarge(other.getTooLarge());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -2367,6 +2417,52 @@ public final class ReviewsProto {
         }
         return binaryDiffBuilder_;
       }
+
+      private boolean tooLarge_ ;
+      /**
+       * <pre>
+       * Set when the text diff was too large to compute. Then textDiffHunks holds one hunk over the whole changed
+       * region, instead of the real edits.
+       * </pre>
+       *
+       * <code>bool tooLarge = 3;</code>
+       * @return The tooLarge.
+       */
+      @java.lang.Override
+      public boolean getTooLarge() {
+        return tooLarge_;
+      }
+      /**
+       * <pre>
+       * Set when the text diff was too large to compute. Then textDiffHunks holds one hunk over the whole changed
+       * region, instead of the real edits.
+       * </pre>
+       *
+       * <code>bool tooLarge = 3;</code>
+       * @param value The tooLarge to set.
+       * @return This builder for chaining.
+       */
+      public Builder setTooLarge(boolean value) {
+        
+        tooLarge_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Set when the text diff was too large to compute. Then textDiffHunks holds one hunk over the whole changed
+       * region, instead of the real edits.
+       * </pre>
+       *
+       * <code>bool tooLarge = 3;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearTooLarge() {
+        
+        tooLarge_ = false;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -8870,30 +8966,31 @@ public final class ReviewsProto {
       "nalFromLine\030\001 \001(\005\022\026\n\016originalToLine\030\002 \001(" +
       "\005\022\030\n\020modifiedFromLine\030\003 \001(\005\022\026\n\016modifiedT" +
       "oLine\030\004 \001(\005\"@\n\nBinaryDiff\022\030\n\020numBytesOri" +
-      "ginal\030\001 \001(\003\022\030\n\020numBytesModified\030\002 \001(\003\"V\n" +
+      "ginal\030\001 \001(\003\022\030\n\020numBytesModified\030\002 \001(\003\"h\n" +
       "\rFileDiffHunks\022$\n\rtextDiffHunks\030\001 \003(\0132\r." +
       "TextDiffHunk\022\037\n\nbinaryDiff\030\002 \001(\0132\013.Binar" +
-      "yDiff\"\256\001\n\rFileDiffEntry\022\014\n\004path\030\001 \001(\t\022!\n" +
-      "\004type\030\002 \001(\0162\023.FileDiffEntry.Type\022\022\n\nprev" +
-      "iousId\030\003 \001(\t\022\016\n\006thisId\030\004 \001(\t\022!\n\tdiffHunk" +
-      "s\030\005 \001(\0132\016.FileDiffHunks\"%\n\004Type\022\007\n\003ADD\020\000" +
-      "\022\n\n\006DELETE\020\001\022\010\n\004DIFF\020\002\"A\n\nCommitDiff\022\020\n\010" +
-      "commitId\030\001 \001(\003\022!\n\tfileDiffs\030\002 \003(\0132\016.File" +
-      "DiffEntry\"-\n\rReviewComment\022\016\n\006userId\030\001 \001" +
-      "(\t\022\014\n\004text\030\002 \001(\t\"\237\002\n\014ReviewThread\022\n\n\002id\030" +
-      "\001 \001(\t\022\020\n\010commitId\030\002 \001(\003\022\020\n\010filePath\030\003 \001(" +
-      "\t\022\"\n\005state\030\004 \001(\0162\023.ReviewThread.State\0224\n" +
-      "\016lineNumberType\030\005 \001(\0162\034.ReviewThread.Lin" +
-      "eNumberType\022\022\n\nlineNumber\030\006 \001(\005\022 \n\010comme" +
-      "nts\030\007 \003(\0132\016.ReviewComment\"!\n\005State\022\n\n\006AC" +
-      "TIVE\020\000\022\014\n\010RESOLVED\020\001\",\n\016LineNumberType\022\014" +
-      "\n\010ORIGINAL\020\000\022\014\n\010MODIFIED\020\001\"\263\001\n\016ReviewCon" +
-      "tents\022\013\n\003org\030\001 \001(\t\022\014\n\004repo\030\002 \001(\t\022\022\n\nthis" +
-      "Branch\030\003 \001(\t\022\023\n\013otherBranch\030\004 \001(\t\022\033\n\023oth" +
-      "erBranchCommitId\030\005 \001(\003\022 \n\013commitDiffs\030\006 " +
-      "\003(\0132\013.CommitDiff\022\036\n\007threads\030\007 \003(\0132\r.Revi" +
-      "ewThreadB4\n\"com.haberdashervcs.common.pr" +
-      "otobufB\014ReviewsProtoP\000b\006proto3"
+      "yDiff\022\020\n\010tooLarge\030\003 \001(\010\"\256\001\n\rFileDiffEntr" +
+      "y\022\014\n\004path\030\001 \001(\t\022!\n\004type\030\002 \001(\0162\023.FileDiff" +
+      "Entry.Type\022\022\n\npreviousId\030\003 \001(\t\022\016\n\006thisId" +
+      "\030\004 \001(\t\022!\n\tdiffHunks\030\005 \001(\0132\016.FileDiffHunk" +
+      "s\"%\n\004Type\022\007\n\003ADD\020\000\022\n\n\006DELETE\020\001\022\010\n\004DIFF\020\002" +
+      "\"A\n\nCommitDiff\022\020\n\010commitId\030\001 \001(\003\022!\n\tfile" +
+      "Diffs\030\002 \003(\0132\016.FileDiffEntry\"-\n\rReviewCom" +
+      "ment\022\016\n\006userId\030\001 \001(\t\022\014\n\004text\030\002 \001(\t\"\237\002\n\014R" +
+      "eviewThread\022\n\n\002id\030\001 \001(\t\022\020\n\010commitId\030\002 \001(" +
+      "\003\022\020\n\010filePath\030\003 \001(\t\022\"\n\005state\030\004 \001(\0162\023.Rev" +
+      "iewThread.State\0224\n\016lineNumberType\030\005 \001(\0162" +
+      "\034.ReviewThread.LineNumberType\022\022\n\nlineNum" +
+      "ber\030\006 \001(\005\022 \n\010comments\030\007 \003(\0132\016.ReviewComm" +
+      "ent\"!\n\005State\022\n\n\006ACTIVE\020\000\022\014\n\010RESOLVED\020\001\"," +
+      "\n\016LineNumberType\022\014\n\010ORIGINAL\020\000\022\014\n\010MODIFI" +
+      "ED\020\001\"\263\001\n\016ReviewContents\022\013\n\003org\030\001 \001(\t\022\014\n\004" +
+      "repo\030\002 \001(\t\022\022\n\nthisBranch\030\003 \001(\t\022\023\n\013otherB" +
+      "ranch\030\004 \001(\t\022\033\n\023otherBranchCommitId\030\005 \001(\003" +
+      "\022 \n\013commitDiffs\030\006 \003(\0132\013.CommitDiff\022\036\n\007th" +
+      "reads\030\007 \003(\0132\r.ReviewThreadB4\n\"com.haberd" +
+      "ashervcs.common.protobufB\014ReviewsProtoP\000" +
+      "b\006proto3"
     };
     descriptor = com.google.protobuf.Descriptors.FileDescriptor
       .internalBuildGeneratedFileFrom(descriptorData,
@@ -8916,7 +9013,7 @@ public final class ReviewsProto {
     internal_static_FileDiffHunks_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_FileDiffHunks_descriptor,
-        new java.lang.String[] { "TextDiffHunks", "BinaryDiff", });
+        new java.lang.String[] { "TextDiffHunks", "BinaryDiff", "TooLarge", });
     internal_static_FileDiffEntry_descriptor =
       getDescriptor().getMessageTypes().get(3);
     internal_static_FileDiffEntry_fieldAccessorTable = new
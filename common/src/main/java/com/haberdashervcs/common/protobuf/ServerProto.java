@@ -46,6 +46,47 @@ public final class ServerProto {
      * @return The newCommitIdOnMain.
      */
     long getNewCommitIdOnMain();
+
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @return A list containing the conflictingPaths.
+     */
+    java.util.List<java.lang.String>
+        getConflictingPathsList();
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @return The count of conflictingPaths.
+     */
+    int getConflictingPathsCount();
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @param index The index of the element to return.
+     * @return The conflictingPaths at the given index.
+     */
+    java.lang.String getConflictingPaths(int index);
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @param index The index of the value to return.
+     * @return The bytes of the conflictingPaths at the given index.
+     */
+    com.google.protobuf.ByteString
+        getConflictingPathsBytes(int index);
   }
   /**
    * Protobuf type {@code MergeResult}
@@ -62,6 +103,7 @@ public final class ServerProto {
     private MergeResult() {
       type_ = 0;
       message_ = "";
+      conflictingPaths_ = com.google.protobuf.LazyStringArrayList.EMPTY;
     }
 
     @java.lang.Override
@@ -84,6 +126,7 @@ public final class ServerProto {
       if (extensionRegistry == null) {
         throw new java.lang.NullPointerException();
       }
+      int mutable_bitField0_ = 0;
       com.google.protobuf.UnknownFieldSet.Builder unknownFields =
           com.google.protobuf.UnknownFieldSet.newBuilder();
       try {
@@ -111,6 +154,15 @@ public final class ServerProto {
               newCommitIdOnMain_ = input.readInt64();
               break;
             }
+            case 34: {
+              java.lang.String s = input.readStringRequireUtf8();
+              if (!((mutable_bitField0_ & 0x00000001) != 0)) {
+                conflictingPaths_ = new com.google.protobuf.LazyStringArrayList();
+                mutable_bitField0_ |= 0x00000001;
+              }
+              conflictingPaths_.add(s);
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -126,6 +178,9 @@ public final class ServerProto {
         throw new com.google.protobuf.InvalidProtocolBufferException(
             e).setUnfinishedMessage(this);
       } finally {
+        if (((mutable_bitField0_ & 0x00000001) != 0)) {
+          conflictingPaths_ = conflictingPaths_.getUnmodifiableView();
+        }
         this.unknownFields = unknownFields.build();
         makeExtensionsImmutable();
       }
@@ -319,6 +374,57 @@ public final class ServerProto {
       return newCommitIdOnMain_;
     }
 
+    public static final int CONFLICTINGPATHS_FIELD_NUMBER = 4;
+    private com.google.protobuf.LazyStringList conflictingPaths_;
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @return A list containing the conflictingPaths.
+     */
+    public com.google.protobuf.ProtocolStringList
+        getConflictingPathsList() {
+      return conflictingPaths_;
+    }
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @return The count of conflictingPaths.
+     */
+    public int getConflictingPathsCount() {
+      return conflictingPaths_.size();
+    }
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @param index The index of the element to return.
+     * @return The conflictingPaths at the given index.
+     */
+    public java.lang.String getConflictingPaths(int index) {
+      return conflictingPaths_.get(index);
+    }
+    /**
+     * <pre>
+     * For a merge that failed because folders changed on both main and the branch.
+     * </pre>
+     *
+     * <code>repeated string conflictingPaths = 4;</code>
+     * @param index The index of the value to return.
+     * @return The bytes of the conflictingPaths at the given index.
+     */
+    public com.google.protobuf.ByteString
+        getConflictingPathsBytes(int index) {
+      return conflictingPaths_.getByteString(index);
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -342,6 +448,9 @@ public final class ServerProto {
       if (newCommitIdOnMain_ != 0L) {
         output.writeInt64(3, newCommitIdOnMain_);
       }
+      for (int i = 0; i < conflictingPaths_.size(); i++) {
+        com.google.protobuf.GeneratedMessageV3.writeString(output, 4, conflictingPaths_.getRaw(i));
+      }
       unknownFields.writeTo(output);
     }
 
@@ -362,6 +471,14 @@ public final class ServerProto {
         size += com.google.protobuf.CodedOutputStream
           .computeInt64Size(3, newCommitIdOnMain_);
       }
+      {
+        int dataSize = 0;
+        for (int i = 0; i < conflictingPaths_.size(); i++) {
+          dataSize += computeStringSizeNoTag(conflictingPaths_.getRaw(i));
+        }
+        size += dataSize;
+        size += 1 * getConflictingPathsList().size();
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -382,6 +499,8 @@ public final class ServerProto {
           .equals(other.getMessage())) return false;
       if (getNewCommitIdOnMain()
           != other.getNewCommitIdOnMain()) return false;
+      if (!getConflictingPathsList()
+          .equals(other.getConflictingPathsList())) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -400,6 +519,10 @@ public final class ServerProto {
       hash = (37 * hash) + NEWCOMMITIDONMAIN_FIELD_NUMBER;
       hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
           getNewCommitIdOnMain());
+      if (getConflictingPathsCount() > 0) {
+        hash = (37 * hash) + CONFLICTINGPATHS_FIELD_NUMBER;
+        hash = (53 * hash) + getConflictingPathsList().hashCode();
+      }
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -539,6 +662,8 @@ public final class ServerProto {
 
         newCommitIdOnMain_ = 0L;
 
+        conflictingPaths_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000001);
         return this;
       }
 
@@ -565,9 +690,15 @@ public final class ServerProto {
       @java.lang.Override
       public com.haberdashervcs.common.protobuf.ServerProto.MergeResult buildPartial() {
         com.haberdashervcs.common.protobuf.ServerProto.MergeResult result = new com.haberdashervcs.common.protobuf.ServerProto.MergeResult(this);
+        int from_bitField0_ = bitField0_;
         result.type_ = type_;
         result.message_ = message_;
         result.newCommitIdOnMain_ = newCommitIdOnMain_;
+        if (((bitField0_ & 0x00000001) != 0)) {
+          conflictingPaths_ = conflictingPaths_.getUnmodifiableView();
+          bitField0_ = (bitField0_ & ~0x00000001);
+        }
+        result.conflictingPaths_ = conflictingPaths_;
         onBuilt();
         return result;
       }
@@ -626,6 +757,16 @@ public final class ServerProto {
         if (other.getNewCommitIdOnMain() != 0L) {
           setNewCommitIdOnMain(other.getNewCommitIdOnMain());
         }
+        if (!other.conflictingPaths_.isEmpty()) {
+          if (conflictingPaths_.isEmpty()) {
+            conflictingPaths_ = other.conflictingPaths_;
+            bitField0_ = (bitField0_ & ~0x00000001);
+          } else {
+            ensureConflictingPathsIsMutable();
+            conflictingPaths_.addAll(other.conflictingPaths_);
+          }
+          onChanged();
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -654,6 +795,7 @@ public final class ServerProto {
         }
         return this;
       }
+      private int bitField0_;
 
       private int type_ = 0;
       /**
@@ -815,6 +957,152 @@ public final class ServerProto {
         onChanged();
         return this;
       }
+
+      private com.google.protobuf.LazyStringList conflictingPaths_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+      private void ensureConflictingPathsIsMutable() {
+        if (!((bitField0_ & 0x00000001) != 0)) {
+          conflictingPaths_ = new com.google.protobuf.LazyStringArrayList(conflictingPaths_);
+          bitField0_ |= 0x00000001;
+         }
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @return A list containing the conflictingPaths.
+       */
+      public com.google.protobuf.ProtocolStringList
+          getConflictingPathsList() {
+        return conflictingPaths_.getUnmodifiableView();
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @return The count of conflictingPaths.
+       */
+      public int getConflictingPathsCount() {
+        return conflictingPaths_.size();
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param index The index of the element to return.
+       * @return The conflictingPaths at the given index.
+       */
+      public java.lang.String getConflictingPaths(int index) {
+        return conflictingPaths_.get(index);
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param index The index of the value to return.
+       * @return The bytes of the conflictingPaths at the given index.
+       */
+      public com.google.protobuf.ByteString
+          getConflictingPathsBytes(int index) {
+        return conflictingPaths_.getByteString(index);
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param index The index to set the value at.
+       * @param value The conflictingPaths to set.
+       * @return This builder for chaining.
+       */
+      public Builder setConflictingPaths(
+          int index, java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureConflictingPathsIsMutable();
+        conflictingPaths_.set(index, value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param value The conflictingPaths to add.
+       * @return This builder for chaining.
+       */
+      public Builder addConflictingPaths(
+          java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureConflictingPathsIsMutable();
+        conflictingPaths_.add(value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param values The conflictingPaths to add.
+       * @return This builder for chaining.
+       */
+      public Builder addAllConflictingPaths(
+          java.lang.Iterable<java.lang.String> values) {
+        ensureConflictingPathsIsMutable();
+        com.google.protobuf.AbstractMessageLite.Builder.addAll(
+            values, conflictingPaths_);
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearConflictingPaths() {
+        conflictingPaths_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000001);
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * For a merge that failed because folders changed on both main and the branch.
+       * </pre>
+       *
+       * <code>repeated string conflictingPaths = 4;</code>
+       * @param value The bytes of the conflictingPaths to add.
+       * @return This builder for chaining.
+       */
+      public Builder addConflictingPathsBytes(
+          com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  checkByteStringIsUtf8(value);
+        ensureConflictingPathsIsMutable();
+        conflictingPaths_.add(value);
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -896,6 +1184,28 @@ public final class ServerProto {
      */
     com.google.protobuf.ByteString
         getAllFileIdsFromServerBytes(int index);
+
+    /**
+     * <pre>
+     * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+     * server didn't save one.
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The checkoutSessionId.
+     */
+    java.lang.String getCheckoutSessionId();
+    /**
+     * <pre>
+     * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+     * server didn't save one.
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The bytes for checkoutSessionId.
+     */
+    com.google.protobuf.ByteString
+        getCheckoutSessionIdBytes();
   }
   /**
    * Protobuf type {@code ServerCheckoutSpec}
@@ -911,6 +1221,7 @@ public final class ServerProto {
     }
     private ServerCheckoutSpec() {
       allFileIdsFromServer_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+      checkoutSessionId_ = "";
     }
 
     @java.lang.Override
@@ -953,6 +1264,12 @@ public final class ServerProto {
               allFileIdsFromServer_.add(s);
               break;
             }
+            case 18: {
+              java.lang.String s = input.readStringRequireUtf8();
+
+              checkoutSessionId_ = s;
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -1023,6 +1340,54 @@ public final class ServerProto {
       return allFileIdsFromServer_.getByteString(index);
     }
 
+    public static final int CHECKOUTSESSIONID_FIELD_NUMBER = 2;
+    private volatile java.lang.Object checkoutSessionId_;
+    /**
+     * <pre>
+     * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+     * server didn't save one.
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The checkoutSessionId.
+     */
+    @java.lang.Override
+    public java.lang.String getCheckoutSessionId() {
+      java.lang.Object ref = checkoutSessionId_;
+      if (ref instanceof java.lang.String) {
+        return (java.lang.String) ref;
+      } else {
+        com.google.protobuf.ByteString bs = 
+            (com.google.protobuf.ByteString) ref;
+        java.lang.String s = bs.toStringUtf8();
+        checkoutSessionId_ = s;
+        return s;
+      }
+    }
+    /**
+     * <pre>
+     * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+     * server didn't save one.
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The bytes for checkoutSessionId.
+     */
+    @java.lang.Override
+    public com.google.protobuf.ByteString
+        getCheckoutSessionIdBytes() {
+      java.lang.Object ref = checkoutSessionId_;
+      if (ref instanceof java.lang.String) {
+        com.google.protobuf.ByteString b = 
+            com.google.protobuf.ByteString.copyFromUtf8(
+                (java.lang.String) ref);
+        checkoutSessionId_ = b;
+        return b;
+      } else {
+        return (com.google.protobuf.ByteString) ref;
+      }
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -1040,6 +1405,9 @@ public final class ServerProto {
       for (int i = 0; i < allFileIdsFromServer_.size(); i++) {
         com.google.protobuf.GeneratedMessageV3.writeString(output, 1, allFileIdsFromServer_.getRaw(i));
       }
+      if (!getCheckoutSessionIdBytes().isEmpty()) {
+        com.google.protobuf.GeneratedMessageV3.writeString(output, 2, checkoutSessionId_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -1057,6 +1425,9 @@ public final class ServerProto {
         size += dataSize;
         size += 1 * getAllFileIdsFromServerList().size();
       }
+      if (!getCheckoutSessionIdBytes().isEmpty()) {
+        size += com.google.protobuf.GeneratedMessageV3.computeStringSize(2, checkoutSessionId_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -1074,6 +1445,8 @@ public final class ServerProto {
 
       if (!getAllFileIdsFromServerList()
           .equals(other.getAllFileIdsFromServerList())) return false;
+      if (!getCheckoutSessionId()
+          .equals(other.getCheckoutSessionId())) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -1089,6 +1462,8 @@ public final class ServerProto {
         hash = (37 * hash) + ALLFILEIDSFROMSERVER_FIELD_NUMBER;
         hash = (53 * hash) + getAllFileIdsFromServerList().hashCode();
       }
+      hash = (37 * hash) + CHECKOUTSESSIONID_FIELD_NUMBER;
+      hash = (53 * hash) + getCheckoutSessionId().hashCode();
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -1224,6 +1599,8 @@ public final class ServerProto {
         super.clear();
         allFileIdsFromServer_ = com.google.protobuf.LazyStringArrayList.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000001);
+        checkoutSessionId_ = "";
+
         return this;
       }
 
@@ -1256,6 +1633,7 @@ public final class ServerProto {
           bitField0_ = (bitField0_ & ~0x00000001);
         }
         result.allFileIdsFromServer_ = allFileIdsFromServer_;
+        result.checkoutSessionId_ = checkoutSessionId_;
         onBuilt();
         return result;
       }
@@ -1314,6 +1692,10 @@ public final class ServerProto {
           }
           onChanged();
         }
+        if (!other.getCheckoutSessionId().isEmpty()) {
+          checkoutSessionId_ = other.checkoutSessionId_;
+          onChanged();
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -1453,6 +1835,107 @@ public final class ServerProto {
         onChanged();
         return this;
       }
+
+      private java.lang.Object checkoutSessionId_ = "";
+      /**
+       * <pre>
+       * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+       * server didn't save one.
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return The checkoutSessionId.
+       */
+      public java.lang.String getCheckoutSessionId() {
+        java.lang.Object ref = checkoutSessionId_;
+        if (!(ref instanceof java.lang.String)) {
+          com.google.protobuf.ByteString bs =
+              (com.google.protobuf.ByteString) ref;
+          java.lang.String s = bs.toStringUtf8();
+          checkoutSessionId_ = s;
+          return s;
+        } else {
+          return (java.lang.String) ref;
+        }
+      }
+      /**
+       * <pre>
+       * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+       * server didn't save one.
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return The bytes for checkoutSessionId.
+       */
+      public com.google.protobuf.ByteString
+          getCheckoutSessionIdBytes() {
+        java.lang.Object ref = checkoutSessionId_;
+        if (ref instanceof String) {
+          com.google.protobuf.ByteString b = 
+              com.google.protobuf.ByteString.copyFromUtf8(
+                  (java.lang.String) ref);
+          checkoutSessionId_ = b;
+          return b;
+        } else {
+          return (com.google.protobuf.ByteString) ref;
+        }
+      }
+      /**
+       * <pre>
+       * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+       * server didn't save one.
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @param value The checkoutSessionId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCheckoutSessionId(
+          java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  
+        checkoutSessionId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+       * server didn't save one.
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearCheckoutSessionId() {
+        
+        checkoutSessionId_ = getDefaultInstance().getCheckoutSessionId();
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Identifies the server's saved crawl for this query, so the checkout call can skip crawling again. Empty if the
+       * server didn't save one.
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @param value The bytes for checkoutSessionId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCheckoutSessionIdBytes(
+          com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  checkByteStringIsUtf8(value);
+        
+        checkoutSessionId_ = value;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -1534,6 +2017,26 @@ public final class ServerProto {
      */
     com.google.protobuf.ByteString
         getFileIdsClientNeedsBytes(int index);
+
+    /**
+     * <pre>
+     * Echoed back from ServerCheckoutSpec.checkoutSessionId
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The checkoutSessionId.
+     */
+    java.lang.String getCheckoutSessionId();
+    /**
+     * <pre>
+     * Echoed back from ServerCheckoutSpec.checkoutSessionId
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The bytes for checkoutSessionId.
+     */
+    com.google.protobuf.ByteString
+        getCheckoutSessionIdBytes();
   }
   /**
    * Protobuf type {@code ClientCheckoutSpec}
@@ -1549,6 +2052,7 @@ public final class ServerProto {
     }
     private ClientCheckoutSpec() {
       fileIdsClientNeeds_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+      checkoutSessionId_ = "";
     }
 
     @java.lang.Override
@@ -1591,6 +2095,12 @@ public final class ServerProto {
               fileIdsClientNeeds_.add(s);
               break;
             }
+            case 18: {
+              java.lang.String s = input.readStringRequireUtf8();
+
+              checkoutSessionId_ = s;
+              break;
+            }
             default: {
               if (!parseUnknownField(
                   input, unknownFields, extensionRegistry, tag)) {
@@ -1661,6 +2171,52 @@ public final class ServerProto {
       return fileIdsClientNeeds_.getByteString(index);
     }
 
+    public static final int CHECKOUTSESSIONID_FIELD_NUMBER = 2;
+    private volatile java.lang.Object checkoutSessionId_;
+    /**
+     * <pre>
+     * Echoed back from ServerCheckoutSpec.checkoutSessionId
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The checkoutSessionId.
+     */
+    @java.lang.Override
+    public java.lang.String getCheckoutSessionId() {
+      java.lang.Object ref = checkoutSessionId_;
+      if (ref instanceof java.lang.String) {
+        return (java.lang.String) ref;
+      } else {
+        com.google.protobuf.ByteString bs = 
+            (com.google.protobuf.ByteString) ref;
+        java.lang.String s = bs.toStringUtf8();
+        checkoutSessionId_ = s;
+        return s;
+      }
+    }
+    /**
+     * <pre>
+     * Echoed back from ServerCheckoutSpec.checkoutSessionId
+     * </pre>
+     *
+     * <code>string checkoutSessionId = 2;</code>
+     * @return The bytes for checkoutSessionId.
+     */
+    @java.lang.Override
+    public com.google.protobuf.ByteString
+        getCheckoutSessionIdBytes() {
+      java.lang.Object ref = checkoutSessionId_;
+      if (ref instanceof java.lang.String) {
+        com.google.protobuf.ByteString b = 
+            com.google.protobuf.ByteString.copyFromUtf8(
+                (java.lang.String) ref);
+        checkoutSessionId_ = b;
+        return b;
+      } else {
+        return (com.google.protobuf.ByteString) ref;
+      }
+    }
+
     private byte memoizedIsInitialized = -1;
     @java.lang.Override
     public final boolean isInitialized() {
@@ -1678,6 +2234,9 @@ public final class ServerProto {
       for (int i = 0; i < fileIdsClientNeeds_.size(); i++) {
         com.google.protobuf.GeneratedMessageV3.writeString(output, 1, fileIdsClientNeeds_.getRaw(i));
       }
+      if (!getCheckoutSessionIdBytes().isEmpty()) {
+        com.google.protobuf.GeneratedMessageV3.writeString(output, 2, checkoutSessionId_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -1695,6 +2254,9 @@ public final class ServerProto {
         size += dataSize;
         size += 1 * getFileIdsClientNeedsList().size();
       }
+      if (!getCheckoutSessionIdBytes().isEmpty()) {
+        size += com.google.protobuf.GeneratedMessageV3.computeStringSize(2, checkoutSessionId_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -1712,6 +2274,8 @@ public final class ServerProto {
 
       if (!getFileIdsClientNeedsList()
           .equals(other.getFileIdsClientNeedsList())) return false;
+      if (!getCheckoutSessionId()
+          .equals(other.getCheckoutSessionId())) return false;
       if (!unknownFields.equals(other.unknownFields)) return false;
       return true;
     }
@@ -1727,6 +2291,8 @@ public final class ServerProto {
         hash = (37 * hash) + FILEIDSCLIENTNEEDS_FIELD_NUMBER;
         hash = (53 * hash) + getFileIdsClientNeedsList().hashCode();
       }
+      hash = (37 * hash) + CHECKOUTSESSIONID_FIELD_NUMBER;
+      hash = (53 * hash) + getCheckoutSessionId().hashCode();
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -1862,6 +2428,8 @@ public final class ServerProto {
         super.clear();
         fileIdsClientNeeds_ = com.google.protobuf.LazyStringArrayList.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000001);
+        checkoutSessionId_ = "";
+
         return this;
       }
 
@@ -1894,6 +2462,7 @@ public final class ServerProto {
           bitField0_ = (bitField0_ & ~0x00000001);
         }
         result.fileIdsClientNeeds_ = fileIdsClientNeeds_;
+        result.checkoutSessionId_ = checkoutSessionId_;
         onBuilt();
         return result;
       }
@@ -1952,6 +2521,10 @@ public final class ServerProto {
           }
           onChanged();
         }
+        if (!other.getCheckoutSessionId().isEmpty()) {
+          checkoutSessionId_ = other.checkoutSessionId_;
+          onChanged();
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -2091,6 +2664,102 @@ public final class ServerProto {
         onChanged();
         return this;
       }
+
+      private java.lang.Object checkoutSessionId_ = "";
+      /**
+       * <pre>
+       * Echoed back from ServerCheckoutSpec.checkoutSessionId
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return The checkoutSessionId.
+       */
+      public java.lang.String getCheckoutSessionId() {
+        java.lang.Object ref = checkoutSessionId_;
+        if (!(ref instanceof java.lang.String)) {
+          com.google.protobuf.ByteString bs =
+              (com.google.protobuf.ByteString) ref;
+          java.lang.String s = bs.toStringUtf8();
+          checkoutSessionId_ = s;
+          return s;
+        } else {
+          return (java.lang.String) ref;
+        }
+      }
+      /**
+       * <pre>
+       * Echoed back from ServerCheckoutSpec.checkoutSessionId
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return The bytes for checkoutSessionId.
+       */
+      public com.google.protobuf.ByteString
+          getCheckoutSessionIdBytes() {
+        java.lang.Object ref = checkoutSessionId_;
+        if (ref instanceof String) {
+          com.google.protobuf.ByteString b = 
+              com.google.protobuf.ByteString.copyFromUtf8(
+                  (java.lang.String) ref);
+          checkoutSessionId_ = b;
+          return b;
+        } else {
+          return (com.google.protobuf.ByteString) ref;
+        }
+      }
+      /**
+       * <pre>
+       * Echoed back from ServerCheckoutSpec.checkoutSessionId
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @param value The checkoutSessionId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCheckoutSessionId(
+          java.lang.String value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  
+        checkoutSessionId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Echoed back from ServerCheckoutSpec.checkoutSessionId
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @return This builder for chaining.
+       */
+      public Builder clearCheckoutSessionId() {
+        
+        checkoutSessionId_ = getDefaultInstance().getCheckoutSessionId();
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Echoed back from ServerCheckoutSpec.checkoutSessionId
+       * </pre>
+       *
+       * <code>string checkoutSessionId = 2;</code>
+       * @param value The bytes for checkoutSessionId to set.
+       * @return This builder for chaining.
+       */
+      public Builder setCheckoutSessionIdBytes(
+          com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  checkByteStringIsUtf8(value);
+        
+        checkoutSessionId_ = value;
+        onChanged();
+        return this;
+      }
       @java.lang.Override
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
@@ -5426,13 +6095,15 @@ public final class ServerProto {
       descriptor;
   static {
     java.lang.String[] descriptorData = {
-      "\n\014server.proto\"\212\001\n\013MergeResult\022%\n\004type\030\001" +
+      "\n\014server.proto\"\244\001\n\013MergeResult\022%\n\004type\030\001" +
       " \001(\0162\027.MergeResult.ResultType\022\017\n\007message" +
-      "\030\002 \001(\t\022\031\n\021newCommitIdOnMain\030\003 \001(\003\"(\n\nRes" +
-      "ultType\022\016\n\nSUCCESSFUL\020\000\022\n\n\006FAILED\020\001\"2\n\022S" +
-      "erverCheckoutSpec\022\034\n\024allFileIdsFromServe" +
-      "r\030\001 \003(\t\"0\n\022ClientCheckoutSpec\022\032\n\022fileIds" +
-      "ClientNeeds\030\001 \003(\t\"\207\001\n\tPushQuery\022\013\n\003org\030\001" +
+      "\030\002 \001(\t\022\031\n\021newCommitIdOnMain\030\003 \001(\003\022\030\n\020con" +
+      "flictingPaths\030\004 \003(\t\"(\n\nResultType\022\016\n\nSUC" +
+      "CESSFUL\020\000\022\n\n\006FAILED\020\001\"M\n\022ServerCheckoutS" +
+      "pec\022\034\n\024allFileIdsFromServer\030\001 \003(\t\022\031\n\021che" +
+      "ckoutSessionId\030\002 \001(\t\"K\n\022ClientCheckoutSp" +
+      "ec\022\032\n\022fileIdsClientNeeds\030\001 \003(\t\022\031\n\021checko" +
+      "utSessionId\030\002 \001(\t\"\207\001\n\tPushQuery\022\013\n\003org\030\001" +
       " \001(\t\022\014\n\004repo\030\002 \001(\t\022\016\n\006branch\030\003 \001(\t\022\024\n\014ba" +
       "seCommitId\030\004 \001(\003\022\027\n\017newHeadCommitId\030\005 \001(" +
       "\003\022 \n\030fileIdsClientWantsToPush\030\006 \003(\t\"\237\001\n\021" +
@@ -5454,19 +6125,19 @@ public final class ServerProto {
     internal_static_MergeResult_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_MergeResult_descriptor,
-        new java.lang.String[] { "Type", "Message", "NewCommitIdOnMain", });
+        new java.lang.String[] { "Type", "Message", "NewCommitIdOnMain", "ConflictingPaths", });
     internal_static_ServerCheckoutSpec_descriptor =
       getDescriptor().getMessageTypes().get(1);
     internal_static_ServerCheckoutSpec_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_ServerCheckoutSpec_descriptor,
-        new java.lang.String[] { "AllFileIdsFromServer", });
+        new java.lang.String[] { "AllFileIdsFromServer", "CheckoutSessionId", });
     internal_static_ClientCheckoutSpec_descriptor =
       getDescriptor().getMessageTypes().get(2);
     internal_static_ClientCheckoutSpec_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_ClientCheckoutSpec_descriptor,
-        new java.lang.String[] { "FileIdsClientNeeds", });
+        new java.lang.String[] { "FileIdsClientNeeds", "CheckoutSessionId", });
     internal_static_PushQuery_descriptor =
       getDescriptor().getMessageTypes().get(3);
     internal_static_PushQuery_fieldAccessorTable = new
@@ -0,0 +1,57 @@
+package com.haberdashervcs.common.diff;
+
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.objects.FolderListing;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+public class HdHasherTest extends TestCase {
+
+    @Test
+    public void testTreeHashIgnoresEntryOrder() throws Exception {
+        Optional<String> hash1 = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forFile("a.txt", "id-a"),
+                FolderListing.Entry.forSubFolderWithTreeHash("sub", "hash-sub")));
+        Optional<String> hash2 = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forSubFolderWithTreeHash("sub", "hash-sub"),
+                FolderListing.Entry.forFile("a.txt", "id-a")));
+
+        assertTrue(hash1.isPresent());
+        assertEquals(hash1, hash2);
+    }
+
+
+    @Test
+    public void testTreeHashChangesWithSubfolder() throws Exception {
+        Optional<String> hash1 = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forSubFolderWithTreeHash("sub", "hash-sub-1")));
+        Optional<String> hash2 = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forSubFolderWithTreeHash("sub", "hash-sub-2")));
+
+        assertFalse(hash1.equals(hash2));
+    }
+
+
+    @Test
+    public void testTreeHashFileVsFolder() throws Exception {
+        Optional<String> asFile = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forFile("thing", "some-id")));
+        Optional<String> asFolder = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forSubFolderWithTreeHash("thing", "some-id")));
+
+        assertFalse(asFile.equals(asFolder));
+    }
+
+
+    @Test
+    public void testTreeHashUnknownSubfolder() throws Exception {
+        Optional<String> hash = HdHasher.treeHash(ImmutableList.of(
+                FolderListing.Entry.forFile("a.txt", "id-a"),
+                FolderListing.Entry.forSubFolder("sub")));
+
+        assertFalse(hash.isPresent());
+    }
+}
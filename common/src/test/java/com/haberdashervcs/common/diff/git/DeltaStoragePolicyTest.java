@@ -0,0 +1,74 @@
+package com.haberdashervcs.common.diff.git;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.base.Strings;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DeltaStoragePolicyTest {
+
+    private static final RandomAccessBytes BASE = rab(Strings.repeat("0123456789abcdef\n", 200));
+    private static final RandomAccessBytes SMALL_EDIT = rab(Strings.repeat("0123456789abcdef\n", 200) + "more\n");
+    private static final RandomAccessBytes REWRITE = rab(Strings.repeat("a totally different file\n", 140));
+
+    private static RandomAccessBytes rab(String s) {
+        return ByteArrayRandomAccessBytes.of(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    @Test
+    public void smallEditIsADelta() throws Exception {
+        DeltaStoragePolicy policy = DeltaStoragePolicy.withDefaults();
+        DeltaStoragePolicy.Result result = policy.decide(() -> BASE, SMALL_EDIT, 0, BASE.length());
+
+        assertEquals(DeltaStoragePolicy.Decision.DELTA, result.getDecision());
+        assertTrue(result.getDelta().get().length < SMALL_EDIT.length() / 10);
+        assertEquals(1, policy.getStats().getNumDeltas());
+        assertEquals(SMALL_EDIT.length(), policy.getStats().getDeltaFileBytes());
+    }
+
+
+    @Test
+    public void rewriteIsFull() throws Exception {
+        DeltaStoragePolicy policy = DeltaStoragePolicy.withDefaults();
+        DeltaStoragePolicy.Result result = policy.decide(() -> BASE, REWRITE, 0, BASE.length());
+
+        assertEquals(DeltaStoragePolicy.Decision.FULL_DELTA_TOO_LARGE, result.getDecision());
+        assertFalse(result.getDelta().isPresent());
+        assertEquals(1, policy.getStats().getNumFull(DeltaStoragePolicy.Decision.FULL_DELTA_TOO_LARGE));
+    }
+
+
+    @Test
+    public void deepChainIsFullWithoutLoadingTheBase() throws Exception {
+        DeltaStoragePolicy policy = DeltaStoragePolicy.withDefaults();
+        DeltaStoragePolicy.Result result = policy.decide(
+                () -> {
+                    throw new AssertionError("Shouldn't load the base");
+                },
+                SMALL_EDIT,
+                HdConstants.MAX_DIFF_SEARCH,
+                BASE.length());
+
+        assertEquals(DeltaStoragePolicy.Decision.FULL_CHAIN_TOO_DEEP, result.getDecision());
+    }
+
+
+    @Test
+    public void expensiveChainIsFull() throws Exception {
+        // The base's chain already reads far more than the new file's size.
+        DeltaStoragePolicy policy = DeltaStoragePolicy.withDefaults();
+        DeltaStoragePolicy.Result result = policy.decide(() -> BASE, SMALL_EDIT, 3, 10L * SMALL_EDIT.length());
+
+        assertEquals(DeltaStoragePolicy.Decision.FULL_READ_COST, result.getDecision());
+        assertEquals(1, policy.getStats().getNumFull());
+    }
+}
@@ -1,13 +1,16 @@
 package com.haberdashervcs.common.diff.git;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
@@ -21,6 +24,8 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class GitDeltaDifferTest {
@@ -47,6 +52,7 @@ public class GitDeltaDifferTest {
         LOG.info("Got diff: %d", diff.length);
 
         RandomAccessBytes diffRab = ByteArrayRandomAccessBytes.of(diff);
+        assertEquals(modifiedRab.length(), GitDeltaDiffer.getResultSize(diffRab));
         PatchedViewRandomAccessBytes patched = PatchedViewRandomAccessBytes.build(
                 fileRab, ImmutableList.of(diffRab));
 
@@ -125,6 +131,137 @@ public class GitDeltaDifferTest {
     }
 
 
+    @Test
+    public void bufferEncodingMatchesRabEncoding() throws Exception {
+        URL testFileUrl = GitDeltaDifferTest.class.getResource("/large_text_file.txt");
+        byte[] base = RandomAccessBytes.toByteArray(
+                FileRandomAccessBytes.of(Paths.get(testFileUrl.toURI()).toFile()));
+        URL testFile2 = GitDeltaDifferTest.class.getResource("/large_text_file_2.txt");
+        byte[] other = RandomAccessBytes.toByteArray(FileRandomAccessBytes.of(Paths.get(testFile2.toURI()).toFile()));
+
+        // Edits at the start, in the middle, and at the end, to exercise the backward and forward matching.
+        byte[] edited = Arrays.copyOf(base, base.length + 3);
+        edited[0] = 'X';
+        edited[base.length / 2] = 'Y';
+        System.arraycopy("end".getBytes(StandardCharsets.UTF_8), 0, edited, base.length, 3);
+
+        assertSameEncoding(base, edited);
+        assertSameEncoding(base, other);
+        assertSameEncoding(base, "tiny".getBytes(StandardCharsets.UTF_8));
+        assertSameEncoding(new byte[0], base);
+    }
+
+    @Test
+    public void deepChainReadsLikeTheFile() throws Exception {
+        URL testFileUrl = GitDeltaDifferTest.class.getResource("/large_text_file.txt");
+        byte[] current = RandomAccessBytes.toByteArray(
+                FileRandomAccessBytes.of(Paths.get(testFileUrl.toURI()).toFile()));
+        RandomAccessBytes base = ByteArrayRandomAccessBytes.of(current);
+
+        // Each version cuts a range out of the last one and inserts some text somewhere else, so that the copies in
+        // later deltas span pieces of earlier ones.
+        Random random = new Random(42);
+        List<RandomAccessBytes> patches = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            int cutAt = random.nextInt(current.length - 1000);
+            int insertAt = random.nextInt(current.length - 1000);
+            ByteArrayOutputStream next = new ByteArrayOutputStream();
+            next.write(current, 0, cutAt);
+            next.write(current, cutAt + 500, current.length - cutAt - 500);
+            byte[] cut = next.toByteArray();
+            next.reset();
+            next.write(cut, 0, insertAt);
+            next.write(("inserted " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            next.write(cut, insertAt, cut.length - insertAt);
+            byte[] modified = next.toByteArray();
+
+            patches.add(ByteArrayRandomAccessBytes.of(GitDeltaDiffer.computeGitDiff(
+                    ByteArrayRandomAccessBytes.of(current), ByteArrayRandomAccessBytes.of(modified))));
+            current = modified;
+        }
+
+        PatchedViewRandomAccessBytes patched = PatchedViewRandomAccessBytes.build(base, patches);
+        assertArrayEquals(current, RandomAccessBytes.toByteArray(patched));
+        for (int i = 0; i < 1000; ++i) {
+            int idx = random.nextInt(current.length);
+            assertEquals(current[idx], patched.at(idx));
+        }
+        // Neighboring copies are merged, so each delta only adds a few segments.
+        assertTrue(patched.numSegments() < 12 * 5);
+    }
+
+    @Test
+    public void patchedViewsStopAtSegmentEnds() throws Exception {
+        // Mapped, since it's over 1MB, so views of the base's segments are of the file itself.
+        URL testFileUrl = GitDeltaDifferTest.class.getResource("/large_text_file.txt");
+        FileRandomAccessBytes base = FileRandomAccessBytes.of(Paths.get(testFileUrl.toURI()).toFile());
+        byte[] baseBytes = RandomAccessBytes.toByteArray(base);
+
+        // Two inserts split the base into three copied segments, with a segment from the diff between each.
+        int firstInsert = baseBytes.length / 3;
+        int secondInsert = 2 * baseBytes.length / 3;
+        ByteArrayOutputStream modifiedOut = new ByteArrayOutputStream();
+        modifiedOut.write(baseBytes, 0, firstInsert);
+        modifiedOut.write("FIRST INSERT\n".getBytes(StandardCharsets.UTF_8));
+        modifiedOut.write(baseBytes, firstInsert, secondInsert - firstInsert);
+        modifiedOut.write("SECOND INSERT\n".getBytes(StandardCharsets.UTF_8));
+        modifiedOut.write(baseBytes, secondInsert, baseBytes.length - secondInsert);
+        byte[] modified = modifiedOut.toByteArray();
+
+        RandomAccessBytes diff = ByteArrayRandomAccessBytes.of(
+                GitDeltaDiffer.computeGitDiff(base, ByteArrayRandomAccessBytes.of(modified)));
+        PatchedViewRandomAccessBytes patched = PatchedViewRandomAccessBytes.build(base, ImmutableList.of(diff));
+
+        // Walking the views reads the whole result, one segment (or part of one) at a time.
+        ByteArrayOutputStream viewed = new ByteArrayOutputStream();
+        int numViews = 0;
+        int numDirectViews = 0;
+        long idx = 0;
+        while (idx < modified.length) {
+            ByteBuffer view = patched.bufferAt(idx, 256 * 1024);
+            assertTrue(view.hasRemaining());
+            assertTrue(view.remaining() <= 256 * 1024);
+            if (view.isDirect()) {
+                ++numDirectViews;
+            }
+            byte[] viewBytes = new byte[view.remaining()];
+            view.get(viewBytes);
+            viewed.write(viewBytes);
+            idx += viewBytes.length;
+            ++numViews;
+        }
+        assertArrayEquals(modified, viewed.toByteArray());
+        assertTrue(numViews >= patched.numSegments());
+        assertTrue(numDirectViews > 0 && numDirectViews < numViews);
+
+        // A view that starts just before an insert stops where the insert starts.
+        ByteBuffer beforeInsert = patched.bufferAt(firstInsert - 3, 100);
+        assertEquals(3, beforeInsert.remaining());
+        ByteBuffer insert = patched.bufferAt(firstInsert, 100);
+        assertEquals((byte) 'F', insert.get(0));
+        assertFalse(insert.isDirect());
+
+        // Reads stop at segment ends too, and readFully() fills across them.
+        byte[] buf = new byte[20];
+        assertEquals(3, patched.readInto(firstInsert - 3, buf.length, buf, 0));
+        RandomAccessBytes.readFully(patched, firstInsert - 3, buf.length, buf, 0);
+        assertArrayEquals(Arrays.copyOfRange(modified, firstInsert - 3, firstInsert + 17), buf);
+    }
+
+
+    private void assertSameEncoding(byte[] original, byte[] modified) throws IOException {
+        ByteArrayOutputStream throughRab = new ByteArrayOutputStream();
+        new DeltaIndex(ByteArrayRandomAccessBytes.of(original))
+                .encode(throughRab, ByteArrayRandomAccessBytes.of(modified));
+
+        ByteArrayOutputStream throughBuffer = new ByteArrayOutputStream();
+        new DeltaIndex(ByteArrayRandomAccessBytes.of(original), ByteBuffer.wrap(original).asReadOnlyBuffer())
+                .encode(throughBuffer, ByteBuffer.wrap(modified).asReadOnlyBuffer(), 0);
+
+        assertArrayEquals(throughRab.toByteArray(), throughBuffer.toByteArray());
+    }
+
+
     private void testPatches(
             String caseName, String base, String... modifiedContents)
             throws IOException {
@@ -2,6 +2,7 @@ package com.haberdashervcs.common.diff.git;
 
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -260,4 +261,103 @@ public class HistogramDifferTest extends TestCase {
                 ), result);
     }
 
+
+    public void testEditBudget() throws Exception {
+        HistogramDiffer differ = HistogramDiffer.withBudgets(2, HistogramDiffer.DEFAULT_MAX_MILLIS);
+        String original = joinLinesToText(
+                "same start",
+                "a",
+                "same",
+                "b",
+                "same",
+                "c",
+                "same end");
+        String modified = joinLinesToText(
+                "same start",
+                "a2",
+                "same",
+                "b2",
+                "same",
+                "c2",
+                "same end");
+
+        HistogramDiffer.Result result = differ.diff(
+                new RabTextSequence(asRab(original)), new RabTextSequence(asRab(modified)));
+        assertTrue(result.isTooLarge());
+        // One hunk for everything between the common first and last lines.
+        assertHunksEqual(
+                ImmutableList.of(new int[]{ 2, 7, 2, 7 }),
+                result.getHunks());
+
+        HistogramDiffer.Result unchanged = differ.diff(
+                new RabTextSequence(asRab(original)), new RabTextSequence(asRab(original)));
+        assertFalse(unchanged.isTooLarge());
+        assertTrue(unchanged.getHunks().isEmpty());
+    }
+
+
+    // Numbered lines. Reversing the middle ones, but not the first and last, makes a slow diff.
+    private String[] numberedLines(int numLines, boolean reverseMiddle) {
+        String[] lines = new String[numLines];
+        for (int i = 0; i < numLines; ++i) {
+            int lineNum = (reverseMiddle && i > 0 && i < numLines - 1) ? (numLines - 1 - i) : i;
+            lines[i] = "line " + lineNum;
+        }
+        return lines;
+    }
+
+
+    public void testTimeBudget() throws Exception {
+        HistogramDiffer differ = HistogramDiffer.withBudgets(Integer.MAX_VALUE, 1);
+        final int numLines = 200_000;
+        String original = joinLinesToText(numberedLines(numLines, false));
+        String modified = joinLinesToText(numberedLines(numLines, true));
+
+        HistogramDiffer.Result result = differ.diff(
+                new RabTextSequence(asRab(original)), new RabTextSequence(asRab(modified)));
+        assertTrue(result.isTooLarge());
+        assertHunksEqual(
+                ImmutableList.of(new int[]{ 2, numLines, 2, numLines }),
+                result.getHunks());
+    }
+
+
+    public void testInterruptCancels() throws Exception {
+        HistogramDiffer differ = new HistogramDiffer();
+        final int numLines = 200_000;
+        String original = joinLinesToText(numberedLines(numLines, false));
+        String modified = joinLinesToText(numberedLines(numLines, true));
+
+        Thread.currentThread().interrupt();
+        try {
+            differ.diff(new RabTextSequence(asRab(original)), new RabTextSequence(asRab(modified)));
+            fail("Expected a CancellationException");
+        } catch (CancellationException expected) {
+            assertTrue(expected.getMessage().contains("interrupted"));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+
+    public void testLineIndex() throws Exception {
+        LineIndex empty = LineIndex.of(asRab(""));
+        assertEquals(0, empty.getNumLines());
+        assertEquals(0, empty.getContentLength());
+
+        LineIndex oneLine = LineIndex.of(asRab("a\n"));
+        assertEquals(1, oneLine.getNumLines());
+        assertEquals(2, oneLine.getContentLength());
+
+        LineIndex noFinalLf = LineIndex.of(asRab("a\nbc"));
+        assertEquals(2, noFinalLf.getNumLines());
+        assertEquals(2, noFinalLf.get(2));
+        assertEquals(4, noFinalLf.get(3));
+
+        // The same line hashes the same wherever it is.
+        LineIndex repeated = LineIndex.of(asRab("x\nyy\nx\n"));
+        assertEquals(repeated.lineHash(0), repeated.lineHash(2));
+        assertFalse(repeated.lineHash(0) == repeated.lineHash(1));
+    }
+
 }
@@ -0,0 +1,118 @@
+package com.haberdashervcs.common.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class FileContentsCodecTest {
+
+    @Test
+    public void testTextRoundTrip() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            sb.append("line number ").append(i).append(" of some very ordinary source text\n");
+        }
+        byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        FileContentsCodec.Encoded encoded = FileContentsCodec.encode(text, FileEntry.ContentsType.FULL);
+        assertEquals(FilesProto.FileEntry.Codec.DEFLATE, encoded.getCodec());
+        assertTrue(encoded.getBytes().length < text.length / 3);
+        assertTrue(Arrays.equals(text, FileContentsCodec.decode(encoded.getCodec(), encoded.getBytes())));
+    }
+
+
+    @Test
+    public void testSmallContentsAreLeftAlone() throws Exception {
+        byte[] text = "short\n".getBytes(StandardCharsets.UTF_8);
+        FileContentsCodec.Encoded encoded = FileContentsCodec.encode(text, FileEntry.ContentsType.FULL);
+        assertEquals(FilesProto.FileEntry.Codec.NONE, encoded.getCodec());
+        assertSame(text, encoded.getBytes());
+    }
+
+
+    @Test
+    public void testRandomContentsAreLeftAlone() throws Exception {
+        byte[] random = new byte[64 * 1024];
+        new Random(1234).nextBytes(random);
+
+        assertTrue(FileContentsCodec.entropyBitsPerByte(random, 8192) > 7.5);
+        FileContentsCodec.Encoded encoded = FileContentsCodec.encode(random, FileEntry.ContentsType.DIFF_GIT);
+        assertEquals(FilesProto.FileEntry.Codec.NONE, encoded.getCodec());
+        assertSame(random, encoded.getBytes());
+    }
+
+
+    @Test
+    public void testBinaryContentsAreLeftAlone() throws Exception {
+        // Compressible, but it has NUL bytes.
+        byte[] binary = new byte[4096];
+        for (int i = 0; i < binary.length; ++i) {
+            binary[i] = (byte) (i % 4);
+        }
+
+        FileContentsCodec.Encoded encoded = FileContentsCodec.encode(binary, FileEntry.ContentsType.FULL);
+        assertEquals(FilesProto.FileEntry.Codec.NONE, encoded.getCodec());
+    }
+
+
+    @Test
+    public void testOversizedContentsAreRejected() throws Exception {
+        byte[] atMax = new byte[HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES];
+        byte[] deflated = FileContentsCodec.deflate(atMax, FileContentsCodec.DEFLATE_LEVEL);
+        assertEquals(atMax.length, FileContentsCodec.decode(FilesProto.FileEntry.Codec.DEFLATE, deflated).length);
+
+        // A few KB that inflate to one byte over the limit.
+        byte[] tooBig = new byte[HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES + 1];
+        deflated = FileContentsCodec.deflate(tooBig, FileContentsCodec.DEFLATE_LEVEL);
+        assertTrue(deflated.length < 8192);
+        try {
+            FileContentsCodec.decode(FilesProto.FileEntry.Codec.DEFLATE, deflated);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("too large"));
+        }
+    }
+
+
+    @Test
+    public void testStoredEntriesAreSentAsTheyAre() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            sb.append("line number ").append(i).append(" of some very ordinary source text\n");
+        }
+        byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+        FileEntry entry = FileEntry.forFullContents(
+                "id", ByteArrayRandomAccessBytes.of(text), FileEntry.StorageType.DATASTORE);
+        byte[] stored = ProtobufObjectByteConverter.getInstance().fileToCompressedBytes(entry);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ProtobufObjectOutputStream.withCompressedFiles(compressed).writeStoredFile("id", stored);
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        ProtobufObjectOutputStream.forOutputStream(uncompressed).writeStoredFile("id", stored);
+        assertTrue(compressed.size() < stored.length + 100);
+        assertTrue(uncompressed.size() > text.length);
+
+        for (ByteArrayOutputStream written : Arrays.asList(compressed, uncompressed)) {
+            ProtobufObjectInputStream in = ProtobufObjectInputStream.forInputStream(
+                    new ByteArrayInputStream(written.toByteArray()));
+            assertEquals(HdObjectId.ObjectType.FILE, in.next().get().getType());
+            assertTrue(Arrays.equals(text, RandomAccessBytes.toByteArray(in.getFile().getEntryContents())));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.haberdashervcs.common.io.rab;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+public class BlockCachedRandomAccessBytesTest extends TestCase {
+
+    private static final class CountingReader implements BlockCachedRandomAccessBytes.RangeReader {
+
+        private final byte[] source;
+        private final List<Long> positionsRead = new ArrayList<>();
+
+        private CountingReader(byte[] source) {
+            this.source = source;
+        }
+
+        @Override
+        public void readFully(long position, byte[] dest, int offset, int length) {
+            positionsRead.add(position);
+            System.arraycopy(source, (int) position, dest, offset, length);
+        }
+    }
+
+
+    private static byte[] sourceBytes(int length) {
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            out[i] = (byte) (i % 251);
+        }
+        return out;
+    }
+
+
+    @Test
+    public void testReadsMatchSource() throws Exception {
+        byte[] source = sourceBytes(1000);
+        CountingReader reader = new CountingReader(source);
+        BlockCachedRandomAccessBytes rab = BlockCachedRandomAccessBytes.of(reader, source.length, 64, 4);
+
+        assertEquals(source.length, rab.length());
+        for (int i = 0; i < source.length; ++i) {
+            assertEquals("i = " + i, source[i], rab.at(i));
+        }
+        assertEquals(source.length, RandomAccessBytes.toByteArray(rab).length);
+        for (int i = 0; i < source.length; ++i) {
+            assertEquals("i = " + i, source[i], RandomAccessBytes.toByteArray(rab)[i]);
+        }
+    }
+
+
+    @Test
+    public void testReadIntoStopsAtBlockEnd() throws Exception {
+        byte[] source = sourceBytes(200);
+        BlockCachedRandomAccessBytes rab = BlockCachedRandomAccessBytes.of(new CountingReader(source), 200, 64, 4);
+
+        byte[] dest = new byte[100];
+        assertEquals(4, rab.readInto(60, 100, dest));
+        assertEquals(source[60], dest[0]);
+        assertEquals(8, rab.readInto(192, 8, dest));
+        assertEquals(source[199], dest[7]);
+    }
+
+
+    @Test
+    public void testBufferAtViewsStopAtBlockEnds() throws Exception {
+        byte[] source = sourceBytes(200);
+        BlockCachedRandomAccessBytes rab = BlockCachedRandomAccessBytes.of(new CountingReader(source), 200, 64, 4);
+
+        ByteBuffer view = rab.bufferAt(60, 100);
+        assertEquals(4, view.remaining());
+        assertTrue(view.isReadOnly());
+        assertEquals(source[60], view.get(0));
+        assertEquals(source[63], view.get(3));
+
+        view = rab.bufferAt(64, 100);
+        assertEquals(64, view.remaining());
+        assertEquals(source[64], view.get());
+        assertEquals(8, rab.bufferAt(192, 100).remaining());
+
+        // Walking the views covers the whole source, one block at a time.
+        List<Integer> viewSizes = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int idx = 30;
+        while (idx < source.length) {
+            view = rab.bufferAt(idx, 50);
+            viewSizes.add(view.remaining());
+            byte[] viewBytes = new byte[view.remaining()];
+            view.get(viewBytes);
+            out.write(viewBytes);
+            idx += viewBytes.length;
+        }
+        assertEquals(List.of(34, 50, 14, 50, 14, 8), viewSizes);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(source, 30, 200), out.toByteArray()));
+    }
+
+
+    @Test
+    public void testOnlyTouchedBlocksAreRead() throws Exception {
+        byte[] source = sourceBytes(1000);
+        CountingReader reader = new CountingReader(source);
+        BlockCachedRandomAccessBytes rab = BlockCachedRandomAccessBytes.of(reader, source.length, 100, 2);
+
+        rab.at(5);
+        rab.at(950);
+        rab.at(6);
+        assertEquals(List.of(0L, 900L), reader.positionsRead);
+
+        // Evicts the block at 900, which is now the least recently used.
+        rab.at(500);
+        rab.at(7);
+        rab.at(950);
+        assertEquals(List.of(0L, 900L, 500L, 900L), reader.positionsRead);
+    }
+
+
+    @Test
+    public void testBounds() throws Exception {
+        byte[] source = sourceBytes(100);
+        BlockCachedRandomAccessBytes rab = BlockCachedRandomAccessBytes.of(
+                new CountingReader(source), source.length, 64, 4);
+        byte[] buf = new byte[16];
+
+        assertEquals(0, rab.readInto(100, 4, buf));
+        assertEquals(0, rab.bufferAt(100, 4).remaining());
+        assertEquals(4, rab.readInto(96, 10, buf));
+        assertEquals(source[99], buf[3]);
+        assertEquals(4, rab.bufferAt(96, 10).remaining());
+
+        try {
+            rab.readInto(101, 1, buf);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            rab.bufferAt(101, 1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.haberdashervcs.common.io.rab;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 
 import junit.framework.TestCase;
@@ -29,4 +32,53 @@ public class ByteArrayRandomAccessBytesTest extends TestCase {
         }
     }
 
-}
\ No newline at end of file
+
+    public void testBulkReads() throws Exception {
+        byte[] bytes = "apples\nbananas\ncantaloupes\n".getBytes(StandardCharsets.UTF_8);
+        ByteArrayRandomAccessBytes rab = ByteArrayRandomAccessBytes.of(bytes);
+
+        byte[] dest = new byte[10];
+        assertEquals(7, rab.readInto(7, 7, dest, 3));
+        assertEquals("bananas", new String(dest, 3, 7, StandardCharsets.UTF_8));
+
+        ByteBuffer view = rab.bufferAt(7, 7);
+        assertTrue(view.isReadOnly());
+        assertEquals(7, view.remaining());
+        assertEquals('b', view.get(0));
+
+        RandomAccessBytes slice = rab.slice(7, 14);
+        assertEquals(7, slice.length());
+        assertEquals("bananas", new String(RandomAccessBytes.toByteArray(slice), StandardCharsets.UTF_8));
+        assertEquals("nan", new String(
+                RandomAccessBytes.toByteArray(slice.slice(2, 5)), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(7, slice.transferTo(Channels.newChannel(out)));
+        assertEquals("bananas", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+
+    public void testBounds() throws Exception {
+        ByteArrayRandomAccessBytes rab = ByteArrayRandomAccessBytes.of(
+                "apples".getBytes(StandardCharsets.UTF_8));
+        byte[] buf = new byte[16];
+
+        assertEquals(0, rab.readInto(6, 4, buf));
+        assertEquals(0, rab.bufferAt(6, 4).remaining());
+        assertEquals(2, rab.readInto(4, 10, buf));
+        assertEquals("es", new String(buf, 0, 2, StandardCharsets.UTF_8));
+        assertEquals(2, rab.bufferAt(4, 10).remaining());
+        assertEquals(0, ByteArrayRandomAccessBytes.empty().readInto(0, 4, buf));
+
+        try {
+            rab.readInto(7, 1, buf);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            rab.bufferAt(-1, 1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
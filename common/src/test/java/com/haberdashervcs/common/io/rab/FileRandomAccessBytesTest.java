@@ -1,12 +1,18 @@
 package com.haberdashervcs.common.io.rab;
 
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class FileRandomAccessBytesTest {
@@ -37,4 +43,124 @@ public class FileRandomAccessBytesTest {
         }
     }
 
-}
\ No newline at end of file
+
+    @Test
+    public void readsBackwards() throws Exception {
+        byte[] bytes = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i * 31);
+        }
+        Path tempFile = Files.createTempFile("hd-test-filerab-", ".bin");
+        Files.write(tempFile, bytes);
+        FileRandomAccessBytes rab = FileRandomAccessBytes.of(tempFile.toFile());
+
+        for (int i = bytes.length - 1; i >= 0; i -= 4093) {
+            assertEquals("i = " + i, bytes[i], rab.at(i));
+        }
+        assertArrayEquals(bytes, RandomAccessBytes.toByteArray(rab));
+        assertTrue(rab.bufferAt(0, 16).isDirect());
+    }
+
+
+    @Test
+    public void smallFilesAreReadIntoTheHeap() throws Exception {
+        Path tempFile = Files.createTempFile("hd-test-filerab-", ".txt");
+        Files.write(tempFile, "original contents\n".getBytes(StandardCharsets.UTF_8));
+        FileRandomAccessBytes rab = FileRandomAccessBytes.of(tempFile.toFile());
+
+        // Changes to the file after it's read don't show through.
+        Files.write(tempFile, "changed contents!!\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(
+                "original contents\n",
+                new String(RandomAccessBytes.toByteArray(rab), StandardCharsets.UTF_8));
+        assertFalse(rab.bufferAt(0, 16).isDirect());
+        assertEquals(9, rab.bufferAt(9, 100).remaining());
+        Files.delete(tempFile);
+    }
+
+
+    @Test
+    public void emptyFile() throws Exception {
+        Path tempFile = Files.createTempFile("hd-test-filerab-", ".txt");
+        FileRandomAccessBytes rab = FileRandomAccessBytes.of(tempFile.toFile());
+        assertEquals(0, rab.length());
+        assertEquals(0, RandomAccessBytes.toByteArray(rab).length);
+        assertEquals(0, rab.readInto(0, 4, new byte[4]));
+        assertEquals(0, rab.bufferAt(0, 4).remaining());
+        Files.delete(tempFile);
+    }
+
+
+    @Test
+    public void bounds() throws Exception {
+        Path tempFile = Files.createTempFile("hd-test-filerab-", ".txt");
+        Files.write(tempFile, "apples".getBytes(StandardCharsets.UTF_8));
+        FileRandomAccessBytes rab = FileRandomAccessBytes.of(tempFile.toFile());
+        byte[] buf = new byte[16];
+
+        assertEquals(0, rab.readInto(6, 4, buf));
+        assertEquals(0, rab.bufferAt(6, 4).remaining());
+        assertEquals(2, rab.readInto(4, 10, buf));
+        assertEquals("es", new String(buf, 0, 2, StandardCharsets.UTF_8));
+        assertEquals(2, rab.bufferAt(4, 10).remaining());
+
+        try {
+            rab.readInto(7, 1, buf);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            rab.bufferAt(-1, 1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        Files.delete(tempFile);
+    }
+
+
+    @Test
+    public void filesPast2GB() throws Exception {
+        // Sparse, so this doesn't write 3GB.
+        Path tempFile = Files.createTempFile("hd-test-filerab-", ".bin");
+        tempFile.toFile().deleteOnExit();
+        final long length = 3L * 1024 * 1024 * 1024;
+        final long farIdx = length - 10;
+        try (RandomAccessFile raFile = new RandomAccessFile(tempFile.toFile(), "rw")) {
+            raFile.setLength(length);
+            raFile.seek(farIdx);
+            raFile.write("far bytes!".getBytes(StandardCharsets.UTF_8));
+            raFile.seek((1L << 30) - 4);
+            raFile.write("edgeEDGE".getBytes(StandardCharsets.UTF_8));
+        }
+
+        FileRandomAccessBytes rab = FileRandomAccessBytes.of(tempFile.toFile());
+        assertEquals(length, rab.longLength());
+        assertEquals((byte) 'f', rab.at(farIdx));
+
+        byte[] buf = new byte[64];
+        int bytesRead = rab.readInto(farIdx, buf.length, buf);
+        assertEquals(10, bytesRead);
+        assertEquals("far bytes!", new String(buf, 0, bytesRead, StandardCharsets.UTF_8));
+
+        // Reads and views stop at the end of a mapped chunk.
+        long chunkEnd = 1L << 30;
+        assertEquals(4, rab.readInto(chunkEnd - 4, buf.length, buf));
+        assertEquals("edge", new String(buf, 0, 4, StandardCharsets.UTF_8));
+        ByteBuffer view = rab.bufferAt(chunkEnd - 4, buf.length);
+        assertEquals(4, view.remaining());
+        assertEquals((byte) 'e', view.get(0));
+        view = rab.bufferAt(chunkEnd, 4);
+        assertEquals(4, view.remaining());
+        assertEquals((byte) 'E', view.get(0));
+        assertTrue(view.isDirect());
+
+        // Reading across the boundary takes one read per chunk.
+        RandomAccessBytes.readFully(rab, chunkEnd - 4, 8, buf, 0);
+        assertEquals("edgeEDGE", new String(buf, 0, 8, StandardCharsets.UTF_8));
+
+        // The file ends exactly at the end of its last chunk.
+        assertEquals(0, rab.readInto(length, buf.length, buf));
+        assertEquals(0, rab.bufferAt(length, buf.length).remaining());
+        Files.delete(tempFile);
+    }
+}
@@ -2,6 +2,7 @@ package com.haberdashervcs.common.io.rab;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -71,4 +72,49 @@ public class RabInputStreamTest {
         Assert.assertEquals(-1, readAgain);
     }
 
+
+    @Test
+    public void mixesBufferedAndBypassedReads() throws Exception {
+        byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i % 251);
+        }
+        // Block-cached contents return short reads at each block's end, unlike an array.
+        RandomAccessBytes blockCached = BlockCachedRandomAccessBytes.of(
+                (position, dest, offset, length) -> System.arraycopy(bytes, (int) position, dest, offset, length),
+                bytes.length, 64, 2);
+
+        for (RandomAccessBytes rab : List.of(ByteArrayRandomAccessBytes.of(bytes), blockCached)) {
+            RabInputStream rabIn = new RabInputStream(rab, 16);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            // Single bytes and small reads go through the buffer, and reads of 16 or more skip it once it's used up.
+            int[] readSizes = { 1, 5, 40, 16, 3, 100, 1, 1, 17 };
+            byte[] dest = new byte[200];
+            int readNum = 0;
+            while (true) {
+                int readSize = readSizes[readNum++ % readSizes.length];
+                if (readSize == 1) {
+                    int nextByte = rabIn.read();
+                    if (nextByte == -1) {
+                        break;
+                    }
+                    out.write(nextByte);
+                    continue;
+                }
+
+                // Reads land at the offset asked for.
+                int bytesRead = rabIn.read(dest, 7, readSize);
+                if (bytesRead == -1) {
+                    break;
+                }
+                Assert.assertTrue(bytesRead > 0 && bytesRead <= readSize);
+                out.write(dest, 7, bytesRead);
+            }
+
+            Assert.assertArrayEquals(bytes, out.toByteArray());
+            Assert.assertEquals(0, rabIn.available());
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.haberdashervcs.common.io.rab;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class SlicedRandomAccessBytesTest {
+
+    private static RandomAccessBytes slice() {
+        RandomAccessBytes source = ByteArrayRandomAccessBytes.of(
+                "apples\nbananas\ncantaloupes\n".getBytes(StandardCharsets.UTF_8));
+        return source.slice(7, 14);
+    }
+
+
+    @Test
+    public void readsStopAtTheEndOfTheSlice() throws Exception {
+        RandomAccessBytes slice = slice();
+        byte[] buf = new byte[16];
+
+        assertEquals(0, slice.readInto(7, 4, buf));
+        assertEquals(0, slice.bufferAt(7, 4).remaining());
+        // Not into the source's bytes after the slice.
+        assertEquals(3, slice.readInto(4, 10, buf));
+        assertEquals("nas", new String(buf, 0, 3, StandardCharsets.UTF_8));
+        assertEquals(3, slice.bufferAt(4, 10).remaining());
+
+        RandomAccessBytes empty = slice.slice(7, 7);
+        assertEquals(0, empty.readInto(0, 4, buf));
+        assertEquals(0, empty.bufferAt(0, 4).remaining());
+    }
+
+
+    @Test
+    public void readsOutsideTheSliceThrow() throws Exception {
+        RandomAccessBytes slice = slice();
+        byte[] buf = new byte[16];
+
+        try {
+            slice.readInto(8, 1, buf);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            slice.bufferAt(-1, 1);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            RandomAccessBytes.readFully(slice, 4, 4, buf, 0);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
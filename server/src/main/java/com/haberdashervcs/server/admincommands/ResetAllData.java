@@ -25,7 +25,9 @@ final class ResetAllData {
         Connection conn = ConnectionFactory.createConnection(conf);
 
         HdLargeFileStore largeFileStore = HdfsLargeFileStore.forConfiguration(conf);
-        HBaseDatastore datastore = HBaseDatastore.forConnection(conn, largeFileStore);
+        HBaseDatastore datastore = HBaseDatastore.builder(conn, largeFileStore)
+                .withSettingsFrom(System.getProperties())
+                .build();
         datastore.resetAllData();
 
         conn.close();
@@ -28,9 +28,7 @@ public final class ContentsForDisplay {
     public String getDisplay() {
         int len = Math.min(DISPLAY_BYTES, contents.length());
         byte[] buf = new byte[len];
-        for (int i = 0; i < len; ++i) {
-            buf[i] = contents.at(i);
-        }
+        RandomAccessBytes.readFully(contents, 0, len, buf, 0);
 
         TextOrBinaryChecker.TextOrBinaryResult binaryCheck = TextOrBinaryChecker.check(
                 ByteArrayRandomAccessBytes.of(buf));
@@ -2,10 +2,18 @@ package com.haberdashervcs.server.browser;
 
 import java.io.IOException;
 
+import com.haberdashervcs.common.diff.git.RabTextSequence;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 
 
 public interface FileBrowser {
 
     RandomAccessBytes getWholeContents() throws IOException;
+
+    /**
+     * The contents as lines of text. Browsers may reuse the line index from an earlier call for the same file.
+     */
+    default RabTextSequence getWholeText() throws IOException {
+        return new RabTextSequence(getWholeContents());
+    }
 }
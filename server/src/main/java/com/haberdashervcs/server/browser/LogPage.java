@@ -0,0 +1,37 @@
+package com.haberdashervcs.server.browser;
+
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.objects.CommitEntry;
+
+
+/**
+ * One page of a log, newest commit first. The next page is read at the next commit id, if there is one.
+ */
+public final class LogPage {
+
+    public static LogPage of(List<CommitEntry> entries, Optional<Long> nextCommitId) {
+        return new LogPage(entries, nextCommitId);
+    }
+
+
+    private final List<CommitEntry> entries;
+    private final Optional<Long> nextCommitId;
+
+    private LogPage(List<CommitEntry> entries, Optional<Long> nextCommitId) {
+        this.entries = ImmutableList.copyOf(entries);
+        this.nextCommitId = Preconditions.checkNotNull(nextCommitId);
+    }
+
+
+    public List<CommitEntry> getEntries() {
+        return entries;
+    }
+
+    public Optional<Long> getNextCommitId() {
+        return nextCommitId;
+    }
+}
@@ -6,7 +6,6 @@ import java.util.List;
 import java.util.Optional;
 
 import com.haberdashervcs.common.objects.BranchEntry;
-import com.haberdashervcs.common.objects.CommitEntry;
 import com.haberdashervcs.common.objects.FileEntry;
 import com.haberdashervcs.common.objects.FolderListing;
 import com.haberdashervcs.common.protobuf.ReviewsProto;
@@ -60,7 +59,7 @@ public interface RepoBrowser {
 
 
     /////// Log
-    List<CommitEntry> getLog(String branchName, String path, long atCommitId);
+    LogPage getLog(String branchName, String path, long atCommitId) throws IOException;
 
 
     /////// Files
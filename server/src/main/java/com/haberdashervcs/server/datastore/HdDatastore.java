@@ -24,12 +24,17 @@ public interface HdDatastore {
             throws Exception;
 
 
+    /**
+     * @param syncedFromCommitId The commit on the same branch the client is currently synced to, if any. Subtrees
+     *     unchanged since then can be skipped.
+     */
     ServerCheckoutSpec computeCheckout(
             String org,
             String repo,
             String branchName,
             long commitId,
-            CheckoutPathSet paths)
+            CheckoutPathSet paths,
+            Optional<Long> syncedFromCommitId)
             throws Exception;
 
 
@@ -0,0 +1,106 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.TableDescriptor;
+
+
+/**
+ * Table management for the embedded store. Admin has a few hundred methods for cluster operations that mean nothing
+ * here, so this is a proxy that handles the table calls and throws on anything else.
+ *
+ * Column families aren't declared in the store, so creating a table ignores them.
+ */
+final class EmbeddedAdmin implements InvocationHandler {
+
+    static Admin of(Connection conn, RowStore store) {
+        return (Admin) Proxy.newProxyInstance(
+                Admin.class.getClassLoader(), new Class<?>[] { Admin.class }, new EmbeddedAdmin(conn, store));
+    }
+
+
+    private final Connection conn;
+    private final RowStore store;
+
+    private EmbeddedAdmin(Connection conn, RowStore store) {
+        this.conn = conn;
+        this.store = store;
+    }
+
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "tableExists":
+            case "isTableEnabled":
+                return store.tableExists(tableArg(args));
+
+            case "isTableDisabled":
+                return false;
+
+            case "disableTable":
+            case "enableTable":
+                return null;
+
+            case "deleteTable":
+                store.deleteTable(tableArg(args));
+                return null;
+
+            case "createTable":
+                if (args.length != 1 || !(args[0] instanceof TableDescriptor)) {
+                    break;
+                }
+                store.createTable(((TableDescriptor) args[0]).getTableName().getNameAsString());
+                return null;
+
+            case "listTableNames":
+                if (args != null && args.length > 0) {
+                    break;
+                }
+                List<String> names = store.listTables();
+                TableName[] out = new TableName[names.size()];
+                for (int i = 0; i < names.size(); ++i) {
+                    out[i] = TableName.valueOf(names.get(i));
+                }
+                return out;
+
+            case "getConnection":
+                return conn;
+
+            case "getConfiguration":
+                return conn.getConfiguration();
+
+            case "close":
+            case "abort":
+                return null;
+
+            case "isAborted":
+                return false;
+
+            case "hashCode":
+                return System.identityHashCode(proxy);
+
+            case "equals":
+                return proxy == args[0];
+
+            case "toString":
+                return "EmbeddedAdmin";
+        }
+
+        throw new UnsupportedOperationException("The embedded store doesn't support Admin." + method.getName());
+    }
+
+
+    private static String tableArg(Object[] args) {
+        if (args == null || args.length != 1 || !(args[0] instanceof TableName)) {
+            throw new UnsupportedOperationException("Expected a single TableName argument");
+        }
+        return ((TableName) args[0]).getNameAsString();
+    }
+}
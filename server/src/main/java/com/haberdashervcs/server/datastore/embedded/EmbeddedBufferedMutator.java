@@ -0,0 +1,91 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+
+
+/**
+ * Buffers puts and writes each buffer in one transaction. Other mutations aren't supported.
+ */
+final class EmbeddedBufferedMutator implements BufferedMutator {
+
+    private final EmbeddedTable table;
+    private final long writeBufferBytes;
+
+    // Guarded by this.
+    private final List<Put> buffered = new ArrayList<>();
+    private long bufferedBytes = 0;
+
+    EmbeddedBufferedMutator(EmbeddedTable table, long writeBufferBytes) {
+        this.table = table;
+        this.writeBufferBytes = writeBufferBytes;
+    }
+
+
+    @Override
+    public TableName getName() {
+        return table.getName();
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return table.getConfiguration();
+    }
+
+
+    @Override
+    public synchronized void mutate(Mutation mutation) throws IOException {
+        if (!(mutation instanceof Put)) {
+            throw new UnsupportedOperationException("The embedded store only buffers puts");
+        }
+        buffered.add((Put) mutation);
+        bufferedBytes += mutation.heapSize();
+        if (bufferedBytes >= writeBufferBytes) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void mutate(List<? extends Mutation> mutations) throws IOException {
+        for (Mutation mutation : mutations) {
+            mutate(mutation);
+        }
+    }
+
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffered.isEmpty()) {
+            return;
+        }
+        table.put(buffered);
+        buffered.clear();
+        bufferedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+
+    @Override
+    public long getWriteBufferSize() {
+        return writeBufferBytes;
+    }
+
+    @Override
+    public void setRpcTimeout(int timeout) {
+    }
+
+    @Override
+    public void setOperationTimeout(int timeout) {
+    }
+}
@@ -0,0 +1,147 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableBuilder;
+
+
+/**
+ * An HBase Connection to tables in a local sqlite file, so that the HBase datastore, user store and authenticator can
+ * run on a single node with no cluster. It covers the parts of the client API the datastore uses: gets, puts, scans
+ * with filters, buffered mutators, increments, checkAndMutate, and creating and deleting tables.
+ */
+public final class EmbeddedConnection implements Connection {
+
+    private static final HdLogger LOG = HdLoggers.create(EmbeddedConnection.class);
+
+    private static final long DEFAULT_WRITE_BUFFER_BYTES = 2 * 1024 * 1024;
+
+
+    public static EmbeddedConnection open(Path dbFile) throws IOException {
+        return new EmbeddedConnection(RowStore.open(dbFile));
+    }
+
+
+    private final RowStore store;
+    private final Configuration conf;
+    private volatile boolean aborted = false;
+
+    private EmbeddedConnection(RowStore store) {
+        this.store = store;
+        this.conf = new Configuration(false);
+    }
+
+
+    @Override
+    public Configuration getConfiguration() {
+        return conf;
+    }
+
+
+    @Override
+    public Table getTable(TableName tableName) throws IOException {
+        return new EmbeddedTable(store, tableName, conf);
+    }
+
+    @Override
+    public TableBuilder getTableBuilder(TableName tableName, ExecutorService pool) {
+        // Timeouts don't apply to local calls.
+        return new TableBuilder() {
+            @Override
+            public TableBuilder setOperationTimeout(int timeout) {
+                return this;
+            }
+
+            @Override
+            public TableBuilder setRpcTimeout(int timeout) {
+                return this;
+            }
+
+            @Override
+            public TableBuilder setReadRpcTimeout(int timeout) {
+                return this;
+            }
+
+            @Override
+            public TableBuilder setWriteRpcTimeout(int timeout) {
+                return this;
+            }
+
+            @Override
+            public Table build() {
+                return new EmbeddedTable(store, tableName, conf);
+            }
+        };
+    }
+
+
+    @Override
+    public BufferedMutator getBufferedMutator(TableName tableName) throws IOException {
+        return getBufferedMutator(new BufferedMutatorParams(tableName));
+    }
+
+    @Override
+    public BufferedMutator getBufferedMutator(BufferedMutatorParams params) throws IOException {
+        long writeBufferBytes = params.getWriteBufferSize();
+        if (writeBufferBytes <= 0) {
+            writeBufferBytes = DEFAULT_WRITE_BUFFER_BYTES;
+        }
+        return new EmbeddedBufferedMutator(
+                new EmbeddedTable(store, params.getTableName(), conf), writeBufferBytes);
+    }
+
+
+    @Override
+    public RegionLocator getRegionLocator(TableName tableName) throws IOException {
+        throw new UnsupportedOperationException("The embedded store has no regions");
+    }
+
+    @Override
+    public void clearRegionLocationCache() {
+    }
+
+
+    @Override
+    public Admin getAdmin() throws IOException {
+        return EmbeddedAdmin.of(this, store);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return store.isClosed();
+    }
+
+    @Override
+    public void abort(String why, Throwable e) {
+        LOG.exception(e, "Aborting the embedded connection: %s", why);
+        aborted = true;
+        try {
+            close();
+        } catch (IOException ioEx) {
+            LOG.exception(ioEx, "Failed to close the embedded store");
+        }
+    }
+
+    @Override
+    public boolean isAborted() {
+        return aborted;
+    }
+}
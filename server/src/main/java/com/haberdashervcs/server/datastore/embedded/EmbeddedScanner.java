@@ -0,0 +1,171 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.metrics.ScanMetrics;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+
+/**
+ * Reads a scan's rows a batch at a time. Like an HBase scan, it isn't a consistent snapshot: rows written after the
+ * scan starts may or may not show up.
+ */
+final class EmbeddedScanner implements ResultScanner {
+
+    private static final int ROWS_PER_BATCH = 256;
+
+
+    private final EmbeddedTable table;
+    private final Scan scan;
+    private final Filter filter;
+    // The rows left to read, in scan order. A scan with a MultiRowRangeFilter reads only its ranges, the way HBase
+    // seeks from one to the next, instead of reading every row and filtering most of them out.
+    private final Deque<RowStore.RowRange> remaining = new ArrayDeque<>();
+    private final Deque<Result> buffered = new ArrayDeque<>();
+    private int rowsReturned = 0;
+    private boolean exhausted = false;
+
+    EmbeddedScanner(EmbeddedTable table, Scan scan) throws IOException {
+        this.table = table;
+        this.scan = scan;
+        this.filter = scan.getFilter();
+        if (filter != null) {
+            filter.setReversed(scan.isReversed());
+        }
+
+        byte[] startRow = emptyToNull(scan.getStartRow());
+        byte[] stopRow = emptyToNull(scan.getStopRow());
+        RowStore.RowRange scanRange;
+        if (scan.isReversed()) {
+            // The start row is the high end.
+            scanRange = new RowStore.RowRange(stopRow, scan.includeStopRow(), startRow, scan.includeStartRow());
+        } else {
+            scanRange = new RowStore.RowRange(startRow, scan.includeStartRow(), stopRow, scan.includeStopRow());
+        }
+
+        if (filter instanceof MultiRowRangeFilter) {
+            // These come sorted and merged.
+            for (MultiRowRangeFilter.RowRange filterRange : ((MultiRowRangeFilter) filter).getRowRanges()) {
+                RowStore.RowRange range = scanRange.intersect(new RowStore.RowRange(
+                        emptyToNull(filterRange.getStartRow()), filterRange.isStartRowInclusive(),
+                        emptyToNull(filterRange.getStopRow()), filterRange.isStopRowInclusive()));
+                if (scan.isReversed()) {
+                    remaining.addFirst(range);
+                } else {
+                    remaining.addLast(range);
+                }
+            }
+        } else {
+            remaining.add(scanRange);
+        }
+        exhausted = remaining.isEmpty();
+    }
+
+
+    @Override
+    public Result next() throws IOException {
+        while (buffered.isEmpty() && !exhausted) {
+            readBatch();
+        }
+        if (buffered.isEmpty()) {
+            return null;
+        }
+        ++rowsReturned;
+        if (scan.getLimit() > 0 && rowsReturned >= scan.getLimit()) {
+            exhausted = true;
+        }
+        return buffered.removeFirst();
+    }
+
+
+    private void readBatch() throws IOException {
+        final boolean reversed = scan.isReversed();
+        RowStore.RowRange range = remaining.removeFirst();
+        List<byte[]> rowKeys = table.getStore().getRowKeys(table.tableName(), range, reversed, ROWS_PER_BATCH);
+        if (rowKeys.isEmpty()) {
+            exhausted = remaining.isEmpty();
+            return;
+        }
+
+        byte[] lastRowInBatch = rowKeys.get(rowKeys.size() - 1);
+        // A short batch is the end of this range.
+        if (rowKeys.size() == ROWS_PER_BATCH) {
+            remaining.addFirst(reversed ? range.withHighBefore(lastRowInBatch) : range.withLowAfter(lastRowInBatch));
+        }
+        exhausted = remaining.isEmpty();
+
+        byte[] lowRow = reversed ? lastRowInBatch : rowKeys.get(0);
+        byte[] highRow = reversed ? rowKeys.get(0) : lastRowInBatch;
+        List<List<Cell>> rows = groupByRow(table.getStore().getCellsBetween(table.tableName(), lowRow, highRow));
+        if (reversed) {
+            Collections.reverse(rows);
+        }
+
+        final int limit = scan.getLimit();
+        for (List<Cell> rowCells : rows) {
+            if (filter != null && filter.filterAllRemaining()) {
+                exhausted = true;
+                return;
+            }
+            List<Cell> cells = EmbeddedTable.selectColumns(scan.getFamilyMap(), rowCells);
+            if (filter != null) {
+                cells = EmbeddedTable.applyFilter(filter, cells);
+            }
+            if (!cells.isEmpty()) {
+                buffered.addLast(Result.create(cells));
+                if (limit > 0 && rowsReturned + buffered.size() >= limit) {
+                    exhausted = true;
+                    return;
+                }
+            }
+        }
+    }
+
+
+    private static List<List<Cell>> groupByRow(List<Cell> sortedCells) {
+        List<List<Cell>> out = new ArrayList<>();
+        List<Cell> current = null;
+        for (Cell cell : sortedCells) {
+            if (current == null || !CellUtil.matchingRows(current.get(0), cell)) {
+                current = new ArrayList<>();
+                out.add(current);
+            }
+            current.add(cell);
+        }
+        return out;
+    }
+
+
+    private static byte[] emptyToNull(byte[] row) {
+        return (row == null || Bytes.equals(row, new byte[0])) ? null : row;
+    }
+
+
+    @Override
+    public void close() {
+        exhausted = true;
+        buffered.clear();
+    }
+
+    @Override
+    public boolean renewLease() {
+        return true;
+    }
+
+    @Override
+    public ScanMetrics getScanMetrics() {
+        return null;
+    }
+}
@@ -0,0 +1,299 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellComparator;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.CheckAndMutate;
+import org.apache.hadoop.hbase.client.CheckAndMutateResult;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableDescriptor;
+import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+
+/**
+ * The subset of the HBase Table API that the datastore uses, over a RowStore. Gets, puts, whole-row deletes and scans
+ * (including reversed scans, limits and filters) follow HBase's semantics. Increments and checkAndMutate are atomic,
+ * like they are on a region server.
+ */
+final class EmbeddedTable implements Table {
+
+    private final RowStore store;
+    private final TableName name;
+    private final Configuration conf;
+
+    EmbeddedTable(RowStore store, TableName name, Configuration conf) {
+        this.store = store;
+        this.name = name;
+        this.conf = conf;
+    }
+
+
+    @Override
+    public TableName getName() {
+        return name;
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return conf;
+    }
+
+    @Override
+    public TableDescriptor getDescriptor() throws IOException {
+        return TableDescriptorBuilder.newBuilder(name).build();
+    }
+
+    @Override
+    public RegionLocator getRegionLocator() throws IOException {
+        throw new UnsupportedOperationException("The embedded store has no regions");
+    }
+
+
+    @Override
+    public Result get(Get get) throws IOException {
+        List<Cell> cells = selectColumns(get.getFamilyMap(), store.getRow(tableName(), get.getRow()));
+        if (get.getFilter() != null) {
+            cells = applyFilter(get.getFilter(), cells);
+        }
+        return Result.create(cells);
+    }
+
+    @Override
+    public Result[] get(List<Get> gets) throws IOException {
+        Result[] out = new Result[gets.size()];
+        for (int i = 0; i < gets.size(); ++i) {
+            out[i] = get(gets.get(i));
+        }
+        return out;
+    }
+
+    @Override
+    public boolean exists(Get get) throws IOException {
+        return !get(get).isEmpty();
+    }
+
+    @Override
+    public boolean[] exists(List<Get> gets) throws IOException {
+        boolean[] out = new boolean[gets.size()];
+        for (int i = 0; i < gets.size(); ++i) {
+            out[i] = exists(gets.get(i));
+        }
+        return out;
+    }
+
+
+    @Override
+    public void put(Put put) throws IOException {
+        store.putCells(tableName(), cellsOf(put));
+    }
+
+    @Override
+    public void put(List<Put> puts) throws IOException {
+        List<Cell> cells = new ArrayList<>();
+        for (Put put : puts) {
+            cells.addAll(cellsOf(put));
+        }
+        store.putCells(tableName(), cells);
+    }
+
+
+    @Override
+    public void delete(Delete delete) throws IOException {
+        delete(new ArrayList<>(List.of(delete)));
+    }
+
+    // Only whole rows can be deleted. Like HBase, this empties the list when every delete succeeds.
+    @Override
+    public void delete(List<Delete> deletes) throws IOException {
+        List<byte[]> rows = new ArrayList<>(deletes.size());
+        for (Delete delete : deletes) {
+            if (!delete.getFamilyCellMap().isEmpty()) {
+                throw new UnsupportedOperationException("The embedded store only deletes whole rows");
+            }
+            rows.add(delete.getRow());
+        }
+        store.deleteRows(tableName(), rows);
+        deletes.clear();
+    }
+
+
+    @Override
+    public ResultScanner getScanner(Scan scan) throws IOException {
+        return new EmbeddedScanner(this, scan);
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family) throws IOException {
+        return getScanner(new Scan().addFamily(family));
+    }
+
+    @Override
+    public ResultScanner getScanner(byte[] family, byte[] qualifier) throws IOException {
+        return getScanner(new Scan().addColumn(family, qualifier));
+    }
+
+
+    @Override
+    public Result increment(Increment increment) throws IOException {
+        synchronized (store) {
+            List<Cell> updated = new ArrayList<>();
+            for (List<Cell> familyCells : increment.getFamilyCellMap().values()) {
+                for (Cell cell : familyCells) {
+                    byte[] family = CellUtil.cloneFamily(cell);
+                    byte[] qualifier = CellUtil.cloneQualifier(cell);
+                    Optional<byte[]> current = store.getValue(tableName(), increment.getRow(), family, qualifier);
+                    long currentValue = 0;
+                    if (current.isPresent()) {
+                        if (current.get().length != Bytes.SIZEOF_LONG) {
+                            throw new IOException("Attempted to increment a field that isn't 64 bits wide");
+                        }
+                        currentValue = Bytes.toLong(current.get());
+                    }
+                    long newValue = currentValue + Bytes.toLong(CellUtil.cloneValue(cell));
+                    updated.add(new KeyValue(
+                            increment.getRow(), family, qualifier, System.currentTimeMillis(), KeyValue.Type.Put,
+                            Bytes.toBytes(newValue)));
+                }
+            }
+            store.putCells(tableName(), updated);
+            updated.sort(CellComparator.getInstance());
+            return Result.create(updated);
+        }
+    }
+
+
+    @Override
+    public CheckAndMutateResult checkAndMutate(CheckAndMutate checkAndMutate) throws IOException {
+        if (checkAndMutate.hasFilter()) {
+            throw new UnsupportedOperationException("The embedded store doesn't support checkAndMutate filters");
+        } else if (!(checkAndMutate.getAction() instanceof Put)) {
+            throw new UnsupportedOperationException("The embedded store only supports checkAndMutate with a Put");
+        }
+
+        synchronized (store) {
+            Optional<byte[]> current = store.getValue(
+                    tableName(), checkAndMutate.getRow(), checkAndMutate.getFamily(), checkAndMutate.getQualifier());
+            final boolean matches;
+            switch (checkAndMutate.getCompareOp()) {
+                case EQUAL:
+                    // A null value is ifNotExists().
+                    matches = (checkAndMutate.getValue() == null)
+                            ? current.isEmpty()
+                            : current.isPresent() && Arrays.equals(current.get(), checkAndMutate.getValue());
+                    break;
+                default:
+                    throw new UnsupportedOperationException(
+                            "The embedded store doesn't support comparing with " + checkAndMutate.getCompareOp());
+            }
+
+            if (matches) {
+                put((Put) checkAndMutate.getAction());
+            }
+            return new CheckAndMutateResult(matches, null);
+        }
+    }
+
+
+    @Override
+    public void close() {
+    }
+
+
+    String tableName() {
+        return name.getNameAsString();
+    }
+
+    RowStore getStore() {
+        return store;
+    }
+
+
+    private static List<Cell> cellsOf(Put put) {
+        List<Cell> out = new ArrayList<>();
+        for (List<Cell> familyCells : put.getFamilyCellMap().values()) {
+            out.addAll(familyCells);
+        }
+        return out;
+    }
+
+
+    // Keeps only the requested columns. An empty map means every column, and a null qualifier set means the whole
+    // family.
+    static List<Cell> selectColumns(Map<byte[], NavigableSet<byte[]>> familyMap, List<Cell> rowCells) {
+        if (familyMap.isEmpty()) {
+            return rowCells;
+        }
+        List<Cell> out = new ArrayList<>();
+        for (Cell cell : rowCells) {
+            byte[] family = CellUtil.cloneFamily(cell);
+            if (!familyMap.containsKey(family)) {
+                continue;
+            }
+            @Nullable NavigableSet<byte[]> qualifiers = familyMap.get(family);
+            if (qualifiers == null || qualifiers.isEmpty() || qualifiers.contains(CellUtil.cloneQualifier(cell))) {
+                out.add(cell);
+            }
+        }
+        return out;
+    }
+
+
+    // Runs one row through a filter the way a region server does. Returns no cells if the row is filtered out.
+    static List<Cell> applyFilter(Filter filter, List<Cell> rowCells) throws IOException {
+        if (rowCells.isEmpty()) {
+            return rowCells;
+        }
+
+        filter.reset();
+        if (filter.filterRowKey(rowCells.get(0))) {
+            return new ArrayList<>();
+        }
+
+        List<Cell> kept = new ArrayList<>();
+        cellLoop:
+        for (Cell cell : rowCells) {
+            switch (filter.filterCell(cell)) {
+                case INCLUDE:
+                case INCLUDE_AND_NEXT_COL:
+                    kept.add(filter.transformCell(cell));
+                    break;
+                case INCLUDE_AND_SEEK_NEXT_ROW:
+                    kept.add(filter.transformCell(cell));
+                    break cellLoop;
+                case NEXT_ROW:
+                    break cellLoop;
+                default:
+                    // SKIP, NEXT_COL, and seeks, which only skip ahead in this row since there's one version per cell.
+                    break;
+            }
+        }
+
+        filter.filterRowCells(kept);
+        if (filter.hasFilterRow() && filter.filterRow()) {
+            return new ArrayList<>();
+        }
+        return kept;
+    }
+}
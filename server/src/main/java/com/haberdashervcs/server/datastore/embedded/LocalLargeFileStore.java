@@ -0,0 +1,138 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.rab.BlockCachedRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.server.datastore.HdLargeFileStore;
+
+
+/**
+ * Stores large files on local disk, under root/org/repo/. File ids are content hashes, so a file that's already
+ * there is never rewritten.
+ */
+public final class LocalLargeFileStore implements HdLargeFileStore {
+
+    private static final HdLogger LOG = HdLoggers.create(LocalLargeFileStore.class);
+
+    // Closes the channels behind random access files, which have no close() of their own.
+    private static final Cleaner CHANNEL_CLEANER = Cleaner.create();
+
+
+    public static LocalLargeFileStore atRoot(Path root) {
+        return new LocalLargeFileStore(root);
+    }
+
+
+    private final Path root;
+
+    private LocalLargeFileStore(Path root) {
+        this.root = root.toAbsolutePath();
+    }
+
+
+    @Override
+    public void start() throws Exception {
+        Files.createDirectories(root);
+    }
+
+
+    @Override
+    public FileWithSize getFileById(String org, String repo, String fileId) throws IOException {
+        Path path = pathForFile(org, repo, fileId);
+        return new FileWithSize(Files.newInputStream(path), Files.size(path));
+    }
+
+
+    @Override
+    public RandomAccessBytes getFileRab(String org, String repo, String fileId) throws IOException {
+        Path path = pathForFile(org, repo, fileId);
+        long size = Files.size(path);
+        if (size > HdConstants.MAX_FILE_SIZE_BYTES) {
+            throw new IOException(String.format("Large file %s is over the maximum size: %d bytes", fileId, size));
+        }
+        // Every block is read from one channel, with positioned reads that don't move its position. RandomAccessBytes
+        // has no close(), so the channel is closed once the RandomAccessBytes is garbage collected.
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        RandomAccessBytes rab = BlockCachedRandomAccessBytes.of(
+                (position, dest, offset, length) -> readFully(channel, position, dest, offset, length),
+                (int) size);
+        CHANNEL_CLEANER.register(rab, () -> closeQuietly(channel, fileId));
+        return rab;
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] dest, int offset, int length)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dest, offset, length);
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + (buf.position() - offset));
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel, String fileId) {
+        try {
+            channel.close();
+        } catch (IOException ioEx) {
+            LOG.exception(ioEx, "Failed to close large file %s", fileId);
+        }
+    }
+
+
+    @Override
+    public long saveFile(String org, String repo, String fileId, InputStream contents) throws IOException {
+        Path path = pathForFile(org, repo, fileId);
+        if (Files.exists(path)) {
+            LOG.warn("File already exists: %s / %s / %s", org, repo, fileId);
+            return Files.size(path);
+        }
+
+        Files.createDirectories(path.getParent());
+        // Write to a temp file and move it into place, so readers never see a partial file.
+        Path tempPath = Files.createTempFile(path.getParent(), fileId, ".tmp");
+        try {
+            long bytesWritten;
+            try (OutputStream out = Files.newOutputStream(tempPath)) {
+                // One byte over the maximum is enough to know it's too big.
+                bytesWritten = ByteStreams.limit(contents, HdConstants.MAX_FILE_SIZE_BYTES + 1L).transferTo(out);
+            }
+            if (bytesWritten > HdConstants.MAX_FILE_SIZE_BYTES) {
+                throw new IOException(String.format(
+                        "Large file %s is over the maximum size of %s", fileId, HdConstants.MAX_FILE_SIZE_FOR_DISPLAY));
+            }
+            // If another push saved the same file first, this replaces it with identical contents.
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Saved large file %s / %s / %s, size %d", org, repo, fileId, bytesWritten);
+            return bytesWritten;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+
+    private Path pathForFile(String org, String repo, String fileId) {
+        for (String part : new String[] { org, repo, fileId }) {
+            Preconditions.checkArgument(
+                    !part.isEmpty() && !part.contains("/") && !part.contains("\\") && !part.equals("..")
+                            && !part.equals("."),
+                    "Invalid path part for a large file: %s", part);
+        }
+        return root.resolve(org).resolve(repo).resolve(fileId);
+    }
+}
@@ -0,0 +1,464 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableExistsException;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.util.Bytes;
+
+
+/**
+ * Stores HBase-style cells in a local sqlite file, one sqlite table per HBase table, ordered by (row, family,
+ * qualifier). Blobs in sqlite compare like memcmp(), so rows sort the same way they do in HBase.
+ *
+ * Only the latest version of each cell is kept. Writes go through one connection and are synchronized on this store,
+ * so callers that need a read-modify-write to be atomic (like checkAndMutate) can synchronize on it too. Reads take
+ * a connection from a small pool and run alongside each other and alongside writes, which WAL mode allows. Each read
+ * is its own transaction, so it sees every write that finished before it started.
+ */
+final class RowStore implements AutoCloseable {
+
+    private static final HdLogger LOG = HdLoggers.create(RowStore.class);
+
+    // Reads go through the OS page cache instead of sqlite's own buffers.
+    private static final long MMAP_SIZE_BYTES = 1024L * 1024 * 1024;
+
+    private static final int READ_CONNECTIONS = 4;
+    private static final long READER_WAIT_MILLIS = 100;
+
+
+    static RowStore open(Path dbFile) throws IOException {
+        List<Connection> opened = new ArrayList<>();
+        try {
+            String url = "jdbc:sqlite:" + dbFile.toAbsolutePath();
+            Connection conn = DriverManager.getConnection(url);
+            opened.add(conn);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                stmt.execute("PRAGMA mmap_size = " + MMAP_SIZE_BYTES);
+            }
+
+            BlockingQueue<Connection> readers = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+            for (int i = 0; i < READ_CONNECTIONS; ++i) {
+                Connection reader = DriverManager.getConnection(url);
+                opened.add(reader);
+                try (Statement stmt = reader.createStatement()) {
+                    stmt.execute("PRAGMA query_only = 1");
+                    stmt.execute("PRAGMA mmap_size = " + MMAP_SIZE_BYTES);
+                }
+                readers.add(reader);
+            }
+
+            RowStore store = new RowStore(conn, readers);
+            store.loadTableNames();
+            LOG.info("Opened embedded row store at %s with %d tables", dbFile, store.tables.size());
+            return store;
+        } catch (SQLException sqlEx) {
+            for (Connection conn : opened) {
+                closeQuietly(conn);
+            }
+            throw new IOException(sqlEx);
+        }
+    }
+
+
+    /**
+     * A range of row keys. A null bound is unbounded.
+     */
+    static final class RowRange {
+        private final @Nullable byte[] low;
+        private final boolean lowInclusive;
+        private final @Nullable byte[] high;
+        private final boolean highInclusive;
+
+        RowRange(@Nullable byte[] low, boolean lowInclusive, @Nullable byte[] high, boolean highInclusive) {
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+        }
+
+        RowRange withLowAfter(byte[] row) {
+            return new RowRange(row, false, high, highInclusive);
+        }
+
+        RowRange withHighBefore(byte[] row) {
+            return new RowRange(low, lowInclusive, row, false);
+        }
+
+        /**
+         * The rows in both ranges. The result may be empty.
+         */
+        RowRange intersect(RowRange other) {
+            byte[] newLow = low;
+            boolean newLowInclusive = lowInclusive;
+            if (other.low != null) {
+                int cmp = (low == null) ? -1 : Bytes.compareTo(low, other.low);
+                if (cmp < 0) {
+                    newLow = other.low;
+                    newLowInclusive = other.lowInclusive;
+                } else if (cmp == 0) {
+                    newLowInclusive = lowInclusive && other.lowInclusive;
+                }
+            }
+
+            byte[] newHigh = high;
+            boolean newHighInclusive = highInclusive;
+            if (other.high != null) {
+                int cmp = (high == null) ? 1 : Bytes.compareTo(high, other.high);
+                if (cmp > 0) {
+                    newHigh = other.high;
+                    newHighInclusive = other.highInclusive;
+                } else if (cmp == 0) {
+                    newHighInclusive = highInclusive && other.highInclusive;
+                }
+            }
+
+            return new RowRange(newLow, newLowInclusive, newHigh, newHighInclusive);
+        }
+    }
+
+
+    private interface SqlRead<T> {
+        T read(Connection reader) throws SQLException;
+    }
+
+
+    // For writes, and for changes to the table list.
+    private final Connection conn;
+    private final BlockingQueue<Connection> readers;
+    private final Set<String> tables = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    private RowStore(Connection conn, BlockingQueue<Connection> readers) {
+        this.conn = conn;
+        this.readers = readers;
+    }
+
+
+    private void loadTableNames() throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'")) {
+            while (rs.next()) {
+                String sqlName = rs.getString(1);
+                if (sqlName.startsWith("hb_")) {
+                    tables.add(sqlName.substring(3));
+                }
+            }
+        }
+    }
+
+
+    boolean tableExists(String table) {
+        return tables.contains(table);
+    }
+
+    List<String> listTables() {
+        return new ArrayList<>(tables);
+    }
+
+
+    synchronized void createTable(String table) throws IOException {
+        if (tables.contains(table)) {
+            throw new TableExistsException(table);
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(String.format(
+                    "CREATE TABLE %s ("
+                            + "row BLOB NOT NULL, family BLOB NOT NULL, qualifier BLOB NOT NULL, "
+                            + "ts INTEGER NOT NULL, value BLOB NOT NULL, "
+                            + "PRIMARY KEY (row, family, qualifier)) WITHOUT ROWID",
+                    sqlName(table)));
+            tables.add(table);
+        } catch (SQLException sqlEx) {
+            throw sqlFailure(sqlEx);
+        }
+    }
+
+
+    synchronized void deleteTable(String table) throws IOException {
+        checkTable(table);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE " + sqlName(table));
+            tables.remove(table);
+        } catch (SQLException sqlEx) {
+            throw sqlFailure(sqlEx);
+        }
+    }
+
+
+    /**
+     * Returns all the cells in a row, sorted.
+     */
+    List<Cell> getRow(String table, byte[] row) throws IOException {
+        String sql = String.format(
+                "SELECT row, family, qualifier, ts, value FROM %s WHERE row = ? ORDER BY family, qualifier",
+                sqlName(table));
+        return read(table, reader -> {
+            try (PreparedStatement stmt = reader.prepareStatement(sql)) {
+                stmt.setBytes(1, row);
+                return readCells(stmt);
+            }
+        });
+    }
+
+
+    Optional<byte[]> getValue(String table, byte[] row, byte[] family, byte[] qualifier) throws IOException {
+        String sql = String.format(
+                "SELECT value FROM %s WHERE row = ? AND family = ? AND qualifier = ?", sqlName(table));
+        return read(table, reader -> {
+            try (PreparedStatement stmt = reader.prepareStatement(sql)) {
+                stmt.setBytes(1, row);
+                stmt.setBytes(2, family);
+                stmt.setBytes(3, qualifier);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns up to maxRows row keys in the range, in ascending order, or descending if reversed.
+     */
+    List<byte[]> getRowKeys(String table, RowRange range, boolean reversed, int maxRows) throws IOException {
+        Preconditions.checkArgument(maxRows > 0);
+        List<byte[]> params = new ArrayList<>();
+        String sql = String.format(
+                "SELECT DISTINCT row FROM %s WHERE %s ORDER BY row %s LIMIT %d",
+                sqlName(table), whereClause(range, params), reversed ? "DESC" : "ASC", maxRows);
+        return read(table, reader -> {
+            try (PreparedStatement stmt = reader.prepareStatement(sql)) {
+                for (int i = 0; i < params.size(); ++i) {
+                    stmt.setBytes(i + 1, params.get(i));
+                }
+                List<byte[]> out = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(rs.getBytes(1));
+                    }
+                }
+                return out;
+            }
+        });
+    }
+
+
+    /**
+     * Returns the cells of every row from firstRow to lastRow, inclusive, sorted.
+     */
+    List<Cell> getCellsBetween(String table, byte[] firstRow, byte[] lastRow) throws IOException {
+        String sql = String.format(
+                "SELECT row, family, qualifier, ts, value FROM %s WHERE row >= ? AND row <= ? "
+                        + "ORDER BY row, family, qualifier",
+                sqlName(table));
+        return read(table, reader -> {
+            try (PreparedStatement stmt = reader.prepareStatement(sql)) {
+                stmt.setBytes(1, firstRow);
+                stmt.setBytes(2, lastRow);
+                return readCells(stmt);
+            }
+        });
+    }
+
+
+    /**
+     * Writes the cells in one transaction, replacing any that are already there.
+     */
+    synchronized void putCells(String table, List<Cell> cells) throws IOException {
+        checkTable(table);
+        String sql = String.format(
+                "INSERT OR REPLACE INTO %s (row, family, qualifier, ts, value) VALUES (?, ?, ?, ?, ?)",
+                sqlName(table));
+        final long nowMillis = System.currentTimeMillis();
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            for (Cell cell : cells) {
+                stmt.setBytes(1, CellUtil.cloneRow(cell));
+                stmt.setBytes(2, CellUtil.cloneFamily(cell));
+                stmt.setBytes(3, CellUtil.cloneQualifier(cell));
+                stmt.setLong(4, (cell.getTimestamp() == HConstants.LATEST_TIMESTAMP) ? nowMillis : cell.getTimestamp());
+                stmt.setBytes(5, CellUtil.cloneValue(cell));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException sqlEx) {
+            rollbackQuietly();
+            throw sqlFailure(sqlEx);
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+
+    /**
+     * Deletes every cell of the rows, in one transaction.
+     */
+    synchronized void deleteRows(String table, List<byte[]> rows) throws IOException {
+        checkTable(table);
+        String sql = String.format("DELETE FROM %s WHERE row = ?", sqlName(table));
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            for (byte[] row : rows) {
+                stmt.setBytes(1, row);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException sqlEx) {
+            rollbackQuietly();
+            throw sqlFailure(sqlEx);
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Readers that are in use are closed when they're returned.
+        Connection reader;
+        while ((reader = readers.poll()) != null) {
+            closeQuietly(reader);
+        }
+        try {
+            conn.close();
+        } catch (SQLException sqlEx) {
+            throw new IOException(sqlEx);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+
+    private <T> T read(String table, SqlRead<T> read) throws IOException {
+        checkTable(table);
+        Connection reader;
+        try {
+            // Polled, so that a close() while we're waiting doesn't leave us waiting forever.
+            while ((reader = readers.poll(READER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                Preconditions.checkState(!closed, "The row store is closed");
+            }
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a row store connection");
+        }
+
+        try {
+            return read.read(reader);
+        } catch (SQLException sqlEx) {
+            throw sqlFailure(sqlEx);
+        } finally {
+            readers.add(reader);
+            if (closed && readers.remove(reader)) {
+                closeQuietly(reader);
+            }
+        }
+    }
+
+
+    private static List<Cell> readCells(PreparedStatement stmt) throws SQLException {
+        List<Cell> out = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                out.add(new KeyValue(
+                        rs.getBytes(1), rs.getBytes(2), rs.getBytes(3), rs.getLong(4), KeyValue.Type.Put,
+                        rs.getBytes(5)));
+            }
+        }
+        return out;
+    }
+
+
+    private static String whereClause(RowRange range, List<byte[]> params) {
+        List<String> conditions = new ArrayList<>();
+        if (range.low != null) {
+            conditions.add(range.lowInclusive ? "row >= ?" : "row > ?");
+            params.add(range.low);
+        }
+        if (range.high != null) {
+            conditions.add(range.highInclusive ? "row <= ?" : "row < ?");
+            params.add(range.high);
+        }
+        return conditions.isEmpty() ? "1" : String.join(" AND ", conditions);
+    }
+
+
+    private void checkTable(String table) throws IOException {
+        Preconditions.checkState(!closed, "The row store is closed");
+        if (!tables.contains(table)) {
+            throw new TableNotFoundException(table);
+        }
+    }
+
+
+    private static String sqlName(String table) {
+        return "\"hb_" + table.replace("\"", "\"\"") + "\"";
+    }
+
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException sqlEx) {
+            LOG.exception(sqlEx, "Failed to close a row store connection");
+        }
+    }
+
+
+    private void rollbackQuietly() {
+        try {
+            conn.rollback();
+        } catch (SQLException sqlEx) {
+            LOG.exception(sqlEx, "Rollback failed");
+        }
+    }
+
+
+    // Reads run in autocommit mode, so they don't hold a read transaction open between calls.
+    private void restoreAutoCommit() {
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException sqlEx) {
+            LOG.exception(sqlEx, "Failed to restore autocommit");
+        }
+    }
+
+
+    private IOException sqlFailure(SQLException sqlEx) {
+        return new IOException("Embedded row store failure", sqlEx);
+    }
+}
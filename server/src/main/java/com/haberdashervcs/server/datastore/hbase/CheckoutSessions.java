@@ -0,0 +1,152 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.CheckoutPathSet;
+import com.haberdashervcs.common.objects.FolderListing;
+
+
+/**
+ * Holds the results of a checkout query's crawl, so that the following checkout call can stream them out instead of
+ * crawling all over again.
+ *
+ * A session is the output of one crawl with one set of MergeStates, so the folders sent to the client always match
+ * the file ids it was told about in the query.
+ */
+final class CheckoutSessions {
+
+    private static final HdLogger LOG = HdLoggers.create(CheckoutSessions.class);
+
+    // The client makes the checkout call right after the query, once it's checked its local db for file ids. So this
+    // only has to cover that, plus some slack.
+    private static final long DEFAULT_TTL_MINUTES = 10;
+
+    // Weighed in folders + file ids, to bound memory held by sessions that are never picked up.
+    private static final long DEFAULT_MAX_WEIGHT = 5_000_000;
+
+
+    static CheckoutSessions withDefaults() {
+        return withLimits(TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES), DEFAULT_MAX_WEIGHT, Ticker.systemTicker());
+    }
+
+
+    static CheckoutSessions withLimits(long ttlMillis, long maxWeight, Ticker ticker) {
+        Preconditions.checkArgument(ttlMillis > 0);
+        Preconditions.checkArgument(maxWeight >= 0);
+        return new CheckoutSessions(ttlMillis, maxWeight, ticker);
+    }
+
+
+    static final class Session {
+
+        private final String org;
+        private final String repo;
+        private final String branchName;
+        private final long commitId;
+        private final String paths;
+        private final ImmutableList<FolderListing> folders;
+        private final ImmutableSet<String> fileIds;
+
+        private Session(
+                String org,
+                String repo,
+                String branchName,
+                long commitId,
+                CheckoutPathSet paths,
+                List<FolderListing> folders,
+                Set<String> fileIds) {
+            this.org = org;
+            this.repo = repo;
+            this.branchName = branchName;
+            this.commitId = commitId;
+            this.paths = paths.toString();
+            this.folders = ImmutableList.copyOf(folders);
+            this.fileIds = ImmutableSet.copyOf(fileIds);
+        }
+
+        /**
+         * Folders in the order they were crawled.
+         */
+        List<FolderListing> getFolders() {
+            return folders;
+        }
+
+        /**
+         * Every file id in the checkout, including the diff bases they depend on.
+         */
+        Set<String> getFileIds() {
+            return fileIds;
+        }
+
+        private boolean matches(String org, String repo, String branchName, long commitId, CheckoutPathSet paths) {
+            return this.org.equals(org)
+                    && this.repo.equals(repo)
+                    && this.branchName.equals(branchName)
+                    && this.commitId == commitId
+                    && this.paths.equals(paths.toString());
+        }
+
+        private int weight() {
+            return folders.size() + fileIds.size();
+        }
+    }
+
+
+    private final Cache<String, Session> sessions;
+
+    private CheckoutSessions(long ttlMillis, long maxWeight, Ticker ticker) {
+        this.sessions = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .maximumWeight(maxWeight)
+                .weigher((String id, Session session) -> session.weight())
+                .build();
+    }
+
+
+    /**
+     * Returns the new session's id.
+     */
+    String save(
+            String org,
+            String repo,
+            String branchName,
+            long commitId,
+            CheckoutPathSet paths,
+            List<FolderListing> folders,
+            Set<String> fileIds) {
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, new Session(org, repo, branchName, commitId, paths, folders, fileIds));
+        return sessionId;
+    }
+
+
+    /**
+     * Removes and returns the session, if it exists and was saved for the same checkout. Sessions are single-use.
+     */
+    Optional<Session> take(
+            String sessionId, String org, String repo, String branchName, long commitId, CheckoutPathSet paths) {
+        Session session = sessions.asMap().remove(sessionId);
+        if (session == null) {
+            LOG.info("Checkout session %s not found, it may have expired.", sessionId);
+            return Optional.empty();
+        } else if (!session.matches(org, repo, branchName, commitId, paths)) {
+            LOG.warn("Checkout session %s doesn't match the checkout of %s:%d", sessionId, branchName, commitId);
+            return Optional.empty();
+        } else {
+            return Optional.of(session);
+        }
+    }
+}
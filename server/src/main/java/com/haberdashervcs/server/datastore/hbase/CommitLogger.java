@@ -1,71 +1,121 @@
 package com.haberdashervcs.server.datastore.hbase;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.CommitEntry;
 import com.haberdashervcs.common.objects.HdFolderPath;
+import com.haberdashervcs.server.browser.LogPage;
 
 
-// TODO! tests
-//
-// NOTE: How would you efficiently get the history for a folder and subfolders? Do we need some secondary commit
-//     history storage for "searching" like this?
+/**
+ * Reads a branch's log for a folder and its subfolders, a page at a time, from the CommitPaths index.
+ */
+// TODO: What about merge commits? Right now they're indexed under all the paths changed across the merged branch.
 final class CommitLogger {
 
     private static final HdLogger LOG = HdLoggers.create(CommitLogger.class);
 
+    static final int DEFAULT_PAGE_SIZE = 20;
+
+    // For branches that aren't in the index yet.
+    private static final int UNINDEXED_BATCH_SIZE = 50;
+    private static final int UNINDEXED_MAX_FETCHED = 1000;
+
 
     static CommitLogger forBranch(String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
-        return new CommitLogger(branchName, helper, rowKeyer);
+        return new CommitLogger(branchName, helper, rowKeyer, DEFAULT_PAGE_SIZE);
+    }
+
+    static CommitLogger forBranch(String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer, int pageSize) {
+        Preconditions.checkArgument(pageSize > 0);
+        return new CommitLogger(branchName, helper, rowKeyer, pageSize);
     }
 
 
     private final String branchName;
     private final HBaseRawHelper helper;
     private final HBaseRowKeyer rowKeyer;
+    private final int pageSize;
 
-    private CommitLogger(String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
+    private CommitLogger(String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer, int pageSize) {
         this.branchName = branchName;
         this.helper = helper;
         this.rowKeyer = rowKeyer;
+        this.pageSize = pageSize;
+    }
+
+
+    /**
+     * Returns the newest commits at or before atCommitId that changed something under the path.
+     */
+    LogPage getLog(HdFolderPath path, long atCommitId) throws IOException {
+        // A branch from before the index may have its newer commits in it but not its older ones, so this goes by
+        // the branch's marker rather than by whether it has any index rows.
+        if (!helper.isCommitPathsIndexed(rowKeyer, branchName)) {
+            LOG.info("Branch %s in (%s, %s) isn't fully indexed, scanning its commits",
+                    branchName, rowKeyer.getOrg(), rowKeyer.getRepo());
+            return getLogByScanning(path, atCommitId);
+        }
+
+        // One extra id tells us where the next page starts.
+        List<Long> commitIds = helper.getCommitIdsForFolder(
+                rowKeyer, branchName, path.forFolderListing(), atCommitId, pageSize + 1);
+
+        final Optional<Long> nextCommitId;
+        if (commitIds.size() > pageSize) {
+            nextCommitId = Optional.of(commitIds.get(pageSize));
+            commitIds = commitIds.subList(0, pageSize);
+        } else {
+            nextCommitId = Optional.empty();
+        }
+
+        List<CommitEntry> out = new ArrayList<>(commitIds.size());
+        for (CommitEntry commit : helper.getCommits(rowKeyer, branchName, commitIds)) {
+            // A failed push can leave index rows behind for commit ids that a later push reuses with other paths.
+            if (matches(commit, path)) {
+                out.add(commit);
+            }
+        }
+        return LogPage.of(out, nextCommitId);
     }
 
-    // TODO!
-    // - What about merge commits? Should they aggregate changed files?
-    List<CommitEntry> getLog(HdFolderPath path, long atCommitId) {
-        // The idea:
-        // - Use pagination. Get N commits from helper -- I'll need to write a new method for this.
-        // - Filter the commits to see if they match the path (or a subpath of path).
-        // - If I'm not at 20 commits (or something arbitrary), pull another N from the helper.
-        // - When do I stop? When I reach 20, or when I've pulled 1,000 or something. (This is a temporary approach.)
-        int commitsMatched = 0;
+
+    // The old way: page back through all the branch's commits and filter them, up to a limit.
+    private LogPage getLogByScanning(HdFolderPath path, long atCommitId) {
         int commitsFetched = 0;
         long currentCommit = atCommitId;
         List<CommitEntry> out = new ArrayList<>();
-        while (commitsMatched < 20 && commitsFetched < 1000) {
+        while (out.size() < pageSize && commitsFetched < UNINDEXED_MAX_FETCHED) {
             if (currentCommit <= 0) {
                 break;
             }
 
-            final int batchSize = 50;
             List<CommitEntry> thisBatch = helper.getCommitsDescendingFrom(
-                    rowKeyer.getOrg(), rowKeyer.getRepo(), branchName, currentCommit, batchSize);
+                    rowKeyer, branchName, currentCommit, UNINDEXED_BATCH_SIZE);
             for (CommitEntry commit : thisBatch) {
+                currentCommit = commit.getCommitId() - 1;
                 if (matches(commit, path)) {
                     out.add(commit);
-                    ++commitsMatched;
+                    if (out.size() == pageSize) {
+                        break;
+                    }
                 }
             }
 
-            currentCommit -= batchSize;
-            commitsFetched += batchSize;
+            // A short batch is the end of the branch, unless the page filled up before we got through it.
+            if (thisBatch.size() < UNINDEXED_BATCH_SIZE && out.size() < pageSize) {
+                currentCommit = 0;
+            }
+            commitsFetched += thisBatch.size();
         }
 
-        return ImmutableList.copyOf(out);
+        return LogPage.of(out, (currentCommit > 0) ? Optional.of(currentCommit) : Optional.empty());
     }
 
 
@@ -0,0 +1,425 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.diff.git.DeltaStoragePolicy;
+import com.haberdashervcs.common.diff.git.PatchedViewRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.objects.RepoEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+
+/**
+ * Shortens long delta chains in the Files table, like git repack. Clients only start a new full entry once a chain
+ * reaches MAX_DIFF_SEARCH, so often-edited files end up many deltas deep, and every read of them patches through the
+ * whole chain.
+ *
+ * A file whose chain is too deep, or reads too much next to the file's size, is rewritten under its same id: as a
+ * delta on the full entry at the bottom of its chain if DeltaStoragePolicy allows it, or else as a new full entry.
+ * Since a file's id is the hash of its contents, any diffs based on it still resolve to the same bytes, and they get
+ * shallower too.
+ *
+ * Each rewrite is one Put of the contents and metadata, so the row is never half written. It's conditional on the
+ * metadata the scan read, so a row that someone else rewrote in the meantime is left for the next pass. Readers that
+ * walked the old chain and then find the new entry retry (see HBaseFileBrowser). Only the Put itself is fenced as a
+ * repo write, so a row key migration never waits on the throttled scan.
+ *
+ * Chains with an entry in the large file store are left alone, since rewriting one would mean overwriting its
+ * contents there, which isn't atomic with the row.
+ */
+final class DeltaChainRepacker {
+
+    private static final HdLogger LOG = HdLoggers.create(DeltaChainRepacker.class);
+
+    static final int DEFAULT_MIN_CHAIN_DEPTH = 5;
+    static final long DEFAULT_MAX_BYTES_PER_SECOND = 16 * 1024 * 1024;
+
+    private static final int PROGRESS_LOG_INTERVAL = 10000;
+
+
+    static DeltaChainRepacker of(Connection conn, HBaseRawHelper helper, long maxBytesPerSecond) {
+        return new DeltaChainRepacker(
+                conn, helper, DeltaStoragePolicy.withDefaults(), DEFAULT_MIN_CHAIN_DEPTH, maxBytesPerSecond);
+    }
+
+    static DeltaChainRepacker withMinChainDepth(
+            Connection conn, HBaseRawHelper helper, int minChainDepth, long maxBytesPerSecond) {
+        Preconditions.checkArgument(minChainDepth >= 2);
+        return new DeltaChainRepacker(
+                conn, helper, DeltaStoragePolicy.withDefaults(), minChainDepth, maxBytesPerSecond);
+    }
+
+
+    private final Connection conn;
+    private final HBaseRawHelper helper;
+    private final DeltaStoragePolicy policy;
+    private final int minChainDepth;
+    // Throttles reads of file contents, which is most of the job's load.
+    private final RateLimiter readLimiter;
+
+    private final AtomicLong filesScanned = new AtomicLong(0);
+    private final AtomicLong chainsChecked = new AtomicLong(0);
+    private final AtomicLong rebased = new AtomicLong(0);
+    private final AtomicLong madeFull = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final AtomicLong metadataFixed = new AtomicLong(0);
+    private final AtomicLong bytesRead = new AtomicLong(0);
+
+    private DeltaChainRepacker(
+            Connection conn,
+            HBaseRawHelper helper,
+            DeltaStoragePolicy policy,
+            int minChainDepth,
+            long maxBytesPerSecond) {
+        Preconditions.checkArgument(maxBytesPerSecond > 0);
+        this.conn = conn;
+        this.helper = helper;
+        this.policy = policy;
+        this.minChainDepth = minChainDepth;
+        this.readLimiter = RateLimiter.create(maxBytesPerSecond);
+    }
+
+
+    void repackAllRepos() throws IOException {
+        for (RepoEntry repo : helper.getAllRepoEntries()) {
+            repackRepo(repo.getOrg(), repo.getRepoName());
+        }
+        LOG.info("Repacked all repos: %s", getProgress());
+    }
+
+
+    void repackRepo(String org, String repo) throws IOException {
+        if (helper.isMigratingRowKeys(org, repo)) {
+            LOG.warn("Skipping (%s, %s) for now: its row keys are being migrated", org, repo);
+            return;
+        }
+
+        try {
+            repackFiles(helper.getRowKeyer(org, repo));
+        } catch (WriteNotStartedException ex) {
+            LOG.warn("Skipping the rest of (%s, %s) for now: %s", org, repo, ex.getMessage());
+        }
+    }
+
+
+    /**
+     * Starts a write for one rewrite. The scan can take a long time since it's throttled, so it doesn't hold a write
+     * open itself: a row key migration would wait on it, and give up. Once a migration has started, or finished and
+     * changed the repo's keys from the ones the scan reads, the rest of the repo is left for the next pass.
+     */
+    private HBaseRawHelper.RepoWrite startWrite(HBaseRowKeyer scanKeyer) throws IOException {
+        final HBaseRawHelper.RepoWrite repoWrite;
+        try {
+            repoWrite = helper.startRepoWrite(scanKeyer.getOrg(), scanKeyer.getRepo());
+        } catch (IOException ioEx) {
+            throw new WriteNotStartedException(ioEx.getMessage());
+        }
+
+        if (repoWrite.getRowKeyer().getLayout() != scanKeyer.getLayout()) {
+            repoWrite.close();
+            throw new WriteNotStartedException("its row keys were migrated during the scan");
+        }
+        return repoWrite;
+    }
+
+
+    private static final class WriteNotStartedException extends IOException {
+
+        private WriteNotStartedException(String message) {
+            super(message);
+        }
+    }
+
+
+    private void repackFiles(HBaseRowKeyer rowKeyer) throws IOException {
+        LOG.info("Repacking delta chains in (%s, %s)", rowKeyer.getOrg(), rowKeyer.getRepo());
+        Scan scan = new Scan()
+                .setRowPrefixFilter(rowKeyer.prefixForRepo())
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"));
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"));
+             ResultScanner scanner = filesTable.getScanner(scan)) {
+            Result result;
+            while ((result = scanner.next()) != null) {
+                if (filesScanned.incrementAndGet() % PROGRESS_LOG_INTERVAL == 0) {
+                    LOG.info("Repack progress: %s", getProgress());
+                }
+
+                byte[] metadataBytes = result.getValue(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"));
+                if (metadataBytes == null) {
+                    // Not backfilled yet.
+                    continue;
+                }
+                String fileId = rowKeyer.fileIdFromKey(result.getRow());
+                FileMetadata metadata = FileMetadata.fromProto(
+                        fileId, FilesProto.FileMetadata.parseFrom(metadataBytes));
+                checkFile(rowKeyer, result.getRow(), metadataBytes, metadata);
+            }
+        }
+    }
+
+
+    private void checkFile(HBaseRowKeyer rowKeyer, byte[] rowKey, byte[] metadataBytes, FileMetadata metadata)
+            throws IOException {
+        // A diff on a full entry is already as shallow as a diff can be.
+        if (metadata.getContentsType() == FileEntry.ContentsType.FULL
+                || metadata.getChainDepth() == 1
+                || metadata.getStorageType() == FileEntry.StorageType.LARGE_FILE_STORE) {
+            return;
+        }
+
+        chainsChecked.incrementAndGet();
+        Optional<List<FileMetadata>> maybeChain = walkChain(rowKeyer, metadata);
+        if (maybeChain.isEmpty()) {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        List<FileMetadata> chain = maybeChain.get();
+        final int depth = chain.size() - 1;
+        long readBytes = 0;
+        for (FileMetadata entry : chain) {
+            readBytes += entry.getRawSizeBytes();
+        }
+
+        final boolean tooDeep = depth >= minChainDepth;
+        final boolean tooExpensive = metadata.getResolvedSizeBytes() != FileMetadata.UNKNOWN
+                && readBytes > DeltaStoragePolicy.DEFAULT_MAX_READ_AMPLIFICATION * metadata.getResolvedSizeBytes();
+        if (tooDeep || tooExpensive) {
+            repack(rowKeyer, rowKey, metadataBytes, chain, readBytes);
+
+        } else if (depth != metadata.getChainDepth()) {
+            // Diffs on files that were repacked are shallower than their metadata says.
+            FileMetadata fixed = FileMetadata.of(
+                    metadata.getFileId(),
+                    metadata.getContentsType(),
+                    metadata.getStorageType(),
+                    metadata.getBaseEntryId().get(),
+                    depth,
+                    metadata.getRawSizeBytes(),
+                    metadata.getResolvedSizeBytes());
+            final boolean written;
+            try (HBaseRawHelper.RepoWrite repoWrite = startWrite(rowKeyer)) {
+                written = helper.putFileMetadataIfUnchanged(rowKey, metadataBytes, fixed);
+            }
+            if (written) {
+                metadataFixed.incrementAndGet();
+            } else {
+                skipped.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the chain from this file down to its full entry, or empty if it can't be repacked.
+     */
+    private Optional<List<FileMetadata>> walkChain(HBaseRowKeyer rowKeyer, FileMetadata file) throws IOException {
+        List<FileMetadata> chain = new ArrayList<>();
+        chain.add(file);
+        FileMetadata current = file;
+        while (current.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
+            if (chain.size() > HdConstants.MAX_DIFF_SEARCH) {
+                LOG.warn("Chain for %s is longer than the diff search limit", file.getFileId());
+                return Optional.empty();
+            }
+
+            String baseId = current.getBaseEntryId().get();
+            Map<String, FileMetadata> found = helper.getFileMetadata(rowKeyer, ImmutableList.of(baseId));
+            if (!found.containsKey(baseId)) {
+                LOG.warn("Base %s of %s not found", baseId, file.getFileId());
+                return Optional.empty();
+            }
+            current = found.get(baseId);
+            if (current.getStorageType() == FileEntry.StorageType.LARGE_FILE_STORE
+                    || current.getRawSizeBytes() == FileMetadata.UNKNOWN) {
+                return Optional.empty();
+            }
+            chain.add(current);
+        }
+        return Optional.of(chain);
+    }
+
+
+    private void repack(
+            HBaseRowKeyer rowKeyer, byte[] rowKey, byte[] metadataBytes, List<FileMetadata> chain, long readBytes)
+            throws IOException {
+        readLimiter.acquire(Math.toIntExact(Math.max(1, Math.min(readBytes, Integer.MAX_VALUE))));
+        bytesRead.addAndGet(readBytes);
+
+        List<String> chainIds = new ArrayList<>(chain.size());
+        for (FileMetadata entry : chain) {
+            chainIds.add(entry.getFileId());
+        }
+        Map<String, FileEntry> entries = helper.getFiles(rowKeyer, chainIds);
+        if (entries.size() != chainIds.size()) {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        // Patch from the full entry up to this file.
+        FileMetadata fileMetadata = chain.get(0);
+        FileMetadata rootMetadata = chain.get(chain.size() - 1);
+        RandomAccessBytes rootContents = entries.get(rootMetadata.getFileId()).getEntryContents();
+        List<RandomAccessBytes> diffs = new ArrayList<>();
+        for (int i = chain.size() - 2; i >= 0; --i) {
+            FileEntry entry = entries.get(chain.get(i).getFileId());
+            if (entry.getContentsType() != chain.get(i).getContentsType()) {
+                // Changed since we read its metadata. The next pass can try again.
+                skipped.incrementAndGet();
+                return;
+            }
+            diffs.add(entry.getEntryContents());
+        }
+        RandomAccessBytes contents = ByteArrayRandomAccessBytes.of(RandomAccessBytes.toByteArray(
+                PatchedViewRandomAccessBytes.build(rootContents, diffs)));
+
+        DeltaStoragePolicy.Result result = policy.decide(
+                () -> rootContents, contents, 0, rootMetadata.getRawSizeBytes());
+        // The resolved size is known here, so the metadata keeps the read amplification check working for the entry.
+        final long resolvedSize = contents.length();
+        final FileEntry newEntry;
+        final FileMetadata newMetadata;
+        final AtomicLong counter;
+        if (result.getDecision() == DeltaStoragePolicy.Decision.DELTA
+                && result.getDelta().get().length <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+            byte[] delta = result.getDelta().get();
+            newEntry = FileEntry.forDiffGit(
+                    fileMetadata.getFileId(),
+                    ByteArrayRandomAccessBytes.of(delta),
+                    rootMetadata.getFileId(),
+                    FileEntry.StorageType.DATASTORE);
+            newMetadata = FileMetadata.of(
+                    fileMetadata.getFileId(),
+                    FileEntry.ContentsType.DIFF_GIT,
+                    FileEntry.StorageType.DATASTORE,
+                    rootMetadata.getFileId(),
+                    1,
+                    delta.length,
+                    resolvedSize);
+            counter = rebased;
+
+        } else if (resolvedSize <= HdConstants.LARGE_FILE_SIZE_THRESHOLD_BYTES) {
+            newEntry = FileEntry.forFullContents(fileMetadata.getFileId(), contents, FileEntry.StorageType.DATASTORE);
+            newMetadata = FileMetadata.of(
+                    fileMetadata.getFileId(),
+                    FileEntry.ContentsType.FULL,
+                    FileEntry.StorageType.DATASTORE,
+                    null,
+                    0,
+                    resolvedSize,
+                    resolvedSize);
+            counter = madeFull;
+
+        } else {
+            // A full entry this big would go in the large file store.
+            skipped.incrementAndGet();
+            return;
+        }
+
+        final boolean written;
+        try (HBaseRawHelper.RepoWrite repoWrite = startWrite(rowKeyer)) {
+            written = helper.putFileIfMetadataIs(rowKey, metadataBytes, newEntry, newMetadata);
+        }
+        if (!written) {
+            // Rewritten since we scanned it. The next pass can try again.
+            skipped.incrementAndGet();
+            return;
+        }
+        counter.incrementAndGet();
+        LOG.debug("Repacked %s from depth %d: %s", fileMetadata.getFileId(), chain.size() - 1, result.getDecision());
+    }
+
+
+    Progress getProgress() {
+        return new Progress(
+                filesScanned.get(),
+                chainsChecked.get(),
+                rebased.get(),
+                madeFull.get(),
+                skipped.get(),
+                metadataFixed.get(),
+                bytesRead.get());
+    }
+
+
+    /**
+     * Counts since the repacker was created.
+     */
+    static final class Progress {
+
+        private final long filesScanned;
+        private final long chainsChecked;
+        private final long rebased;
+        private final long madeFull;
+        private final long skipped;
+        private final long metadataFixed;
+        private final long bytesRead;
+
+        private Progress(
+                long filesScanned,
+                long chainsChecked,
+                long rebased,
+                long madeFull,
+                long skipped,
+                long metadataFixed,
+                long bytesRead) {
+            this.filesScanned = filesScanned;
+            this.chainsChecked = chainsChecked;
+            this.rebased = rebased;
+            this.madeFull = madeFull;
+            this.skipped = skipped;
+            this.metadataFixed = metadataFixed;
+            this.bytesRead = bytesRead;
+        }
+
+        long getFilesScanned() {
+            return filesScanned;
+        }
+
+        long getRebased() {
+            return rebased;
+        }
+
+        long getMadeFull() {
+            return madeFull;
+        }
+
+        long getMetadataFixed() {
+            return metadataFixed;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("filesScanned", filesScanned)
+                    .add("chainsChecked", chainsChecked)
+                    .add("rebased", rebased)
+                    .add("madeFull", madeFull)
+                    .add("skipped", skipped)
+                    .add("metadataFixed", metadataFixed)
+                    .add("bytesRead", bytesRead)
+                    .toString();
+        }
+    }
+}
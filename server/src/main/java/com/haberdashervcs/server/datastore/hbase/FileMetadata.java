@@ -0,0 +1,185 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+import com.haberdashervcs.common.diff.git.GitDeltaDiffer;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+
+
+/**
+ * What's stored about a file entry, without its contents. For lookups that only need to know how a file is stored,
+ * like following diff chains.
+ */
+final class FileMetadata {
+
+    static final int UNKNOWN = -1;
+
+
+    static FileMetadata of(
+            String fileId,
+            FileEntry.ContentsType contentsType,
+            FileEntry.StorageType storageType,
+            @Nullable String baseEntryId,
+            int chainDepth,
+            long rawSizeBytes,
+            long resolvedSizeBytes) {
+        return new FileMetadata(
+                fileId, contentsType, storageType, baseEntryId, chainDepth, rawSizeBytes, resolvedSizeBytes);
+    }
+
+
+    /**
+     * Computes the metadata for a new entry.
+     *
+     * @param base The metadata of the diff base, if this is a diff and the base is known.
+     * @param largeFileSize The size of the contents in the large file store, or UNKNOWN.
+     */
+    static FileMetadata forNewEntry(FileEntry entry, Optional<FileMetadata> base, long largeFileSize) {
+        final long rawSize;
+        if (entry.getStorageType() == FileEntry.StorageType.DATASTORE) {
+            rawSize = entry.getEntryContents().length();
+        } else {
+            rawSize = largeFileSize;
+        }
+
+        if (entry.getContentsType() == FileEntry.ContentsType.FULL) {
+            return of(entry.getId(), entry.getContentsType(), entry.getStorageType(), null, 0, rawSize, rawSize);
+        }
+
+        int chainDepth = UNKNOWN;
+        if (base.isPresent() && base.get().getChainDepth() != UNKNOWN) {
+            chainDepth = base.get().getChainDepth() + 1;
+        }
+        // Diffs in the large file store would have to be read from it to get their header.
+        long resolvedSize = UNKNOWN;
+        if (entry.getStorageType() == FileEntry.StorageType.DATASTORE) {
+            resolvedSize = GitDeltaDiffer.getResultSize(entry.getEntryContents());
+        }
+        return of(
+                entry.getId(),
+                entry.getContentsType(),
+                entry.getStorageType(),
+                entry.getBaseEntryId().get(),
+                chainDepth,
+                rawSize,
+                resolvedSize);
+    }
+
+
+    static FileMetadata fromProto(String fileId, FilesProto.FileMetadata proto) {
+        final FileEntry.ContentsType contentsType;
+        if (proto.getContentsType() == FilesProto.FileEntry.ContentsType.FULL) {
+            contentsType = FileEntry.ContentsType.FULL;
+        } else if (proto.getContentsType() == FilesProto.FileEntry.ContentsType.DIFF_GIT) {
+            contentsType = FileEntry.ContentsType.DIFF_GIT;
+        } else {
+            throw new IllegalArgumentException("Unknown contents type: " + proto.getContentsType());
+        }
+
+        FileEntry.StorageType storageType =
+                (proto.getStorageType() == FilesProto.FileEntry.StorageType.LARGE_FILE_STORE)
+                        ? FileEntry.StorageType.LARGE_FILE_STORE
+                        : FileEntry.StorageType.DATASTORE;
+
+        return of(
+                fileId,
+                contentsType,
+                storageType,
+                (contentsType == FileEntry.ContentsType.DIFF_GIT) ? proto.getDiffBaseEntryId() : null,
+                proto.getChainDepth(),
+                proto.getRawSizeBytes(),
+                proto.getResolvedSizeBytes());
+    }
+
+
+    private final String fileId;
+    private final FileEntry.ContentsType contentsType;
+    private final FileEntry.StorageType storageType;
+    private final Optional<String> baseEntryId;
+    private final int chainDepth;
+    private final long rawSizeBytes;
+    private final long resolvedSizeBytes;
+
+    private FileMetadata(
+            String fileId,
+            FileEntry.ContentsType contentsType,
+            FileEntry.StorageType storageType,
+            @Nullable String baseEntryId,
+            int chainDepth,
+            long rawSizeBytes,
+            long resolvedSizeBytes) {
+        this.fileId = fileId;
+        this.contentsType = contentsType;
+        this.storageType = storageType;
+        this.baseEntryId = Optional.ofNullable(baseEntryId);
+        this.chainDepth = chainDepth;
+        this.rawSizeBytes = rawSizeBytes;
+        this.resolvedSizeBytes = resolvedSizeBytes;
+    }
+
+    String getFileId() {
+        return fileId;
+    }
+
+    FileEntry.ContentsType getContentsType() {
+        return contentsType;
+    }
+
+    FileEntry.StorageType getStorageType() {
+        return storageType;
+    }
+
+    Optional<String> getBaseEntryId() {
+        return baseEntryId;
+    }
+
+    /**
+     * The number of diffs between this entry and a full entry, or UNKNOWN.
+     */
+    int getChainDepth() {
+        return chainDepth;
+    }
+
+    long getRawSizeBytes() {
+        return rawSizeBytes;
+    }
+
+    /**
+     * The size of the whole file, or UNKNOWN.
+     */
+    long getResolvedSizeBytes() {
+        return resolvedSizeBytes;
+    }
+
+    FilesProto.FileMetadata toProto() {
+        FilesProto.FileMetadata.Builder proto = FilesProto.FileMetadata.newBuilder()
+                .setContentsType((contentsType == FileEntry.ContentsType.FULL)
+                        ? FilesProto.FileEntry.ContentsType.FULL
+                        : FilesProto.FileEntry.ContentsType.DIFF_GIT)
+                .setStorageType((storageType == FileEntry.StorageType.LARGE_FILE_STORE)
+                        ? FilesProto.FileEntry.StorageType.LARGE_FILE_STORE
+                        : FilesProto.FileEntry.StorageType.DATASTORE)
+                .setChainDepth(chainDepth)
+                .setRawSizeBytes(rawSizeBytes)
+                .setResolvedSizeBytes(resolvedSizeBytes);
+        if (baseEntryId.isPresent()) {
+            proto.setDiffBaseEntryId(baseEntryId.get());
+        }
+        return proto.build();
+    }
+
+    String getDebugString() {
+        return MoreObjects.toStringHelper(this)
+                .add("fileId", fileId)
+                .add("contentsType", contentsType)
+                .add("storageType", storageType)
+                .add("baseEntryId", baseEntryId)
+                .add("chainDepth", chainDepth)
+                .add("rawSizeBytes", rawSizeBytes)
+                .add("resolvedSizeBytes", resolvedSizeBytes)
+                .toString();
+    }
+}
@@ -0,0 +1,278 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.haberdashervcs.common.io.HdObjectOutputStream;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.server.datastore.HdLargeFileStore;
+
+
+/**
+ * Sends file entries to a client, looking up the next ones while the current one is being written out. Files are
+ * sent in the given order.
+ *
+ * The lookups are bounded by an estimate of the bytes they'll hold in memory, taken from the file metadata. Large
+ * file store contents aren't held in memory: only their streams are opened ahead of time.
+ */
+final class FilePrefetcher {
+
+    private static final HdLogger LOG = HdLoggers.create(FilePrefetcher.class);
+
+    static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 32 * 1024 * 1024;
+
+    // Also bounds how much of the shared executor's queue one checkout can take up.
+    private static final int MAX_FILES_IN_FLIGHT = 256;
+
+    // For files whose size isn't known, and for the entries of large files.
+    private static final long ESTIMATED_ENTRY_BYTES = 4 * 1024;
+
+    private static final int METADATA_BATCH_SIZE = 1000;
+
+
+    static FilePrefetcher forRepo(
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            HdLargeFileStore largeFileStore,
+            ExecutorService executor,
+            long maxBytesInFlight) {
+        Preconditions.checkArgument(maxBytesInFlight > 0);
+        return new FilePrefetcher(rowKeyer, helper, largeFileStore, executor, maxBytesInFlight);
+    }
+
+
+    private final String org;
+    private final String repo;
+    private final HBaseRowKeyer rowKeyer;
+    private final HBaseRawHelper helper;
+    private final HdLargeFileStore largeFileStore;
+    private final ExecutorService executor;
+    private final long maxBytesInFlight;
+
+    private FilePrefetcher(
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            HdLargeFileStore largeFileStore,
+            ExecutorService executor,
+            long maxBytesInFlight) {
+        this.org = rowKeyer.getOrg();
+        this.repo = rowKeyer.getRepo();
+        this.rowKeyer = rowKeyer;
+        this.helper = helper;
+        this.largeFileStore = largeFileStore;
+        this.executor = executor;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+
+    private static final class Fetched {
+
+        private static Fetched stored(String fileId, byte[] storedBytes) {
+            return new Fetched(fileId, storedBytes, null, Optional.empty());
+        }
+
+        private static Fetched entry(FileEntry entry, Optional<HdLargeFileStore.FileWithSize> largeFile) {
+            return new Fetched(entry.getId(), null, entry, largeFile);
+        }
+
+
+        private final String fileId;
+        // Either the entry as it's stored, or the decoded entry.
+        private final @Nullable byte[] storedBytes;
+        private final @Nullable FileEntry entry;
+        private final Optional<HdLargeFileStore.FileWithSize> largeFile;
+
+        private Fetched(
+                String fileId,
+                @Nullable byte[] storedBytes,
+                @Nullable FileEntry entry,
+                Optional<HdLargeFileStore.FileWithSize> largeFile) {
+            this.fileId = fileId;
+            this.storedBytes = storedBytes;
+            this.entry = entry;
+            this.largeFile = largeFile;
+        }
+
+        private void closeQuietly() {
+            if (largeFile.isPresent()) {
+                try {
+                    largeFile.get().getContents().close();
+                } catch (IOException ioEx) {
+                    LOG.exception(ioEx, "Failed to close large file %s", fileId);
+                }
+            }
+        }
+    }
+
+
+    private static final class InFlight {
+
+        private final String fileId;
+        private final long estimatedBytes;
+        // Set by whichever comes first: the lookup finishing, or the send giving up on it. The loser is the one
+        // that closes the result.
+        private final AtomicBoolean handedOff;
+        private final Future<Fetched> future;
+
+        private InFlight(String fileId, long estimatedBytes, AtomicBoolean handedOff, Future<Fetched> future) {
+            this.fileId = fileId;
+            this.estimatedBytes = estimatedBytes;
+            this.handedOff = handedOff;
+            this.future = future;
+        }
+    }
+
+
+    void sendAll(Collection<String> fileIds, HdObjectOutputStream objectsOut) throws IOException {
+        List<String> ordered = new ArrayList<>(fileIds);
+        Deque<InFlight> inFlight = new ArrayDeque<>();
+        long bytesInFlight = 0;
+
+        try {
+            for (List<String> batch : Lists.partition(ordered, METADATA_BATCH_SIZE)) {
+                Map<String, FileMetadata> metadata = helper.getFileMetadata(rowKeyer, batch);
+
+                for (String fileId : batch) {
+                    FileMetadata fileMetadata = metadata.get(fileId);
+                    long estimate = estimateBytes(fileMetadata);
+                    // Always let one through, even if it's over the budget on its own.
+                    while (!inFlight.isEmpty()
+                            && (inFlight.size() >= MAX_FILES_IN_FLIGHT
+                                || bytesInFlight + estimate > maxBytesInFlight)) {
+                        InFlight next = inFlight.removeFirst();
+                        send(next, objectsOut);
+                        bytesInFlight -= next.estimatedBytes;
+                    }
+
+                    AtomicBoolean handedOff = new AtomicBoolean(false);
+                    inFlight.addLast(new InFlight(
+                            fileId, estimate, handedOff, executor.submit(() -> fetch(fileId, fileMetadata, handedOff))));
+                    bytesInFlight += estimate;
+                }
+            }
+
+            while (!inFlight.isEmpty()) {
+                send(inFlight.removeFirst(), objectsOut);
+            }
+
+        } finally {
+            // Only left over if something failed.
+            for (InFlight leftover : inFlight) {
+                cancel(leftover);
+            }
+        }
+    }
+
+
+    private static long estimateBytes(FileMetadata metadata) {
+        if (metadata == null
+                || metadata.getStorageType() == FileEntry.StorageType.LARGE_FILE_STORE
+                || metadata.getRawSizeBytes() == FileMetadata.UNKNOWN) {
+            return ESTIMATED_ENTRY_BYTES;
+        } else {
+            return metadata.getRawSizeBytes();
+        }
+    }
+
+
+    private Fetched fetch(String fileId, @Nullable FileMetadata metadata, AtomicBoolean handedOff)
+            throws IOException {
+        Fetched fetched;
+        if (metadata != null && metadata.getStorageType() == FileEntry.StorageType.DATASTORE) {
+            // Sent as it's stored, so the contents aren't decompressed and compressed again on the way through.
+            Optional<byte[]> storedBytes = helper.getStoredFileMaybe(rowKeyer.forFile(fileId));
+            if (storedBytes.isEmpty()) {
+                throw new IllegalStateException("File not found: " + fileId);
+            }
+            fetched = Fetched.stored(fileId, storedBytes.get());
+
+        } else {
+            Optional<FileEntry> entry = helper.getFileMaybe(rowKeyer.forFile(fileId));
+            if (entry.isEmpty()) {
+                throw new IllegalStateException("File not found: " + fileId);
+            }
+
+            if (entry.get().getStorageType() != FileEntry.StorageType.LARGE_FILE_STORE) {
+                fetched = Fetched.entry(entry.get(), Optional.empty());
+            } else {
+                fetched = Fetched.entry(
+                        entry.get(), Optional.of(largeFileStore.getFileById(org, repo, fileId)));
+            }
+        }
+
+        // Nobody will pick up this stream if the send gave up on it while we were fetching.
+        if (!handedOff.compareAndSet(false, true)) {
+            fetched.closeQuietly();
+            throw new IOException("Checkout was abandoned");
+        }
+        return fetched;
+    }
+
+
+    private void send(InFlight inFlight, HdObjectOutputStream objectsOut) throws IOException {
+        Fetched fetched = await(inFlight.future);
+        try {
+            if (fetched.storedBytes != null) {
+                objectsOut.writeStoredFile(inFlight.fileId, fetched.storedBytes);
+            } else if (fetched.largeFile.isPresent()) {
+                HdLargeFileStore.FileWithSize largeFile = fetched.largeFile.get();
+                objectsOut.writeLargeFileContents(
+                        fetched.entry,
+                        largeFile.getContents(),
+                        Math.toIntExact(largeFile.getSizeInBytes()));
+            } else {
+                objectsOut.writeFile(inFlight.fileId, fetched.entry);
+            }
+        } finally {
+            fetched.closeQuietly();
+        }
+    }
+
+
+    private static Fetched await(Future<Fetched> future) throws IOException {
+        try {
+            return future.get();
+
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException(interruptedEx);
+
+        } catch (ExecutionException executionEx) {
+            if (executionEx.getCause() instanceof IOException) {
+                throw (IOException) executionEx.getCause();
+            } else {
+                throw new IOException(executionEx.getCause());
+            }
+        }
+    }
+
+
+    // A lookup that's still queued or running closes its own result, once it sees it's been given up on. One that
+    // already finished may be holding an open large file stream.
+    private static void cancel(InFlight inFlight) {
+        if (inFlight.handedOff.compareAndSet(false, true)) {
+            inFlight.future.cancel(false);
+        } else {
+            try {
+                await(inFlight.future).closeQuietly();
+            } catch (IOException ioEx) {
+                // Ignored: the send is already failing.
+            }
+        }
+    }
+}
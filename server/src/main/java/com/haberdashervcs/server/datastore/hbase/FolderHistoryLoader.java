@@ -6,6 +6,7 @@ import java.util.Optional;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeLock;
 
 
 final class FolderHistoryLoader {
@@ -15,7 +16,20 @@ final class FolderHistoryLoader {
 
     static FolderHistoryLoader forBranch(
             HBaseRowKeyer rowKeyer, String branch, HBaseRawHelper helper, MergeStates mergestates) {
-        return new FolderHistoryLoader(rowKeyer, branch, helper, mergestates);
+        return new FolderHistoryLoader(rowKeyer, branch, helper, mergestates, Optional.empty());
+    }
+
+
+    /**
+     * Like forBranch(), but final lookups are shared through the given cache.
+     */
+    static FolderHistoryLoader forBranchWithCache(
+            HBaseRowKeyer rowKeyer,
+            String branch,
+            HBaseRawHelper helper,
+            MergeStates mergestates,
+            FolderListingCache cache) {
+        return new FolderHistoryLoader(rowKeyer, branch, helper, mergestates, Optional.of(cache));
     }
 
 
@@ -23,23 +37,68 @@ final class FolderHistoryLoader {
     private final String branchName;
     private final HBaseRawHelper helper;
     private final MergeStates mergeStates;
+    private final Optional<FolderListingCache> cache;
 
     private FolderHistoryLoader(
-            HBaseRowKeyer rowKeyer, String branchName, HBaseRawHelper helper, MergeStates mergeStates) {
+            HBaseRowKeyer rowKeyer,
+            String branchName,
+            HBaseRawHelper helper,
+            MergeStates mergeStates,
+            Optional<FolderListingCache> cache) {
         this.rowKeyer = rowKeyer;
         this.branchName = branchName;
         this.helper = helper;
         this.mergeStates = mergeStates;
+        this.cache = cache;
     }
 
     Optional<FolderListing> getFolderAtCommit(long commitId, String path) {
         try {
             LOG.debug("getFolderAtCommit: %s", commitId);
-            return helper.getMergedFolderAtCommit(
-                    rowKeyer.getOrg(), rowKeyer.getRepo(), branchName, commitId, path, mergeStates);
+            if (!isCacheable(commitId)) {
+                return loadFolderAtCommit(commitId, path);
+            }
+
+            FolderListingCache.Key key = FolderListingCache.Key.of(
+                    rowKeyer.getOrg(), rowKeyer.getRepo(), branchName, path, commitId);
+            Optional<FolderListing> cached = cache.get().getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            Optional<FolderListing> loaded = loadFolderAtCommit(commitId, path);
+            if (isFinal(loaded)) {
+                cache.get().put(key, loaded);
+            }
+            return loaded;
 
         } catch (IOException ioEx) {
             throw new RuntimeException(ioEx);
         }
     }
+
+
+    private Optional<FolderListing> loadFolderAtCommit(long commitId, String path) throws IOException {
+        return helper.getMergedFolderAtCommit(rowKeyer, branchName, commitId, path, mergeStates);
+    }
+
+
+    // TODO: Branches could be cached too, below their head commit, but a branch lookup can fall back to main and
+    //     would need main to be settled as well.
+    private boolean isCacheable(long commitId) throws IOException {
+        if (cache.isEmpty() || !branchName.equals("main")) {
+            return false;
+        }
+        Optional<Long> settledHead = mergeStates.getSettledMainHead();
+        return (settledHead.isPresent() && commitId <= settledHead.get());
+    }
+
+
+    private boolean isFinal(Optional<FolderListing> listing) throws IOException {
+        if (listing.isEmpty() || listing.get().getMergeLockId().isEmpty()) {
+            return true;
+        }
+        MergeLock lock = mergeStates.forMergeLockId(listing.get().getMergeLockId().get());
+        return (lock.getState() == MergeLock.State.COMPLETED);
+    }
 }
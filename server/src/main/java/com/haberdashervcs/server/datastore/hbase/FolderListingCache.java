@@ -0,0 +1,135 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.FolderListing;
+
+
+/**
+ * Holds resolved folder lookups (org, repo, branch, path, commit) that can't change anymore, shared by all requests to
+ * the server. Many clients syncing to the same head of main look up the same folders, and this saves each of them a
+ * scan.
+ *
+ * It's up to the caller to only put lookups that are final. See {@link MergeStates#getSettledMainHead()}.
+ */
+final class FolderListingCache {
+
+    private static final HdLogger LOG = HdLoggers.create(FolderListingCache.class);
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final long STATS_LOG_INTERVAL = 100_000;
+
+    // Rough per-object overhead for estimating the size of a listing.
+    private static final int OBJECT_OVERHEAD_BYTES = 48;
+
+
+    static FolderListingCache withMaxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "Invalid cache size: %s", maxBytes);
+        return new FolderListingCache(maxBytes);
+    }
+
+
+    static final class Key {
+
+        static Key of(String org, String repo, String branchName, String path, long commitId) {
+            return new Key(org, repo, branchName, path, commitId);
+        }
+
+
+        private final String org;
+        private final String repo;
+        private final String branchName;
+        private final String path;
+        private final long commitId;
+
+        private Key(String org, String repo, String branchName, String path, long commitId) {
+            this.org = org;
+            this.repo = repo;
+            this.branchName = branchName;
+            this.path = path;
+            this.commitId = commitId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return commitId == other.commitId
+                    && org.equals(other.org)
+                    && repo.equals(other.repo)
+                    && branchName.equals(other.branchName)
+                    && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(org, repo, branchName, path, commitId);
+        }
+
+        private int weight() {
+            return OBJECT_OVERHEAD_BYTES + 2 * (org.length() + repo.length() + branchName.length() + path.length());
+        }
+    }
+
+
+    private final Cache<Key, Optional<FolderListing>> listings;
+    private final AtomicLong lookups = new AtomicLong(0);
+
+    private FolderListingCache(long maxBytes) {
+        this.listings = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Optional<FolderListing> listing) -> key.weight() + weigh(listing))
+                .recordStats()
+                .build();
+    }
+
+
+    /**
+     * Returns null if the lookup isn't cached, or else the result of the lookup, which may be empty if there's no
+     * folder at that path.
+     */
+    @Nullable Optional<FolderListing> getIfPresent(Key key) {
+        if (lookups.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+            LOG.info("Folder listing cache: %s", getStats());
+        }
+        return listings.getIfPresent(key);
+    }
+
+
+    void put(Key key, Optional<FolderListing> listing) {
+        listings.put(key, listing);
+    }
+
+
+    CacheStats getStats() {
+        return listings.stats();
+    }
+
+
+    // An estimate in bytes, assuming 2-byte chars.
+    private static int weigh(Optional<FolderListing> listing) {
+        if (listing.isEmpty()) {
+            return OBJECT_OVERHEAD_BYTES;
+        }
+
+        int weight = OBJECT_OVERHEAD_BYTES + 2 * listing.get().getPath().length();
+        for (FolderListing.Entry entry : listing.get().getEntries()) {
+            weight += OBJECT_OVERHEAD_BYTES + 2 * (entry.getName().length() + entry.getId().length());
+        }
+        return weight;
+    }
+}
@@ -1,11 +1,17 @@
 package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.io.HdObjectOutputStream;
@@ -16,73 +22,75 @@ import com.haberdashervcs.common.objects.FileEntry;
 import com.haberdashervcs.common.objects.FolderListing;
 import com.haberdashervcs.common.objects.server.ClientCheckoutSpec;
 import com.haberdashervcs.common.objects.server.ServerCheckoutSpec;
-import com.haberdashervcs.server.browser.RepoBrowser;
 import com.haberdashervcs.server.datastore.CheckoutContentsHandler;
-import com.haberdashervcs.server.datastore.HdLargeFileStore;
 import com.haberdashervcs.server.operations.checkout.CheckoutResult;
 
 
-// TODO: Consider an optimization that reuses the query to avoid crawling twice. (This might also prevent some race
-// condition w/ the merge states.)
-//
-// Example:
-// - The checkout query returns both file ids and full folder listings. The client writes folders to its db.
-// - The second checkout call skips the crawl and just writes out file entries from the given ids that the client needs.
+// The query crawls once and saves its results in a checkout session. The checkout call that follows streams from that
+// session instead of crawling again, and it only falls back to crawling if the session is missing (expired, or an
+// older client that doesn't send the session id back).
 final class HBaseCheckoutHandler {
 
     private static final HdLogger LOG = HdLoggers.create(HBaseCheckoutHandler.class);
 
+    // Each checkout keeps at most this many lookups on the shared crawl executor, so that one wide tree doesn't queue
+    // up ahead of every other checkout's lookups.
+    static final int DEFAULT_MAX_LOOKUPS_IN_FLIGHT = 32;
 
-    private final String org;
-    private final String repo;
-    private final HBaseDatastore datastore;
+
+    private final HBaseRowKeyer rowKeyer;
     private final HBaseRawHelper helper;
-    private final HdLargeFileStore largeFileStore;
+    private final CheckoutSessions sessions;
+    private final ExecutorService crawlExecutor;
+    private final FolderListingCache folderCache;
+    private final MergeLockCache mergeLockCache;
+    private final FilePrefetcher filePrefetcher;
     private final CheckoutPathSet paths;
+    private final int maxLookupsInFlight;
 
     HBaseCheckoutHandler(
-            String org,
-            String repo,
-            HBaseDatastore datastore,
+            HBaseRowKeyer rowKeyer,
             HBaseRawHelper helper,
-            HdLargeFileStore largeFileStore,
-            CheckoutPathSet paths) {
-        this.org = org;
-        this.repo = repo;
-        this.datastore = datastore;
+            CheckoutSessions sessions,
+            ExecutorService crawlExecutor,
+            FolderListingCache folderCache,
+            MergeLockCache mergeLockCache,
+            FilePrefetcher filePrefetcher,
+            CheckoutPathSet paths,
+            int maxLookupsInFlight) {
+        Preconditions.checkArgument(maxLookupsInFlight > 0);
+        this.rowKeyer = rowKeyer;
         this.helper = helper;
-        this.largeFileStore = largeFileStore;
+        this.sessions = sessions;
+        this.crawlExecutor = crawlExecutor;
+        this.folderCache = folderCache;
+        this.mergeLockCache = mergeLockCache;
+        this.filePrefetcher = filePrefetcher;
         this.paths = paths;
+        this.maxLookupsInFlight = maxLookupsInFlight;
     }
 
 
     ServerCheckoutSpec computeCheckout(
-            String org, String repo, String branchName, long commitId)
+            String org, String repo, String branchName, long commitId, Optional<Long> syncedFromCommitId)
             throws IOException {
-        Set<String> fileIds = new HashSet<>();
-        RepoBrowser browser = datastore.getBrowser(org, repo).get();
+        List<FolderListing> folders = new ArrayList<>();
+        Set<String> fileIdsInFolders = new HashSet<>();
 
         CheckoutContentsHandler handler = new CheckoutContentsHandler() {
             @Override public void sendFolder(FolderListing folder) throws IOException {
-                // No op, we just want to know what file ids are in the checkout.
+                folders.add(folder);
             }
 
             @Override public void sendFile(String fileId) throws IOException {
-                String diffBaseFileId = fileId;
-                while (true) {
-                    fileIds.add(diffBaseFileId);
-                    FileEntry entry = browser.getFile(diffBaseFileId).get();
-                    if (entry.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
-                        diffBaseFileId = entry.getBaseEntryId().get();
-                    } else {
-                        break;
-                    }
-                }
+                fileIdsInFolders.add(fileId);
             }
         };
 
-        doCheckoutCrawl(org, repo, branchName, commitId, paths, handler);
-        return ServerCheckoutSpec.withServerFileIds(fileIds);
+        doCheckoutCrawl(org, repo, branchName, commitId, paths, syncedFromCommitId, handler);
+        Set<String> fileIds = withDiffBases(fileIdsInFolders);
+        String sessionId = sessions.save(org, repo, branchName, commitId, paths, folders, fileIds);
+        return ServerCheckoutSpec.withServerFileIdsAndSession(fileIds, sessionId);
     }
 
 
@@ -94,49 +102,59 @@ final class HBaseCheckoutHandler {
             HdObjectOutputStream objectsOut,
             ClientCheckoutSpec clientSpec)
             throws IOException {
-        Set<String> fileIdsFound = new HashSet<>();
-        CheckoutContentsHandler handler = new CheckoutContentsHandler() {
-            @Override public void sendFolder(FolderListing folder) throws IOException {
+        Optional<CheckoutSessions.Session> session = Optional.empty();
+        if (clientSpec.getCheckoutSessionId().isPresent()) {
+            session = sessions.take(clientSpec.getCheckoutSessionId().get(), org, repo, branchName, commitId, paths);
+        }
+
+        if (session.isPresent()) {
+            LOG.debug("Checkout: Using session %s", clientSpec.getCheckoutSessionId().get());
+            for (FolderListing folder : session.get().getFolders()) {
                 objectsOut.writeFolder("TODO toss folder ids", folder);
             }
 
-            @Override public void sendFile(String fileId) throws IOException {
-                fileIdsFound.add(fileId);
-            }
-        };
+        } else {
+            CheckoutContentsHandler handler = new CheckoutContentsHandler() {
+                @Override public void sendFolder(FolderListing folder) throws IOException {
+                    objectsOut.writeFolder("TODO toss folder ids", folder);
+                }
 
-        doCheckoutCrawl(org, repo, branchName, commitId, paths, handler);
+                @Override public void sendFile(String fileId) throws IOException {
+                    // No op, the client already told us which files it needs.
+                }
+            };
+            // The query may have skipped unchanged subtrees, but it's harmless to send them all here.
+            doCheckoutCrawl(org, repo, branchName, commitId, paths, Optional.empty(), handler);
+        }
 
-        RepoBrowser browser = datastore.getBrowser(org, repo).get();
-        Set<String> fileIdsClientNeeds = clientSpec.getFileIdsClientNeeds();
-        actuallySendFileEntries(fileIdsFound, fileIdsClientNeeds, browser, objectsOut);
+        // File lookups are pipelined with sending, in case the client is fetching a lot of them (e.g. a fresh clone).
+        filePrefetcher.sendAll(clientSpec.getFileIdsClientNeeds(), objectsOut);
         return CheckoutResult.ok();
     }
 
 
-    // TODO: Improve this, it's partly pointless. See the note above about not having to crawl twice.
-    private void actuallySendFileEntries(
-            Set<String> fileIdsFound,
-            Set<String> fileIdsClientNeeds,
-            RepoBrowser browser,
-            HdObjectOutputStream objectsOut)
-            throws IOException {
+    // Follows diff chains one link at a time, looking up each link's files in batches.
+    private Set<String> withDiffBases(Set<String> fileIds) throws IOException {
+        Set<String> out = new HashSet<>(fileIds);
+        Set<String> toLookUp = fileIds;
 
-        for (String fileIdToSend : fileIdsClientNeeds) {
-            FileEntry entry = browser.getFile(fileIdToSend).get();
-
-            if (entry.getStorageType() == FileEntry.StorageType.LARGE_FILE_STORE) {
-                HdLargeFileStore largeFileStore = datastore.getLargeFileStore();
-                HdLargeFileStore.FileWithSize largeFile = largeFileStore.getFileById(
-                        org, repo, entry.getId());
-                objectsOut.writeLargeFileContents(
-                        entry,
-                        largeFile.getContents(),
-                        Math.toIntExact(largeFile.getSizeInBytes()));
-            } else {
-                objectsOut.writeFile(fileIdToSend, entry);
+        while (!toLookUp.isEmpty()) {
+            Map<String, FileMetadata> metadata = helper.getFileMetadata(rowKeyer, toLookUp);
+            Set<String> bases = new HashSet<>();
+            for (String fileId : toLookUp) {
+                FileMetadata fileMetadata = metadata.get(fileId);
+                if (fileMetadata == null) {
+                    throw new IllegalStateException("File not found: " + fileId);
+                }
+                if (fileMetadata.getContentsType() == FileEntry.ContentsType.DIFF_GIT
+                        && out.add(fileMetadata.getBaseEntryId().get())) {
+                    bases.add(fileMetadata.getBaseEntryId().get());
+                }
             }
+            toLookUp = bases;
         }
+
+        return out;
     }
 
 
@@ -153,25 +171,58 @@ final class HBaseCheckoutHandler {
     }
 
 
-    // TODO! tests
+    // The result of looking up one subfolder during the crawl.
+    private static class SubfolderLookup {
+
+        private static SubfolderLookup unchanged() {
+            return new SubfolderLookup(true, Optional.empty());
+        }
+
+        private static SubfolderLookup of(Optional<FolderListing> listing) {
+            return new SubfolderLookup(false, listing);
+        }
+
+        private final boolean unchangedForClient;
+        private final Optional<FolderListing> listing;
+
+        private SubfolderLookup(boolean unchangedForClient, Optional<FolderListing> listing) {
+            this.unchangedForClient = unchangedForClient;
+            this.listing = listing;
+        }
+    }
+
+
+    // The crawl goes one level of the tree at a time. The subfolder lookups at one depth run concurrently on the crawl
+    // executor, up to maxLookupsInFlight at once, since each one is its own HBase scan. Then the results are handed to
+    // the handler in the same order as a sequential breadth-first crawl, so the output doesn't depend on timing.
     private void doCheckoutCrawl(
             String org,
             String repo,
             String branchName,
             long commitId,
             CheckoutPathSet paths,
+            Optional<Long> syncedFromCommitId,
             CheckoutContentsHandler handler)
             throws IOException {
         Preconditions.checkArgument(!paths.isEmpty(), "Empty set of checkout paths");
 
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
         // TODO: Make sure all folder browsing uses MergeStates correctly. I think HBaseRawHelper needs to be polished
         //     into a clean, correct browsing API.
-        final long nowTs = System.currentTimeMillis();
-        MergeStates mergeStates = MergeStates.fromPastSeconds(nowTs, TimeUnit.MINUTES.toSeconds(30), helper, rowKeyer);
-        FolderHistoryLoader historyLoader = FolderHistoryLoader.forBranch(rowKeyer, branchName, helper, mergeStates);
+        MergeStates mergeStates = mergeLockCache.getStates(helper, rowKeyer);
+        FolderHistoryLoader historyLoader = FolderHistoryLoader.forBranchWithCache(
+                rowKeyer, branchName, helper, mergeStates, folderCache);
+
+        // If the client is moving forward on main, it already has every subtree whose tree hash hasn't changed.
+        //
+        // NOTE: A sync to the same commit isn't pruned, because the client may be checking out a new path.
+        Optional<TreeHasher> treeHasher = Optional.empty();
+        if (branchName.equals("main")
+                && syncedFromCommitId.isPresent()
+                && syncedFromCommitId.get() < commitId) {
+            treeHasher = Optional.of(TreeHasher.forMain(rowKeyer, helper, mergeStates));
+        }
 
-        LinkedList<CheckoutCrawlEntry> foldersToCrawl = new LinkedList<>();
+        List<CheckoutCrawlEntry> thisLevel = new ArrayList<>();
         for (String path : paths.toList()) {
             Optional<FolderListing> headListing = historyLoader.getFolderAtCommit(commitId, path);
             if (!headListing.isPresent()) {
@@ -179,37 +230,118 @@ final class HBaseCheckoutHandler {
                         "No such folder found on the server: %s on branch %s:%d", path, branchName, commitId));
             }
             handler.sendFolder(headListing.get());
-            foldersToCrawl.add(new CheckoutCrawlEntry(path, headListing.get()));
+            thisLevel.add(new CheckoutCrawlEntry(path, headListing.get()));
         }
 
-        while (!foldersToCrawl.isEmpty()) {
-            CheckoutCrawlEntry thisCrawlEntry = foldersToCrawl.pop();
+        while (!thisLevel.isEmpty()) {
+            Map<String, SubfolderLookup> lookups = lookUpSubfolders(
+                    thisLevel, historyLoader, commitId, treeHasher, syncedFromCommitId);
+
+            List<CheckoutCrawlEntry> nextLevel = new ArrayList<>();
+            for (CheckoutCrawlEntry thisCrawlEntry : thisLevel) {
+                for (FolderListing.Entry entryInFolder : thisCrawlEntry.listing.getEntries()) {
+                    if (entryInFolder.getType() == FolderListing.Entry.Type.FOLDER) {
+                        String subfolderPath = thisCrawlEntry.path + entryInFolder.getName() + "/";
+                        SubfolderLookup lookup = lookups.get(subfolderPath);
+                        if (lookup.unchangedForClient) {
+                            LOG.debug("Checkout: Skipping unchanged subtree %s", subfolderPath);
+                            continue;
+
+                        } else if (lookup.listing.isEmpty()) {
+                            // There was some bug in client-server transmission or storage of folders. To fail
+                            // gracefully, just skip this folder.
+                            LOG.warn(
+                                    "BUG: No folder %s found on branch %s at commit %d",
+                                    subfolderPath, branchName, commitId);
+                            continue;
+                        }
+
+                        FolderListing thisEntryFolderListing = lookup.listing.get();
+                        handler.sendFolder(thisEntryFolderListing);
+                        nextLevel.add(new CheckoutCrawlEntry(subfolderPath, thisEntryFolderListing));
 
-            for (FolderListing.Entry entryInFolder : thisCrawlEntry.listing.getEntries()) {
-                if (entryInFolder.getType() == FolderListing.Entry.Type.FOLDER) {
-                    String subfolderPath = thisCrawlEntry.path + entryInFolder.getName() + "/";
-                    Optional<FolderListing> thisEntryFolderListingOpt = historyLoader.getFolderAtCommit(
-                            commitId, subfolderPath);
-                    if (thisEntryFolderListingOpt.isEmpty()) {
-                        // There was some bug in client-server transmission or storage of folders. To fail gracefully,
-                        // just skip this folder.
-                        LOG.warn(
-                                "BUG: No folder %s found on branch %s at commit %d",
-                                subfolderPath, branchName, commitId);
-                        continue;
+                    } else {
+                        handler.sendFile(entryInFolder.getId());
                     }
-                    FolderListing thisEntryFolderListing = thisEntryFolderListingOpt.get();
-                    handler.sendFolder(thisEntryFolderListing);
-                    // BFS to stay within a folder, for row locality.
-                    // TODO: Test this vs. DFS. Because of prefixing, maybe DFS is faster.
-                    foldersToCrawl.add(
-                            new CheckoutCrawlEntry(subfolderPath, thisEntryFolderListing));
-
-                } else {
-                    handler.sendFile(entryInFolder.getId());
                 }
             }
+
+            thisLevel = nextLevel;
+        }
+    }
+
+
+    private Map<String, SubfolderLookup> lookUpSubfolders(
+            List<CheckoutCrawlEntry> level,
+            FolderHistoryLoader historyLoader,
+            long commitId,
+            Optional<TreeHasher> treeHasher,
+            Optional<Long> syncedFromCommitId)
+            throws IOException {
+        List<String> subfolderPaths = new ArrayList<>();
+        for (CheckoutCrawlEntry crawlEntry : level) {
+            for (FolderListing.Entry entryInFolder : crawlEntry.listing.getEntries()) {
+                if (entryInFolder.getType() == FolderListing.Entry.Type.FOLDER) {
+                    subfolderPaths.add(crawlEntry.path + entryInFolder.getName() + "/");
+                }
+            }
+        }
+
+        // A window over the level: whenever the oldest lookup is done, the next one is submitted.
+        Map<String, SubfolderLookup> out = new HashMap<>();
+        ArrayDeque<Future<SubfolderLookup>> inFlight = new ArrayDeque<>();
+        int nextToSubmit = 0;
+        int nextToCollect = 0;
+        try {
+            while (nextToCollect < subfolderPaths.size()) {
+                while (nextToSubmit < subfolderPaths.size() && inFlight.size() < maxLookupsInFlight) {
+                    final String subfolderPath = subfolderPaths.get(nextToSubmit);
+                    inFlight.addLast(crawlExecutor.submit(() -> {
+                        if (treeHasher.isPresent()
+                                && isUnchangedSince(
+                                        treeHasher.get(), syncedFromCommitId.get(), commitId, subfolderPath)) {
+                            return SubfolderLookup.unchanged();
+                        }
+                        return SubfolderLookup.of(historyLoader.getFolderAtCommit(commitId, subfolderPath));
+                    }));
+                    ++nextToSubmit;
+                }
+
+                SubfolderLookup lookup = inFlight.peekFirst().get();
+                inFlight.removeFirst();
+                out.put(subfolderPaths.get(nextToCollect), lookup);
+                ++nextToCollect;
+            }
+
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException(interruptedEx);
+
+        } catch (ExecutionException executionEx) {
+            if (executionEx.getCause() instanceof IOException) {
+                throw (IOException) executionEx.getCause();
+            } else {
+                throw new IOException(executionEx.getCause());
+            }
+
+        } finally {
+            for (Future<SubfolderLookup> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+
+        return out;
+    }
+
+
+    private boolean isUnchangedSince(TreeHasher treeHasher, long fromCommitId, long toCommitId, String path)
+            throws IOException {
+        Optional<String> hashTo = treeHasher.getTreeHash(toCommitId, path);
+        if (hashTo.isEmpty()) {
+            return false;
         }
+        Optional<String> hashFrom = treeHasher.getTreeHash(fromCommitId, path);
+        return hashFrom.isPresent() && hashFrom.get().equals(hashTo.get());
     }
 
 }
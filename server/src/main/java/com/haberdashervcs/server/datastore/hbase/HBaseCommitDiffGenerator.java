@@ -12,6 +12,8 @@ import com.haberdashervcs.common.diff.DiffHunk;
 import com.haberdashervcs.common.diff.TextOrBinaryChecker;
 import com.haberdashervcs.common.diff.git.HistogramDiffer;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.CommitEntry;
 import com.haberdashervcs.common.objects.FileEntry;
 import com.haberdashervcs.common.protobuf.ReviewsProto;
@@ -21,13 +23,23 @@ import com.haberdashervcs.server.datastore.HdLargeFileStore;
 
 /**
  * Takes the changes in a CommitEntry and generates the corresponding review/diff contents.
+ *
+ * A text diff that's over the differ's budgets is stored as one hunk covering the changed region, which the review
+ * shows like any other hunk.
  */
 final class HBaseCommitDiffGenerator {
 
+    private static final HdLogger LOG = HdLoggers.create(HBaseCommitDiffGenerator.class);
+
 
     static HBaseCommitDiffGenerator of(
-            String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer, HdLargeFileStore largeFileStore) {
-        return new HBaseCommitDiffGenerator(branchName, helper, rowKeyer, largeFileStore);
+            String branchName,
+            HBaseRawHelper helper,
+            HBaseRowKeyer rowKeyer,
+            HdLargeFileStore largeFileStore,
+            LineIndexCache lineIndexCache,
+            HistogramDiffer differ) {
+        return new HBaseCommitDiffGenerator(branchName, helper, rowKeyer, largeFileStore, lineIndexCache, differ);
     }
 
 
@@ -35,13 +47,22 @@ final class HBaseCommitDiffGenerator {
     private final HBaseRawHelper helper;
     private final HBaseRowKeyer rowKeyer;
     private final HdLargeFileStore largeFileStore;
+    private final LineIndexCache lineIndexCache;
+    private final HistogramDiffer differ;
 
     private HBaseCommitDiffGenerator(
-            String branchName, HBaseRawHelper helper, HBaseRowKeyer rowKeyer, HdLargeFileStore largeFileStore) {
+            String branchName,
+            HBaseRawHelper helper,
+            HBaseRowKeyer rowKeyer,
+            HdLargeFileStore largeFileStore,
+            LineIndexCache lineIndexCache,
+            HistogramDiffer differ) {
         this.branchName = branchName;
         this.helper = helper;
         this.rowKeyer = rowKeyer;
         this.largeFileStore = largeFileStore;
+        this.lineIndexCache = lineIndexCache;
+        this.differ = differ;
     }
 
 
@@ -99,8 +120,10 @@ final class HBaseCommitDiffGenerator {
 
         FileEntry previousFile = helper.getFile(rowKeyer.forFile(changedPath.getPreviousId().get()));
         FileEntry thisFile = helper.getFile(rowKeyer.forFile(changedPath.getThisId().get()));
-        FileBrowser previousFileBrowser = HBaseFileBrowser.forFile(previousFile, largeFileStore, rowKeyer, helper);
-        FileBrowser thisFileBrowser = HBaseFileBrowser.forFile(thisFile, largeFileStore, rowKeyer, helper);
+        FileBrowser previousFileBrowser = HBaseFileBrowser.forFile(
+                previousFile, largeFileStore, rowKeyer, helper, lineIndexCache);
+        FileBrowser thisFileBrowser = HBaseFileBrowser.forFile(
+                thisFile, largeFileStore, rowKeyer, helper, lineIndexCache);
         RandomAccessBytes previousFileContents = previousFileBrowser.getWholeContents();
         RandomAccessBytes thisFileContents = thisFileBrowser.getWholeContents();
         TextOrBinaryChecker.TextOrBinaryResult previousBinaryCheck = TextOrBinaryChecker.check(previousFileContents);
@@ -128,10 +151,16 @@ final class HBaseCommitDiffGenerator {
             out.setBinaryDiff(bDiff);
 
         } else {
-            List<DiffHunk> diffHunks = new HistogramDiffer().computeLineDiffs(
-                    previousFileContents, thisFileContents);
+            HistogramDiffer.Result diffResult = differ.diff(
+                    previousFileBrowser.getWholeText(), thisFileBrowser.getWholeText());
+            if (diffResult.isTooLarge()) {
+                LOG.info(
+                        "Diff of %s in commit %d on branch %s is too large, storing it as one hunk",
+                        changedPath.getPath(), commitId, branchName);
+                out.setTooLarge(true);
+            }
             List<ReviewsProto.TextDiffHunk> protoHunks = new ArrayList<>();
-            for (DiffHunk hunk : diffHunks) {
+            for (DiffHunk hunk : diffResult.getHunks()) {
                 ReviewsProto.TextDiffHunk pHunk = ReviewsProto.TextDiffHunk.newBuilder()
                         .setOriginalFromLine(hunk.originalStart)
                         .setOriginalToLine(hunk.originalEnd)
@@ -1,11 +1,17 @@
 package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.haberdashervcs.common.diff.git.HistogramDiffer;
 import com.haberdashervcs.common.io.HdObjectInputStream;
 import com.haberdashervcs.common.io.HdObjectOutputStream;
 import com.haberdashervcs.common.logging.HdLogger;
@@ -31,25 +37,274 @@ import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.TableDescriptor;
 import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 
 public final class HBaseDatastore implements HdDatastore {
 
     private static HdLogger LOG = HdLoggers.create(HBaseDatastore.class);
 
+    private static final int CHECKOUT_CRAWL_THREADS = 16;
+    private static final int CHECKOUT_FETCH_THREADS = 16;
+    private static final int MERGE_CHECK_THREADS = 8;
+    private static final int MERGE_QUEUE_THREADS = 8;
+
+    // Servers that take their settings from config repack once a day unless told otherwise.
+    private static final long SERVER_DELTA_REPACK_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final List<String> ALL_TABLES = ImmutableList.of(
+            "Branches", "BranchPaths", "Files", "Folders", "TreeHashes", "Commits", "CommitPaths", "Merges",
+            "Repos", "Users", "Tokens", "Tasks");
+
 
     public static HBaseDatastore forConnection(Connection conn, HdLargeFileStore largeFileStore) {
-        return new HBaseDatastore(conn, largeFileStore);
+        return builder(conn, largeFileStore).build();
+    }
+
+
+    public static final class Builder {
+        private final Connection conn;
+        private final HdLargeFileStore largeFileStore;
+        private long folderCacheMaxBytes = FolderListingCache.DEFAULT_MAX_BYTES;
+        private long pushWriteBufferBytes = HBaseRawHelper.DEFAULT_WRITE_BUFFER_BYTES;
+        private int fileLookupBatchSize = HBaseRawHelper.DEFAULT_FILE_LOOKUP_BATCH_SIZE;
+        private long checkoutBytesInFlight = FilePrefetcher.DEFAULT_MAX_BYTES_IN_FLIGHT;
+        private int maxMergeGroupSize = MergeQueue.DEFAULT_MAX_GROUP_SIZE;
+        private long deltaRepackIntervalMillis = 0;
+        private long deltaRepackBytesPerSecond = DeltaChainRepacker.DEFAULT_MAX_BYTES_PER_SECOND;
+        private long lineIndexCacheMaxBytes = LineIndexCache.DEFAULT_MAX_BYTES;
+        private int diffMaxEdits = HistogramDiffer.DEFAULT_MAX_EDITS;
+        private long diffMaxMillis = HistogramDiffer.DEFAULT_MAX_MILLIS;
+
+        private Builder(Connection conn, HdLargeFileStore largeFileStore) {
+            this.conn = checkNotNull(conn);
+            this.largeFileStore = checkNotNull(largeFileStore);
+        }
+
+        /**
+         * The (estimated) memory to use for caching folder listings. 0 turns off the cache.
+         */
+        public Builder withFolderCacheMaxBytes(long folderCacheMaxBytes) {
+            checkArgument(folderCacheMaxBytes >= 0);
+            this.folderCacheMaxBytes = folderCacheMaxBytes;
+            return this;
+        }
+
+        /**
+         * How much each push buffers per table before sending its writes.
+         */
+        public Builder withPushWriteBufferBytes(long pushWriteBufferBytes) {
+            checkArgument(pushWriteBufferBytes > 0);
+            this.pushWriteBufferBytes = pushWriteBufferBytes;
+            return this;
+        }
+
+        /**
+         * How many rows go in each multi-get when looking up files by id, for push and checkout queries.
+         */
+        public Builder withFileLookupBatchSize(int fileLookupBatchSize) {
+            checkArgument(fileLookupBatchSize > 0);
+            this.fileLookupBatchSize = fileLookupBatchSize;
+            return this;
+        }
+
+        /**
+         * How many bytes of file entries each checkout may look up ahead of sending them.
+         */
+        public Builder withCheckoutBytesInFlight(long checkoutBytesInFlight) {
+            checkArgument(checkoutBytesInFlight > 0);
+            this.checkoutBytesInFlight = checkoutBytesInFlight;
+            return this;
+        }
+
+        /**
+         * How many queued merges into the same repo may be run together, with one reservation of commit ids.
+         */
+        public Builder withMaxMergeGroupSize(int maxMergeGroupSize) {
+            checkArgument(maxMergeGroupSize > 0);
+            this.maxMergeGroupSize = maxMergeGroupSize;
+            return this;
+        }
+
+        /**
+         * How long to wait between passes of DeltaChainRepacker over every repo, and how fast it may read files. An
+         * interval of 0 (the default) turns off repacking in this server.
+         */
+        public Builder withDeltaRepack(long intervalMillis, long maxBytesPerSecond) {
+            checkArgument(intervalMillis >= 0);
+            checkArgument(maxBytesPerSecond > 0);
+            this.deltaRepackIntervalMillis = intervalMillis;
+            this.deltaRepackBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * The (estimated) memory to use for caching line indexes of text files. 0 turns off the cache.
+         */
+        public Builder withLineIndexCacheMaxBytes(long lineIndexCacheMaxBytes) {
+            checkArgument(lineIndexCacheMaxBytes >= 0);
+            this.lineIndexCacheMaxBytes = lineIndexCacheMaxBytes;
+            return this;
+        }
+
+        /**
+         * Limits on the line diff of each file in a push's review. Past either one, the file's diff is stored as one
+         * hunk over the whole changed region.
+         */
+        public Builder withDiffBudgets(int maxEdits, long maxMillis) {
+            checkArgument(maxEdits > 0);
+            checkArgument(maxMillis > 0);
+            this.diffMaxEdits = maxEdits;
+            this.diffMaxMillis = maxMillis;
+            return this;
+        }
+
+        /**
+         * Applies the settings given in props, for servers to read from their config or from system properties.
+         * Settings that aren't given keep their current values, except that the delta repack runs once a day unless
+         * hd.deltaRepack.intervalMillis says otherwise. Setting that to 0 turns it off.
+         *
+         * <pre>
+         * hd.folderCache.maxBytes
+         * hd.push.writeBufferBytes
+         * hd.fileLookup.batchSize
+         * hd.checkout.bytesInFlight
+         * hd.merge.maxGroupSize
+         * hd.deltaRepack.intervalMillis, hd.deltaRepack.maxBytesPerSecond
+         * hd.lineIndexCache.maxBytes
+         * hd.diff.maxEdits, hd.diff.maxMillis
+         * </pre>
+         */
+        public Builder withSettingsFrom(Properties props) {
+            withFolderCacheMaxBytes(longSetting(props, "hd.folderCache.maxBytes", folderCacheMaxBytes));
+            withPushWriteBufferBytes(longSetting(props, "hd.push.writeBufferBytes", pushWriteBufferBytes));
+            withFileLookupBatchSize(intSetting(props, "hd.fileLookup.batchSize", fileLookupBatchSize));
+            withCheckoutBytesInFlight(longSetting(props, "hd.checkout.bytesInFlight", checkoutBytesInFlight));
+            withMaxMergeGroupSize(intSetting(props, "hd.merge.maxGroupSize", maxMergeGroupSize));
+            withDeltaRepack(
+                    longSetting(props, "hd.deltaRepack.intervalMillis", SERVER_DELTA_REPACK_INTERVAL_MILLIS),
+                    longSetting(props, "hd.deltaRepack.maxBytesPerSecond", deltaRepackBytesPerSecond));
+            withLineIndexCacheMaxBytes(longSetting(props, "hd.lineIndexCache.maxBytes", lineIndexCacheMaxBytes));
+            withDiffBudgets(
+                    intSetting(props, "hd.diff.maxEdits", diffMaxEdits),
+                    longSetting(props, "hd.diff.maxMillis", diffMaxMillis));
+            return this;
+        }
+
+        private static long longSetting(Properties props, String name, long defaultValue) {
+            String value = props.getProperty(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                long parsed = Long.parseLong(value.trim());
+                LOG.info("Datastore setting %s = %d", name, parsed);
+                return parsed;
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(String.format("Invalid setting %s: %s", name, value), ex);
+            }
+        }
+
+        private static int intSetting(Properties props, String name, int defaultValue) {
+            long value = longSetting(props, name, defaultValue);
+            checkArgument(value <= Integer.MAX_VALUE, "Setting %s is too large: %s", name, value);
+            return (int) value;
+        }
+
+        public HBaseDatastore build() {
+            return new HBaseDatastore(this);
+        }
+    }
+
+    public static Builder builder(Connection conn, HdLargeFileStore largeFileStore) {
+        return new Builder(conn, largeFileStore);
     }
 
 
     private final Connection conn;
     private final HBaseRawHelper helper;
     private final HdLargeFileStore largeFileStore;
+    private final CheckoutSessions checkoutSessions;
+    private final ExecutorService checkoutCrawlExecutor;
+    private final ExecutorService checkoutFetchExecutor;
+    private final ExecutorService mergeCheckExecutor;
+    private final MergeQueue mergeQueue;
+    private final FolderListingCache folderCache;
+    private final LineIndexCache lineIndexCache;
+    private final HistogramDiffer differ;
+    private final MergeLockCache mergeLockCache;
+    private final long pushWriteBufferBytes;
+    private final long checkoutBytesInFlight;
+
+    private HBaseDatastore(Builder builder) {
+        this.conn = builder.conn;
+        this.helper = HBaseRawHelper.forConnection(conn, builder.fileLookupBatchSize);
+        this.largeFileStore = builder.largeFileStore;
+        this.checkoutSessions = CheckoutSessions.withDefaults();
+        // Shared by all checkouts, to bound the number of concurrent folder scans against HBase.
+        this.checkoutCrawlExecutor = Executors.newFixedThreadPool(
+                CHECKOUT_CRAWL_THREADS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("checkout-crawl-%d")
+                        .setDaemon(true)
+                        .build());
+        // Likewise for file lookups. This is separate from the crawl pool so that file sends don't wait on crawls.
+        this.checkoutFetchExecutor = Executors.newFixedThreadPool(
+                CHECKOUT_FETCH_THREADS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("checkout-fetch-%d")
+                        .setDaemon(true)
+                        .build());
+        // For the conflict scans at the start of a merge.
+        this.mergeCheckExecutor = Executors.newFixedThreadPool(
+                MERGE_CHECK_THREADS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("merge-check-%d")
+                        .setDaemon(true)
+                        .build());
+        // Merges into each repo run one group at a time, so this bounds how many repos merge at once.
+        ExecutorService mergeQueueExecutor = Executors.newFixedThreadPool(
+                MERGE_QUEUE_THREADS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("merge-queue-%d")
+                        .setDaemon(true)
+                        .build());
+        this.mergeLockCache = MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS);
+        this.mergeQueue = MergeQueue.of(
+                new HBaseMerger(mergeCheckExecutor, mergeLockCache),
+                helper,
+                mergeQueueExecutor,
+                builder.maxMergeGroupSize);
+        this.folderCache = FolderListingCache.withMaxBytes(builder.folderCacheMaxBytes);
+        this.lineIndexCache = LineIndexCache.withMaxBytes(builder.lineIndexCacheMaxBytes);
+        this.differ = HistogramDiffer.withBudgets(builder.diffMaxEdits, builder.diffMaxMillis);
+        this.pushWriteBufferBytes = builder.pushWriteBufferBytes;
+        this.checkoutBytesInFlight = builder.checkoutBytesInFlight;
+
+        if (builder.deltaRepackIntervalMillis > 0) {
+            scheduleDeltaRepack(builder.deltaRepackIntervalMillis, builder.deltaRepackBytesPerSecond);
+        }
+    }
 
-    private HBaseDatastore(Connection conn, HdLargeFileStore largeFileStore) {
-        this.conn = conn;
-        this.helper = HBaseRawHelper.forConnection(conn);
-        this.largeFileStore = largeFileStore;
+
+    private void scheduleDeltaRepack(long intervalMillis, long maxBytesPerSecond) {
+        ScheduledExecutorService repackExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("delta-repack-%d")
+                        .setDaemon(true)
+                        .build());
+        repackExecutor.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        DeltaChainRepacker.of(conn, helper, maxBytesPerSecond).repackAllRepos();
+                    } catch (Throwable ex) {
+                        LOG.exception(ex, "Error repacking delta chains");
+                    }
+                },
+                intervalMillis,
+                intervalMillis,
+                TimeUnit.MILLISECONDS);
     }
 
 
@@ -66,31 +321,57 @@ public final class HBaseDatastore implements HdDatastore {
         }
 
         HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
 
         RepoEntry repoEntry = RepoEntry.of(org, repo);
         helper.putRepoEntryIfNotExists(repoEntry);
+        try (HBaseRawHelper.RepoWrite repoWrite = helper.startRepoWrite(org, repo)) {
+            HBaseRowKeyer rowKeyer = repoWrite.getRowKeyer();
+
+            BranchEntry main = BranchEntry.of("main", 1, 1);
+            helper.createBranch(rowKeyer.forBranch("main"), main);
 
-        BranchEntry main = BranchEntry.of("main", 1, 1);
-        helper.createBranch(rowKeyer.forBranch("main"), main);
+            FolderListing rootFolder = FolderListing.withoutMergeLock(
+                    ImmutableList.of(), "/", "main", 1);
+            helper.putFolderIfNotExists(
+                    rowKeyer.forFolderAt("main", rootFolder.getPath(), rootFolder.getCommitId()),
+                    rootFolder);
 
-        FolderListing rootFolder = FolderListing.withoutMergeLock(
-                ImmutableList.of(), "/", "main", 1);
-        helper.putFolderIfNotExists(
-                rowKeyer.forFolderAt("main", rootFolder.getPath(), rootFolder.getCommitId()),
-                rootFolder);
+            MergeStates mergeStates = mergeLockCache.getStates(helper, rowKeyer);
+            TreeHasher.forMain(rowKeyer, helper, mergeStates).writeTreeHashes(
+                    rootFolder.getCommitId(), ImmutableList.of(rootFolder), Optional.empty());
+        }
     }
 
 
     @Override
     public ServerCheckoutSpec computeCheckout(
-            String org, String repo, String branchName, long commitId, CheckoutPathSet paths)
+            String org,
+            String repo,
+            String branchName,
+            long commitId,
+            CheckoutPathSet paths,
+            Optional<Long> syncedFromCommitId)
             throws Exception {
 
-        // TODO: Fix cyclic dependency b/w this class and HBaseCheckoutHandler.
-        HBaseCheckoutHandler checkoutHandler = new HBaseCheckoutHandler(
-                org, repo, this, helper, largeFileStore, paths);
-        return checkoutHandler.computeCheckout(org, repo, branchName, commitId);
+        HBaseCheckoutHandler checkoutHandler = newCheckoutHandler(org, repo, paths);
+        return checkoutHandler.computeCheckout(org, repo, branchName, commitId, syncedFromCommitId);
+    }
+
+
+    private HBaseCheckoutHandler newCheckoutHandler(String org, String repo, CheckoutPathSet paths)
+            throws IOException {
+        HBaseRowKeyer rowKeyer = helper.getRowKeyer(org, repo);
+        return new HBaseCheckoutHandler(
+                rowKeyer,
+                helper,
+                checkoutSessions,
+                checkoutCrawlExecutor,
+                folderCache,
+                mergeLockCache,
+                FilePrefetcher.forRepo(
+                        rowKeyer, helper, largeFileStore, checkoutFetchExecutor, checkoutBytesInFlight),
+                paths,
+                HBaseCheckoutHandler.DEFAULT_MAX_LOOKUPS_IN_FLIGHT);
     }
 
 
@@ -99,7 +380,8 @@ public final class HBaseDatastore implements HdDatastore {
             ServerProto.PushQuery pushQuery,
             OrgSubscription orgSub)
             throws Exception {
-        HBasePushHandler pushHandler = new HBasePushHandler(helper, largeFileStore, orgSub);
+        HBasePushHandler pushHandler = new HBasePushHandler(
+                helper, largeFileStore, orgSub, pushWriteBufferBytes, lineIndexCache, differ);
         return pushHandler.handleQuery(pushQuery);
     }
 
@@ -114,7 +396,8 @@ public final class HBaseDatastore implements HdDatastore {
             HdObjectInputStream objectsIn,
             OrgSubscription orgSub)
             throws Exception {
-        HBasePushHandler pushHandler = new HBasePushHandler(helper, largeFileStore, orgSub);
+        HBasePushHandler pushHandler = new HBasePushHandler(
+                helper, largeFileStore, orgSub, pushWriteBufferBytes, lineIndexCache, differ);
         pushHandler.writeObjects(userId, objectsIn);
     }
 
@@ -131,8 +414,7 @@ public final class HBaseDatastore implements HdDatastore {
             throws IOException {
         try {
             // TODO: Fix cyclic dependency b/w this class and HBaseCheckoutHandler.
-            HBaseCheckoutHandler checkoutHandler = new HBaseCheckoutHandler(
-                    org, repo, this, helper, largeFileStore, paths);
+            HBaseCheckoutHandler checkoutHandler = newCheckoutHandler(org, repo, paths);
             return checkoutHandler.doCheckout(org, repo, branchName, commitId, objectsOut, clientSpec);
         } catch (IOException ioEx) {
             LOG.exception(ioEx, "Error checking out paths: %s", paths);
@@ -143,8 +425,8 @@ public final class HBaseDatastore implements HdDatastore {
 
     @Override
     public Optional<BranchEntry> getBranch(String org, String repo, String branchName) {
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
         try {
+            HBaseRowKeyer rowKeyer = helper.getRowKeyer(org, repo);
             return helper.getBranch(rowKeyer.forBranch(branchName));
         } catch (IOException ioEx) {
             LOG.exception(ioEx, "Error getting branch head for: %s", branchName);
@@ -155,9 +437,7 @@ public final class HBaseDatastore implements HdDatastore {
 
     @Override
     public MergeResult merge(String org, String repo, String branchName, long headCommitId) throws IOException {
-        HBaseMerger merger = new HBaseMerger();
-        MergeResult result = merger.merge(org, repo, branchName, headCommitId, helper);
-        return result;
+        return mergeQueue.merge(org, repo, branchName, headCommitId);
     }
 
 
@@ -167,7 +447,9 @@ public final class HBaseDatastore implements HdDatastore {
         if (entry.isEmpty()) {
             return Optional.empty();
         }
-        return Optional.of(HBaseRepoBrowser.forRepo(entry.get(), helper, largeFileStore));
+        HBaseRowKeyer rowKeyer = helper.getRowKeyer(org, repo);
+        return Optional.of(HBaseRepoBrowser.forRepo(
+                entry.get(), rowKeyer, helper, largeFileStore, folderCache, mergeLockCache, lineIndexCache));
     }
 
 
@@ -181,13 +463,7 @@ public final class HBaseDatastore implements HdDatastore {
     public void resetAllData() throws IOException {
         Admin admin = conn.getAdmin();
 
-        final List<String> allTables = ImmutableList.of(
-                "Branches", "Files", "Folders", "Commits", "Merges", "Repos", "Users", "Tokens", "Tasks");
-
-        final List<String> cfMainTables = new ArrayList<>(allTables);
-        cfMainTables.remove("Users");
-
-        for (String nameStr : allTables) {
+        for (String nameStr : ALL_TABLES) {
             TableName name = TableName.valueOf(nameStr);
             if (admin.tableExists(name)) {
                 if (admin.isTableEnabled(name)) {
@@ -197,20 +473,37 @@ public final class HBaseDatastore implements HdDatastore {
             }
         }
 
-        for (String nameStr : cfMainTables) {
-            TableDescriptor desc = TableDescriptorBuilder
-                    .newBuilder(TableName.valueOf(nameStr))
-                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
-                    .build();
+        createMissingTables();
+    }
+
+
+    /**
+     * Creates any of the datastore's tables that don't exist yet, for a new (or embedded) deployment.
+     */
+    public void createMissingTables() throws IOException {
+        Admin admin = conn.getAdmin();
+
+        for (String nameStr : ALL_TABLES) {
+            TableName name = TableName.valueOf(nameStr);
+            if (admin.tableExists(name)) {
+                continue;
+            }
+
+            final TableDescriptor desc;
+            if (nameStr.equals("Users")) {
+                // TODO: This shouldn't use separate column families.
+                desc = TableDescriptorBuilder
+                        .newBuilder(name)
+                        .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfEmailToId"))
+                        .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfIdToUser"))
+                        .build();
+            } else {
+                desc = TableDescriptorBuilder
+                        .newBuilder(name)
+                        .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
+                        .build();
+            }
             admin.createTable(desc);
         }
-
-        // TODO: This shouldn't use separate column families.
-        TableDescriptor userDesc = TableDescriptorBuilder
-                .newBuilder(TableName.valueOf("Users"))
-                .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfEmailToId"))
-                .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfIdToUser"))
-                .build();
-        admin.createTable(userDesc);
     }
 }
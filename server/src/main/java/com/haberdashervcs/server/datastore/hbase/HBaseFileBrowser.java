@@ -2,9 +2,15 @@ package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
+import com.google.common.collect.ImmutableList;
 import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.diff.git.LineIndex;
 import com.haberdashervcs.common.diff.git.PatchedViewRandomAccessBytes;
+import com.haberdashervcs.common.diff.git.RabTextSequence;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
@@ -19,8 +25,12 @@ final class HBaseFileBrowser implements FileBrowser {
 
 
     static HBaseFileBrowser forFile(
-            FileEntry file, HdLargeFileStore largeFileStore, HBaseRowKeyer rowKeyer, HBaseRawHelper helper) {
-        return new HBaseFileBrowser(file, largeFileStore, rowKeyer, helper);
+            FileEntry file,
+            HdLargeFileStore largeFileStore,
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            LineIndexCache lineIndexCache) {
+        return new HBaseFileBrowser(file, largeFileStore, rowKeyer, helper, lineIndexCache);
     }
 
 
@@ -28,41 +38,85 @@ final class HBaseFileBrowser implements FileBrowser {
     private final HdLargeFileStore largeFileStore;
     private final HBaseRowKeyer rowKeyer;
     private final HBaseRawHelper helper;
+    private final LineIndexCache lineIndexCache;
+
+    // Resolving a chain fetches every entry in it, so callers that want both the bytes and the text only pay once.
+    private RandomAccessBytes wholeContents = null;
 
     private HBaseFileBrowser(
-            FileEntry file, HdLargeFileStore largeFileStore, HBaseRowKeyer rowKeyer, HBaseRawHelper helper) {
+            FileEntry file,
+            HdLargeFileStore largeFileStore,
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            LineIndexCache lineIndexCache) {
         this.file = file;
         this.largeFileStore = largeFileStore;
         this.rowKeyer = rowKeyer;
         this.helper = helper;
+        this.lineIndexCache = lineIndexCache;
     }
 
 
     @Override
     public RandomAccessBytes getWholeContents() throws IOException {
+        if (wholeContents == null) {
+            wholeContents = resolveContents();
+        }
+        return wholeContents;
+    }
+
 
+    private RandomAccessBytes resolveContents() throws IOException {
         if (file.getContentsType() == FileEntry.ContentsType.FULL) {
             return getEntryContents(file);
         }
 
-        FileEntry currentEntry = file;
-        ArrayList<RandomAccessBytes> diffs = new ArrayList<>();
-        // We search N+1 times, because we allow N diffs, plus 1 full entry as the base.
-        for (int i = 0; i < HdConstants.MAX_DIFF_SEARCH + 1; ++i) {
+        // DeltaChainRepacker may rewrite an entry between the metadata walk and the fetch. The file's bytes are the
+        // same either way, so walk the new chain.
+        Optional<RandomAccessBytes> contents = resolveChain();
+        if (contents.isEmpty()) {
+            LOG.info("Chain for %s changed while reading it, retrying", file.getId());
+            contents = resolveChain();
+        }
+        if (contents.isEmpty()) {
+            throw new IllegalStateException("Chain for " + file.getId() + " keeps changing");
+        }
+        return contents.get();
+    }
+
 
-            RandomAccessBytes entryContents = getEntryContents(currentEntry);
+    @Override
+    public RabTextSequence getWholeText() throws IOException {
+        RandomAccessBytes contents = getWholeContents();
+        LineIndexCache.Key key = LineIndexCache.Key.of(rowKeyer.getOrg(), rowKeyer.getRepo(), file.getId());
+        LineIndex lines = lineIndexCache.getIfPresent(key);
+        if (lines == null) {
+            lines = LineIndex.of(contents);
+            lineIndexCache.put(key, lines);
+        }
+        return new RabTextSequence(contents, lines);
+    }
 
-            if (currentEntry.getContentsType() == FileEntry.ContentsType.FULL) {
-                PatchedViewRandomAccessBytes patchedContents = PatchedViewRandomAccessBytes.build(
-                        entryContents, diffs);
-                return patchedContents;
 
-            } else if (currentEntry.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
-                diffs.add(0, entryContents);
-                currentEntry = helper.getFile(rowKeyer.forFile(currentEntry.getBaseEntryId().get()));
+    private Optional<RandomAccessBytes> resolveChain() throws IOException {
+        // Walk the chain through metadata only, then fetch the entries all at once.
+        List<String> chainIds = new ArrayList<>();
+        String currentId = file.getBaseEntryId().get();
+        // We allow N diffs, plus 1 full entry as the base. This file is the first diff.
+        for (int i = 0; i < HdConstants.MAX_DIFF_SEARCH; ++i) {
+            chainIds.add(currentId);
+            Map<String, FileMetadata> metadata = helper.getFileMetadata(rowKeyer, ImmutableList.of(currentId));
+            if (!metadata.containsKey(currentId)) {
+                throw new IllegalStateException("File not found: " + currentId);
+            }
 
+            FileMetadata current = metadata.get(currentId);
+            if (current.getContentsType() == FileEntry.ContentsType.FULL) {
+                return patchChain(chainIds);
+            } else if (current.getContentsType() == FileEntry.ContentsType.DIFF_GIT) {
+                currentId = current.getBaseEntryId().get();
             } else {
-                throw new UnsupportedOperationException("Unknown contents type: " + file.getContentsType());
+                throw new UnsupportedOperationException("Unknown contents type: " + current.getContentsType());
             }
         }
 
@@ -70,6 +124,39 @@ final class HBaseFileBrowser implements FileBrowser {
     }
 
 
+    // The chain ids go from this file's base down to the full entry. Returns empty if the fetched entries no longer
+    // form that chain.
+    private Optional<RandomAccessBytes> patchChain(List<String> chainIds) throws IOException {
+        Map<String, FileEntry> entries = helper.getFiles(rowKeyer, chainIds);
+
+        ArrayList<RandomAccessBytes> diffs = new ArrayList<>();
+        diffs.add(getEntryContents(file));
+        for (int i = 0; i < chainIds.size() - 1; ++i) {
+            FileEntry entry = getFromBatch(entries, chainIds.get(i));
+            if (entry.getContentsType() != FileEntry.ContentsType.DIFF_GIT
+                    || !entry.getBaseEntryId().get().equals(chainIds.get(i + 1))) {
+                return Optional.empty();
+            }
+            diffs.add(0, getEntryContents(entry));
+        }
+
+        FileEntry fullEntry = getFromBatch(entries, chainIds.get(chainIds.size() - 1));
+        if (fullEntry.getContentsType() != FileEntry.ContentsType.FULL) {
+            return Optional.empty();
+        }
+        return Optional.of(PatchedViewRandomAccessBytes.build(getEntryContents(fullEntry), diffs));
+    }
+
+
+    private FileEntry getFromBatch(Map<String, FileEntry> entries, String fileId) {
+        FileEntry entry = entries.get(fileId);
+        if (entry == null) {
+            throw new IllegalStateException("File not found: " + fileId);
+        }
+        return entry;
+    }
+
+
     private RandomAccessBytes getEntryContents(FileEntry entry) throws IOException {
         if (entry.getStorageType() == FileEntry.StorageType.DATASTORE) {
             return entry.getEntryContents();
@@ -2,12 +2,23 @@ package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.BranchEntry;
@@ -22,9 +33,98 @@ final class HBaseMerger {
 
     private static final HdLogger LOG = HdLoggers.create(HBaseMerger.class);
 
+    // Paths per multi-range scan in the conflict check.
+    static final int CONFLICT_CHECK_BATCH_SIZE = 500;
+
+    // Past this many, the rest of the conflict check is skipped: the branch needs a rebase either way.
+    static final int MAX_REPORTED_CONFLICTS = 1000;
+
+
+    private final ExecutorService conflictCheckExecutor;
+    private final MergeLockCache mergeLockCache;
 
     // TODO: Pass in the helper.
-    HBaseMerger() {
+    HBaseMerger(ExecutorService conflictCheckExecutor, MergeLockCache mergeLockCache) {
+        this.conflictCheckExecutor = conflictCheckExecutor;
+        this.mergeLockCache = mergeLockCache;
+    }
+
+
+    /**
+     * A branch to merge, as requested by a client.
+     */
+    static final class BranchToMerge {
+
+        static BranchToMerge of(String branchName, long headCommitId) {
+            return new BranchToMerge(branchName, headCommitId);
+        }
+
+
+        private final String branchName;
+        private final long headCommitId;
+
+        private BranchToMerge(String branchName, long headCommitId) {
+            this.branchName = branchName;
+            this.headCommitId = headCommitId;
+        }
+
+        String getBranchName() {
+            return branchName;
+        }
+
+        long getHeadCommitId() {
+            return headCommitId;
+        }
+    }
+
+
+    // A branch that's been checked against main: either it failed, or it's ready to write.
+    private static final class PreparedMerge {
+
+        private static PreparedMerge failed(MergeResult failure) {
+            return new PreparedMerge(Optional.of(failure), null, ImmutableList.of(), ImmutableList.of());
+        }
+
+        private static PreparedMerge ready(
+                BranchEntry branchEntry,
+                List<HBaseRawHelper.FolderListingWithOriginalBytes> branchHeadHistories,
+                List<CommitEntry> commitsFromBranch) {
+            return new PreparedMerge(Optional.empty(), branchEntry, branchHeadHistories, commitsFromBranch);
+        }
+
+
+        private final Optional<MergeResult> failure;
+        private final BranchEntry branchEntry;
+        private final List<HBaseRawHelper.FolderListingWithOriginalBytes> branchHeadHistories;
+        private final List<CommitEntry> commitsFromBranch;
+
+        private PreparedMerge(
+                Optional<MergeResult> failure,
+                BranchEntry branchEntry,
+                List<HBaseRawHelper.FolderListingWithOriginalBytes> branchHeadHistories,
+                List<CommitEntry> commitsFromBranch) {
+            this.failure = failure;
+            this.branchEntry = branchEntry;
+            this.branchHeadHistories = branchHeadHistories;
+            this.commitsFromBranch = commitsFromBranch;
+        }
+
+        private Set<String> getPaths() {
+            Set<String> paths = new HashSet<>();
+            for (HBaseRawHelper.FolderListingWithOriginalBytes headOnBranch : branchHeadHistories) {
+                paths.add(headOnBranch.listing.getPath());
+            }
+            return paths;
+        }
+    }
+
+
+    MergeResult merge(
+            String org, String repo, String branchName, long headCommitId, HBaseRawHelper helper)
+            throws IOException {
+        return mergeGroup(org, repo, ImmutableList.of(BranchToMerge.of(branchName, headCommitId)), helper)
+                .get(0)
+                .get();
     }
 
 
@@ -34,33 +134,179 @@ final class HBaseMerger {
     //     - Bail on this whole thing if there's already an *active* lock on one of the histories.
     // - Make it official: if you get through that whole list, mark the branch as merged.
     // - Clean-up: Go through the histories again (with their updated values). Use checkAndPut to remove the locks.
-    MergeResult merge(
-            String org, String repo, String branchName, long headCommitId, HBaseRawHelper helper)
+    //
+    // Several branches can be merged together, as a group: each one is checked against main first, then they're
+    // written one after another at consecutive commit ids, from one reservation. Branches that touch a folder touched
+    // by an earlier branch in the group get an empty result: they should be retried after this group, when the check
+    // against main will see the earlier branch's changes.
+    //
+    // NOTE: This relies on the caller (MergeQueue) to run only one group at a time per repo. Otherwise there's a race:
+    // - I'm trying to merge this branch whose base is main:10.
+    // - The check finds no commits on main since main:10, so the merge proceeds.
+    // - Before the writes below, another merge sneaks in and writes a listing for main:11.
+    //     - And the listing at main:11 happens to conflict with this branch!
+    // - So below, I take a number (12) without realizing 11 has snuck in with a conflict.
+    //
+    // TODO: That still applies across servers. Per-path locks on main would cover it: grab them all before writing,
+    //     requiring they're not newer than the base commit, and release them on clean-up.
+    //
+    // Tree hashes don't rely on this: TreeHasher checks each hash against the rows it was computed after.
+    List<Optional<MergeResult>> mergeGroup(
+            String org, String repo, List<BranchToMerge> branches, HBaseRawHelper helper)
             throws IOException {
+        try (HBaseRawHelper.RepoWrite repoWrite = helper.startRepoWrite(org, repo)) {
+            return mergeGroup(repoWrite.getRowKeyer(), branches, helper);
+        }
+    }
+
+
+    private List<Optional<MergeResult>> mergeGroup(
+            HBaseRowKeyer rowKeyer, List<BranchToMerge> branches, HBaseRawHelper helper)
+            throws IOException {
+        MergeStates mergeStates = mergeLockCache.getStates(helper, rowKeyer);
+
+        List<Optional<MergeResult>> results = new ArrayList<>(branches.size());
+        List<PreparedMerge> toWrite = new ArrayList<>();
+        List<Integer> resultIndexes = new ArrayList<>();
+        Set<String> pathsInGroup = new HashSet<>();
+        for (BranchToMerge branch : branches) {
+            PreparedMerge prepared;
+            try {
+                prepared = prepare(rowKeyer, branch, helper, mergeStates);
+            } catch (IOException | RuntimeException ex) {
+                // Only this branch fails. It hasn't written anything, and the rest of the group doesn't depend on it.
+                LOG.exception(ex, "Failed to check branch %s for merging", branch.getBranchName());
+                results.add(Optional.of(failedOnServer(ex)));
+                continue;
+            }
+
+            if (prepared.failure.isPresent()) {
+                results.add(prepared.failure);
+                continue;
+            }
+
+            Set<String> paths = prepared.getPaths();
+            if (!Collections.disjoint(paths, pathsInGroup)) {
+                results.add(Optional.empty());
+                continue;
+            }
+
+            pathsInGroup.addAll(paths);
+            resultIndexes.add(results.size());
+            results.add(null);
+            toWrite.add(prepared);
+        }
+
+        // Lock every branch in the group before taking commit ids. Reserving ids moves main's head forward, and a
+        //     checkout that saw the new head with no merge in progress would take main as settled up to it (see
+        //     MergeStates.getSettledMainHead()).
+        final long nowTs = System.currentTimeMillis();
+        List<PreparedMerge> locked = new ArrayList<>(toWrite.size());
+        List<MergeLock> locks = new ArrayList<>(toWrite.size());
+        List<Integer> lockedResultIndexes = new ArrayList<>(toWrite.size());
+        for (int i = 0; i < toWrite.size(); ++i) {
+            PreparedMerge prepared = toWrite.get(i);
+            MergeLock lock = MergeLock.of(
+                    UUID.randomUUID().toString(),
+                    prepared.branchEntry.getName(),
+                    MergeLock.State.IN_PROGRESS,
+                    nowTs);
+            try {
+                helper.putMerge(rowKeyer, lock);
+            } catch (IOException | RuntimeException ex) {
+                LOG.exception(ex, "Failed to lock branch %s for merging", prepared.branchEntry.getName());
+                results.set(resultIndexes.get(i), Optional.of(failedOnServer(ex)));
+                continue;
+            }
+            locked.add(prepared);
+            locks.add(lock);
+            lockedResultIndexes.add(resultIndexes.get(i));
+        }
+
+        if (locked.isEmpty()) {
+            return results;
+        }
+
+        // This also moves the head of main past the reserved ids.
+        final HeadCommitNumberTaker numberTaker = HeadCommitNumberTaker.forDb(helper, rowKeyer);
+        final long firstNewCommitIdOnMain;
+        try {
+            firstNewCommitIdOnMain = numberTaker.reserveCommitIds(locked.size());
+        } catch (IOException | RuntimeException ex) {
+            failLocks(rowKeyer, locks, helper);
+            throw ex;
+        }
+        LOG.info(
+                "Merging %d branch(es) into (%s, %s) starting at commit %d",
+                locked.size(), rowKeyer.getOrg(), rowKeyer.getRepo(), firstNewCommitIdOnMain);
+
+        for (int i = 0; i < locked.size(); ++i) {
+            PreparedMerge prepared = locked.get(i);
+            MergeResult result;
+            try {
+                result = write(rowKeyer, prepared, locks.get(i), firstNewCommitIdOnMain + i, helper);
+            } catch (IOException | RuntimeException ex) {
+                // The rest of the group is unaffected: its folders and commit ids are separate. This one's listings
+                // stay behind its merge lock, which never completes.
+                LOG.exception(ex, "Failed to merge branch %s", prepared.branchEntry.getName());
+                result = failedOnServer(ex);
+            }
+            results.set(lockedResultIndexes.get(i), Optional.of(result));
+        }
+        return results;
+    }
 
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
-        Optional<BranchEntry> oBranch = helper.getBranch(rowKeyer.forBranch(branchName));
+
+    // Nothing was written under these locks, so marking them failed just stops them holding back settled lookups.
+    private static void failLocks(HBaseRowKeyer rowKeyer, List<MergeLock> locks, HBaseRawHelper helper) {
+        for (MergeLock lock : locks) {
+            MergeLock failed = MergeLock.of(
+                    lock.getId(), lock.getBranchName(), MergeLock.State.FAILED, lock.getTimestampMillis());
+            try {
+                helper.putMerge(rowKeyer, failed);
+            } catch (IOException | RuntimeException ex) {
+                LOG.exception(ex, "Failed to mark merge lock %s as failed", lock.getId());
+            }
+        }
+    }
+
+
+    private static MergeResult failedOnServer(Exception ex) {
+        return MergeResult.of(MergeResult.ResultType.FAILED, "Merge failed on the server: " + ex.getMessage(), -1);
+    }
+
+
+    private PreparedMerge prepare(
+            HBaseRowKeyer rowKeyer,
+            BranchToMerge branch,
+            HBaseRawHelper helper,
+            MergeStates mergeStates)
+            throws IOException {
+        Optional<BranchEntry> oBranch = helper.getBranch(rowKeyer.forBranch(branch.getBranchName()));
         if (oBranch.isEmpty()) {
-            throw new IllegalStateException(String.format(
-                    "Branch %s wasn't found on the server. Has it been pushed?", branchName));
+            return PreparedMerge.failed(MergeResult.of(
+                    MergeResult.ResultType.FAILED,
+                    String.format(
+                            "Branch %s wasn't found on the server. Has it been pushed?", branch.getBranchName()),
+                    -1));
         }
         BranchEntry branchEntry = oBranch.get();
 
-        if (branchEntry.getHeadCommitId() != headCommitId) {
-            throw new IllegalStateException(String.format(
-                    "The server branch head (%d) doesn't match the local branch head (%d). Have you pushed the branch?",
-                    branchEntry.getHeadCommitId(), headCommitId));
+        if (branchEntry.getHeadCommitId() != branch.getHeadCommitId()) {
+            return PreparedMerge.failed(MergeResult.of(
+                    MergeResult.ResultType.FAILED,
+                    String.format(
+                            "The server branch head (%d) doesn't match the local branch head (%d). Have you pushed the branch?",
+                            branchEntry.getHeadCommitId(), branch.getHeadCommitId()),
+                    -1));
         }
 
-        final long nowTs = System.currentTimeMillis();
-        MergeStates mergeStates = MergeStates.fromPastSeconds(nowTs, TimeUnit.HOURS.toSeconds(1), helper, rowKeyer);
-
         final List<HBaseRawHelper.FolderListingWithOriginalBytes> branchHeadHistories =
-                helper.getMostRecentFoldersOnBranch(org, repo, branchName, branchEntry.getHeadCommitId());
+                getBranchHeadFolders(rowKeyer, branchEntry, helper);
 
         long mainIntegrationBaseCommit = branchEntry.getBaseCommitId();
         List<CommitEntry> commitsFromBranch = helper.getCommitsDescendingFrom(
-                org, repo, branchEntry.getName(), branchEntry.getHeadCommitId(), -1);
+                rowKeyer, branchEntry.getName(), branchEntry.getHeadCommitId(), -1);
         for (CommitEntry commit : commitsFromBranch) {
             if (commit.getIntegration().isPresent()) {
                 Verify.verify(commit.getIntegration().get().getBranch().equals("main"));
@@ -71,89 +317,59 @@ final class HBaseMerger {
 
 
         // Pessimistically look for newer changes on main before trying to acquire locks.
+        List<String> branchPaths = new ArrayList<>(branchHeadHistories.size());
         for (HBaseRawHelper.FolderListingWithOriginalBytes headOnBranch : branchHeadHistories) {
-
-            List<FolderListing> newerListingsOnMain = helper.getListingsSinceCommitIgnoringMergeLocks(
-                    org,
-                    repo,
-                    "main",
-                    mainIntegrationBaseCommit,
-                    headOnBranch.listing.getPath());
-
-            for (FolderListing newerListing : newerListingsOnMain) {
-                // We assume absence means the lock was completed.
-                // TODO! But maybe that assumption is wrong, this all needs to be rewritten.
-                Optional<String> mergeId = newerListing.getMergeLockId();
-                if (mergeId.isEmpty()
-                        || mergeStates.forMergeLockId(mergeId.get()).getState() != MergeLock.State.FAILED) {
-                    return MergeResult.of(
-                            MergeResult.ResultType.FAILED,
-                            String.format(
-                                    "A folder has changed on both main and the branch (%s). The branch should be rebased before trying to merge again.",
-                                    newerListing.getPath()),
-                            -1);
-                }
-            }
+            branchPaths.add(headOnBranch.listing.getPath());
+        }
+        List<String> conflictingPaths = findConflictingPaths(
+                rowKeyer, branchPaths, mainIntegrationBaseCommit, helper, mergeStates);
+        if (!conflictingPaths.isEmpty()) {
+            return PreparedMerge.failed(MergeResult.of(
+                    MergeResult.ResultType.FAILED,
+                    String.format(
+                            "%d folder(s) changed on both main and the branch (%s%s). The branch should be rebased before trying to merge again.",
+                            conflictingPaths.size(),
+                            conflictingPaths.get(0),
+                            (conflictingPaths.size() > 1) ? ", ..." : ""),
+                    -1)
+                    .withConflictingPaths(conflictingPaths));
         }
 
+        return PreparedMerge.ready(branchEntry, branchHeadHistories, commitsFromBranch);
+    }
 
 
+    // The branch's lock is already written, in progress.
+    private MergeResult write(
+            HBaseRowKeyer rowKeyer,
+            PreparedMerge prepared,
+            MergeLock newLock,
+            long newCommitIdOnMain,
+            HBaseRawHelper helper)
+            throws IOException {
+        final BranchEntry branchEntry = prepared.branchEntry;
+        // Fresh states for each branch, so the tree hashes see the merges earlier in the group as completed.
+        MergeStates mergeStates = mergeLockCache.getStates(helper, rowKeyer);
 
-
-        // TODO: Consider this race condition:
-        // - I'm trying to merge this branch whose base is main:10.
-        // - The loop above finds no commits on main since main:10, so the merge proceeds.
-        // - Between the code above and the code below, another merge sneaks in and writes a listing for main:11.
-        //     - And the listing at main:11 happens to conflict with this branch!
-        // - So below, I take a number (12) without realizing 11 has snuck in with a conflict.
-        //     - And my write of the listing at main:12 clobbers the write at main:11 !
-        //
-        //
-        // How do I take care of this?:
-        // - I have to lock a whole path/folder globally on main, not just this or that listing...
-        // - So, some lookup: path -> pathLock.
-        // - Before merging, grab all path locks REQUIRING they are not newer than the base commit:
-        //     - First look them all up pessimistically, looking for newer merges, so I can fail fast here.
-        //     - Then grab them all again, one at a time, and use a put-if-not-exists or put-if-unchanged to
-        //       lock them for this merge.
-        // (- Maybe we can reuse MergeLock for this somehow.)
-        // - Write all listings at the new commit, as I'm currently doing below.
-        //
-        // - On clean-up, complete/release the path locks.
-        //     - TODO: Make sure this doesn't block a path permanently if something goes wrong!...
-
-
-
-
-
-        // Now, lock the folders.
-        MergeLock newLock = MergeLock.of(
-                UUID.randomUUID().toString(),
-                branchName,
-                MergeLock.State.IN_PROGRESS,
-                nowTs);
-        helper.putMerge(rowKeyer, newLock);
-
-        final HeadCommitNumberTaker numberTaker = HeadCommitNumberTaker.forDb(helper, rowKeyer);
-        // This also updates the BranchEntry for main.
-        final long wouldBeNewCommitIdOnMain = numberTaker.getNewHeadCommitId();
-
-        for (
-                int i = 0; i < branchHeadHistories.size(); ++i) {
-            HBaseRawHelper.FolderListingWithOriginalBytes headOnBranch = branchHeadHistories.get(i);
-
+        List<FolderListing> newListingsOnMain = new ArrayList<>();
+        for (HBaseRawHelper.FolderListingWithOriginalBytes headOnBranch : prepared.branchHeadHistories) {
             FolderListing newListing = FolderListing.withMergeLock(
                     headOnBranch.listing.getEntries(),
                     headOnBranch.listing.getPath(),
                     "main",
-                    wouldBeNewCommitIdOnMain,
+                    newCommitIdOnMain,
                     newLock.getId());
 
             helper.putFolderIfNotExists(
                     rowKeyer.forFolderAt("main", newListing.getPath(), newListing.getCommitId()),
                     newListing);
+            newListingsOnMain.add(newListing);
         }
 
+        // These are written under the merge lock too, so they only become visible if the merge completes.
+        TreeHasher.forMain(rowKeyer, helper, mergeStates).writeTreeHashes(
+                newCommitIdOnMain, newListingsOnMain, Optional.of(newLock.getId()));
+
 
         // Mark the merge as complete to officially make it part of main's history.
         MergeLock completed = MergeLock.of(
@@ -163,7 +379,7 @@ final class HBaseMerger {
 
         // Write a commit entry for main.
         List<CommitEntry.CommitChangedPath> changedFilesAcrossBranch = new ArrayList<>();
-        for (CommitEntry branchCommit : commitsFromBranch) {
+        for (CommitEntry branchCommit : prepared.commitsFromBranch) {
             changedFilesAcrossBranch.addAll(branchCommit.getChangedPaths());
         }
         // We're cheating a little by using the BranchIntegration on a main commit to store the merged-in branch.
@@ -175,10 +391,11 @@ final class HBaseMerger {
         String commitMessage = String.format(
                 "Merge of branch %s:%d", branchEntry.getName(), branchEntry.getHeadCommitId());
         CommitEntry newCommitOnMain = CommitEntry.of(
-                "main", wouldBeNewCommitIdOnMain, "Haberdasher Merge", commitMessage, changedFilesAcrossBranch)
+                "main", newCommitIdOnMain, "Haberdasher Merge", commitMessage, changedFilesAcrossBranch)
                 .withIntegration(mergedInBranch);
         byte[] commitKey = rowKeyer.forCommit(newCommitOnMain);
         helper.putCommit(commitKey, newCommitOnMain);
+        helper.putCommitPaths(rowKeyer, newCommitOnMain);
         LOG.info(
                 "Wrote merge commit: %s",
                 newCommitOnMain.getDebugString());
@@ -189,7 +406,89 @@ final class HBaseMerger {
         return MergeResult.of(
                 MergeResult.ResultType.SUCCESSFUL,
                 "Successfully merged into main.",
-                wouldBeNewCommitIdOnMain);
+                newCommitIdOnMain);
+    }
+
+
+    // Returns the paths changed on main since the base commit, sorted. The paths are checked in batches, concurrently.
+    private List<String> findConflictingPaths(
+            HBaseRowKeyer rowKeyer,
+            List<String> paths,
+            long mainBaseCommitId,
+            HBaseRawHelper helper,
+            MergeStates mergeStates)
+            throws IOException {
+        CompletionService<List<String>> completions = new ExecutorCompletionService<>(conflictCheckExecutor);
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (List<String> batch : Lists.partition(paths, CONFLICT_CHECK_BATCH_SIZE)) {
+            futures.add(completions.submit(
+                    () -> findConflictingPathsInBatch(rowKeyer, batch, mainBaseCommitId, helper, mergeStates)));
+        }
+
+        Set<String> conflicting = new TreeSet<>();
+        try {
+            for (int i = 0; i < futures.size() && conflicting.size() < MAX_REPORTED_CONFLICTS; ++i) {
+                conflicting.addAll(completions.take().get());
+            }
+
+        } catch (InterruptedException interruptedEx) {
+            Thread.currentThread().interrupt();
+            throw new IOException(interruptedEx);
+
+        } catch (ExecutionException executionEx) {
+            if (executionEx.getCause() instanceof IOException) {
+                throw (IOException) executionEx.getCause();
+            } else {
+                throw new IOException(executionEx.getCause());
+            }
+
+        } finally {
+            for (Future<List<String>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return new ArrayList<>(conflicting);
+    }
+
+
+    private List<String> findConflictingPathsInBatch(
+            HBaseRowKeyer rowKeyer,
+            List<String> paths,
+            long mainBaseCommitId,
+            HBaseRawHelper helper,
+            MergeStates mergeStates)
+            throws IOException {
+        List<FolderListing> newerListingsOnMain = helper.getListingsSinceCommitForPathsIgnoringMergeLocks(
+                rowKeyer, "main", mainBaseCommitId, paths);
+
+        List<String> conflicting = new ArrayList<>();
+        for (FolderListing newerListing : newerListingsOnMain) {
+            // We assume absence means the lock was completed.
+            // TODO! But maybe that assumption is wrong, this all needs to be rewritten.
+            Optional<String> mergeId = newerListing.getMergeLockId();
+            if (mergeId.isEmpty()
+                    || mergeStates.forMergeLockId(mergeId.get()).getState() != MergeLock.State.FAILED) {
+                conflicting.add(newerListing.getPath());
+            }
+        }
+        return conflicting;
+    }
+
+
+    private List<HBaseRawHelper.FolderListingWithOriginalBytes> getBranchHeadFolders(
+            HBaseRowKeyer rowKeyer, BranchEntry branchEntry, HBaseRawHelper helper)
+            throws IOException {
+        Map<String, Long> branchPaths = helper.getBranchPaths(rowKeyer, branchEntry.getName());
+        if (branchPaths.isEmpty()) {
+            // Branches pushed before the index existed, that haven't been backfilled. See HBaseOperationsMain.
+            LOG.warn("No paths index for branch %s, scanning its history instead.", branchEntry.getName());
+            return helper.getMostRecentFoldersOnBranch(
+                    rowKeyer, branchEntry.getName(), branchEntry.getHeadCommitId());
+        } else {
+            return helper.getFoldersOnBranchAt(
+                    rowKeyer, branchEntry.getName(), branchPaths, branchEntry.getHeadCommitId());
+        }
     }
 
 }
@@ -1,11 +1,31 @@
 package com.haberdashervcs.server.datastore.hbase;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.HdObjectByteConverter;
+import com.haberdashervcs.common.io.ProtobufObjectByteConverter;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeResult;
+import com.haberdashervcs.common.objects.RepoEntry;
 import com.haberdashervcs.common.objects.user.BCrypter;
 import com.haberdashervcs.common.protobuf.UsersProto;
 import org.apache.hadoop.conf.Configuration;
@@ -15,6 +35,7 @@ import org.apache.hadoop.hbase.client.Admin;
 import org.apache.hadoop.hbase.client.ColumnFamilyDescriptorBuilder;
 import org.apache.hadoop.hbase.client.Connection;
 import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -22,6 +43,7 @@ import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.client.TableDescriptor;
 import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 
@@ -59,6 +81,36 @@ class HBaseOperationsMain {
                 case "createTasksTable":
                     createTasksTable(args, conn);
                     break;
+                case "createTreeHashesTable":
+                    createTreeHashesTable(args, conn);
+                    break;
+                case "backfillFileMetadata":
+                    backfillFileMetadata(conn);
+                    break;
+                case "createBranchPathsTable":
+                    createBranchPathsTable(args, conn);
+                    break;
+                case "backfillBranchPaths":
+                    backfillBranchPaths(conn);
+                    break;
+                case "createCommitPathsTable":
+                    createCommitPathsTable(args, conn);
+                    break;
+                case "backfillCommitPaths":
+                    backfillCommitPaths(conn);
+                    break;
+                case "mergeLoadTest":
+                    mergeLoadTest(args, conn);
+                    break;
+                case "migrateRowKeys":
+                    migrateRowKeys(args, conn);
+                    break;
+                case "repackDeltaChains":
+                    repackDeltaChains(args, conn);
+                    break;
+                case "backfillTreeHashes":
+                    backfillTreeHashes(args, conn);
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown op: " + op);
             }
@@ -84,6 +136,405 @@ class HBaseOperationsMain {
     }
 
 
+    private static void createTreeHashesTable(String[] args, Connection conn) throws Exception {
+        Admin admin = conn.getAdmin();
+        TableName name = TableName.valueOf("TreeHashes");
+        if (admin.tableExists(name)) {
+            LOG.info("TreeHashes table already exists.");
+        } else {
+            TableDescriptor desc = TableDescriptorBuilder
+                    .newBuilder(name)
+                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
+                    .build();
+            admin.createTable(desc);
+            LOG.info("Created TreeHashes table.");
+        }
+    }
+
+
+    private static void createBranchPathsTable(String[] args, Connection conn) throws Exception {
+        Admin admin = conn.getAdmin();
+        TableName name = TableName.valueOf("BranchPaths");
+        if (admin.tableExists(name)) {
+            LOG.info("BranchPaths table already exists.");
+        } else {
+            TableDescriptor desc = TableDescriptorBuilder
+                    .newBuilder(name)
+                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
+                    .build();
+            admin.createTable(desc);
+            LOG.info("Created BranchPaths table.");
+        }
+    }
+
+
+    // Writes the paths index for branches pushed before it existed. Folder rows are sorted by org, repo and branch,
+    // so each branch's paths are written out as soon as the scan moves past it.
+    private static void backfillBranchPaths(Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        Table foldersTable = conn.getTable(TableName.valueOf("Folders"));
+        HdObjectByteConverter byteConv = ProtobufObjectByteConverter.getInstance();
+
+        Scan scan = new Scan()
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("listing"));
+        ResultScanner scanner = foldersTable.getScanner(scan);
+
+        HBaseRowKeyer currentRepo = null;
+        String currentBranch = null;
+        Map<String, Long> currentPaths = new HashMap<>();
+        int numBranches = 0;
+        Result result;
+        while ((result = scanner.next()) != null) {
+            FolderListing listing = byteConv.folderFromBytes(
+                    result.getValue(Bytes.toBytes("cfMain"), Bytes.toBytes("listing")));
+            // Main isn't pushed or merged, so it isn't indexed.
+            if (listing.getBranch().equals("main")) {
+                continue;
+            }
+            // Binary-keyed repos were indexed from the start.
+            if (HBaseRowKeyer.isBinaryKey(result.getRow())) {
+                continue;
+            }
+
+            // Row keys look like org:repo:branch:path:commitId.
+            String[] parts = new String(result.getRow(), StandardCharsets.UTF_8).split(":", 3);
+            if (currentRepo == null
+                    || !currentRepo.getOrg().equals(parts[0])
+                    || !currentRepo.getRepo().equals(parts[1])
+                    || !currentBranch.equals(listing.getBranch())) {
+                if (currentRepo != null) {
+                    helper.putBranchPaths(currentRepo, currentBranch, currentPaths);
+                    ++numBranches;
+                }
+                currentRepo = HBaseRowKeyer.forRepo(parts[0], parts[1]);
+                currentBranch = listing.getBranch();
+                currentPaths = new HashMap<>();
+            }
+            currentPaths.merge(listing.getPath(), listing.getCommitId(), Math::max);
+        }
+        scanner.close();
+
+        if (currentRepo != null) {
+            helper.putBranchPaths(currentRepo, currentBranch, currentPaths);
+            ++numBranches;
+        }
+        LOG.info("Done. Backfilled %d branches.", numBranches);
+    }
+
+
+    private static void createCommitPathsTable(String[] args, Connection conn) throws Exception {
+        Admin admin = conn.getAdmin();
+        TableName name = TableName.valueOf("CommitPaths");
+        if (admin.tableExists(name)) {
+            LOG.info("CommitPaths table already exists.");
+        } else {
+            TableDescriptor desc = TableDescriptorBuilder
+                    .newBuilder(name)
+                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
+                    .build();
+            admin.createTable(desc);
+            LOG.info("Created CommitPaths table.");
+        }
+    }
+
+
+    // Indexes the paths of commits written before the CommitPaths table existed, then marks their branches as indexed.
+    // Safe to rerun, since the index rows for a commit are always the same. Roll out in this order: create the table,
+    // deploy servers that index new commits, then run this, so that no commit is left out between the two.
+    private static void backfillCommitPaths(Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        Table commitsTable = conn.getTable(TableName.valueOf("Commits"));
+        HdObjectByteConverter byteConv = ProtobufObjectByteConverter.getInstance();
+
+        Scan scan = new Scan()
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("entry"));
+        ResultScanner scanner = commitsTable.getScanner(scan);
+
+        int numCommits = 0;
+        try (HBaseRawHelper.BufferedWriter writer =
+                     helper.newBufferedWriter(HBaseRawHelper.DEFAULT_WRITE_BUFFER_BYTES)) {
+            Result result;
+            while ((result = scanner.next()) != null) {
+                if (HBaseRowKeyer.isBinaryKey(result.getRow())) {
+                    continue;
+                }
+                CommitEntry commit = byteConv.commitFromBytes(
+                        result.getValue(Bytes.toBytes("cfMain"), Bytes.toBytes("entry")));
+                // Row keys look like org:repo:branch:commitId.
+                String[] parts = new String(result.getRow(), StandardCharsets.UTF_8).split(":", 3);
+                writer.putCommitPaths(HBaseRowKeyer.forRepo(parts[0], parts[1]), commit);
+                ++numCommits;
+                if (numCommits % 10000 == 0) {
+                    LOG.info("Backfilled %d commits...", numCommits);
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        LOG.info("Backfilled %d commits.", numCommits);
+
+        // Only now are all the commits of branches from before the index in it. Until a branch is marked, logs scan
+        // its commits rather than trust the index. Branches created since the index existed are already marked.
+        Scan branchesScan = new Scan()
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("branch"))
+                .setFilter(new KeyOnlyFilter());
+        int numBranches = 0;
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
+             ResultScanner branchesScanner = branchesTable.getScanner(branchesScan)) {
+            Result result;
+            while ((result = branchesScanner.next()) != null) {
+                // Skipped above too.
+                if (HBaseRowKeyer.isBinaryKey(result.getRow())) {
+                    continue;
+                }
+                helper.markCommitPathsIndexed(result.getRow());
+                ++numBranches;
+            }
+        }
+        LOG.info("Done. Marked %d branches as indexed.", numBranches);
+    }
+
+
+    // Merges N single-folder branches into a new throwaway repo, from C threads at once, and reports the merge
+    // throughput and latencies. Args: numMerges concurrency.
+    private static void mergeLoadTest(String[] args, Connection conn) throws Exception {
+        final int numMerges = Integer.parseInt(args[1]);
+        final int concurrency = Integer.parseInt(args[2]);
+        final String org = "mergeload" + System.currentTimeMillis();
+        final String repo = org;
+
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
+        ExecutorService checkExecutor = Executors.newFixedThreadPool(4);
+        ExecutorService queueExecutor = Executors.newFixedThreadPool(1);
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        try {
+            helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", 1, 1));
+            FolderListing root = FolderListing.withoutMergeLock(ImmutableList.of(), "/", "main", 1);
+            helper.putFolderIfNotExists(rowKeyer.forFolderAt("main", "/", 1), root);
+            MergeStates mergeStates = MergeStates.fromPastSeconds(
+                    System.currentTimeMillis(), TimeUnit.MINUTES.toSeconds(30), helper, rowKeyer);
+            TreeHasher.forMain(rowKeyer, helper, mergeStates).writeTreeHashes(
+                    1, ImmutableList.of(root), Optional.empty());
+
+            for (int i = 0; i < numMerges; ++i) {
+                String branchName = "load-" + i;
+                String path = "/load-" + i + "/";
+                helper.createBranch(rowKeyer.forBranch(branchName), BranchEntry.of(branchName, 1, 2));
+                FolderListing folder = FolderListing.withoutMergeLock(
+                        ImmutableList.of(FolderListing.Entry.forFile("file.txt", "fileId-" + i)),
+                        path, branchName, 2);
+                helper.putFolderIfNotExists(rowKeyer.forFolderAt(branchName, path, 2), folder);
+                helper.putBranchPaths(rowKeyer, branchName, ImmutableMap.of(path, 2L));
+            }
+            LOG.info("Set up %d branches in (%s, %s)", numMerges, org, repo);
+
+            MergeQueue queue = MergeQueue.of(
+                    new HBaseMerger(
+                            checkExecutor, MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS)),
+                    helper,
+                    queueExecutor,
+                    MergeQueue.DEFAULT_MAX_GROUP_SIZE);
+
+            List<Future<Long>> latencies = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < numMerges; ++i) {
+                final String branchName = "load-" + i;
+                latencies.add(clients.submit(() -> {
+                    long mergeStart = System.nanoTime();
+                    MergeResult result = queue.merge(org, repo, branchName, 2);
+                    if (result.getResultType() != MergeResult.ResultType.SUCCESSFUL) {
+                        throw new IllegalStateException("Merge failed: " + result.getDisplayString());
+                    }
+                    return System.nanoTime() - mergeStart;
+                }));
+            }
+
+            List<Long> sortedMillis = new ArrayList<>();
+            for (Future<Long> latency : latencies) {
+                sortedMillis.add(TimeUnit.NANOSECONDS.toMillis(latency.get()));
+            }
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Collections.sort(sortedMillis);
+
+            p(String.format(
+                    "%d merges from %d threads in %d ms: %.1f merges/sec",
+                    numMerges, concurrency, elapsedMillis, numMerges * 1000.0 / Math.max(1, elapsedMillis)));
+            p(String.format(
+                    "Latency ms: p50 %d, p99 %d, max %d",
+                    percentile(sortedMillis, 50),
+                    percentile(sortedMillis, 99),
+                    sortedMillis.get(sortedMillis.size() - 1)));
+            p("Main head is now: " + helper.getBranch(rowKeyer.forBranch("main")).get().getHeadCommitId());
+
+        } finally {
+            clients.shutdownNow();
+            queueExecutor.shutdownNow();
+            checkExecutor.shutdownNow();
+            // The repo is only for this run, so it's removed even if the run failed.
+            deleteRepoRows(conn, rowKeyer);
+        }
+    }
+
+
+    // Deletes every row of a repo in the repo-scoped tables.
+    private static void deleteRepoRows(Connection conn, HBaseRowKeyer rowKeyer) throws IOException {
+        final int batchSize = 1000;
+        for (String tableName : RowKeyMigrator.REPO_TABLES) {
+            int numDeleted = 0;
+            try (Table table = conn.getTable(TableName.valueOf(tableName));
+                 ResultScanner scanner = table.getScanner(new Scan()
+                         .setRowPrefixFilter(rowKeyer.prefixForRepo())
+                         .setFilter(new KeyOnlyFilter()))) {
+                List<Delete> deletes = new ArrayList<>();
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    deletes.add(new Delete(result.getRow()));
+                    if (deletes.size() >= batchSize) {
+                        numDeleted += deletes.size();
+                        table.delete(deletes);
+                        deletes = new ArrayList<>();
+                    }
+                }
+                if (!deletes.isEmpty()) {
+                    numDeleted += deletes.size();
+                    table.delete(deletes);
+                }
+            }
+            LOG.info(
+                    "Deleted %d rows of (%s, %s) from %s",
+                    numDeleted, rowKeyer.getOrg(), rowKeyer.getRepo(), tableName);
+        }
+    }
+
+
+    // Moves one repo to binary row keys, while it's live. See RowKeyMigrator. Args: org repo.
+    private static void migrateRowKeys(String[] args, Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        RowKeyMigrator.forRepo(conn, helper, args[1], args[2]).migrate();
+    }
+
+
+    // Shortens deep delta chains. See DeltaChainRepacker. Args: [maxBytesPerSecond [org repo]], or every repo if no
+    // org and repo are given.
+    private static void repackDeltaChains(String[] args, Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        long maxBytesPerSecond = (args.length > 1)
+                ? Long.parseLong(args[1])
+                : DeltaChainRepacker.DEFAULT_MAX_BYTES_PER_SECOND;
+        DeltaChainRepacker repacker = DeltaChainRepacker.of(conn, helper, maxBytesPerSecond);
+        if (args.length > 3) {
+            repacker.repackRepo(args[2], args[3]);
+            p("Repacked: " + repacker.getProgress());
+        } else {
+            repacker.repackAllRepos();
+        }
+    }
+
+
+    // Hashes the folders on main that don't have a tree hash, like ones from before hashes existed. See TreeHasher.
+    // Args: [org repo], or every repo if none are given.
+    private static void backfillTreeHashes(String[] args, Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        List<RepoEntry> repos = (args.length > 2)
+                ? ImmutableList.of(RepoEntry.of(args[1], args[2]))
+                : helper.getAllRepoEntries();
+
+        for (RepoEntry repo : repos) {
+            try (HBaseRawHelper.RepoWrite repoWrite = helper.startRepoWrite(repo.getOrg(), repo.getRepoName())) {
+                HBaseRowKeyer rowKeyer = repoWrite.getRowKeyer();
+                MergeStates mergeStates = MergeStates.fromPastSeconds(
+                        System.currentTimeMillis(), TimeUnit.MINUTES.toSeconds(30), helper, rowKeyer);
+                Optional<Long> head = mergeStates.getSettledMainHead();
+                if (head.isEmpty()) {
+                    LOG.warn("Skipping (%s, %s): a merge is in progress", repo.getOrg(), repo.getRepoName());
+                    continue;
+                }
+                TreeHasher.forMain(rowKeyer, helper, mergeStates).backfill(head.get());
+            }
+        }
+    }
+
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+
+    // Writes the metadata column for file rows from before it existed.
+    private static void backfillFileMetadata(Connection conn) throws Exception {
+        HBaseRawHelper helper = HBaseRawHelper.forConnection(conn);
+        Table filesTable = conn.getTable(TableName.valueOf("Files"));
+
+        // Keys only, so we can see which rows have metadata without reading any contents.
+        Scan scan = new Scan()
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("contents"))
+                .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"))
+                .setFilter(new KeyOnlyFilter());
+        ResultScanner scanner = filesTable.getScanner(scan);
+
+        Map<String, FileMetadata> backfilled = new HashMap<>();
+        int numBackfilled = 0;
+        Result result;
+        while ((result = scanner.next()) != null) {
+            if (result.containsColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"))
+                    || HBaseRowKeyer.isBinaryKey(result.getRow())) {
+                continue;
+            }
+
+            // Row keys look like org:repo:fileId.
+            String rowKey = new String(result.getRow(), StandardCharsets.UTF_8);
+            String[] parts = rowKey.split(":", 3);
+            HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(parts[0], parts[1]);
+            FileMetadata metadata = metadataWithChainDepth(helper, rowKeyer, parts[2], backfilled, 0);
+            helper.putFileMetadata(result.getRow(), metadata);
+
+            ++numBackfilled;
+            if (numBackfilled % 1000 == 0) {
+                LOG.info("Backfilled %d files...", numBackfilled);
+            }
+        }
+        scanner.close();
+
+        LOG.info("Done. Backfilled %d files.", numBackfilled);
+    }
+
+
+    private static FileMetadata metadataWithChainDepth(
+            HBaseRawHelper helper,
+            HBaseRowKeyer rowKeyer,
+            String fileId,
+            Map<String, FileMetadata> backfilled,
+            int recursionDepth)
+            throws IOException {
+        String memoKey = rowKeyer.getOrg() + ":" + rowKeyer.getRepo() + ":" + fileId;
+        if (backfilled.containsKey(memoKey)) {
+            return backfilled.get(memoKey);
+        }
+
+        FileEntry entry = helper.getFile(rowKeyer.forFile(fileId));
+        Optional<FileMetadata> baseMetadata = Optional.empty();
+        if (entry.getBaseEntryId().isPresent() && recursionDepth < HdConstants.MAX_DIFF_SEARCH) {
+            String baseId = entry.getBaseEntryId().get();
+            FileMetadata stored = helper.getFileMetadata(rowKeyer, ImmutableList.of(baseId)).get(baseId);
+            if (stored != null && stored.getChainDepth() != FileMetadata.UNKNOWN) {
+                baseMetadata = Optional.of(stored);
+            } else if (stored != null) {
+                baseMetadata = Optional.of(
+                        metadataWithChainDepth(helper, rowKeyer, baseId, backfilled, recursionDepth + 1));
+            }
+        }
+
+        FileMetadata metadata = FileMetadata.forNewEntry(entry, baseMetadata, FileMetadata.UNKNOWN);
+        // Only bases are remembered, for when the scan reaches them. Anything already scanned has its metadata stored.
+        if (recursionDepth > 0) {
+            backfilled.put(memoKey, metadata);
+        }
+        return metadata;
+    }
+
+
     private static void migrateToBcrypt(String[] args, Connection conn) throws Exception {
         Table usersTable = conn.getTable(TableName.valueOf("Users"));
         Scan scan = new Scan();
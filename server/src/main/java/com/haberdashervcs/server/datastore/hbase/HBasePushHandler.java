@@ -1,7 +1,6 @@
 package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,7 +8,9 @@ import java.util.Optional;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
 import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.diff.git.HistogramDiffer;
 import com.haberdashervcs.common.io.HdObjectId;
 import com.haberdashervcs.common.io.HdObjectInputStream;
 import com.haberdashervcs.common.io.LargeObjectInputStream;
@@ -34,24 +35,39 @@ final class HBasePushHandler {
     private final HBaseRawHelper helper;
     private final HdLargeFileStore largeFileStore;
     private final OrgSubscription orgSub;
+    private final long writeBufferBytes;
+    private final LineIndexCache lineIndexCache;
+    private final HistogramDiffer differ;
 
+    private HBaseRawHelper.BufferedWriter writer = null;
     private HBaseRowKeyer rowKeyer = null;
     private long highestSeenCommitId = -1;
     private HBaseRawHelper.BranchWithOriginalBytes dbBranchWithBytes = null;
     private String fileIdFromLargeContents = null;
+    private long sizeFromLargeContents = FileMetadata.UNKNOWN;
     private int objectsWritten = 0;
     private long fileBytesWrittenThisPush = 0;
     private long repoSizeBytesBeforePush = -1;
 
     private Map<Long, CommitEntry> commitsById = new HashMap<>();
+    // Diffs are often pushed along with their bases, so this saves looking the bases up.
+    private Map<String, FileMetadata> fileMetadataThisPush = new HashMap<>();
+    // For the branch paths index, which the merger reads instead of scanning the branch's whole folder history.
+    private Map<String, Long> newestCommitIdPerPath = new HashMap<>();
 
     HBasePushHandler(
             HBaseRawHelper helper,
             HdLargeFileStore largeFileStore,
-            OrgSubscription orgSub) {
+            OrgSubscription orgSub,
+            long writeBufferBytes,
+            LineIndexCache lineIndexCache,
+            HistogramDiffer differ) {
         this.helper = helper;
         this.largeFileStore = largeFileStore;
         this.orgSub = orgSub;
+        this.writeBufferBytes = writeBufferBytes;
+        this.lineIndexCache = lineIndexCache;
+        this.differ = differ;
     }
 
 
@@ -59,7 +75,7 @@ final class HBasePushHandler {
             ServerProto.PushQuery pushQuery)
             throws IOException {
         final String branchName = pushQuery.getBranch();
-        rowKeyer = HBaseRowKeyer.forRepo(pushQuery.getOrg(), pushQuery.getRepo());
+        rowKeyer = helper.getRowKeyer(pushQuery.getOrg(), pushQuery.getRepo());
 
         Optional<HBaseRawHelper.BranchWithOriginalBytes> oBranch =
                 helper.getBranchWithOriginalBytes(rowKeyer.forBranch(branchName));
@@ -74,15 +90,7 @@ final class HBasePushHandler {
         }
 
         final List<String> fileIdsClientWantsToPush = pushQuery.getFileIdsClientWantsToPushList();
-        final List<String> fileIdsServerAlreadyHas = new ArrayList<>();
-        for (String clientFileId : fileIdsClientWantsToPush) {
-            byte[] fileRowKey = rowKeyer.forFile(clientFileId);
-            // TODO: Look into making this more efficient, like with batch lookup.
-            Optional<FileEntry> fileMaybe = helper.getFileMaybe(fileRowKey);
-            if (fileMaybe.isPresent()) {
-                fileIdsServerAlreadyHas.add(clientFileId);
-            }
-        }
+        final List<String> fileIdsServerAlreadyHas = helper.getFileIdsThatExist(rowKeyer, fileIdsClientWantsToPush);
 
         ServerProto.PushQueryResponse response = ServerProto.PushQueryResponse.newBuilder()
                 .setResponseType(ServerProto.PushQueryResponse.ResponseType.OK)
@@ -119,32 +127,39 @@ final class HBasePushHandler {
         // TODO: Consider branch overwriting, because of an accidental name collision. Should we
         //     use randomized alphanumeric branch id's for the actual name on the server?
         final String branchName = pushSpec.getBranch();
-        rowKeyer = HBaseRowKeyer.forRepo(pushSpec.getOrg(), pushSpec.getRepo());
-
-        repoSizeBytesBeforePush = helper.getRepoSize(rowKeyer);
-        ensureRepoSizeIsAllowed(repoSizeBytesBeforePush);
+        try (HBaseRawHelper.RepoWrite repoWrite = helper.startRepoWrite(pushSpec.getOrg(), pushSpec.getRepo())) {
+            rowKeyer = repoWrite.getRowKeyer();
+
+            repoSizeBytesBeforePush = helper.getRepoSize(rowKeyer);
+            ensureRepoSizeIsAllowed(repoSizeBytesBeforePush);
+
+            Optional<HBaseRawHelper.BranchWithOriginalBytes> oBranch =
+                    helper.getBranchWithOriginalBytes(rowKeyer.forBranch(branchName));
+            if (oBranch.isPresent()) {
+                dbBranchWithBytes = oBranch.get();
+                if (dbBranchWithBytes.branch.getBaseCommitId() != pushSpec.getBaseCommitId()) {
+                    throw new IllegalStateException(String.format(
+                            "Mismatched base commit ids: server is %d and client is %d",
+                            dbBranchWithBytes.branch.getBaseCommitId(), pushSpec.getBaseCommitId()));
+                }
+            } else {
+                BranchEntry newBranch = BranchEntry.of(branchName, pushSpec.getBaseCommitId(), 0);
+                createBranch(newBranch);
+            }
 
-        Optional<HBaseRawHelper.BranchWithOriginalBytes> oBranch =
-                helper.getBranchWithOriginalBytes(rowKeyer.forBranch(branchName));
-        if (oBranch.isPresent()) {
-            dbBranchWithBytes = oBranch.get();
-            if (dbBranchWithBytes.branch.getBaseCommitId() != pushSpec.getBaseCommitId()) {
-                throw new IllegalStateException(String.format(
-                        "Mismatched base commit ids: server is %d and client is %d",
-                        dbBranchWithBytes.branch.getBaseCommitId(), pushSpec.getBaseCommitId()));
+            LOG.info(
+                    "Repo (%s, %s) size before push is %d",
+                    rowKeyer.getOrg(), rowKeyer.getRepo(), repoSizeBytesBeforePush);
+
+            // Objects are written in batches. They're only read back in finish(), after a flush.
+            try (HBaseRawHelper.BufferedWriter writer = helper.newBufferedWriter(writeBufferBytes)) {
+                this.writer = writer;
+                processObjectStream(pushSpec, userId, objectsIn);
+                finish(pushSpec);
+            } finally {
+                this.writer = null;
             }
-        } else {
-            BranchEntry newBranch = BranchEntry.of(branchName, pushSpec.getBaseCommitId(), 0);
-            createBranch(newBranch);
         }
-
-        LOG.info(
-                "Repo (%s, %s) size before push is %d",
-                rowKeyer.getOrg(), rowKeyer.getRepo(), repoSizeBytesBeforePush);
-
-        processObjectStream(pushSpec, userId, objectsIn);
-
-        finish(pushSpec);
     }
 
 
@@ -207,6 +222,7 @@ final class HBasePushHandler {
 
 
     private void writeFile(FileEntry file) throws IOException {
+        long largeFileSize = FileMetadata.UNKNOWN;
         if (fileIdFromLargeContents != null) {
             if (!file.getId().equals(fileIdFromLargeContents)) {
                 throw new IllegalStateException(String.format(
@@ -218,6 +234,8 @@ final class HBasePushHandler {
             }
 
             fileIdFromLargeContents = null;
+            largeFileSize = sizeFromLargeContents;
+            sizeFromLargeContents = FileMetadata.UNKNOWN;
 
         } else if (file.getStorageType() == FileEntry.StorageType.LARGE_FILE_STORE) {
             throw new IllegalStateException("Unexpected large file: " + file.getDebugString());
@@ -225,11 +243,27 @@ final class HBasePushHandler {
 
         ++objectsWritten;
         LOG.info("Push: Got file: %s", file.getDebugString());
-        helper.putFile(rowKeyer.forFile(file.getId()), file);
+        FileMetadata metadata = FileMetadata.forNewEntry(file, getBaseMetadata(file), largeFileSize);
+        writer.putFile(rowKeyer.forFile(file.getId()), file, metadata);
+        fileMetadataThisPush.put(file.getId(), metadata);
         incrementRepoSizeForFile(file);
     }
 
 
+    private Optional<FileMetadata> getBaseMetadata(FileEntry file) throws IOException {
+        if (file.getBaseEntryId().isEmpty()) {
+            return Optional.empty();
+        }
+
+        String baseId = file.getBaseEntryId().get();
+        if (fileMetadataThisPush.containsKey(baseId)) {
+            return Optional.of(fileMetadataThisPush.get(baseId));
+        } else {
+            return Optional.ofNullable(helper.getFileMetadata(rowKeyer, ImmutableList.of(baseId)).get(baseId));
+        }
+    }
+
+
     private void incrementRepoSizeForFile(FileEntry entry) {
         if (entry.getStorageType() == FileEntry.StorageType.DATASTORE) {
             // TODO: Make this more efficient, so that it doesn't copy the contents array. Write file sizes in the
@@ -259,10 +293,11 @@ final class HBasePushHandler {
             highestSeenCommitId = folder.getCommitId();
         }
 
-        helper.putFolderAllowingOverwrite(
+        writer.putFolderAllowingOverwrite(
                 rowKeyer.forFolderAt(
                         branchName, folder.getPath(), folder.getCommitId()),
                 folder);
+        newestCommitIdPerPath.merge(folder.getPath(), folder.getCommitId(), Math::max);
     }
 
 
@@ -281,7 +316,8 @@ final class HBasePushHandler {
         // TODO: Get rid of this hack on both client and server.
         CommitEntry serverCommit = pushedLocalCommit.withAuthor(pushingUserId);
         byte[] rowKey = rowKeyer.forCommit(serverCommit);
-        helper.putCommit(rowKey, serverCommit);
+        writer.putCommit(rowKey, serverCommit);
+        writer.putCommitPaths(rowKeyer, serverCommit);
 
         Verify.verify(!commitsById.containsKey(pushedLocalCommit.getCommitId()));
         commitsById.put(pushedLocalCommit.getCommitId(), serverCommit);
@@ -295,6 +331,7 @@ final class HBasePushHandler {
         try (contents) {
             long size = largeFileStore.saveFile(
                     rowKeyer.getOrg(), rowKeyer.getRepo(), fileIdFromLargeContents, contents);
+            sizeFromLargeContents = size;
             incrementRepoSizeForLargeContents(size);
         }
     }
@@ -312,6 +349,9 @@ final class HBasePushHandler {
             return;
         }
 
+        // Everything pushed has to be in the db before it's diffed, and before the branch update makes it visible.
+        writer.flush();
+
         if (pushSpec.getNewHeadCommitId() != highestSeenCommitId) {
             throw new AssertionError(String.format(
                     "The new head commit (%d) didn't match the newest folder commit (%d)",
@@ -345,6 +385,11 @@ final class HBasePushHandler {
         computeDiffs(dbBranch.getName(), dbBranch.getBaseCommitId());
 
 
+        // This goes before the branch update, so the index never misses a path that's visible on the branch. If the
+        // push fails after this, the merger skips entries past the branch head.
+        helper.putBranchPaths(rowKeyer, dbBranch.getName(), newestCommitIdPerPath);
+
+
         // This is the final operation that seals the push "transaction" as completed, in one change.
         final BranchEntry updatedEntry = BranchEntry.of(
                 dbBranch.getName(), dbBranch.getBaseCommitId(), pushSpec.getNewHeadCommitId());
@@ -370,7 +415,7 @@ final class HBasePushHandler {
                 existingReview.getReview());
 
         HBaseCommitDiffGenerator commitDiffer = HBaseCommitDiffGenerator.of(
-                branchName, helper, rowKeyer, largeFileStore);
+                branchName, helper, rowKeyer, largeFileStore, lineIndexCache, differ);
         List<ReviewsProto.CommitDiff> newCommitDiffs = commitDiffer.diff(commitsById.values());
         updatedReview.addAllCommitDiffs(newCommitDiffs);
         helper.updateBranchReview(updatedReview.build(), existingReview);
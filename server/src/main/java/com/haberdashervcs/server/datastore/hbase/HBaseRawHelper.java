@@ -3,15 +3,22 @@ package com.haberdashervcs.server.datastore.hbase;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.haberdashervcs.common.io.HdObjectByteConverter;
 import com.haberdashervcs.common.io.ProtobufObjectByteConverter;
 import com.haberdashervcs.common.logging.HdLogger;
@@ -23,10 +30,13 @@ import com.haberdashervcs.common.objects.FolderListing;
 import com.haberdashervcs.common.objects.MergeLock;
 import com.haberdashervcs.common.objects.RepoEntry;
 import com.haberdashervcs.common.objects.user.OrgSubscription;
+import com.haberdashervcs.common.protobuf.FilesProto;
 import com.haberdashervcs.common.protobuf.ReposProto;
 import com.haberdashervcs.common.protobuf.ReviewsProto;
 import com.haberdashervcs.server.browser.RepoBrowser;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
 import org.apache.hadoop.hbase.client.CheckAndMutate;
 import org.apache.hadoop.hbase.client.CheckAndMutateResult;
 import org.apache.hadoop.hbase.client.Connection;
@@ -37,6 +47,7 @@ import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 
 
@@ -48,33 +59,140 @@ public final class HBaseRawHelper {
 
     private static final HdLogger LOG = HdLoggers.create(HBaseRawHelper.class);
 
+    // How many rows go in each multi-get for batched file lookups.
+    static final int DEFAULT_FILE_LOOKUP_BATCH_SIZE = 1000;
+
+    static final long DEFAULT_WRITE_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    // How long a server may keep reading with a repo's row key layout before re-reading it. Writes always re-read it,
+    // see startRepoWrite(). Binary keyed repos never change layout, so they're cached for good.
+    private static final long ROW_KEY_LAYOUT_CACHE_MILLIS = 30 * 1000;
+
+    // In a repo's Repos row. A missing layout means V1_TEXT.
+    private static final String KEY_LAYOUT_COLUMN = "keyLayout";
+    private static final String REPO_ID_COLUMN = "repoId";
+    // The number of writes to a text keyed repo that are running. See startRepoWrite().
+    private static final String ACTIVE_WRITES_COLUMN = "activeWrites";
+    // In a branch's Branches row, once all its commits are in the CommitPaths index. See isCommitPathsIndexed().
+    private static final String COMMIT_PATHS_INDEXED_COLUMN = "commitPathsIndexed";
+    static final String KEY_LAYOUT_MIGRATING = "MIGRATING_TO_V2_BINARY";
+
+    private static final byte[] REPO_ID_COUNTER_ROW = ":REPO_ID_COUNTER".getBytes(StandardCharsets.UTF_8);
+
+
     public static HBaseRawHelper forConnection(Connection conn) {
-        return new HBaseRawHelper(conn);
+        return new HBaseRawHelper(conn, DEFAULT_FILE_LOOKUP_BATCH_SIZE);
+    }
+
+    public static HBaseRawHelper forConnection(Connection conn, int fileLookupBatchSize) {
+        Preconditions.checkArgument(fileLookupBatchSize > 0);
+        return new HBaseRawHelper(conn, fileLookupBatchSize);
     }
 
 
     private final Connection conn;
+    private final int fileLookupBatchSize;
     // TODO pass/configure this
     private final HdObjectByteConverter byteConv = ProtobufObjectByteConverter.getInstance();
 
-    private HBaseRawHelper(Connection conn) {
+    private final Map<String, CachedRowKeyer> rowKeyers = new ConcurrentHashMap<>();
+
+    private HBaseRawHelper(Connection conn, int fileLookupBatchSize) {
         this.conn = conn;
+        this.fileLookupBatchSize = fileLookupBatchSize;
     }
 
 
-    Optional<FileEntry> getFileMaybe(final byte[] rowKey) throws IOException {
-        final Table filesTable = conn.getTable(TableName.valueOf("Files"));
-        final String columnFamilyName = "cfMain";
+    /**
+     * Batches puts of new objects into a few large RPCs. Writes aren't guaranteed to be visible until flush() or
+     * close() returns.
+     */
+    final class BufferedWriter implements AutoCloseable {
+
+        private final BufferedMutator filesMutator;
+        private final BufferedMutator foldersMutator;
+        private final BufferedMutator commitsMutator;
+        private final BufferedMutator commitPathsMutator;
+
+        private BufferedWriter(long writeBufferBytes) throws IOException {
+            this.filesMutator = newMutator("Files", writeBufferBytes);
+            this.foldersMutator = newMutator("Folders", writeBufferBytes);
+            this.commitsMutator = newMutator("Commits", writeBufferBytes);
+            this.commitPathsMutator = newMutator("CommitPaths", writeBufferBytes);
+        }
+
+        private BufferedMutator newMutator(String tableName, long writeBufferBytes) throws IOException {
+            BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(tableName))
+                    .writeBufferSize(writeBufferBytes);
+            return conn.getBufferedMutator(params);
+        }
+
+        void putFile(final byte[] rowKey, FileEntry fileEntry, FileMetadata metadata) throws IOException {
+            filesMutator.mutate(filePut(rowKey, fileEntry, metadata));
+        }
+
+        void putFolderAllowingOverwrite(final byte[] rowKey, FolderListing folderListing) throws IOException {
+            foldersMutator.mutate(folderPut(rowKey, folderListing));
+        }
+
+        void putCommit(final byte[] rowKey, CommitEntry commitEntry) throws IOException {
+            commitsMutator.mutate(commitPut(rowKey, commitEntry));
+        }
+
+        void putCommitPaths(HBaseRowKeyer rowKeyer, CommitEntry commitEntry) throws IOException {
+            commitPathsMutator.mutate(commitPathsPuts(rowKeyer, commitEntry));
+        }
+
+        /**
+         * Sends all buffered writes. Throws if any of them failed.
+         */
+        void flush() throws IOException {
+            filesMutator.flush();
+            foldersMutator.flush();
+            commitsMutator.flush();
+            commitPathsMutator.flush();
+        }
 
-        Get get = new Get(rowKey);
-        Result result = filesTable.get(get);
-        if (result.isEmpty()) {
+        @Override
+        public void close() throws IOException {
+            try (filesMutator; foldersMutator; commitsMutator; commitPathsMutator) {
+                flush();
+            }
+        }
+    }
+
+
+    BufferedWriter newBufferedWriter(long writeBufferBytes) throws IOException {
+        Preconditions.checkArgument(writeBufferBytes > 0);
+        return new BufferedWriter(writeBufferBytes);
+    }
+
+
+    Optional<FileEntry> getFileMaybe(final byte[] rowKey) throws IOException {
+        Optional<byte[]> stored = getStoredFileMaybe(rowKey);
+        if (stored.isEmpty()) {
             return Optional.empty();
         }
+        return Optional.of(byteConv.fileFromBytes(stored.get()));
+    }
+
+
+    /**
+     * A file entry's bytes as they're stored, possibly compressed, for sending on to a client without decoding them.
+     * See HdObjectOutputStream.writeStoredFile().
+     */
+    Optional<byte[]> getStoredFileMaybe(final byte[] rowKey) throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            final String columnFamilyName = "cfMain";
+
+            Get get = new Get(rowKey);
+            Result result = filesTable.get(get);
+            if (result.isEmpty()) {
+                return Optional.empty();
+            }
 
-        byte[] fileValue = result.getValue(
-                Bytes.toBytes(columnFamilyName), Bytes.toBytes("contents"));
-        return Optional.of(byteConv.fileFromBytes(fileValue));
+            return Optional.of(result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes("contents")));
+        }
     }
 
     FileEntry getFile(final byte[] rowKey) throws IOException {
@@ -82,24 +200,187 @@ public final class HBaseRawHelper {
     }
 
 
+    /**
+     * Returns the subset of the given file ids that exist, in the given order. This checks existence on the server
+     * side, so no file contents are sent back.
+     */
+    List<String> getFileIdsThatExist(HBaseRowKeyer rowKeyer, List<String> fileIds) throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+
+            List<String> out = new ArrayList<>();
+            for (List<String> batch : Lists.partition(fileIds, fileLookupBatchSize)) {
+                List<Get> gets = new ArrayList<>(batch.size());
+                for (String fileId : batch) {
+                    gets.add(new Get(rowKeyer.forFile(fileId)));
+                }
+
+                boolean[] exists = filesTable.exists(gets);
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (exists[i]) {
+                        out.add(batch.get(i));
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+
+    /**
+     * Looks up file metadata in batches, reading only the metadata column. Files that aren't found are left out of the
+     * returned map.
+     */
+    Map<String, FileMetadata> getFileMetadata(HBaseRowKeyer rowKeyer, Collection<String> fileIds)
+            throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            final String columnFamilyName = "cfMain";
+
+            Map<String, FileMetadata> out = new HashMap<>();
+            List<String> withoutMetadata = new ArrayList<>();
+            for (List<String> batch : Lists.partition(new ArrayList<>(fileIds), fileLookupBatchSize)) {
+                List<Get> gets = new ArrayList<>(batch.size());
+                for (String fileId : batch) {
+                    gets.add(new Get(rowKeyer.forFile(fileId))
+                            .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes("metadata")));
+                }
+
+                Result[] results = filesTable.get(gets);
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (results[i].isEmpty()) {
+                        withoutMetadata.add(batch.get(i));
+                        continue;
+                    }
+                    byte[] metadataValue = results[i].getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes("metadata"));
+                    out.put(batch.get(i), FileMetadata.fromProto(
+                            batch.get(i), FilesProto.FileMetadata.parseFrom(metadataValue)));
+                }
+            }
+
+            // Rows from before the metadata column existed, if they haven't been backfilled yet.
+            if (!withoutMetadata.isEmpty()) {
+                Map<String, FileEntry> entries = getFiles(rowKeyer, withoutMetadata);
+                for (FileEntry entry : entries.values()) {
+                    out.put(entry.getId(), FileMetadata.forNewEntry(entry, Optional.empty(), FileMetadata.UNKNOWN));
+                }
+            }
+
+            return out;
+        }
+    }
+
+
+    /**
+     * Looks up whole file entries in batches. Files that aren't found are left out of the returned map.
+     */
+    Map<String, FileEntry> getFiles(HBaseRowKeyer rowKeyer, Collection<String> fileIds) throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            final String columnFamilyName = "cfMain";
+
+            Map<String, FileEntry> out = new HashMap<>();
+            for (List<String> batch : Lists.partition(new ArrayList<>(fileIds), fileLookupBatchSize)) {
+                List<Get> gets = new ArrayList<>(batch.size());
+                for (String fileId : batch) {
+                    gets.add(new Get(rowKeyer.forFile(fileId))
+                            .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes("contents")));
+                }
+
+                Result[] results = filesTable.get(gets);
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (results[i].isEmpty()) {
+                        continue;
+                    }
+                    byte[] fileValue = results[i].getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes("contents"));
+                    out.put(batch.get(i), byteConv.fileFromBytes(fileValue));
+                }
+            }
+            return out;
+        }
+    }
+
+
+    /**
+     * Writes the file without knowing about its diff base, so a diff's chain depth is left unknown.
+     */
+    void putFile(final byte[] rowKey, FileEntry fileEntry) throws IOException {
+        putFile(rowKey, fileEntry, FileMetadata.forNewEntry(fileEntry, Optional.empty(), FileMetadata.UNKNOWN));
+    }
+
+
     // TODO: What if the file already exists? Should I use a CheckAndMutate if-not-exists here, and let callers make
     //     sure the file is new?
-    void putFile(final byte[] rowKey, FileEntry fileEntry) throws IOException {
+    void putFile(final byte[] rowKey, FileEntry fileEntry, FileMetadata metadata) throws IOException {
         LOG.debug(
                 "TEMP: Putting file: %s / %s",
                 new String(rowKey, StandardCharsets.UTF_8),
                 fileEntry.getDebugString());
 
-        final Table filesTable = conn.getTable(TableName.valueOf("Files"));
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            filesTable.put(filePut(rowKey, fileEntry, metadata));
+        }
+    }
+
+
+    private Put filePut(final byte[] rowKey, FileEntry fileEntry, FileMetadata metadata) throws IOException {
         final String columnFamilyName = "cfMain";
-        final String columnName = "contents";
 
         Put put = new Put(rowKey);
         put.addColumn(
                 Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                byteConv.fileToBytes(fileEntry));
-        filesTable.put(put);
+                Bytes.toBytes("contents"),
+                byteConv.fileToCompressedBytes(fileEntry));
+        put.addColumn(
+                Bytes.toBytes(columnFamilyName),
+                Bytes.toBytes("metadata"),
+                metadata.toProto().toByteArray());
+        return put;
+    }
+
+
+    void putFileMetadata(final byte[] rowKey, FileMetadata metadata) throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes("cfMain"),
+                    Bytes.toBytes("metadata"),
+                    metadata.toProto().toByteArray());
+            filesTable.put(put);
+        }
+    }
+
+
+    /**
+     * Like putFile(), but only if the row's metadata is still expectedMetadata. Returns whether it was written.
+     */
+    boolean putFileIfMetadataIs(
+            final byte[] rowKey, byte[] expectedMetadata, FileEntry fileEntry, FileMetadata metadata)
+            throws IOException {
+        return putIfMetadataIs(rowKey, expectedMetadata, filePut(rowKey, fileEntry, metadata));
+    }
+
+
+    /**
+     * Like putFileMetadata(), but only if the row's metadata is still expectedMetadata. Returns whether it was written.
+     */
+    boolean putFileMetadataIfUnchanged(final byte[] rowKey, byte[] expectedMetadata, FileMetadata metadata)
+            throws IOException {
+        Put put = new Put(rowKey);
+        put.addColumn(
+                Bytes.toBytes("cfMain"),
+                Bytes.toBytes("metadata"),
+                metadata.toProto().toByteArray());
+        return putIfMetadataIs(rowKey, expectedMetadata, put);
+    }
+
+
+    private boolean putIfMetadataIs(final byte[] rowKey, byte[] expectedMetadata, Put put) throws IOException {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
+                    .ifEquals(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"), expectedMetadata)
+                    .build(put);
+            return filesTable.checkAndMutate(cAndM).isSuccess();
+        }
     }
 
 
@@ -116,7 +397,20 @@ public final class HBaseRawHelper {
     private void putFolder(final byte[] rowKey, FolderListing folderListing, boolean allowOverwrite) throws IOException {
         LOG.debug("putFolder: Writing FolderListing: %s", folderListing.getDebugString());
 
-        final Table foldersTable = conn.getTable(TableName.valueOf("Folders"));
+        try (Table foldersTable = conn.getTable(TableName.valueOf("Folders"))) {
+            Put put = folderPut(rowKey, folderListing);
+
+            if (allowOverwrite) {
+                foldersTable.put(put);
+
+            } else {
+                putIfNotExists(rowKey, "cfMain", "listing", put, foldersTable);
+            }
+        }
+    }
+
+
+    private Put folderPut(final byte[] rowKey, FolderListing folderListing) throws IOException {
         final String columnFamilyName = "cfMain";
         final String columnName = "listing";
 
@@ -125,13 +419,7 @@ public final class HBaseRawHelper {
                 Bytes.toBytes(columnFamilyName),
                 Bytes.toBytes(columnName),
                 byteConv.folderToBytes(folderListing));
-
-        if (allowOverwrite) {
-            foldersTable.put(put);
-
-        } else {
-            putIfNotExists(rowKey, columnFamilyName, columnName, put, foldersTable);
-        }
+        return put;
     }
 
 
@@ -150,7 +438,13 @@ public final class HBaseRawHelper {
 
 
     void putCommit(final byte[] rowKey, CommitEntry commitEntry) throws IOException {
-        final Table commitsTable = conn.getTable(TableName.valueOf("Commits"));
+        try (Table commitsTable = conn.getTable(TableName.valueOf("Commits"))) {
+            commitsTable.put(commitPut(rowKey, commitEntry));
+        }
+    }
+
+
+    private Put commitPut(final byte[] rowKey, CommitEntry commitEntry) throws IOException {
         final String columnFamilyName = "cfMain";
         final String columnName = "entry";
 
@@ -159,70 +453,323 @@ public final class HBaseRawHelper {
                 Bytes.toBytes(columnFamilyName),
                 Bytes.toBytes(columnName),
                 byteConv.commitToBytes(commitEntry));
-        commitsTable.put(put);
+        return put;
+    }
+
+
+    /**
+     * Indexes the commit under each folder that contains one of its changed paths, and under "/". See
+     * getCommitIdsForFolder().
+     */
+    void putCommitPaths(HBaseRowKeyer rowKeyer, CommitEntry commitEntry) throws IOException {
+        try (Table commitPathsTable = conn.getTable(TableName.valueOf("CommitPaths"))) {
+            commitPathsTable.put(commitPathsPuts(rowKeyer, commitEntry));
+        }
+    }
+
+
+    private List<Put> commitPathsPuts(HBaseRowKeyer rowKeyer, CommitEntry commitEntry) {
+        final String columnFamilyName = "cfMain";
+        final String columnName = "commitId";
+
+        // Empty commits, like integrations, are still in the log for "/".
+        Set<String> folders = new HashSet<>();
+        folders.add("/");
+        for (CommitEntry.CommitChangedPath changedPath : commitEntry.getChangedPaths()) {
+            String path = changedPath.getPath();
+            for (int slashIdx = path.indexOf('/'); slashIdx >= 0; slashIdx = path.indexOf('/', slashIdx + 1)) {
+                folders.add(path.substring(0, slashIdx + 1));
+            }
+        }
+
+        List<Put> puts = new ArrayList<>(folders.size());
+        for (String folder : folders) {
+            Put put = new Put(rowKeyer.forCommitPath(commitEntry.getBranchName(), folder, commitEntry.getCommitId()));
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    Bytes.toBytes(commitEntry.getCommitId()));
+            puts.add(put);
+        }
+        return puts;
+    }
+
+
+    /**
+     * Returns the ids of up to maxIds commits on the branch that changed something under the folder, newest first,
+     * starting at atCommitId.
+     */
+    List<Long> getCommitIdsForFolder(
+            HBaseRowKeyer rowKeyer, String branchName, String folderPath, long atCommitId, int maxIds)
+            throws IOException {
+        Preconditions.checkArgument(maxIds > 0);
+        try (Table commitPathsTable = conn.getTable(TableName.valueOf("CommitPaths"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "commitId";
+
+            byte[] prefix = rowKeyer.prefixForCommitPaths(branchName, folderPath);
+            Scan scan = new Scan()
+                    .withStartRow(rowKeyer.forCommitPath(branchName, folderPath, atCommitId), /* inclusive = */ true)
+                    .withStopRow(stopRowForPrefix(prefix), false)
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName))
+                    .setLimit(maxIds);
+
+            List<Long> out = new ArrayList<>();
+            try (ResultScanner scanner = commitPathsTable.getScanner(scan)) {
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    out.add(Bytes.toLong(result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName))));
+                }
+            }
+            return out;
+        }
+    }
+
+
+    /**
+     * Whether every commit on the branch is in the CommitPaths index. Branches created since the index existed are
+     * indexed from their first commit. Older ones may have only their newer commits in it, until the backfill marks
+     * them.
+     */
+    boolean isCommitPathsIndexed(HBaseRowKeyer rowKeyer, String branchName) throws IOException {
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+
+            Get get = new Get(rowKeyer.forBranch(branchName))
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(COMMIT_PATHS_INDEXED_COLUMN));
+            return branchesTable.exists(get);
+        }
+    }
+
+
+    /**
+     * Marks a branch as having all its commits in the CommitPaths index. Only for after they've all been written.
+     */
+    void markCommitPathsIndexed(byte[] branchRowKey) throws IOException {
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+
+            Put put = new Put(branchRowKey).addColumn(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(COMMIT_PATHS_INDEXED_COLUMN), Bytes.toBytes(true));
+            branchesTable.put(put);
+        }
+    }
+
+
+    // The first row key after every key that starts with the prefix. Prefixes here end in ':', so there's no overflow.
+    private static byte[] stopRowForPrefix(byte[] prefix) {
+        byte[] stopRow = Arrays.copyOf(prefix, prefix.length);
+        ++stopRow[stopRow.length - 1];
+        return stopRow;
+    }
+
+
+    /**
+     * Looks up the given commits on the branch, in one batch, in the order given. Commits that aren't found are left
+     * out.
+     */
+    List<CommitEntry> getCommits(HBaseRowKeyer rowKeyer, String branchName, List<Long> commitIds)
+            throws IOException {
+        try (Table commitsTable = conn.getTable(TableName.valueOf("Commits"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "entry";
+
+            List<Get> gets = new ArrayList<>(commitIds.size());
+            for (long commitId : commitIds) {
+                gets.add(new Get(rowKeyer.forCommitOnBranch(branchName, commitId))
+                        .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName)));
+            }
+
+            List<CommitEntry> out = new ArrayList<>(commitIds.size());
+            Result[] results = commitsTable.get(gets);
+            for (int i = 0; i < results.length; ++i) {
+                if (results[i].isEmpty()) {
+                    LOG.warn("Indexed commit %d on branch %s wasn't found", commitIds.get(i), branchName);
+                    continue;
+                }
+                byte[] rowBytes = results[i].getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                out.add(byteConv.commitFromBytes(rowBytes));
+            }
+            return out;
+        }
     }
 
 
     // TODO! Consoliate all these folder lookup APIs. There are just too many of them.
     Optional<FolderListing> getMergedFolderAtCommit(
-            String org,
-            String repo,
+            HBaseRowKeyer rowKeyer,
             String branchName,
             long commitId,
             String path,
             MergeStates mergeStates)
             throws IOException {
-        final Table historyTable = conn.getTable(TableName.valueOf("Folders"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "listing";
-
-        String startRow = folderListingRowKey(org, repo, branchName, path, commitId);
-        String stopRow = folderListingRowKey(org, repo, branchName, path, 0);
-        LOG.debug("getHeadAtCommit scan: start / stop: %s / %s", startRow, stopRow);
-
-        Scan scan = new Scan()
-                .setReversed(true)
-                .withStartRow(startRow.getBytes(StandardCharsets.UTF_8), /* inclusive = */ true)
-                .withStopRow(stopRow.getBytes(StandardCharsets.UTF_8), true);
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
 
-        ResultScanner scanner = historyTable.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            byte[] rowBytes = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            FolderListing listing = byteConv.folderFromBytes(rowBytes);
+            Scan scan = new Scan()
+                    .setReversed(true)
+                    .withStartRow(rowKeyer.forFolderAt(branchName, path, commitId), /* inclusive = */ true)
+                    .withStopRow(rowKeyer.forFolderAt(branchName, path, 0), true);
 
-            if (!listing.getMergeLockId().isPresent()) {
-                scanner.close();
-                return Optional.of(listing);
+            ResultScanner scanner = historyTable.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] rowBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                FolderListing listing = byteConv.folderFromBytes(rowBytes);
 
-            } else {
-                String mergeId = listing.getMergeLockId().get();
-                MergeLock lock = mergeStates.forMergeLockId(mergeId);
-                if (lock.getState() == MergeLock.State.COMPLETED) {
+                if (!listing.getMergeLockId().isPresent()) {
                     scanner.close();
                     return Optional.of(listing);
+
+                } else {
+                    String mergeId = listing.getMergeLockId().get();
+                    MergeLock lock = mergeStates.forMergeLockId(mergeId);
+                    if (lock.getState() == MergeLock.State.COMPLETED) {
+                        scanner.close();
+                        return Optional.of(listing);
+                    }
                 }
             }
+
+            // Nothing on the branch? Then look for the head commit on main.
+            if (!branchName.equals("main")) {
+                return getMergedFolderAtCommit(rowKeyer, "main", commitId, path, mergeStates);
+            } else {
+                scanner.close();
+                return Optional.empty();
+            }
         }
+    }
 
-        // Nothing on the branch? Then look for the head commit on main.
-        if (!branchName.equals("main")) {
-            return getMergedFolderAtCommit(org, repo, "main", commitId, path, mergeStates);
-        } else {
-            scanner.close();
+
+    /**
+     * Writes the tree hash of a folder at a commit. An empty hash means it's unknown at this commit, which also hides
+     * any older hash for the path.
+     *
+     * previousCommitId is the commit of the newest hash row for the path that was visible when this hash was
+     * computed, or -1 if there was none. See getTreeHashAtCommit() for how it's checked.
+     */
+    void putTreeHash(final byte[] rowKey, String treeHash, long previousCommitId, Optional<String> mergeLockId)
+            throws IOException {
+        try (Table treeHashesTable = conn.getTable(TableName.valueOf("TreeHashes"))) {
+            final String columnFamilyName = "cfMain";
+
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes("treeHash"),
+                    treeHash.getBytes(StandardCharsets.UTF_8));
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes("previousCommitId"),
+                    Bytes.toBytes(previousCommitId));
+            if (mergeLockId.isPresent()) {
+                put.addColumn(
+                        Bytes.toBytes(columnFamilyName),
+                        Bytes.toBytes("mergeLockId"),
+                        mergeLockId.get().getBytes(StandardCharsets.UTF_8));
+            }
+            treeHashesTable.put(put);
+        }
+    }
+
+
+    /**
+     * Returns the tree hash of the folder at the given path, as of the given commit on the branch. Like folder
+     * listings, hashes written by merges that haven't completed are skipped.
+     *
+     * A hash is only returned if it was computed over every change before it: the next visible row down has to be the
+     * one its writer saw as the previous hash. If another merge's hash row for the path has become visible in
+     * between (two servers merging into a repo at once), or the row is from before hashes were checked this way, the
+     * hash is unknown.
+     */
+    Optional<String> getTreeHashAtCommit(
+            HBaseRowKeyer rowKeyer,
+            String branchName,
+            long commitId,
+            String path,
+            MergeStates mergeStates)
+            throws IOException {
+        List<Result> visible = getVisibleTreeHashRows(rowKeyer, branchName, commitId, path, mergeStates, 2);
+        if (visible.isEmpty()) {
+            // NOTE: Unlike folder listings, there's no fallback to main. See TreeHasher for why only main has hashes.
+            return Optional.empty();
+        }
+
+        final byte[] cf = Bytes.toBytes("cfMain");
+        Result newest = visible.get(0);
+        String treeHash = new String(newest.getValue(cf, Bytes.toBytes("treeHash")), StandardCharsets.UTF_8);
+        byte[] previousBytes = newest.getValue(cf, Bytes.toBytes("previousCommitId"));
+        if (treeHash.isEmpty() || previousBytes == null) {
+            return Optional.empty();
+        }
+
+        long expectedPrevious = Bytes.toLong(previousBytes);
+        long actualPrevious = (visible.size() > 1)
+                ? rowKeyer.commitIdFromFolderKey(visible.get(1).getRow())
+                : -1;
+        if (expectedPrevious != actualPrevious) {
+            LOG.info(
+                    "Tree hash for %s at %s:%d was computed after %d, but %d is visible: treating it as unknown",
+                    path, branchName, commitId, expectedPrevious, actualPrevious);
             return Optional.empty();
         }
+        return Optional.of(treeHash);
     }
 
 
-    private String folderListingRowKey(String org, String repo, String branchName, String path, long commitId) {
-        // IDEA: Format the long as base-256 bytes? It would save space in row keys, but it's a big migration.
-        //
-        // 20 digits is long enough to hold the base-10 value of the max unsigned long: 18,446,744,073,709,551,615
-        return String.format(
-                "%s:%s:%s:%s:%020d",
-                org, repo, branchName, path, commitId);
+    /**
+     * The commit of the newest visible tree hash row for the path at or before the given commit, or -1 if there's
+     * none.
+     */
+    long getTreeHashCommitIdAtCommit(
+            HBaseRowKeyer rowKeyer,
+            String branchName,
+            long commitId,
+            String path,
+            MergeStates mergeStates)
+            throws IOException {
+        List<Result> visible = getVisibleTreeHashRows(rowKeyer, branchName, commitId, path, mergeStates, 1);
+        return (visible.isEmpty()) ? -1 : rowKeyer.commitIdFromFolderKey(visible.get(0).getRow());
+    }
+
+
+    // Newest first, up to maxRows.
+    private List<Result> getVisibleTreeHashRows(
+            HBaseRowKeyer rowKeyer,
+            String branchName,
+            long commitId,
+            String path,
+            MergeStates mergeStates,
+            int maxRows)
+            throws IOException {
+        try (Table treeHashesTable = conn.getTable(TableName.valueOf("TreeHashes"))) {
+            final String columnFamilyName = "cfMain";
+
+            Scan scan = new Scan()
+                    .setReversed(true)
+                    .withStartRow(rowKeyer.forTreeHashAt(branchName, path, commitId), /* inclusive = */ true)
+                    .withStopRow(rowKeyer.forTreeHashAt(branchName, path, 0), true);
+
+            List<Result> out = new ArrayList<>(maxRows);
+            try (ResultScanner scanner = treeHashesTable.getScanner(scan)) {
+                Result result;
+                while (out.size() < maxRows && (result = scanner.next()) != null) {
+                    byte[] mergeLockIdBytes = result.getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes("mergeLockId"));
+                    if (mergeLockIdBytes != null) {
+                        String mergeLockId = new String(mergeLockIdBytes, StandardCharsets.UTF_8);
+                        if (mergeStates.forMergeLockId(mergeLockId).getState() != MergeLock.State.COMPLETED) {
+                            continue;
+                        }
+                    }
+                    out.add(result);
+                }
+            }
+            return out;
+        }
     }
 
 
@@ -230,158 +777,470 @@ public final class HBaseRawHelper {
      * For use by raw merging code. Returns newest to oldest.
      */
     List<FolderListing> getListingsSinceCommitIgnoringMergeLocks(
-            String org, String repo, String branch, long sinceCommitIdExclusive, String path)
+            HBaseRowKeyer rowKeyer, String branch, long sinceCommitIdExclusive, String path)
             throws IOException {
-        final Table historyTable = conn.getTable(TableName.valueOf("Folders"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "listing";
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
 
-        String startRow = folderListingRowKey(org, repo, branch, path, Long.MAX_VALUE);
-        String stopRow = folderListingRowKey(org, repo, branch, path, sinceCommitIdExclusive);
+            Scan scan = new Scan()
+                    .setReversed(true)
+                    .withStartRow(rowKeyer.forFolderAt(branch, path, Long.MAX_VALUE), /* inclusive = */ true)
+                    .withStopRow(rowKeyer.forFolderAt(branch, path, sinceCommitIdExclusive), false);
 
-        LOG.debug("History scan: start / stop: %s / %s", startRow, stopRow);
-        Scan scan = new Scan()
-                .setReversed(true)
-                .withStartRow(startRow.getBytes(StandardCharsets.UTF_8), /* inclusive = */ true)
-                .withStopRow(stopRow.getBytes(StandardCharsets.UTF_8), false);
+            List<FolderListing> out = new ArrayList<>();
+            ResultScanner scanner = historyTable.getScanner(scan);
 
-        List<FolderListing> out = new ArrayList<>();
-        ResultScanner scanner = historyTable.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] rowBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                out.add(byteConv.folderFromBytes(rowBytes));
+            }
 
-        Result result;
-        while ((result = scanner.next()) != null) {
-            byte[] rowBytes = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            out.add(byteConv.folderFromBytes(rowBytes));
+            scanner.close();
+            return out;
         }
+    }
+
+
+    /**
+     * For use by raw merging code. Like getListingsSinceCommitIgnoringMergeLocks(), but for many paths in one scan.
+     * Listings are returned in row order, so each path's are oldest to newest.
+     */
+    List<FolderListing> getListingsSinceCommitForPathsIgnoringMergeLocks(
+            HBaseRowKeyer rowKeyer, String branch, long sinceCommitIdExclusive, Collection<String> paths)
+            throws IOException {
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
+
+            if (paths.isEmpty()) {
+                return Collections.emptyList();
+            }
 
-        scanner.close();
-        return out;
+            List<MultiRowRangeFilter.RowRange> ranges = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                ranges.add(new MultiRowRangeFilter.RowRange(
+                        rowKeyer.forFolderAt(branch, path, sinceCommitIdExclusive), false,
+                        rowKeyer.forFolderAt(branch, path, Long.MAX_VALUE), true));
+            }
+            // This sorts and merges the ranges, and the scan seeks from one to the next.
+            MultiRowRangeFilter filter = new MultiRowRangeFilter(ranges);
+            // Without bounds the scan would start at the top of the table and stop at the end of it.
+            MultiRowRangeFilter.RowRange first = filter.getRowRanges().get(0);
+            MultiRowRangeFilter.RowRange last = filter.getRowRanges().get(filter.getRowRanges().size() - 1);
+
+            Scan scan = new Scan()
+                    .withStartRow(first.getStartRow(), first.isStartRowInclusive())
+                    .withStopRow(last.getStopRow(), last.isStopRowInclusive())
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName))
+                    .setFilter(filter);
+
+            List<FolderListing> out = new ArrayList<>();
+            try (ResultScanner scanner = historyTable.getScanner(scan)) {
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    byte[] rowBytes = result.getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                    out.add(byteConv.folderFromBytes(rowBytes));
+                }
+            }
+            return out;
+        }
     }
 
 
     List<CommitEntry> getCommitsDescendingFrom(
-            String org, String repo, String branchName, long maxCommitId, int batchSize) {
+            HBaseRowKeyer rowKeyer, String branchName, long maxCommitId, int batchSize) {
+        byte[] maxCommitRowKey = rowKeyer.forCommitOnBranch(branchName, maxCommitId);
+        byte[] endingCommitRowKey = rowKeyer.forCommitOnBranch(branchName, 0);
+
+        try (Table historyTable = conn.getTable(TableName.valueOf("Commits"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "entry";
+
+            Scan scan = new Scan()
+                    .setReversed(true)
+                    .withStartRow(maxCommitRowKey, true /* inclusive */)
+                    .withStopRow(endingCommitRowKey, true /* inclusive */);
+            if (batchSize > 0) {
+                scan = scan.setLimit(batchSize);
+            }
+
+            ImmutableList.Builder<CommitEntry> out = ImmutableList.builder();
+            ResultScanner scanner = historyTable.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] rowBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                out.add(byteConv.commitFromBytes(rowBytes));
+            }
+
+            return out.build();
+
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    /**
+     * Also writes the initial repo size entry.
+     */
+    void putRepoEntryIfNotExists(RepoEntry repoEntry) throws IOException {
+        LOG.info("Creating repo: %s / %s", repoEntry.getOrg(), repoEntry.getRepoName());
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String cfMain = "cfMain";
+            final String entryColumnName = "repo";
+            final String sizeColumnName = "repoSize";
+
+            String org = repoEntry.getOrg();
+            String repo = repoEntry.getRepoName();
+            byte[] rowKey = HBaseRowKeyer.forRepo(org, repo).forRepoEntry();
+            // New repos start out with binary row keys.
+            final int repoId = nextRepoId();
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes(entryColumnName),
+                    byteConv.repoEntryToBytes(repoEntry));
+            put.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes(sizeColumnName),
+                    Bytes.toBytes(0L));
+            put.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes(REPO_ID_COLUMN),
+                    Bytes.toBytes(repoId));
+            put.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes(KEY_LAYOUT_COLUMN),
+                    Bytes.toBytes(HBaseRowKeyer.Layout.V2_BINARY.name()));
+            putIfNotExists(rowKey, cfMain, entryColumnName, put, reposTable);
+
+
+            long freeTrialStartDateMillis = System.currentTimeMillis();
+            ReposProto.BillingState initialBillingState = ReposProto.BillingState.newBuilder()
+                    .setType("new")
+                    .putFields("freeTrialStartDate", Long.toString(freeTrialStartDateMillis))
+                    .build();
+
+            OrgSubscription newOrgSub = OrgSubscription.of(
+                    org,
+                    OrgSubscription.State.ON_FREE_TRIAL,
+                    Collections.emptyList(),
+                    OrgSubscription.BillingPlan.FREE_TRIAL,
+                    initialBillingState);
+
+            byte[] orgSubRowKey = String.format(":SUBSCRIPTION:%s", org).getBytes(StandardCharsets.UTF_8);
+            Put orgSubPut = new Put(orgSubRowKey);
+            orgSubPut.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes("subscription"),
+                    byteConv.subscriptionToBytes(newOrgSub));
+            putIfNotExists(orgSubRowKey, cfMain, "subscription", orgSubPut, reposTable);
+        }
+    }
+
+
+    /**
+     * Every repo on the server, for jobs that go through them all.
+     */
+    List<RepoEntry> getAllRepoEntries() throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            Scan scan = new Scan()
+                    .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("repo"));
+
+            List<RepoEntry> out = new ArrayList<>();
+            try (ResultScanner scanner = reposTable.getScanner(scan)) {
+                Result result;
+                while ((result = scanner.next()) != null) {
+                    byte[] entryBytes = result.getValue(Bytes.toBytes("cfMain"), Bytes.toBytes("repo"));
+                    // Subscription rows and counters share the table.
+                    if (entryBytes != null) {
+                        out.add(byteConv.repoEntryFromBytes(entryBytes));
+                    }
+                }
+            }
+            return out;
+        }
+    }
+
+
+    Optional<RepoEntry> getRepoEntry(String org, String repo) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "repo";
+
+            HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
+            byte[] rowKey = rowKeyer.forRepoEntry();
+            Get get = new Get(rowKey);
+            Result result = reposTable.get(get);
+            byte[] rowValue = result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+            // Write counts can be in the row without an entry.
+            if (rowValue == null) {
+                return Optional.empty();
+            } else {
+                return Optional.of(byteConv.repoEntryFromBytes(rowValue));
+            }
+        }
+    }
+
+
+    private static final class CachedRowKeyer {
+        private final HBaseRowKeyer rowKeyer;
+        private final boolean migrating;
+        private final long loadedAtMillis;
+
+        private CachedRowKeyer(HBaseRowKeyer rowKeyer, boolean migrating, long loadedAtMillis) {
+            this.rowKeyer = rowKeyer;
+            this.migrating = migrating;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+
+        private boolean isFresh(long nowMillis) {
+            return rowKeyer.getLayout() == HBaseRowKeyer.Layout.V2_BINARY
+                    || nowMillis - loadedAtMillis < ROW_KEY_LAYOUT_CACHE_MILLIS;
+        }
+    }
+
+
+    /**
+     * Returns the row keyer for the repo's current layout. While a repo is being migrated, reads still use its old
+     * keys.
+     */
+    HBaseRowKeyer getRowKeyer(String org, String repo) throws IOException {
+        return getCachedRowKeyer(org, repo).rowKeyer;
+    }
+
+    /**
+     * A write to a repo, for as long as it's open. A row key migration waits for the writes that are open when it
+     * marks the repo as migrating, before its last copy.
+     */
+    final class RepoWrite implements AutoCloseable {
+
+        private final HBaseRowKeyer rowKeyer;
+        private final boolean counted;
+        private boolean closed = false;
+
+        private RepoWrite(HBaseRowKeyer rowKeyer, boolean counted) {
+            this.rowKeyer = rowKeyer;
+            this.counted = counted;
+        }
+
+        HBaseRowKeyer getRowKeyer() {
+            return rowKeyer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (counted && !closed) {
+                closed = true;
+                addActiveWrites(rowKeyer.getOrg(), rowKeyer.getRepo(), -1);
+            }
+        }
+    }
+
+
+    /**
+     * Starts a write to the repo, and returns the row keyer to write with. Throws while the repo is being migrated, so
+     * that nothing is written under its old keys after the migration's last copy.
+     *
+     * For a text keyed repo, the write is counted in the repo's Repos row before the layout is read (uncached). A
+     * migration marks the repo first and reads the count after, on the same row. So either this sees the mark and
+     * fails, or the migration sees this write and waits for it to close.
+     */
+    RepoWrite startRepoWrite(String org, String repo) throws IOException {
+        CachedRowKeyer cached = getCachedRowKeyer(org, repo);
+        if (cached.rowKeyer.getLayout() == HBaseRowKeyer.Layout.V2_BINARY) {
+            // Nothing migrates it again.
+            return new RepoWrite(cached.rowKeyer, false);
+        }
+
+        addActiveWrites(org, repo, 1);
+        boolean started = false;
         try {
-            // TODO: Remove redundancy w/ HBaseRowKeyer.
-            byte[] maxCommitRowKey = String.format(
-                    "%s:%s:%s:%020d", org, repo, branchName, maxCommitId)
-                    .getBytes(StandardCharsets.UTF_8);
-            byte[] endingCommitRowKey = String.format(
-                    "%s:%s:%s:%020d", org, repo, branchName, 0)
-                    .getBytes(StandardCharsets.UTF_8);
+            CachedRowKeyer current = loadRowKeyer(org, repo, System.currentTimeMillis());
+            if (current.migrating) {
+                throw new IOException(String.format(
+                        "Repo (%s, %s) is being migrated to a new storage layout. Please try again in a minute.",
+                        org, repo));
+            }
+            started = true;
+            return new RepoWrite(current.rowKeyer, true);
+        } finally {
+            if (!started) {
+                addActiveWrites(org, repo, -1);
+            }
+        }
+    }
+
+
+    long getActiveRepoWrites(String org, String repo) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+
+            Get get = new Get(HBaseRowKeyer.forRepo(org, repo).forRepoEntry())
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(ACTIVE_WRITES_COLUMN));
+            byte[] value = reposTable.get(get)
+                    .getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(ACTIVE_WRITES_COLUMN));
+            return (value == null) ? 0 : Bytes.toLong(value);
+        }
+    }
+
+
+    private void addActiveWrites(String org, String repo, long delta) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+
+            Increment increment = new Increment(HBaseRowKeyer.forRepo(org, repo).forRepoEntry())
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(ACTIVE_WRITES_COLUMN), delta);
+            reposTable.increment(increment);
+        }
+    }
+
+
+    /**
+     * Whether the repo is marked as migrating, read without the cache.
+     */
+    boolean isMigratingRowKeys(String org, String repo) throws IOException {
+        return loadRowKeyer(org, repo, System.currentTimeMillis()).migrating;
+    }
+
 
-            final Table historyTable = conn.getTable(TableName.valueOf("Commits"));
-            final String columnFamilyName = "cfMain";
-            final String columnName = "entry";
+    private CachedRowKeyer getCachedRowKeyer(String org, String repo) throws IOException {
+        final long nowMillis = System.currentTimeMillis();
+        CachedRowKeyer cached = rowKeyers.get(org + ":" + repo);
+        if (cached != null && cached.isFresh(nowMillis)) {
+            return cached;
+        }
+        return loadRowKeyer(org, repo, nowMillis);
+    }
 
-            Scan scan = new Scan()
-                    .setReversed(true)
-                    .withStartRow(maxCommitRowKey, true /* inclusive */)
-                    .withStopRow(endingCommitRowKey, true /* inclusive */);
-            if (batchSize > 0) {
-                scan = scan.setLimit(batchSize);
-            }
+    private CachedRowKeyer loadRowKeyer(String org, String repo, long nowMillis) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
 
-            ImmutableList.Builder<CommitEntry> out = ImmutableList.builder();
-            ResultScanner scanner = historyTable.getScanner(scan);
-            Result result;
-            while ((result = scanner.next()) != null) {
-                byte[] rowBytes = result.getValue(
-                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-                out.add(byteConv.commitFromBytes(rowBytes));
+            Get get = new Get(HBaseRowKeyer.forRepo(org, repo).forRepoEntry())
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(KEY_LAYOUT_COLUMN))
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN));
+            Result result = reposTable.get(get);
+            byte[] layoutBytes = result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(KEY_LAYOUT_COLUMN));
+            final String layout = (layoutBytes == null) ? null : Bytes.toString(layoutBytes);
+
+            final CachedRowKeyer loaded;
+            if (layout == null) {
+                loaded = new CachedRowKeyer(HBaseRowKeyer.forRepo(org, repo), false, nowMillis);
+            } else if (layout.equals(KEY_LAYOUT_MIGRATING)) {
+                loaded = new CachedRowKeyer(HBaseRowKeyer.forRepo(org, repo), true, nowMillis);
+            } else if (layout.equals(HBaseRowKeyer.Layout.V2_BINARY.name())) {
+                byte[] repoIdBytes = result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN));
+                if (repoIdBytes == null) {
+                    throw new IllegalStateException(
+                            String.format("No repo id for binary keyed repo (%s, %s)", org, repo));
+                }
+                loaded = new CachedRowKeyer(
+                        HBaseRowKeyer.binaryForRepo(org, repo, Bytes.toInt(repoIdBytes)), false, nowMillis);
+            } else {
+                throw new IllegalStateException(String.format(
+                        "Unknown row key layout for (%s, %s): %s", org, repo, layout));
             }
 
-            return out.build();
-
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            rowKeyers.put(org + ":" + repo, loaded);
+            return loaded;
         }
     }
 
 
     /**
-     * Also writes the initial repo size entry.
+     * Returns the repo's interned id, assigning one if it doesn't have one yet. The id only shows up in row keys once
+     * the repo's layout is V2_BINARY.
      */
-    void putRepoEntryIfNotExists(RepoEntry repoEntry) throws IOException {
-        LOG.info("Creating repo: %s / %s", repoEntry.getOrg(), repoEntry.getRepoName());
-        final Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        final String cfMain = "cfMain";
-        final String entryColumnName = "repo";
-        final String sizeColumnName = "repoSize";
-
-        String org = repoEntry.getOrg();
-        String repo = repoEntry.getRepoName();
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
-        byte[] rowKey = rowKeyer.forRepoEntry();
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(cfMain),
-                Bytes.toBytes(entryColumnName),
-                byteConv.repoEntryToBytes(repoEntry));
-        put.addColumn(
-                Bytes.toBytes(cfMain),
-                Bytes.toBytes(sizeColumnName),
-                Bytes.toBytes(0L));
-        putIfNotExists(rowKey, cfMain, entryColumnName, put, reposTable);
-
+    int getOrAssignRepoId(String org, String repo) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+            final byte[] rowKey = HBaseRowKeyer.forRepo(org, repo).forRepoEntry();
 
-        long freeTrialStartDateMillis = System.currentTimeMillis();
-        ReposProto.BillingState initialBillingState = ReposProto.BillingState.newBuilder()
-                .setType("new")
-                .putFields("freeTrialStartDate", Long.toString(freeTrialStartDateMillis))
-                .build();
+            Get get = new Get(rowKey).addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN));
+            byte[] existing = reposTable.get(get)
+                    .getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN));
+            if (existing != null) {
+                return Bytes.toInt(existing);
+            }
 
-        OrgSubscription newOrgSub = OrgSubscription.of(
-                org,
-                OrgSubscription.State.ON_FREE_TRIAL,
-                Collections.emptyList(),
-                OrgSubscription.BillingPlan.FREE_TRIAL,
-                initialBillingState);
+            final int repoId = nextRepoId();
+            Put put = new Put(rowKey).addColumn(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN), Bytes.toBytes(repoId));
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
+                    .ifNotExists(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN))
+                    .build(put);
+            if (reposTable.checkAndMutate(cAndM).isSuccess()) {
+                return repoId;
+            }
 
-        byte[] orgSubRowKey = String.format(":SUBSCRIPTION:%s", org).getBytes(StandardCharsets.UTF_8);
-        Put orgSubPut = new Put(orgSubRowKey);
-        orgSubPut.addColumn(
-                Bytes.toBytes(cfMain),
-                Bytes.toBytes("subscription"),
-                byteConv.subscriptionToBytes(newOrgSub));
-        putIfNotExists(orgSubRowKey, cfMain, "subscription", orgSubPut, reposTable);
+            // Someone else assigned one first. The id we took is skipped.
+            existing = reposTable.get(get).getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(REPO_ID_COLUMN));
+            return Bytes.toInt(existing);
+        }
     }
 
+    private int nextRepoId() throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
 
-    Optional<RepoEntry> getRepoEntry(String org, String repo) throws IOException {
-        final Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "repo";
+            Increment increment = new Increment(REPO_ID_COUNTER_ROW)
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes("lastRepoId"), 1);
+            Result result = reposTable.increment(increment);
+            long repoId = Bytes.toLong(result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes("lastRepoId")));
+            Preconditions.checkState(repoId <= Integer.MAX_VALUE, "Out of repo ids");
+            return (int) repoId;
+        }
+    }
 
-        HBaseRowKeyer rowKeyer = HBaseRowKeyer.forRepo(org, repo);
-        byte[] rowKey = rowKeyer.forRepoEntry();
-        Get get = new Get(rowKey);
-        Result result = reposTable.get(get);
-        if (result.isEmpty()) {
-            return Optional.empty();
-        } else {
-            byte[] rowValue = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            return Optional.of(byteConv.repoEntryFromBytes(rowValue));
+
+    /**
+     * Moves the repo's layout from one state to the next: null (V1_TEXT), KEY_LAYOUT_MIGRATING, or V2_BINARY.
+     */
+    void updateRowKeyLayout(String org, String repo, @Nullable String fromLayout, String toLayout) throws IOException {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+            final byte[] rowKey = HBaseRowKeyer.forRepo(org, repo).forRepoEntry();
+
+            Put put = new Put(rowKey).addColumn(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(KEY_LAYOUT_COLUMN), Bytes.toBytes(toLayout));
+            CheckAndMutate.Builder builder = CheckAndMutate.newBuilder(rowKey);
+            CheckAndMutate cAndM = (fromLayout == null)
+                    ? builder.ifNotExists(Bytes.toBytes(columnFamilyName), Bytes.toBytes(KEY_LAYOUT_COLUMN)).build(put)
+                    : builder.ifEquals(
+                                    Bytes.toBytes(columnFamilyName),
+                                    Bytes.toBytes(KEY_LAYOUT_COLUMN),
+                                    Bytes.toBytes(fromLayout))
+                            .build(put);
+            if (!reposTable.checkAndMutate(cAndM).isSuccess()) {
+                throw new IllegalStateException(String.format(
+                        "Row key layout for (%s, %s) wasn't %s", org, repo, fromLayout));
+            }
+            rowKeyers.remove(org + ":" + repo);
         }
     }
 
 
     OrgSubscription.WithOriginalBytes getSubscription(String org) throws IOException {
-        Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        String columnFamilyName = "cfMain";
-        String columnName = "subscription";
-
-        byte[] rowKey = String.format(":SUBSCRIPTION:%s", org).getBytes(StandardCharsets.UTF_8);
-        Get get = new Get(rowKey);
-        Result result = reposTable.get(get);
-        if (result.isEmpty()) {
-            throw new IllegalStateException("No subscription found for org: " + org);
-        } else {
-            byte[] rowValue = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            return OrgSubscription.WithOriginalBytes.of(byteConv.subscriptionFromBytes(rowValue), rowValue);
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            String columnFamilyName = "cfMain";
+            String columnName = "subscription";
+
+            byte[] rowKey = String.format(":SUBSCRIPTION:%s", org).getBytes(StandardCharsets.UTF_8);
+            Get get = new Get(rowKey);
+            Result result = reposTable.get(get);
+            if (result.isEmpty()) {
+                throw new IllegalStateException("No subscription found for org: " + org);
+            } else {
+                byte[] rowValue = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                return OrgSubscription.WithOriginalBytes.of(byteConv.subscriptionFromBytes(rowValue), rowValue);
+            }
         }
     }
 
@@ -389,24 +1248,25 @@ public final class HBaseRawHelper {
     void updateOrgSubscription(
             OrgSubscription updated, OrgSubscription.WithOriginalBytes original)
             throws IOException {
-        Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        String cfMain = "cfMain";
-        String subColumn = "subscription";
-
-        byte[] rowKey = String.format(":SUBSCRIPTION:%s", updated.getOrg()).getBytes(StandardCharsets.UTF_8);
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(cfMain),
-                Bytes.toBytes(subColumn),
-                byteConv.subscriptionToBytes(updated));
-
-        byte[] originalBytes = original.getOriginalBytes();
-        CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
-                .ifEquals(Bytes.toBytes(cfMain), Bytes.toBytes(subColumn), originalBytes)
-                .build(put);
-        CheckAndMutateResult result = reposTable.checkAndMutate(cAndM);
-        if (!result.isSuccess()) {
-            throw new IllegalStateException("CheckAndMutate failed for org sub update");
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            String cfMain = "cfMain";
+            String subColumn = "subscription";
+
+            byte[] rowKey = String.format(":SUBSCRIPTION:%s", updated.getOrg()).getBytes(StandardCharsets.UTF_8);
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(cfMain),
+                    Bytes.toBytes(subColumn),
+                    byteConv.subscriptionToBytes(updated));
+
+            byte[] originalBytes = original.getOriginalBytes();
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
+                    .ifEquals(Bytes.toBytes(cfMain), Bytes.toBytes(subColumn), originalBytes)
+                    .build(put);
+            CheckAndMutateResult result = reposTable.checkAndMutate(cAndM);
+            if (!result.isSuccess()) {
+                throw new IllegalStateException("CheckAndMutate failed for org sub update");
+            }
         }
     }
 
@@ -414,24 +1274,25 @@ public final class HBaseRawHelper {
     // TODO: Fix the abstractions here, generally. Passing in a row keyer doesn't make sense.
     long getRepoSize(HBaseRowKeyer rowKeyer) throws IOException {
         byte[] rowKey = rowKeyer.forRepoEntry();
-        final Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "repoSize";
-
-        Get get = new Get(rowKey);
-        // TODO: Look into specifying columns for the Get, and test what that means for the null check.
-        Result result = reposTable.get(get);
-        String notFoundError = String.format(
-                "No repo size found for (%s, %s)", rowKeyer.getOrg(), rowKeyer.getRepo());
-        if (result.isEmpty()) {
-            throw new IllegalStateException(notFoundError);
-        } else {
-            byte[] rowValue = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            if (rowValue == null) {
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "repoSize";
+
+            Get get = new Get(rowKey);
+            // TODO: Look into specifying columns for the Get, and test what that means for the null check.
+            Result result = reposTable.get(get);
+            String notFoundError = String.format(
+                    "No repo size found for (%s, %s)", rowKeyer.getOrg(), rowKeyer.getRepo());
+            if (result.isEmpty()) {
                 throw new IllegalStateException(notFoundError);
+            } else {
+                byte[] rowValue = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                if (rowValue == null) {
+                    throw new IllegalStateException(notFoundError);
+                }
+                return Bytes.toLong(rowValue);
             }
-            return Bytes.toLong(rowValue);
         }
     }
 
@@ -443,16 +1304,17 @@ public final class HBaseRawHelper {
     long incrementRepoSize(HBaseRowKeyer rowKeyer, long numBytesToAdd) throws IOException {
         LOG.info("TEMP: increment by %d", numBytesToAdd);
         byte[] rowKey = rowKeyer.forRepoEntry();
-        final Table reposTable = conn.getTable(TableName.valueOf("Repos"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "repoSize";
+        try (Table reposTable = conn.getTable(TableName.valueOf("Repos"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "repoSize";
 
-        Increment increment = new Increment(rowKey)
-                .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), numBytesToAdd);
-        Result result = reposTable.increment(increment);
-        byte[] rowValue = result.getValue(
-                Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-        return Bytes.toLong(rowValue);
+            Increment increment = new Increment(rowKey)
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), numBytesToAdd);
+            Result result = reposTable.increment(increment);
+            byte[] rowValue = result.getValue(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+            return Bytes.toLong(rowValue);
+        }
     }
 
 
@@ -468,154 +1330,306 @@ public final class HBaseRawHelper {
     }
 
     List<FolderListingWithOriginalBytes> getMostRecentFoldersOnBranch(
-            String org, String repo, String branchName, long atCommitId) throws IOException {
-        final Table historyTable = conn.getTable(TableName.valueOf("Folders"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "listing";
+            HBaseRowKeyer rowKeyer, String branchName, long atCommitId) throws IOException {
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
+
+            Scan scan = new Scan()
+                    .setRowPrefixFilter(rowKeyer.prefixForFoldersOnBranch(branchName));
+
+            Map<String, FolderListingWithOriginalBytes> mostRecentSeenPerPath = new HashMap<>();
 
-        final String rowPrefixStr = String.format(
-                "%s:%s:%s:",
-                org, repo, branchName);
-        LOG.debug("All branch history prefix: %s", rowPrefixStr);
+            ResultScanner scanner = historyTable.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] rowBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                FolderListing folder = byteConv.folderFromBytes(rowBytes);
 
-        Scan scan = new Scan()
-                .setRowPrefixFilter(rowPrefixStr.getBytes(StandardCharsets.UTF_8));
+                if (folder.getCommitId() > atCommitId) {
+                    continue;
+                }
 
-        Map<String, FolderListingWithOriginalBytes> mostRecentSeenPerPath = new HashMap<>();
+                if (!mostRecentSeenPerPath.containsKey(folder.getPath())) {
+                    mostRecentSeenPerPath.put(folder.getPath(), new FolderListingWithOriginalBytes(folder, rowBytes));
 
-        ResultScanner scanner = historyTable.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            byte[] rowBytes = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            FolderListing folder = byteConv.folderFromBytes(rowBytes);
+                } else {
+                    FolderListingWithOriginalBytes existing = mostRecentSeenPerPath.get(folder.getPath());
+                    if (existing.listing.getCommitId() < folder.getCommitId()) {
+                        mostRecentSeenPerPath.put(
+                                folder.getPath(), new FolderListingWithOriginalBytes(folder, rowBytes));
+                    }
+                }
+            }
+
+            scanner.close();
+            return ImmutableList.copyOf(mostRecentSeenPerPath.values());
+        }
+    }
+
+
+    /**
+     * Records the newest commit at which each path was written on a branch, in one row per branch. A path that's
+     * already in the row is overwritten.
+     */
+    void putBranchPaths(HBaseRowKeyer rowKeyer, String branchName, Map<String, Long> commitIdPerPath)
+            throws IOException {
+        if (commitIdPerPath.isEmpty()) {
+            return;
+        }
+
+        try (Table branchPathsTable = conn.getTable(TableName.valueOf("BranchPaths"))) {
+            final String columnFamilyName = "cfMain";
+
+            Put put = new Put(rowKeyer.forBranchPaths(branchName));
+            for (Map.Entry<String, Long> pathEntry : commitIdPerPath.entrySet()) {
+                put.addColumn(
+                        Bytes.toBytes(columnFamilyName),
+                        pathEntry.getKey().getBytes(StandardCharsets.UTF_8),
+                        Bytes.toBytes(pathEntry.getValue()));
+            }
+            branchPathsTable.put(put);
+        }
+    }
+
+
+    /**
+     * Returns every path written on the branch, with the newest commit it was written at. See putBranchPaths().
+     */
+    Map<String, Long> getBranchPaths(HBaseRowKeyer rowKeyer, String branchName) throws IOException {
+        try (Table branchPathsTable = conn.getTable(TableName.valueOf("BranchPaths"))) {
+            final String columnFamilyName = "cfMain";
+
+            Result result = branchPathsTable.get(new Get(rowKeyer.forBranchPaths(branchName)));
+            if (result.isEmpty()) {
+                return Collections.emptyMap();
+            }
 
-            if (folder.getCommitId() > atCommitId) {
-                continue;
+            Map<String, Long> out = new HashMap<>();
+            for (Map.Entry<byte[], byte[]> column : result.getFamilyMap(Bytes.toBytes(columnFamilyName)).entrySet()) {
+                out.put(new String(column.getKey(), StandardCharsets.UTF_8), Bytes.toLong(column.getValue()));
             }
+            return out;
+        }
+    }
 
-            if (!mostRecentSeenPerPath.containsKey(folder.getPath())) {
-                mostRecentSeenPerPath.put(folder.getPath(), new FolderListingWithOriginalBytes(folder, rowBytes));
 
-            } else {
-                FolderListingWithOriginalBytes existing = mostRecentSeenPerPath.get(folder.getPath());
-                if (existing.listing.getCommitId() < folder.getCommitId()) {
-                    mostRecentSeenPerPath.put(folder.getPath(), new FolderListingWithOriginalBytes(folder, rowBytes));
+    /**
+     * Looks up the head listing of each given path on the branch, as of atCommitId, with point gets where possible.
+     * The commit ids are the newest ones each path was written at, from getBranchPaths().
+     */
+    List<FolderListingWithOriginalBytes> getFoldersOnBranchAt(
+            HBaseRowKeyer rowKeyer, String branchName, Map<String, Long> commitIdPerPath, long atCommitId)
+            throws IOException {
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
+
+            List<FolderListingWithOriginalBytes> out = new ArrayList<>();
+            List<String> pathsToGet = new ArrayList<>();
+            for (Map.Entry<String, Long> pathEntry : commitIdPerPath.entrySet()) {
+                if (pathEntry.getValue() <= atCommitId) {
+                    pathsToGet.add(pathEntry.getKey());
+                } else {
+                    // A later push to the branch that failed, or one that's still going. Its listings aren't part of
+                    // the branch yet, so find the one before it.
+                    Optional<FolderListingWithOriginalBytes> older = getMostRecentFolderOnBranch(
+                            rowKeyer, branchName, pathEntry.getKey(), atCommitId);
+                    older.ifPresent(out::add);
+                }
+            }
+
+            for (List<String> batch : Lists.partition(pathsToGet, fileLookupBatchSize)) {
+                List<Get> gets = new ArrayList<>(batch.size());
+                for (String path : batch) {
+                    gets.add(new Get(rowKeyer.forFolderAt(branchName, path, commitIdPerPath.get(path)))
+                            .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName)));
+                }
+
+                Result[] results = historyTable.get(gets);
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (results[i].isEmpty()) {
+                        throw new IllegalStateException(String.format(
+                                "Indexed folder %s on branch %s wasn't found at commit %d",
+                                batch.get(i), branchName, commitIdPerPath.get(batch.get(i))));
+                    }
+                    byte[] rowBytes = results[i].getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                    out.add(new FolderListingWithOriginalBytes(byteConv.folderFromBytes(rowBytes), rowBytes));
                 }
             }
+
+            return out;
         }
+    }
+
+
+    private Optional<FolderListingWithOriginalBytes> getMostRecentFolderOnBranch(
+            HBaseRowKeyer rowKeyer, String branchName, String path, long atCommitId)
+            throws IOException {
+        try (Table historyTable = conn.getTable(TableName.valueOf("Folders"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "listing";
 
-        scanner.close();
-        return ImmutableList.copyOf(mostRecentSeenPerPath.values());
+            Scan scan = new Scan()
+                    .setReversed(true)
+                    .withStartRow(rowKeyer.forFolderAt(branchName, path, atCommitId), /* inclusive = */ true)
+                    .withStopRow(rowKeyer.forFolderAt(branchName, path, 0), true)
+                    .setLimit(1);
+
+            try (ResultScanner scanner = historyTable.getScanner(scan)) {
+                Result result = scanner.next();
+                if (result == null) {
+                    return Optional.empty();
+                }
+                byte[] rowBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                return Optional.of(new FolderListingWithOriginalBytes(byteConv.folderFromBytes(rowBytes), rowBytes));
+            }
+        }
     }
 
 
     List<MergeLock> getMerges(byte[] earlierRowKey, byte[] laterRowKey) throws IOException {
         ArrayList<MergeLock> out = new ArrayList<>();
-        final Table mergesTable = conn.getTable(TableName.valueOf("Merges"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "lockContents";
-
-        // Note HBase scans are *not* snapshots/consistent. But that's fine because I only care that *one* set of merge
-        // states, regardless of which ones changed during the scan, is applied consistently to any read operation like
-        // checkout.
-        Scan scan = new Scan()
-                .withStartRow(earlierRowKey)
-                .withStopRow(laterRowKey);
-
-        ResultScanner scanner = mergesTable.getScanner(scan);
-        Result result;
-        while ((result = scanner.next()) != null) {
-            byte[] resultBytes = result.getValue(
-                    Bytes.toBytes(columnFamilyName),
-                    Bytes.toBytes(columnName));
-            out.add(byteConv.mergeLockFromBytes(resultBytes));
+        try (Table mergesTable = conn.getTable(TableName.valueOf("Merges"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "lockContents";
+
+            // Note HBase scans are *not* snapshots/consistent. But that's fine because I only care that *one* set of
+            // merge states, regardless of which ones changed during the scan, is applied consistently to any read
+            // operation like checkout.
+            Scan scan = new Scan()
+                    .withStartRow(earlierRowKey)
+                    .withStopRow(laterRowKey);
+
+            ResultScanner scanner = mergesTable.getScanner(scan);
+            Result result;
+            while ((result = scanner.next()) != null) {
+                byte[] resultBytes = result.getValue(
+                        Bytes.toBytes(columnFamilyName),
+                        Bytes.toBytes(columnName));
+                out.add(byteConv.mergeLockFromBytes(resultBytes));
+            }
+
+            scanner.close();
+            return out;
         }
+    }
+
+
+    /**
+     * Looks up merges by id in one batch. Ids that aren't found are left out of the returned map.
+     */
+    Map<String, MergeLock> getMergesById(HBaseRowKeyer rowKeyer, Collection<String> mergeLockIds)
+            throws IOException {
+        try (Table mergesTable = conn.getTable(TableName.valueOf("Merges"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "lockContents";
 
-        scanner.close();
-        return out;
+            List<String> ids = new ArrayList<>(mergeLockIds);
+            List<Get> gets = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                gets.add(new Get(rowKeyer.forMergeId(id)));
+            }
+
+            Map<String, MergeLock> out = new HashMap<>();
+            Result[] results = mergesTable.get(gets);
+            for (int i = 0; i < ids.size(); ++i) {
+                if (!results[i].isEmpty()) {
+                    byte[] rowValue = results[i].getValue(
+                            Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                    out.put(ids.get(i), byteConv.mergeLockFromBytes(rowValue));
+                }
+            }
+            return out;
+        }
     }
 
 
     Optional<MergeLock> getMergeById(HBaseRowKeyer rowKeyer, String mergeLockId) throws IOException {
-        final Table mergesTable = conn.getTable(TableName.valueOf("Merges"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "lockContents";
+        try (Table mergesTable = conn.getTable(TableName.valueOf("Merges"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "lockContents";
 
-        byte[] rowKey = rowKeyer.forMergeId(mergeLockId);
-        Get get = new Get(rowKey);
-        Result result = mergesTable.get(get);
-        if (result.isEmpty()) {
-            return Optional.empty();
-        } else {
-            byte[] rowValue = result.getValue(
-                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-            return Optional.of(byteConv.mergeLockFromBytes(rowValue));
+            byte[] rowKey = rowKeyer.forMergeId(mergeLockId);
+            Get get = new Get(rowKey);
+            Result result = mergesTable.get(get);
+            if (result.isEmpty()) {
+                return Optional.empty();
+            } else {
+                byte[] rowValue = result.getValue(
+                        Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+                return Optional.of(byteConv.mergeLockFromBytes(rowValue));
+            }
         }
     }
 
 
     void putMerge(HBaseRowKeyer rowKeyer, MergeLock lock) throws IOException {
-        final Table mergesTable = conn.getTable(TableName.valueOf("Merges"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "lockContents";
+        try (Table mergesTable = conn.getTable(TableName.valueOf("Merges"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "lockContents";
 
-        byte[] rowKeyByTimestamp = rowKeyer.forMergeByTimestamp(lock);
-        byte[] rowKeyById = rowKeyer.forMergeId(lock.getId());
-        byte[] lockContents = byteConv.mergeLockToBytes(lock);
+            byte[] rowKeyByTimestamp = rowKeyer.forMergeByTimestamp(lock);
+            byte[] rowKeyById = rowKeyer.forMergeId(lock.getId());
+            byte[] lockContents = byteConv.mergeLockToBytes(lock);
 
-        Put tsPut = new Put(rowKeyByTimestamp);
-        tsPut.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                lockContents);
-        mergesTable.put(tsPut);
+            Put tsPut = new Put(rowKeyByTimestamp);
+            tsPut.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    lockContents);
+            mergesTable.put(tsPut);
 
-        Put idPut = new Put(rowKeyById);
-        idPut.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                lockContents);
-        mergesTable.put(idPut);
+            Put idPut = new Put(rowKeyById);
+            idPut.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    lockContents);
+            mergesTable.put(idPut);
+        }
     }
 
 
     void createBranch(byte[] rowKey, BranchEntry branch) throws IOException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(branch.getName()), "Empty branch name");
         LOG.info("Creating branch: " + branch.getName());
-        final Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "branch";
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "branch";
 
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                byteConv.branchToBytes(branch));
-        putIfNotExists(rowKey, columnFamilyName, columnName, put, branchesTable);
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    byteConv.branchToBytes(branch));
+            // Every commit on a new branch is indexed as it's written.
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(COMMIT_PATHS_INDEXED_COLUMN), Bytes.toBytes(true));
+            putIfNotExists(rowKey, columnFamilyName, columnName, put, branchesTable);
+        }
     }
 
 
     void createBranchReview(ReviewsProto.ReviewContents reviewContents) throws IOException {
-        byte[] rowKey = String.format(
-                ":REVIEW:%s:%s:%s:%s:%020d",
-                reviewContents.getOrg(),
-                reviewContents.getRepo(),
+        byte[] rowKey = HBaseRowKeyer.forRepo(reviewContents.getOrg(), reviewContents.getRepo()).forReview(
                 reviewContents.getThisBranch(),
                 reviewContents.getOtherBranch(),
-                reviewContents.getOtherBranchCommitId())
-                .getBytes(StandardCharsets.UTF_8);
+                reviewContents.getOtherBranchCommitId());
 
-        Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        String columnFamilyName = "cfMain";
-        String columnName = "review";
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            String columnFamilyName = "cfMain";
+            String columnName = "review";
 
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                reviewContents.toByteArray());
-        putIfNotExists(rowKey, columnFamilyName, columnName, put, branchesTable);
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    reviewContents.toByteArray());
+            putIfNotExists(rowKey, columnFamilyName, columnName, put, branchesTable);
+        }
     }
 
 
@@ -623,31 +1637,28 @@ public final class HBaseRawHelper {
             ReviewsProto.ReviewContents review,
             RepoBrowser.ReviewWithOriginalBytes original)
             throws IOException {
-        byte[] rowKey = String.format(
-                ":REVIEW:%s:%s:%s:%s:%020d",
-                review.getOrg(),
-                review.getRepo(),
+        byte[] rowKey = HBaseRowKeyer.forRepo(review.getOrg(), review.getRepo()).forReview(
                 review.getThisBranch(),
                 review.getOtherBranch(),
-                review.getOtherBranchCommitId())
-                .getBytes(StandardCharsets.UTF_8);
+                review.getOtherBranchCommitId());
 
-        Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        String columnFamilyName = "cfMain";
-        String columnName = "review";
-
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                review.toByteArray());
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            String columnFamilyName = "cfMain";
+            String columnName = "review";
 
-        CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
-                .ifEquals(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), original.getOriginalBytes())
-                .build(put);
-        CheckAndMutateResult result = branchesTable.checkAndMutate(cAndM);
-        if (!result.isSuccess()) {
-            throw new IllegalStateException("CheckAndMutate failed for review update");
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    review.toByteArray());
+
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
+                    .ifEquals(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), original.getOriginalBytes())
+                    .build(put);
+            CheckAndMutateResult result = branchesTable.checkAndMutate(cAndM);
+            if (!result.isSuccess()) {
+                throw new IllegalStateException("CheckAndMutate failed for review update");
+            }
         }
     }
 
@@ -659,45 +1670,80 @@ public final class HBaseRawHelper {
             String otherBranch,
             long otherBranchCommitId)
             throws IOException {
-        byte[] rowKey = String.format(
-                ":REVIEW:%s:%s:%s:%s:%020d",
-                org, repo, thisBranch, otherBranch, otherBranchCommitId)
-                .getBytes(StandardCharsets.UTF_8);
-
-        Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        String columnFamilyName = "cfMain";
-        String columnName = "review";
-
-        Get get = new Get(rowKey);
-        Result result = branchesTable.get(get);
-        if (result.isEmpty()) {
-            return Optional.empty();
+        byte[] rowKey = HBaseRowKeyer.forRepo(org, repo).forReview(thisBranch, otherBranch, otherBranchCommitId);
+
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            String columnFamilyName = "cfMain";
+            String columnName = "review";
+
+            Get get = new Get(rowKey);
+            Result result = branchesTable.get(get);
+            if (result.isEmpty()) {
+                return Optional.empty();
+            }
+            byte[] rowValue = result.getValue(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+            return Optional.of(new RepoBrowser.ReviewWithOriginalBytes(
+                    ReviewsProto.ReviewContents.parseFrom(rowValue), rowValue));
         }
-        byte[] rowValue = result.getValue(
-                Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
-        return Optional.of(new RepoBrowser.ReviewWithOriginalBytes(
-                ReviewsProto.ReviewContents.parseFrom(rowValue), rowValue));
     }
 
 
     boolean updateBranchIfUnchanged(byte[] rowKey, BranchEntry branch, byte[] originalBytes) throws IOException {
         LOG.info("Updating branch to: %s", branch.getDebugString());
-        final Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "branch";
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "branch";
 
-        Put put = new Put(rowKey);
-        put.addColumn(
-                Bytes.toBytes(columnFamilyName),
-                Bytes.toBytes(columnName),
-                byteConv.branchToBytes(branch));
+            Put put = new Put(rowKey);
+            put.addColumn(
+                    Bytes.toBytes(columnFamilyName),
+                    Bytes.toBytes(columnName),
+                    byteConv.branchToBytes(branch));
 
-        CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
-                .ifEquals(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), originalBytes)
-                .build(put);
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(rowKey)
+                    .ifEquals(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), originalBytes)
+                    .build(put);
+
+            CheckAndMutateResult result = branchesTable.checkAndMutate(cAndM);
+            return (result.isSuccess());
+        }
+    }
+
+
+    /**
+     * Starts the commit id counter for a branch at the given value, unless it's already started. Returns whether it
+     * was started by this call.
+     */
+    boolean startCommitIdCounterIfAbsent(byte[] branchRowKey, long startingValue) throws IOException {
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "commitIdCounter";
+
+            Put put = new Put(branchRowKey);
+            put.addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), Bytes.toBytes(startingValue));
+            CheckAndMutate cAndM = CheckAndMutate.newBuilder(branchRowKey)
+                    .ifNotExists(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName))
+                    .build(put);
+            return branchesTable.checkAndMutate(cAndM).isSuccess();
+        }
+    }
+
+
+    /**
+     * Atomically adds to the commit id counter for a branch, and returns the new value. The counter should already be
+     * started, see startCommitIdCounterIfAbsent().
+     */
+    long incrementCommitIdCounter(byte[] branchRowKey, long numIds) throws IOException {
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "commitIdCounter";
 
-        CheckAndMutateResult result = branchesTable.checkAndMutate(cAndM);
-        return (result.isSuccess());
+            Increment increment = new Increment(branchRowKey)
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName), numIds);
+            Result result = branchesTable.increment(increment);
+            return Bytes.toLong(result.getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName)));
+        }
     }
 
 
@@ -718,34 +1764,33 @@ public final class HBaseRawHelper {
 
 
     Optional<BranchWithOriginalBytes> getBranchWithOriginalBytes(final byte[] rowKey) throws IOException {
-        final Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
-        final String columnFamilyName = "cfMain";
-        final String columnName = "branch";
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            final String columnFamilyName = "cfMain";
+            final String columnName = "branch";
 
-        Get get = new Get(rowKey);
-        Result result = branchesTable.get(get);
-        if (result.isEmpty()) {
-            return Optional.empty();
-        }
+            Get get = new Get(rowKey);
+            Result result = branchesTable.get(get);
+            if (result.isEmpty()) {
+                return Optional.empty();
+            }
 
-        byte[] rowValue = result.getValue(
-                Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
+            byte[] rowValue = result.getValue(
+                    Bytes.toBytes(columnFamilyName), Bytes.toBytes(columnName));
 
-        BranchWithOriginalBytes out = new BranchWithOriginalBytes();
-        out.branch = byteConv.branchFromBytes(rowValue);
-        out.originalBytes = rowValue;
-        return Optional.of(out);
+            BranchWithOriginalBytes out = new BranchWithOriginalBytes();
+            out.branch = byteConv.branchFromBytes(rowValue);
+            out.originalBytes = rowValue;
+            return Optional.of(out);
+        }
     }
 
 
-    List<BranchEntry> getAllBranches(String org, String repo) {
-        String prefix = String.format("%s:%s:", org, repo);
+    List<BranchEntry> getAllBranches(HBaseRowKeyer rowKeyer) {
         ArrayList<BranchEntry> out = new ArrayList<>();
 
-        try {
-            final Table branchesTable = conn.getTable(TableName.valueOf("Branches"));
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
             Scan scan = new Scan()
-                    .setRowPrefixFilter(prefix.getBytes(StandardCharsets.UTF_8));
+                    .setRowPrefixFilter(rowKeyer.prefixForBranches());
             ResultScanner scanner = branchesTable.getScanner(scan);
 
             Result result;
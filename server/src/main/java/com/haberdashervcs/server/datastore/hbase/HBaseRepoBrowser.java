@@ -3,19 +3,18 @@ package com.haberdashervcs.server.datastore.hbase;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Preconditions;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.BranchEntry;
-import com.haberdashervcs.common.objects.CommitEntry;
 import com.haberdashervcs.common.objects.FileEntry;
 import com.haberdashervcs.common.objects.FolderListing;
 import com.haberdashervcs.common.objects.HdFolderPath;
 import com.haberdashervcs.common.objects.RepoEntry;
 import com.haberdashervcs.common.protobuf.ReviewsProto;
 import com.haberdashervcs.server.browser.FileBrowser;
+import com.haberdashervcs.server.browser.LogPage;
 import com.haberdashervcs.server.browser.RepoBrowser;
 import com.haberdashervcs.server.datastore.HdLargeFileStore;
 
@@ -25,8 +24,16 @@ final class HBaseRepoBrowser implements RepoBrowser {
     private static final HdLogger LOG = HdLoggers.create(HBaseRepoBrowser.class);
 
 
-    static HBaseRepoBrowser forRepo(RepoEntry repo, HBaseRawHelper helper, HdLargeFileStore largeFileStore) {
-        return new HBaseRepoBrowser(repo, helper, largeFileStore);
+    static HBaseRepoBrowser forRepo(
+            RepoEntry repo,
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            HdLargeFileStore largeFileStore,
+            FolderListingCache folderCache,
+            MergeLockCache mergeLockCache,
+            LineIndexCache lineIndexCache) {
+        return new HBaseRepoBrowser(
+                repo, rowKeyer, helper, largeFileStore, folderCache, mergeLockCache, lineIndexCache);
     }
 
 
@@ -34,14 +41,27 @@ final class HBaseRepoBrowser implements RepoBrowser {
     private final HBaseRowKeyer rowKeyer;
     private final HBaseRawHelper helper;
     private final HdLargeFileStore largeFileStore;
+    private final FolderListingCache folderCache;
+    private final MergeLockCache mergeLockCache;
+    private final LineIndexCache lineIndexCache;
 
     private MergeStates mergeStates = null;
 
-    private HBaseRepoBrowser(RepoEntry repo, HBaseRawHelper helper, HdLargeFileStore largeFileStore) {
+    private HBaseRepoBrowser(
+            RepoEntry repo,
+            HBaseRowKeyer rowKeyer,
+            HBaseRawHelper helper,
+            HdLargeFileStore largeFileStore,
+            FolderListingCache folderCache,
+            MergeLockCache mergeLockCache,
+            LineIndexCache lineIndexCache) {
         this.repo = repo;
-        this.rowKeyer = HBaseRowKeyer.forRepo(repo.getOrg(), repo.getRepoName());
+        this.rowKeyer = rowKeyer;
         this.helper = helper;
         this.largeFileStore = largeFileStore;
+        this.folderCache = folderCache;
+        this.mergeLockCache = mergeLockCache;
+        this.lineIndexCache = lineIndexCache;
     }
 
 
@@ -50,14 +70,13 @@ final class HBaseRepoBrowser implements RepoBrowser {
             return;
         }
 
-        final long nowTs = System.currentTimeMillis();
-        mergeStates = MergeStates.fromPastSeconds(nowTs, TimeUnit.MINUTES.toSeconds(30), helper, rowKeyer);
+        mergeStates = mergeLockCache.getStates(helper, rowKeyer);
     }
 
 
     @Override
     public List<BranchEntry> getBranches() {
-        return helper.getAllBranches(rowKeyer.getOrg(), rowKeyer.getRepo());
+        return helper.getAllBranches(rowKeyer);
     }
 
 
@@ -70,7 +89,8 @@ final class HBaseRepoBrowser implements RepoBrowser {
     @Override
     public Optional<FolderListing> getFolderAt(String branchName, String path, long commitId) throws IOException {
         initializeMergeStates();
-        FolderHistoryLoader historyLoader = FolderHistoryLoader.forBranch(rowKeyer, branchName, helper, mergeStates);
+        FolderHistoryLoader historyLoader = FolderHistoryLoader.forBranchWithCache(
+                rowKeyer, branchName, helper, mergeStates, folderCache);
         Optional<FolderListing> listingOnBranch = historyLoader.getFolderAtCommit(commitId, path);
         return listingOnBranch;
     }
@@ -98,7 +118,7 @@ final class HBaseRepoBrowser implements RepoBrowser {
 
 
     @Override
-    public List<CommitEntry> getLog(String branchName, String path, long atCommitId) {
+    public LogPage getLog(String branchName, String path, long atCommitId) throws IOException {
         CommitLogger logger = CommitLogger.forBranch(branchName, helper, rowKeyer);
         return logger.getLog(HdFolderPath.fromFolderListingFormat(path), atCommitId);
     }
@@ -111,6 +131,6 @@ final class HBaseRepoBrowser implements RepoBrowser {
 
     @Override
     public FileBrowser browseFile(FileEntry file) throws IOException {
-        return HBaseFileBrowser.forFile(file, largeFileStore, rowKeyer, helper);
+        return HBaseFileBrowser.forFile(file, largeFileStore, rowKeyer, helper, lineIndexCache);
     }
 }
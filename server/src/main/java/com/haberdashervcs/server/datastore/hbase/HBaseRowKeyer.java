@@ -1,31 +1,85 @@
 package com.haberdashervcs.server.datastore.hbase;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 
-import com.haberdashervcs.common.logging.HdLogger;
-import com.haberdashervcs.common.logging.HdLoggers;
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
 import com.haberdashervcs.common.objects.CommitEntry;
 import com.haberdashervcs.common.objects.MergeLock;
+import org.apache.hadoop.hbase.util.Bytes;
 
 
+/**
+ * Builds every row key for a repo's rows, and the start/stop rows for scanning them.
+ *
+ * There are two layouts, and each repo's Repos row says which one it uses (see HBaseRawHelper.getRowKeyer()):
+ * - V1_TEXT, the original: "org:repo:branch:path:%020d" and so on, with file ids as hex.
+ * - V2_BINARY: a version byte, the repo's interned 4-byte id, then the fields. Strings end in a 0 byte, so that one
+ *   path's rows never interleave with a longer path's. Longs are 8 big-endian bytes, and file ids that are sha256 hex
+ *   are stored as their 32 raw bytes.
+ *
+ * V2 keys start with a byte that can't start a V1 key (org names are alphanumeric), so both layouts can share a table
+ * while a repo is migrated.
+ *
+ * The Repos row itself, reviews, and anything keyed by org or user alone use text keys in either layout.
+ */
 public final class HBaseRowKeyer {
 
-    private static final HdLogger LOG = HdLoggers.create(HBaseRowKeyer.class);
+    public enum Layout {
+        V1_TEXT,
+        V2_BINARY
+    }
+
+
+    private static final byte V2_VERSION_BYTE = 0x02;
+
+    private static final byte V2_FILE_ID_TEXT = 0x00;
+    private static final byte V2_FILE_ID_SHA256 = 0x01;
 
+    private static final byte V2_MERGE_BY_TIMESTAMP = 0x01;
+    private static final byte V2_MERGE_BY_ID = 0x02;
 
+    private static final byte V2_STRING_END = 0x00;
+
+
+    /**
+     * A keyer for the original text layout.
+     */
     public static HBaseRowKeyer forRepo(String org, String repo) {
-        return new HBaseRowKeyer(org, repo);
+        return new HBaseRowKeyer(org, repo, Layout.V1_TEXT, -1);
+    }
+
+    public static HBaseRowKeyer binaryForRepo(String org, String repo, int repoId) {
+        Preconditions.checkArgument(repoId > 0);
+        return new HBaseRowKeyer(org, repo, Layout.V2_BINARY, repoId);
     }
 
 
     private final String org;
     private final String repo;
+    private final Layout layout;
+    private final int repoId;
+    private final byte[] v2Prefix;
 
-    private HBaseRowKeyer(String org, String repo) {
+    private HBaseRowKeyer(String org, String repo, Layout layout, int repoId) {
         this.org = org;
         this.repo = repo;
+        this.layout = layout;
+        this.repoId = repoId;
+        this.v2Prefix = (layout == Layout.V2_BINARY)
+                ? Bytes.add(new byte[] { V2_VERSION_BYTE }, Bytes.toBytes(repoId))
+                : null;
     }
 
+    /**
+     * Whether a row key from one of the repo-scoped tables is in the V2_BINARY layout.
+     */
+    public static boolean isBinaryKey(byte[] rowKey) {
+        return rowKey.length > 0 && rowKey[0] == V2_VERSION_BYTE;
+    }
+
+
     public String getOrg() {
         return org;
     }
@@ -34,43 +88,225 @@ public final class HBaseRowKeyer {
         return repo;
     }
 
+    public Layout getLayout() {
+        return layout;
+    }
+
+
     public byte[] forCommit(CommitEntry commit) {
-        return String.format("%s:%s:%s:%020d", org, repo, commit.getBranchName(), commit.getCommitId())
-                .getBytes(StandardCharsets.UTF_8);
+        return forCommitOnBranch(commit.getBranchName(), commit.getCommitId());
+    }
+
+    public byte[] forCommitOnBranch(String branchName, long commitId) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s:%020d", org, repo, branchName, commitId);
+        }
+        return v2().string(branchName).longValue(commitId).build();
     }
 
-    // TODO: Should the start/stop row prefixes for folder history scans also be implemented in this class?
+
     public byte[] forFolderAt(String branchName, String path, long commitId) {
-        // TODO: Should I trim the leading and trailing slash, just to save a little space?
-        String key = String.format(
-                "%s:%s:%s:%s:%020d", org, repo, branchName, path, commitId);
-        return key.getBytes(StandardCharsets.UTF_8);
+        if (layout == Layout.V1_TEXT) {
+            // 20 digits is long enough to hold the base-10 value of the max unsigned long.
+            return text("%s:%s:%s:%s:%020d", org, repo, branchName, path, commitId);
+        }
+        return v2().string(branchName).string(path).longValue(commitId).build();
+    }
+
+    // Every folder row on a branch, for any path or commit.
+    public byte[] prefixForFoldersOnBranch(String branchName) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s:", org, repo, branchName);
+        }
+        return v2().string(branchName).build();
+    }
+
+    // Same layout as folder rows, so tree hash history is scanned the same way.
+    public byte[] forTreeHashAt(String branchName, String path, long commitId) {
+        return forFolderAt(branchName, path, commitId);
+    }
+
+    /**
+     * The commit id in a row key from forFolderAt() or forTreeHashAt().
+     */
+    public long commitIdFromFolderKey(byte[] rowKey) {
+        if (layout == Layout.V1_TEXT) {
+            Preconditions.checkArgument(rowKey.length >= 20, "Not a folder row key");
+            return Long.parseLong(new String(rowKey, rowKey.length - 20, 20, StandardCharsets.UTF_8));
+        }
+        Preconditions.checkArgument(rowKey.length >= Long.BYTES, "Not a folder row key");
+        return Bytes.toLong(rowKey, rowKey.length - Long.BYTES);
     }
 
+
     public byte[] forFile(String fileId) {
-        return String.format("%s:%s:%s", org, repo, fileId).getBytes(StandardCharsets.UTF_8);
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s", org, repo, fileId);
+        }
+        if (isSha256Hex(fileId)) {
+            return v2().rawByte(V2_FILE_ID_SHA256).raw(BaseEncoding.base16().lowerCase().decode(fileId)).build();
+        } else {
+            return v2().rawByte(V2_FILE_ID_TEXT).raw(fileId.getBytes(StandardCharsets.UTF_8)).build();
+        }
+    }
+
+    /**
+     * The file id in a row key from forFile().
+     */
+    public String fileIdFromKey(byte[] rowKey) {
+        final byte[] prefix = prefixForRepo();
+        Preconditions.checkArgument(Bytes.startsWith(rowKey, prefix), "Not a file row of this repo");
+        if (layout == Layout.V1_TEXT) {
+            return new String(rowKey, prefix.length, rowKey.length - prefix.length, StandardCharsets.UTF_8);
+        }
+
+        final byte tag = rowKey[prefix.length];
+        final int idStart = prefix.length + 1;
+        if (tag == V2_FILE_ID_SHA256) {
+            return BaseEncoding.base16().lowerCase().encode(rowKey, idStart, rowKey.length - idStart);
+        } else {
+            return new String(rowKey, idStart, rowKey.length - idStart, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Only lowercase, so that no two ids share a key.
+    private static boolean isSha256Hex(String fileId) {
+        if (fileId.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < fileId.length(); ++i) {
+            char c = fileId.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public byte[] prefixForMergeLocksAtTimestamp(long timestampMillis) {
-        return String.format("%s:%s:%d", org, repo, timestampMillis).getBytes(StandardCharsets.UTF_8);
 
+    public byte[] prefixForMergeLocksAtTimestamp(long timestampMillis) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%d", org, repo, timestampMillis);
+        }
+        return v2().rawByte(V2_MERGE_BY_TIMESTAMP).longValue(timestampMillis).build();
     }
 
     public byte[] forMergeByTimestamp(MergeLock lock) {
-        return String.format("%s:%s:%d:%s", org, repo, lock.getTimestampMillis(), lock.getId())
-                .getBytes(StandardCharsets.UTF_8);
+        return forMergeAtTimestamp(lock.getTimestampMillis(), lock.getId());
+    }
+
+    public byte[] forMergeAtTimestamp(long timestampMillis, String mergeLockId) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%d:%s", org, repo, timestampMillis, mergeLockId);
+        }
+        return v2().rawByte(V2_MERGE_BY_TIMESTAMP).longValue(timestampMillis)
+                .raw(mergeLockId.getBytes(StandardCharsets.UTF_8)).build();
     }
 
     public byte[] forMergeId(String mergeLockId) {
-        return String.format("%s:%s:ID_%s", org, repo, mergeLockId)
-                .getBytes(StandardCharsets.UTF_8);
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:ID_%s", org, repo, mergeLockId);
+        }
+        return v2().rawByte(V2_MERGE_BY_ID).raw(mergeLockId.getBytes(StandardCharsets.UTF_8)).build();
     }
 
+
     public byte[] forBranch(String branchName) {
-        return String.format("%s:%s:%s", org, repo, branchName).getBytes(StandardCharsets.UTF_8);
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s", org, repo, branchName);
+        }
+        return v2().string(branchName).build();
+    }
+
+    // Every branch row in the repo.
+    public byte[] prefixForBranches() {
+        return prefixForRepo();
+    }
+
+    // One row per branch in the BranchPaths table, keyed like the branch itself.
+    public byte[] forBranchPaths(String branchName) {
+        return forBranch(branchName);
+    }
+
+
+    // In the CommitPaths table, a commit has a row under each folder containing one of its changed paths, and under
+    // "/". The commit id is reversed so that a folder's newest commits come first in a scan.
+    public byte[] forCommitPath(String branchName, String folderPath, long commitId) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s:%s:%020d", org, repo, branchName, folderPath, Long.MAX_VALUE - commitId);
+        }
+        return v2().string(branchName).string(folderPath).longValue(Long.MAX_VALUE - commitId).build();
+    }
+
+    public byte[] prefixForCommitPaths(String branchName, String folderPath) {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:%s:%s:", org, repo, branchName, folderPath);
+        }
+        return v2().string(branchName).string(folderPath).build();
+    }
+
+
+    /**
+     * Every row of the repo's in the repo-scoped tables (all but Repos, Users, Tokens and Tasks).
+     */
+    public byte[] prefixForRepo() {
+        if (layout == Layout.V1_TEXT) {
+            return text("%s:%s:", org, repo);
+        }
+        return v2Prefix.clone();
     }
 
+
     public byte[] forRepoEntry() {
-        return String.format("%s:%s", org, repo).getBytes(StandardCharsets.UTF_8);
+        return text("%s:%s", org, repo);
+    }
+
+    public byte[] forReview(String thisBranch, String otherBranch, long otherBranchCommitId) {
+        return text(":REVIEW:%s:%s:%s:%s:%020d", org, repo, thisBranch, otherBranch, otherBranchCommitId);
+    }
+
+
+    private static byte[] text(String fmt, Object... args) {
+        return String.format(fmt, args).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private V2KeyBuilder v2() {
+        return new V2KeyBuilder(v2Prefix);
+    }
+
+    private static final class V2KeyBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        private V2KeyBuilder(byte[] prefix) {
+            out.writeBytes(prefix);
+        }
+
+        private V2KeyBuilder string(String s) {
+            Preconditions.checkArgument(s.indexOf('\0') < 0, "Row key strings can't contain a NUL: %s", s);
+            out.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+            out.write(V2_STRING_END);
+            return this;
+        }
+
+        private V2KeyBuilder longValue(long value) {
+            Preconditions.checkArgument(value >= 0, "Row key longs must be non-negative to sort in order: %s", value);
+            out.writeBytes(Bytes.toBytes(value));
+            return this;
+        }
+
+        private V2KeyBuilder rawByte(byte b) {
+            out.write(b);
+            return this;
+        }
+
+        private V2KeyBuilder raw(byte[] bytes) {
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        private byte[] build() {
+            return out.toByteArray();
+        }
     }
 }
@@ -3,6 +3,8 @@ package com.haberdashervcs.server.datastore.hbase;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -101,6 +103,30 @@ public final class HBaseUserStore implements HdUserStore {
     }
 
 
+    @Override
+    public Map<String, HdUser> getUsersByIds(Collection<String> userIds) throws IOException {
+        final Table usersTable = conn.getTable(TableName.valueOf("Users"));
+        final String columnFamilyName = "cfIdToUser";
+
+        List<String> ids = new ArrayList<>(userIds);
+        List<Get> gets = new ArrayList<>(ids.size());
+        for (String userId : ids) {
+            gets.add(new Get(userId.getBytes(StandardCharsets.UTF_8))
+                    .addColumn(Bytes.toBytes(columnFamilyName), Bytes.toBytes("user")));
+        }
+
+        Map<String, HdUser> out = new HashMap<>();
+        Result[] results = usersTable.get(gets);
+        for (int i = 0; i < ids.size(); ++i) {
+            if (!results[i].isEmpty()) {
+                byte[] value = results[i].getValue(Bytes.toBytes(columnFamilyName), Bytes.toBytes("user"));
+                out.put(ids.get(i), byteConv.userFromBytes(value).getUser());
+            }
+        }
+        return out;
+    }
+
+
     @Override
     public void updateUserPreferences(String userId, UsersProto.HdUserPreferences newPrefs) throws IOException {
         // TODO: This should be done through byteConv, but that API is designed for signup, separating the HdUser and
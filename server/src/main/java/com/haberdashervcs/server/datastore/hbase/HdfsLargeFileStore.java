@@ -2,9 +2,13 @@ package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.Cleaner;
 import java.net.URI;
 import javax.annotation.Nullable;
 
+import com.google.common.io.ByteStreams;
+import com.haberdashervcs.common.HdConstants;
+import com.haberdashervcs.common.io.rab.BlockCachedRandomAccessBytes;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
@@ -24,6 +28,9 @@ public final class HdfsLargeFileStore implements HdLargeFileStore {
 
     private static final HdLogger LOG = HdLoggers.create(HdfsLargeFileStore.class);
 
+    // Closes the streams behind random access files, which have no close() of their own.
+    private static final Cleaner STREAM_CLEANER = Cleaner.create();
+
 
     public static HdLargeFileStore forConfiguration(Configuration conf) {
         return new HdfsLargeFileStore(conf);
@@ -51,7 +58,28 @@ public final class HdfsLargeFileStore implements HdLargeFileStore {
 
     @Override
     public RandomAccessBytes getFileRab(String org, String repo, String fileId) throws IOException {
-        throw new UnsupportedOperationException("TODO");
+        LOG.info("Getting large file for random access: %s / %s / %s", org, repo, fileId);
+        Path path = new Path(pathForFile(org, repo, fileId));
+        FileStatus status = fileSystem.getFileStatus(path);
+        if (status.getLen() > HdConstants.MAX_FILE_SIZE_BYTES) {
+            throw new IOException(String.format(
+                    "Large file %s is over the maximum size: %d bytes", fileId, status.getLen()));
+        }
+        // Positioned reads, so that patching a diff on top of a large file only fetches the ranges it copies from.
+        // They're all on one stream, which doesn't move its position for them. RandomAccessBytes has no close(), so
+        // the stream is closed once the RandomAccessBytes is garbage collected.
+        FSDataInputStream stream = fileSystem.open(path);
+        RandomAccessBytes rab = BlockCachedRandomAccessBytes.of(stream::readFully, (int) status.getLen());
+        STREAM_CLEANER.register(rab, () -> closeQuietly(stream, fileId));
+        return rab;
+    }
+
+    private static void closeQuietly(FSDataInputStream stream, String fileId) {
+        try {
+            stream.close();
+        } catch (IOException ioEx) {
+            LOG.exception(ioEx, "Failed to close large file %s", fileId);
+        }
     }
 
 
@@ -64,13 +92,20 @@ public final class HdfsLargeFileStore implements HdLargeFileStore {
         try {
             FSDataOutputStream outStream = fileSystem.create(path, false /* overwrite */);
             long totalBytes = 0;
-            long bytesTransferred = contents.transferTo(outStream);
+            // One byte over the maximum is enough to know it's too big.
+            long bytesTransferred = ByteStreams.limit(contents, HdConstants.MAX_FILE_SIZE_BYTES + 1L)
+                    .transferTo(outStream);
             totalBytes += bytesTransferred;
             LOG.info("Saved large file size %d", bytesTransferred);
             // Weird Hdfs file errors can happen (e.g. inconsistent reported file sizes, from testing) if we don't
             //     flush/close the write stream.
             outStream.flush();
             outStream.close();
+            if (totalBytes > HdConstants.MAX_FILE_SIZE_BYTES) {
+                fileSystem.delete(path, false);
+                throw new IOException(String.format(
+                        "Large file %s is over the maximum size of %s", fileId, HdConstants.MAX_FILE_SIZE_FOR_DISPLAY));
+            }
             return totalBytes;
         } catch (FileAlreadyExistsException ex) {
             LOG.warn("File already exists: %s / %s / %s", org, repo, fileId);
@@ -2,15 +2,27 @@ package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
 
+import com.google.common.base.Preconditions;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.BranchEntry;
 
 
 /**
- * Reserves a new commit id on main for merging in a branch.
+ * Reserves new commit ids on main for merging in branches.
+ *
+ * Ids come from an atomic counter next to main's BranchEntry, so concurrent reservations never contend on the entry
+ * itself. The entry's head is then moved forward to cover the reserved ids: that only retries if some other
+ * reservation moved it in the meantime, and stops as soon as the head is past ours.
  */
-// TODO: Find a way to do this with less contention.
 final class HeadCommitNumberTaker {
 
+    private static final HdLogger LOG = HdLoggers.create(HeadCommitNumberTaker.class);
+
+    // Each retry means another reservation made progress, so this is only hit under extreme contention.
+    private static final int MAX_HEAD_UPDATE_TRIES = 50;
+
+
     static HeadCommitNumberTaker forDb(HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
         return new HeadCommitNumberTaker(helper, rowKeyer);
     }
@@ -24,38 +36,46 @@ final class HeadCommitNumberTaker {
         this.rowKeyer = rowKeyer;
     }
 
-    // Some scattered notes:
-    // - You have different merges happening at different times, and they all want to "book" a commit ID in main...
-    // - So how do I "take a number" from main?
-    //     - Just use checkAndMutate over and over? Like there's a "head/latest" entry in the merge locks table
-    //       (separate CF?), so you pull that, add +1 to its number, and write it with checkAndMutate. If that
-    //       fails, just retry with the re-pulled entry?
-    //     - What about merge failure and/or clean-up?:
-    //         - Don't worry about it? Just let the merge/commit counter increment even if that merge goes on to
-    //           fail?
-    //
-    // TODO: Is there a way this logic can be used in conjunction with a logging table, that stores the commit history
-    //     of a branch? (If I ever go that route, it would mean trying to "reserve" an entry from the logging table
-    //     rather than the branch entry.)
-    long getNewHeadCommitId() throws IOException {
-        int numTries = 5;
-        while (numTries > 0) {
-            --numTries;
-            HBaseRawHelper.BranchWithOriginalBytes main =
-                    helper.getBranchWithOriginalBytes(rowKeyer.forBranch("main")).get();
-            BranchEntry withIncrementedHeadCommit = BranchEntry.of(
-                    main.branch.getName(),
-                    main.branch.getBaseCommitId(),
-                    main.branch.getHeadCommitId() + 1);
-            boolean result = helper.updateBranchIfUnchanged(
-                    rowKeyer.forBranch("main"), withIncrementedHeadCommit, main.originalBytes);
-            if (result) {
-                return withIncrementedHeadCommit.getHeadCommitId();
-            } else {
-                continue;
+
+    /**
+     * Reserves numIds consecutive commit ids on main, and returns the first one. This also moves main's head to the
+     * last one.
+     *
+     * Ids that are reserved but never written (because a merge failed) are just skipped over, like before.
+     */
+    long reserveCommitIds(int numIds) throws IOException {
+        Preconditions.checkArgument(numIds > 0);
+        final byte[] mainRowKey = rowKeyer.forBranch("main");
+
+        // Repos from before the counter existed start it at main's current head.
+        BranchEntry main = helper.getBranch(mainRowKey).get();
+        if (helper.startCommitIdCounterIfAbsent(mainRowKey, main.getHeadCommitId())) {
+            LOG.info("Started the commit id counter for (%s, %s) at %d",
+                    rowKeyer.getOrg(), rowKeyer.getRepo(), main.getHeadCommitId());
+        }
+
+        final long lastId = helper.incrementCommitIdCounter(mainRowKey, numIds);
+        advanceHeadTo(mainRowKey, lastId);
+        return lastId - numIds + 1;
+    }
+
+
+    // Moves main's head forward to commitId, unless it's already there or past it.
+    void advanceHeadTo(byte[] mainRowKey, long commitId) throws IOException {
+        for (int i = 0; i < MAX_HEAD_UPDATE_TRIES; ++i) {
+            HBaseRawHelper.BranchWithOriginalBytes main = helper.getBranchWithOriginalBytes(mainRowKey).get();
+            if (main.branch.getHeadCommitId() >= commitId) {
+                return;
+            }
+
+            BranchEntry advanced = BranchEntry.of(
+                    main.branch.getName(), main.branch.getBaseCommitId(), commitId);
+            if (helper.updateBranchIfUnchanged(mainRowKey, advanced, main.originalBytes)) {
+                return;
             }
         }
 
-        throw new IOException("Failed to take a number after " + numTries + " tries! This may be due to many concurrent/contending merges.");
+        throw new IOException(String.format(
+                "Failed to move main's head to %d after %d tries", commitId, MAX_HEAD_UPDATE_TRIES));
     }
 }
@@ -0,0 +1,109 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.haberdashervcs.common.diff.git.LineIndex;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+
+
+/**
+ * Holds the line indexes of text files by file id, shared by all requests to the server. A file id's contents never
+ * change, so neither does its index. The same files are diffed for a push's review and again each time the review is
+ * viewed, and this saves scanning them for lines each time.
+ */
+final class LineIndexCache {
+
+    private static final HdLogger LOG = HdLoggers.create(LineIndexCache.class);
+
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final long STATS_LOG_INTERVAL = 10_000;
+
+    // Rough per-object overhead for estimating the size of a key.
+    private static final int OBJECT_OVERHEAD_BYTES = 48;
+
+
+    static LineIndexCache withMaxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0, "Invalid cache size: %s", maxBytes);
+        return new LineIndexCache(maxBytes);
+    }
+
+
+    static final class Key {
+
+        static Key of(String org, String repo, String fileId) {
+            return new Key(org, repo, fileId);
+        }
+
+
+        private final String org;
+        private final String repo;
+        private final String fileId;
+
+        private Key(String org, String repo, String fileId) {
+            this.org = org;
+            this.repo = repo;
+            this.fileId = fileId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return org.equals(other.org)
+                    && repo.equals(other.repo)
+                    && fileId.equals(other.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(org, repo, fileId);
+        }
+
+        private int weight() {
+            return OBJECT_OVERHEAD_BYTES + 2 * (org.length() + repo.length() + fileId.length());
+        }
+    }
+
+
+    private final Cache<Key, LineIndex> indexes;
+    private final AtomicLong lookups = new AtomicLong(0);
+
+    private LineIndexCache(long maxBytes) {
+        this.indexes = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, LineIndex index) ->
+                        (int) Math.min(Integer.MAX_VALUE, key.weight() + index.getEstimatedBytes()))
+                .recordStats()
+                .build();
+    }
+
+
+    @Nullable LineIndex getIfPresent(Key key) {
+        if (lookups.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+            LOG.info("Line index cache: %s", getStats());
+        }
+        return indexes.getIfPresent(key);
+    }
+
+
+    void put(Key key, LineIndex index) {
+        indexes.put(key, index);
+    }
+
+
+    CacheStats getStats() {
+        return indexes.stats();
+    }
+}
@@ -0,0 +1,150 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.MergeLock;
+
+
+/**
+ * Keeps each repo's recent merge locks in memory, shared by all requests, so that a request doesn't have to scan the
+ * Merges table's recent window from scratch.
+ *
+ * Each request still refreshes the repo's view first, so that it sees every merge completed before it arrived. But a
+ * refresh only scans the locks written since the last one (plus a margin for late writes), and re-reads the few locks
+ * it knows are still in progress. Requests that arrive during a refresh share the next one.
+ */
+final class MergeLockCache {
+
+    private static final HdLogger LOG = HdLoggers.create(MergeLockCache.class);
+
+    // Covers the windows that checkouts (30 minutes) and merges (1 hour) used to scan.
+    static final long DEFAULT_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // For locks that are written a little after their timestamp, or by a server whose clock is a little behind.
+    private static final long LATE_WRITE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Likewise for clocks that are a little ahead.
+    private static final long EARLY_WRITE_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+
+    static MergeLockCache withRetention(long retentionMillis) {
+        Preconditions.checkArgument(retentionMillis > 0);
+        return new MergeLockCache(retentionMillis);
+    }
+
+
+    private final long retentionMillis;
+    // NOTE: Views are never removed. Each one holds at most the retention window of merges for its repo.
+    private final Map<String, RepoView> views = new ConcurrentHashMap<>();
+
+    private MergeLockCache(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+
+    /**
+     * Returns the merge states for a request, from a snapshot of the repo's recent merges taken after the call.
+     */
+    MergeStates getStates(HBaseRawHelper helper, HBaseRowKeyer rowKeyer) throws IOException {
+        final long arrivedNanos = System.nanoTime();
+        // Keyed by layout too, so a migrated repo gets a new view that scans its new rows.
+        RepoView view = views.computeIfAbsent(
+                rowKeyer.getOrg() + ":" + rowKeyer.getRepo() + ":" + rowKeyer.getLayout(),
+                key -> new RepoView(rowKeyer));
+        ImmutableMap<String, MergeLock> snapshot = view.refreshedSince(arrivedNanos, helper);
+        return MergeStates.fromSnapshot(snapshot, helper, rowKeyer);
+    }
+
+
+    private final class RepoView {
+
+        private final HBaseRowKeyer rowKeyer;
+
+        // Guarded by this.
+        private final Map<String, MergeLock> byId = new HashMap<>();
+        private long scannedThroughMillis = -1;
+        private boolean refreshed = false;
+        private long lastRefreshStartNanos = 0;
+        private ImmutableMap<String, MergeLock> snapshot = ImmutableMap.of();
+
+        private RepoView(HBaseRowKeyer rowKeyer) {
+            this.rowKeyer = rowKeyer;
+        }
+
+
+        private synchronized ImmutableMap<String, MergeLock> refreshedSince(long arrivedNanos, HBaseRawHelper helper)
+                throws IOException {
+            // Someone else refreshed after this request arrived, while it was waiting.
+            // nanoTime() values can only be compared by their difference, so the first refresh is tracked apart.
+            if (refreshed && lastRefreshStartNanos - arrivedNanos >= 0) {
+                return snapshot;
+            }
+
+            lastRefreshStartNanos = System.nanoTime();
+            refreshed = true;
+            final long nowMillis = System.currentTimeMillis();
+            final long retainedFromMillis = nowMillis - retentionMillis;
+            boolean changed = false;
+
+            // Locks are overwritten in place when they complete, so the ones we know are in progress are re-read.
+            List<String> inProgress = new ArrayList<>();
+            for (MergeLock lock : byId.values()) {
+                if (lock.getState() == MergeLock.State.IN_PROGRESS) {
+                    inProgress.add(lock.getId());
+                }
+            }
+            if (!inProgress.isEmpty()) {
+                for (MergeLock lock : helper.getMergesById(rowKeyer, inProgress).values()) {
+                    changed |= putIfChanged(lock);
+                }
+            }
+
+            final long scanFromMillis = (scannedThroughMillis < 0)
+                    ? retainedFromMillis
+                    : Math.max(retainedFromMillis, scannedThroughMillis - LATE_WRITE_MARGIN_MILLIS);
+            List<MergeLock> newer = helper.getMerges(
+                    rowKeyer.prefixForMergeLocksAtTimestamp(scanFromMillis),
+                    rowKeyer.prefixForMergeLocksAtTimestamp(nowMillis + EARLY_WRITE_MARGIN_MILLIS));
+            for (MergeLock lock : newer) {
+                changed |= putIfChanged(lock);
+            }
+            scannedThroughMillis = nowMillis;
+
+            Iterator<MergeLock> it = byId.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().getTimestampMillis() < retainedFromMillis) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                snapshot = ImmutableMap.copyOf(byId);
+                LOG.debug(
+                        "Merge locks for (%s, %s): %d recent, %d were in progress",
+                        rowKeyer.getOrg(), rowKeyer.getRepo(), snapshot.size(), inProgress.size());
+            }
+            return snapshot;
+        }
+
+
+        private boolean putIfChanged(MergeLock lock) {
+            MergeLock existing = byId.get(lock.getId());
+            if (existing != null && existing.getState() == lock.getState()) {
+                return false;
+            }
+            byId.put(lock.getId(), lock);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Preconditions;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.MergeResult;
+
+
+/**
+ * Runs the merges for each repo one group at a time, in the order they arrive. Merges that queue up behind a running
+ * group are run together as the next group, sharing one reservation of commit ids. See
+ * {@link HBaseMerger#mergeGroup}.
+ *
+ * Repos don't wait on each other, up to the number of threads in the executor.
+ */
+final class MergeQueue {
+
+    private static final HdLogger LOG = HdLoggers.create(MergeQueue.class);
+
+    static final int DEFAULT_MAX_GROUP_SIZE = 32;
+
+
+    static MergeQueue of(HBaseMerger merger, HBaseRawHelper helper, Executor executor, int maxGroupSize) {
+        Preconditions.checkArgument(maxGroupSize > 0);
+        return new MergeQueue(merger, helper, executor, maxGroupSize);
+    }
+
+
+    private static final class Request {
+        private final HBaseMerger.BranchToMerge branch;
+        private final CompletableFuture<MergeResult> result = new CompletableFuture<>();
+
+        private Request(HBaseMerger.BranchToMerge branch) {
+            this.branch = branch;
+        }
+    }
+
+
+    // The queued merges for one repo. Guarded by its own lock.
+    private static final class Lane {
+        private final String org;
+        private final String repo;
+        private final Deque<Request> pending = new ArrayDeque<>();
+        private boolean running = false;
+
+        private Lane(String org, String repo) {
+            this.org = org;
+            this.repo = repo;
+        }
+    }
+
+
+    private final HBaseMerger merger;
+    private final HBaseRawHelper helper;
+    private final Executor executor;
+    private final int maxGroupSize;
+    // NOTE: Lanes are never removed. There's one small object per repo that's ever merged.
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private MergeQueue(HBaseMerger merger, HBaseRawHelper helper, Executor executor, int maxGroupSize) {
+        this.merger = merger;
+        this.helper = helper;
+        this.executor = executor;
+        this.maxGroupSize = maxGroupSize;
+    }
+
+
+    /**
+     * Queues the merge and waits for it.
+     */
+    MergeResult merge(String org, String repo, String branchName, long headCommitId) throws IOException {
+        Request request = new Request(HBaseMerger.BranchToMerge.of(branchName, headCommitId));
+        Lane lane = lanes.computeIfAbsent(org + ":" + repo, key -> new Lane(org, repo));
+
+        boolean shouldStart;
+        synchronized (lane) {
+            lane.pending.addLast(request);
+            shouldStart = !lane.running;
+            lane.running = true;
+        }
+        if (shouldStart) {
+            executor.execute(() -> drain(lane));
+        }
+
+        try {
+            return request.result.get();
+
+        } catch (InterruptedException interruptedEx) {
+            // The merge may still happen. The client can check main, or retry and get a conflict.
+            Thread.currentThread().interrupt();
+            throw new IOException(interruptedEx);
+
+        } catch (ExecutionException executionEx) {
+            if (executionEx.getCause() instanceof IOException) {
+                throw (IOException) executionEx.getCause();
+            } else {
+                throw new IOException(executionEx.getCause());
+            }
+        }
+    }
+
+
+    private void drain(Lane lane) {
+        while (true) {
+            List<Request> group = new ArrayList<>();
+            synchronized (lane) {
+                while (!lane.pending.isEmpty() && group.size() < maxGroupSize) {
+                    group.add(lane.pending.removeFirst());
+                }
+                if (group.isEmpty()) {
+                    lane.running = false;
+                    return;
+                }
+            }
+
+            List<Request> deferred = runGroup(lane, group);
+
+            // Back to the front of the line, in their original order.
+            synchronized (lane) {
+                for (int i = deferred.size() - 1; i >= 0; --i) {
+                    lane.pending.addFirst(deferred.get(i));
+                }
+            }
+        }
+    }
+
+
+    // Returns the requests that have to wait for the next group.
+    private List<Request> runGroup(Lane lane, List<Request> group) {
+        List<HBaseMerger.BranchToMerge> branches = new ArrayList<>(group.size());
+        for (Request request : group) {
+            branches.add(request.branch);
+        }
+
+        final List<Optional<MergeResult>> results;
+        try {
+            results = merger.mergeGroup(lane.org, lane.repo, branches, helper);
+        } catch (Throwable ex) {
+            // Failures in one branch come back as its result. This is for the ones that stop the whole group, like
+            //     failing to reserve commit ids.
+            LOG.exception(ex, "Merge group failed for (%s, %s)", lane.org, lane.repo);
+            for (Request request : group) {
+                request.result.completeExceptionally(ex);
+            }
+            return new ArrayList<>();
+        }
+
+        List<Request> deferred = new ArrayList<>();
+        for (int i = 0; i < group.size(); ++i) {
+            if (results.get(i).isPresent()) {
+                group.get(i).result.complete(results.get(i).get());
+            } else {
+                deferred.add(group.get(i));
+            }
+        }
+        if (!deferred.isEmpty()) {
+            LOG.info(
+                    "Deferred %d merge(s) in (%s, %s) that overlap earlier ones in their group",
+                    deferred.size(), lane.org, lane.repo);
+        }
+        return deferred;
+    }
+}
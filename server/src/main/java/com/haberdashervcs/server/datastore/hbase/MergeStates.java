@@ -5,11 +5,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.BranchEntry;
 import com.haberdashervcs.common.objects.MergeLock;
 
 
@@ -25,31 +27,46 @@ final class MergeStates {
         byte[] rowNow = rowKeyer.prefixForMergeLocksAtTimestamp(nowTs);
         byte[] rowAgo = rowKeyer.prefixForMergeLocksAtTimestamp(ago);
         List<MergeLock> currentMerges = helper.getMerges(rowAgo, rowNow);
-        return new MergeStates(currentMerges, helper, rowKeyer);
+        Map<String, MergeLock> byId = new HashMap<>();
+        for (MergeLock merge : currentMerges) {
+            byId.put(merge.getId(), merge);
+        }
+        return new MergeStates(ImmutableMap.copyOf(byId), helper, rowKeyer);
+    }
+
+
+    /**
+     * Uses the recent merges from a snapshot, like the ones kept by {@link MergeLockCache}, instead of scanning them.
+     */
+    static MergeStates fromSnapshot(
+            ImmutableMap<String, MergeLock> recentMergesById, HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
+        return new MergeStates(recentMergesById, helper, rowKeyer);
     }
 
 
-    private final ImmutableList<MergeLock> currentMerges;
+    private final ImmutableMap<String, MergeLock> currentMerges;
     private final HBaseRawHelper helper;
     private final HBaseRowKeyer rowKeyer;
 
     private final Map<String, MergeLock> cachedFromDb;
 
-    private MergeStates(List<MergeLock> currentMerges, HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
-        this.currentMerges = ImmutableList.copyOf(currentMerges);
+    private Optional<Long> settledMainHead = null;
+
+    private MergeStates(
+            ImmutableMap<String, MergeLock> currentMerges, HBaseRawHelper helper, HBaseRowKeyer rowKeyer) {
+        this.currentMerges = currentMerges;
         this.helper = helper;
         this.rowKeyer = rowKeyer;
 
-        this.cachedFromDb = new HashMap<>();
+        // Crawls look up merge states from several threads at once.
+        this.cachedFromDb = new ConcurrentHashMap<>();
     }
 
 
     MergeLock forMergeLockId(String mergeLockId) throws IOException {
-        LOG.debug("TEMP: comparing merge lock id's in list: %s", currentMerges);
-        for (MergeLock merge : currentMerges) {
-            if (merge.getId().equals(mergeLockId)) {
-                return merge;
-            }
+        MergeLock recent = currentMerges.get(mergeLockId);
+        if (recent != null) {
+            return recent;
         }
 
         if (cachedFromDb.containsKey(mergeLockId)) {
@@ -66,4 +83,32 @@ final class MergeStates {
             throw new IllegalStateException("Merge not found: " + mergeLockId);
         }
     }
+
+
+    /**
+     * Returns the head of main as of just after these states were read, if no merge was in progress then. In that
+     * case every lookup on main at or below this commit is final: any later merge takes a newer commit id.
+     *
+     * NOTE: Merges that are still in progress from before the window these states cover (most likely stuck ones)
+     * aren't seen here.
+     */
+    synchronized Optional<Long> getSettledMainHead() throws IOException {
+        if (settledMainHead != null) {
+            return settledMainHead;
+        }
+
+        settledMainHead = Optional.empty();
+        for (MergeLock merge : currentMerges.values()) {
+            if (merge.getState() == MergeLock.State.IN_PROGRESS) {
+                return settledMainHead;
+            }
+        }
+
+        // A merge writes its lock before it takes a commit id, so reading main after the locks is safe.
+        Optional<BranchEntry> main = helper.getBranch(rowKeyer.forBranch("main"));
+        if (main.isPresent()) {
+            settledMainHead = Optional.of(main.get().getHeadCommitId());
+        }
+        return settledMainHead;
+    }
 }
@@ -0,0 +1,214 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+
+
+/**
+ * Moves a repo from the V1_TEXT row key layout to V2_BINARY, while it's being served:
+ *
+ * 1. Assign the repo an id, and copy each of its rows to the binary key. Reads and writes carry on with the old keys.
+ * 2. Mark the repo as migrating, and wait for the writes that were already running to finish. New writes fail with an
+ *    error asking the user to retry, and reads still use the old keys. See HBaseRawHelper.startRepoWrite().
+ * 3. Copy again, for rows written during the first pass. Most rows never change once written. Branches, branch paths
+ *    and merge locks do, so the second copy overwrites them with their latest values.
+ * 4. Switch the repo to the binary layout.
+ *
+ * The old rows are left behind.
+ *
+ * TODO: Delete them in a separate op, once the migrated repo has been checked.
+ */
+final class RowKeyMigrator {
+
+    private static final HdLogger LOG = HdLoggers.create(RowKeyMigrator.class);
+
+    static final List<String> REPO_TABLES = ImmutableList.of(
+            "Files", "Folders", "TreeHashes", "Commits", "CommitPaths", "Merges", "Branches", "BranchPaths");
+
+    // Pushes of big repos can take a while.
+    static final long DEFAULT_MAX_WRITE_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long WRITE_POLL_MILLIS = 200;
+
+
+    static RowKeyMigrator forRepo(Connection conn, HBaseRawHelper helper, String org, String repo) {
+        return new RowKeyMigrator(conn, helper, org, repo, DEFAULT_MAX_WRITE_WAIT_MILLIS);
+    }
+
+    static RowKeyMigrator forRepoWithMaxWait(
+            Connection conn, HBaseRawHelper helper, String org, String repo, long maxWriteWaitMillis) {
+        Preconditions.checkArgument(maxWriteWaitMillis >= 0);
+        return new RowKeyMigrator(conn, helper, org, repo, maxWriteWaitMillis);
+    }
+
+
+    private final Connection conn;
+    private final HBaseRawHelper helper;
+    private final String org;
+    private final String repo;
+    private final long maxWriteWaitMillis;
+
+    private RowKeyMigrator(
+            Connection conn, HBaseRawHelper helper, String org, String repo, long maxWriteWaitMillis) {
+        this.conn = conn;
+        this.helper = helper;
+        this.org = org;
+        this.repo = repo;
+        this.maxWriteWaitMillis = maxWriteWaitMillis;
+    }
+
+
+    void migrate() throws IOException, InterruptedException {
+        HBaseRowKeyer current = helper.getRowKeyer(org, repo);
+        if (current.getLayout() == HBaseRowKeyer.Layout.V2_BINARY) {
+            LOG.info("(%s, %s) already uses binary row keys.", org, repo);
+            return;
+        }
+
+        final HBaseRowKeyer textKeyer = HBaseRowKeyer.forRepo(org, repo);
+        final HBaseRowKeyer binaryKeyer = HBaseRowKeyer.binaryForRepo(
+                org, repo, helper.getOrAssignRepoId(org, repo));
+
+        // A migration that failed partway is picked up from the first copy, which is safe to repeat.
+        LOG.info("Copying rows for (%s, %s) while it's live...", org, repo);
+        copyAllTables(textKeyer, binaryKeyer);
+
+        if (!helper.isMigratingRowKeys(org, repo)) {
+            helper.updateRowKeyLayout(org, repo, null, HBaseRawHelper.KEY_LAYOUT_MIGRATING);
+        }
+        LOG.info("Marked (%s, %s) as migrating. Waiting for running writes to finish...", org, repo);
+        waitForRunningWrites();
+
+        LOG.info("Copying rows for (%s, %s) again...", org, repo);
+        copyAllTables(textKeyer, binaryKeyer);
+
+        helper.updateRowKeyLayout(
+                org, repo, HBaseRawHelper.KEY_LAYOUT_MIGRATING, HBaseRowKeyer.Layout.V2_BINARY.name());
+        LOG.info("Done. (%s, %s) now uses binary row keys.", org, repo);
+    }
+
+
+    // The repo is marked as migrating, so the count only goes down from here.
+    private void waitForRunningWrites() throws IOException, InterruptedException {
+        final long startMillis = System.currentTimeMillis();
+        long running;
+        while ((running = helper.getActiveRepoWrites(org, repo)) > 0) {
+            if (System.currentTimeMillis() - startMillis >= maxWriteWaitMillis) {
+                // The repo stays marked, and running the migration again picks up from here.
+                throw new IOException(String.format(
+                        "%d write(s) to (%s, %s) are still running after %d ms. If a server stopped partway through a"
+                                + " write, its count is never released: check that nothing is writing to the repo,"
+                                + " reset its activeWrites count to 0, and run the migration again.",
+                        running, org, repo, maxWriteWaitMillis));
+            }
+            Thread.sleep(WRITE_POLL_MILLIS);
+        }
+    }
+
+
+    private void copyAllTables(HBaseRowKeyer textKeyer, HBaseRowKeyer binaryKeyer) throws IOException {
+        for (String tableName : REPO_TABLES) {
+            int numRows = copyTable(tableName, textKeyer, binaryKeyer);
+            LOG.info("Copied %d rows in %s", numRows, tableName);
+        }
+    }
+
+
+    private int copyTable(String tableName, HBaseRowKeyer textKeyer, HBaseRowKeyer binaryKeyer) throws IOException {
+        BufferedMutatorParams params = new BufferedMutatorParams(TableName.valueOf(tableName))
+                .writeBufferSize(HBaseRawHelper.DEFAULT_WRITE_BUFFER_BYTES);
+
+        Scan scan = new Scan().setRowPrefixFilter(textKeyer.prefixForRepo());
+        int numRows = 0;
+        try (Table table = conn.getTable(TableName.valueOf(tableName));
+             ResultScanner scanner = table.getScanner(scan);
+             BufferedMutator mutator = conn.getBufferedMutator(params)) {
+            Result result;
+            while ((result = scanner.next()) != null) {
+                Put put = new Put(binaryKeyFor(tableName, result.getRow(), textKeyer, binaryKeyer));
+                for (Cell cell : result.rawCells()) {
+                    put.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell), CellUtil.cloneValue(cell));
+                }
+                mutator.mutate(put);
+                ++numRows;
+            }
+        }
+        return numRows;
+    }
+
+
+    /**
+     * Parses a V1 row key from one of the repo's tables, and returns the same row's V2 key.
+     */
+    static byte[] binaryKeyFor(String tableName, byte[] textKey, HBaseRowKeyer textKeyer, HBaseRowKeyer binaryKeyer) {
+        String key = new String(textKey, StandardCharsets.UTF_8);
+        String prefix = new String(textKeyer.prefixForRepo(), StandardCharsets.UTF_8);
+        Preconditions.checkArgument(key.startsWith(prefix), "Not a row of this repo: %s", key);
+        String rest = key.substring(prefix.length());
+
+        switch (tableName) {
+            case "Files":
+                return binaryKeyer.forFile(rest);
+
+            case "Branches":
+                return binaryKeyer.forBranch(rest);
+
+            case "BranchPaths":
+                return binaryKeyer.forBranchPaths(rest);
+
+            case "Commits": {
+                int idStart = rest.lastIndexOf(':');
+                return binaryKeyer.forCommitOnBranch(
+                        rest.substring(0, idStart), Long.parseLong(rest.substring(idStart + 1)));
+            }
+
+            case "Folders":
+            case "TreeHashes":
+            case "CommitPaths": {
+                // branch:path:id, where paths start with a slash.
+                int idStart = rest.lastIndexOf(':');
+                long id = Long.parseLong(rest.substring(idStart + 1));
+                String branchAndPath = rest.substring(0, idStart);
+                int pathStart = branchAndPath.indexOf(":/");
+                Preconditions.checkArgument(pathStart > 0, "Unexpected row key: %s", key);
+                String branch = branchAndPath.substring(0, pathStart);
+                String path = branchAndPath.substring(pathStart + 1);
+                if (tableName.equals("CommitPaths")) {
+                    return binaryKeyer.forCommitPath(branch, path, Long.MAX_VALUE - id);
+                } else {
+                    return binaryKeyer.forFolderAt(branch, path, id);
+                }
+            }
+
+            case "Merges": {
+                if (rest.startsWith("ID_")) {
+                    return binaryKeyer.forMergeId(rest.substring("ID_".length()));
+                }
+                int idStart = rest.indexOf(':');
+                return binaryKeyer.forMergeAtTimestamp(
+                        Long.parseLong(rest.substring(0, idStart)), rest.substring(idStart + 1));
+            }
+
+            default:
+                throw new IllegalArgumentException("Not a repo table: " + tableName);
+        }
+    }
+}
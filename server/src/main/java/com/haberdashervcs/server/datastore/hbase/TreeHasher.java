@@ -0,0 +1,187 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+import com.haberdashervcs.common.diff.HdHasher;
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.FolderListing;
+
+
+/**
+ * Maintains Merkle tree hashes of folders on main, so a crawl can skip any subtree whose hash hasn't changed between
+ * two commits.
+ *
+ * The hashes live in their own table rather than in the subfolder entries of the folder listings. A changed subtree
+ * changes the hash of every folder above it, and rewriting all those listings at each commit would make every merge
+ * "touch" the root, so that any two merges would conflict.
+ *
+ * Only main has hashes. A branch's view of an unchanged path falls back to main at the same commit id, so main can
+ * change underneath a branch's commits after they're pushed, and a hash written at push time could go stale.
+ *
+ * Merges on different servers aren't serialized, so a merge may hash a folder without seeing an earlier merge that
+ * hasn't completed yet. Each hash row records the previous row it was computed after, and a lookup that finds some
+ * other row in between treats the hash as unknown (see HBaseRawHelper.getTreeHashAtCommit()). A crawl only prunes on
+ * known hashes, and the next merge that touches the folder, or a backfill, writes a good one.
+ *
+ * A merge only hashes the folders it changed and their ancestors. An ancestor with a subfolder that has no hash yet
+ * (from before hashes existed) gets an unknown hash too, until backfill() fills in the rest. That runs as an ops job
+ * (see HBaseOperationsMain), since hashing a whole tree inside a merge would hold up the merge queue.
+ */
+final class TreeHasher {
+
+    private static final HdLogger LOG = HdLoggers.create(TreeHasher.class);
+
+    static TreeHasher forMain(HBaseRowKeyer rowKeyer, HBaseRawHelper helper, MergeStates mergeStates) {
+        return new TreeHasher(rowKeyer, helper, mergeStates);
+    }
+
+
+    private final HBaseRowKeyer rowKeyer;
+    private final HBaseRawHelper helper;
+    private final MergeStates mergeStates;
+    private final FolderHistoryLoader historyLoader;
+
+    private TreeHasher(HBaseRowKeyer rowKeyer, HBaseRawHelper helper, MergeStates mergeStates) {
+        this.rowKeyer = rowKeyer;
+        this.helper = helper;
+        this.mergeStates = mergeStates;
+        this.historyLoader = FolderHistoryLoader.forBranch(rowKeyer, "main", helper, mergeStates);
+    }
+
+
+    Optional<String> getTreeHash(long commitId, String path) throws IOException {
+        return helper.getTreeHashAtCommit(rowKeyer, "main", commitId, path, mergeStates);
+    }
+
+
+    /**
+     * Writes the tree hashes at a new commit on main, for the given changed folders and all their ancestors.
+     *
+     * This has to be called for every commit on main that changes folders, before the commit is visible. Otherwise a
+     * lookup at the commit would find an older, stale hash.
+     */
+    void writeTreeHashes(long commitId, Collection<FolderListing> changedFolders, Optional<String> mergeLockId)
+            throws IOException {
+        Map<String, FolderListing> changedByPath = new HashMap<>();
+        // Deepest first, so that subfolders are hashed before their parents.
+        TreeSet<String> pathsToHash = new TreeSet<>(
+                Comparator.comparingInt((String path) -> depth(path)).reversed()
+                        .thenComparing(Comparator.naturalOrder()));
+        for (FolderListing folder : changedFolders) {
+            changedByPath.put(folder.getPath(), folder);
+            pathsToHash.add(folder.getPath());
+            pathsToHash.addAll(ancestorsOf(folder.getPath()));
+        }
+
+        HashRun run = new HashRun(commitId, mergeLockId, false);
+        for (String path : pathsToHash) {
+            Optional<FolderListing> listing = (changedByPath.containsKey(path))
+                    ? Optional.of(changedByPath.get(path))
+                    : historyLoader.getFolderAtCommit(commitId, path);
+            run.hashAndWrite(path, listing);
+        }
+        LOG.debug("Wrote %d tree hashes at main:%d", run.computed.size(), commitId);
+    }
+
+
+    /**
+     * Hashes every folder on main at the given commit whose hash is unknown, and the folders above them. Returns the
+     * number of hashes written.
+     *
+     * The commit must be settled (see MergeStates.getSettledMainHead()), so that no merge can still change what's
+     * at it.
+     */
+    int backfill(long commitId) throws IOException {
+        HashRun run = new HashRun(commitId, Optional.empty(), true);
+        run.subfolderHash("/");
+        LOG.info("Backfilled %d tree hashes at main:%d", run.computed.size(), commitId);
+        return run.computed.size();
+    }
+
+
+    private final class HashRun {
+
+        private final long commitId;
+        private final Optional<String> mergeLockId;
+        // Whether to hash subfolders with no known hash, rather than leave their ancestors unknown.
+        private final boolean backfill;
+        private final Map<String, Optional<String>> computed = new HashMap<>();
+
+        private HashRun(long commitId, Optional<String> mergeLockId, boolean backfill) {
+            this.commitId = commitId;
+            this.mergeLockId = mergeLockId;
+            this.backfill = backfill;
+        }
+
+        private Optional<String> hashAndWrite(String path, Optional<FolderListing> listing) throws IOException {
+            Optional<String> hash = Optional.empty();
+            if (listing.isPresent()) {
+                List<FolderListing.Entry> hashedEntries = new ArrayList<>();
+                for (FolderListing.Entry entry : listing.get().getEntries()) {
+                    if (entry.getType() == FolderListing.Entry.Type.FOLDER) {
+                        Optional<String> subfolderHash = subfolderHash(path + entry.getName() + "/");
+                        hashedEntries.add(subfolderHash.isPresent()
+                                ? FolderListing.Entry.forSubFolderWithTreeHash(entry.getName(), subfolderHash.get())
+                                : entry);
+                    } else {
+                        hashedEntries.add(entry);
+                    }
+                }
+                hash = HdHasher.treeHash(hashedEntries);
+            }
+
+            // An unknown hash is still written, to hide any older hash for this path.
+            long previousCommitId = helper.getTreeHashCommitIdAtCommit(
+                    rowKeyer, "main", commitId - 1, path, mergeStates);
+            helper.putTreeHash(
+                    rowKeyer.forTreeHashAt("main", path, commitId), hash.orElse(""), previousCommitId, mergeLockId);
+            computed.put(path, hash);
+            return hash;
+        }
+
+        private Optional<String> subfolderHash(String subfolderPath) throws IOException {
+            if (computed.containsKey(subfolderPath)) {
+                return computed.get(subfolderPath);
+            }
+
+            Optional<String> existing = getTreeHash(commitId, subfolderPath);
+            if (existing.isPresent() || !backfill) {
+                return existing;
+            }
+
+            return hashAndWrite(subfolderPath, historyLoader.getFolderAtCommit(commitId, subfolderPath));
+        }
+    }
+
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); ++i) {
+            if (path.charAt(i) == '/') {
+                ++depth;
+            }
+        }
+        return depth;
+    }
+
+
+    // For "/some/path/" this returns "/some/" and "/".
+    private static List<String> ancestorsOf(String path) {
+        List<String> out = new ArrayList<>();
+        int slash = path.lastIndexOf('/', path.length() - 2);
+        while (slash >= 0) {
+            out.add(path.substring(0, slash + 1));
+            slash = path.lastIndexOf('/', slash - 1);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,64 @@
+package com.haberdashervcs.server.example;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.haberdashervcs.common.logging.HdLogger;
+import com.haberdashervcs.common.logging.HdLoggers;
+import com.haberdashervcs.common.objects.user.HdUserStore;
+import com.haberdashervcs.server.config.HaberdasherServer;
+import com.haberdashervcs.server.datastore.HdLargeFileStore;
+import com.haberdashervcs.server.datastore.embedded.EmbeddedConnection;
+import com.haberdashervcs.server.datastore.embedded.LocalLargeFileStore;
+import com.haberdashervcs.server.datastore.hbase.HBaseAuthenticator;
+import com.haberdashervcs.server.datastore.hbase.HBaseDatastore;
+import com.haberdashervcs.server.datastore.hbase.HBaseUserStore;
+import com.haberdashervcs.server.frontend.JettyHttpVcsFrontend;
+import org.apache.hadoop.hbase.client.Connection;
+
+
+/**
+ * Like ExampleServerMain, but keeps everything in a local data directory instead of HBase and HDFS.
+ */
+public class EmbeddedServerMain {
+
+    private static final HdLogger LOG = HdLoggers.create(EmbeddedServerMain.class);
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: EmbeddedServerMain <data dir>");
+        }
+
+        Path dataDir = Paths.get(args[0]);
+        Files.createDirectories(dataDir);
+        LOG.info("Hello embedded Haberdasher! Data dir: %s", dataDir.toAbsolutePath());
+
+        Connection conn = EmbeddedConnection.open(dataDir.resolve("rows.db"));
+
+        HdLargeFileStore largeFileStore = LocalLargeFileStore.atRoot(dataDir.resolve("large-files"));
+        largeFileStore.start();
+
+        // See ExampleServerMain for the settings.
+        HBaseDatastore datastore = HBaseDatastore.builder(conn, largeFileStore)
+                .withSettingsFrom(System.getProperties())
+                .build();
+        datastore.createMissingTables();
+
+        HdUserStore userStore = HBaseUserStore.of(conn, new StubBillingManager());
+        userStore.start();
+
+        HBaseAuthenticator authenticator = HBaseAuthenticator.forConnection(conn, userStore);
+        authenticator.start();
+
+        HaberdasherServer server = HaberdasherServer.builder()
+                .withDatastore(datastore)
+                .withVcsFrontend(JettyHttpVcsFrontend.forDatastore(datastore, authenticator, userStore))
+                .build();
+
+        server.start();
+
+        LOG.info("Serving...");
+    }
+}
@@ -40,7 +40,11 @@ public class ExampleServerMain {
         HdLargeFileStore largeFileStore = HdfsLargeFileStore.forConfiguration(conf);
         largeFileStore.start();
 
-        HBaseDatastore datastore = HBaseDatastore.forConnection(conn, largeFileStore);
+        // Tuning settings and the delta repack schedule come from system properties, like -Dhd.merge.maxGroupSize=16.
+        //     See HBaseDatastore.Builder.withSettingsFrom().
+        HBaseDatastore datastore = HBaseDatastore.builder(conn, largeFileStore)
+                .withSettingsFrom(System.getProperties())
+                .build();
 
         HaberdasherServer server = HaberdasherServer.builder()
                 .withDatastore(datastore)
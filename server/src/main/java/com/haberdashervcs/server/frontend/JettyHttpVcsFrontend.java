@@ -1,14 +1,16 @@
 package com.haberdashervcs.server.frontend;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Splitter;
+import com.haberdashervcs.common.io.FileContentsCodec;
 import com.haberdashervcs.common.io.HdObjectByteConverter;
 import com.haberdashervcs.common.io.HdObjectOutputStream;
 import com.haberdashervcs.common.io.ProtobufObjectByteConverter;
@@ -29,6 +31,7 @@ import com.haberdashervcs.common.objects.user.HdUserStore;
 import com.haberdashervcs.common.objects.user.OrgSubscription;
 import com.haberdashervcs.common.objects.user.UserAuthToken;
 import com.haberdashervcs.common.protobuf.ServerProto;
+import com.haberdashervcs.server.browser.LogPage;
 import com.haberdashervcs.server.browser.RepoBrowser;
 import com.haberdashervcs.server.datastore.HdDatastore;
 import com.haberdashervcs.server.operations.checkout.CheckoutResult;
@@ -49,6 +52,7 @@ public class JettyHttpVcsFrontend implements VcsFrontend {
     private static final HdLogger LOG = HdLoggers.create(JettyHttpVcsFrontend.class);
 
     private static final Splitter PATH_PARAM_SPLITTER = Splitter.on(':');
+    private static final Splitter CODEC_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
 
     private static final Pattern VERSION_REGEX = Pattern.compile("^(\\d+)\\.(\\d+)\\.(\\d+)$");
     private static final int MIN_VER_MAJOR = 1;
@@ -286,9 +290,17 @@ public class JettyHttpVcsFrontend implements VcsFrontend {
                 return;
             }
 
+            // Optional, for older clients.
+            String syncedFromCommitId = FrontendHttpUtil.getOneUrlParam("syncedFromCommitId", params);
+
             CheckoutPathSet paths = CheckoutPathSet.fromStrings(PATH_PARAM_SPLITTER.splitToList(pathsStr));
             ServerCheckoutSpec checkoutSpec = datastore.computeCheckout(
-                    org, repo, branchName, Long.parseLong(commitId), paths);
+                    org,
+                    repo,
+                    branchName,
+                    Long.parseLong(commitId),
+                    paths,
+                    (syncedFromCommitId == null) ? Optional.empty() : Optional.of(Long.parseLong(syncedFromCommitId)));
             response.setStatus(HttpStatus.OK_200);
             response.setContentType("application/octet-stream");
             response.getOutputStream().write(byteConv.serverCheckoutSpecToBytes(checkoutSpec));
@@ -320,7 +332,12 @@ public class JettyHttpVcsFrontend implements VcsFrontend {
             response.setHeader("Transfer-Encoding", "chunked");
             response.setBufferSize(16384);  // TODO: Look into whether we need this.
 
-            HdObjectOutputStream objectsOut = ProtobufObjectOutputStream.forOutputStream(response.getOutputStream());
+            final HdObjectOutputStream objectsOut;
+            if (acceptsCompressedFiles(request)) {
+                objectsOut = ProtobufObjectOutputStream.withCompressedFiles(response.getOutputStream());
+            } else {
+                objectsOut = ProtobufObjectOutputStream.forOutputStream(response.getOutputStream());
+            }
             CheckoutResult result = datastore.doCheckout(
                     org, repo, branchName, Long.parseLong(commitId), paths, clientSpec, objectsOut);
             if (result.getStatus() == CheckoutResult.Status.OK) {
@@ -351,10 +368,18 @@ public class JettyHttpVcsFrontend implements VcsFrontend {
 
             response.setContentType("application/octet-stream");
             response.setStatus(HttpStatus.OK_200);
+            // Tells the client it can compress the files it pushes.
+            response.setHeader(FileContentsCodec.ACCEPT_HEADER, FileContentsCodec.DEFLATE);
             response.getOutputStream().write(pushQueryResponse.toByteArray());
         }
 
 
+        private boolean acceptsCompressedFiles(HttpServletRequest request) {
+            String codecs = request.getHeader(FileContentsCodec.ACCEPT_HEADER);
+            return (codecs != null && CODEC_SPLITTER.splitToList(codecs).contains(FileContentsCodec.DEFLATE));
+        }
+
+
         private void handlePush(
                 UserAuthToken token,
                 Request baseRequest,
@@ -394,25 +419,25 @@ public class JettyHttpVcsFrontend implements VcsFrontend {
             }
 
             RepoBrowser browser = datastore.getBrowser(org, repo).get();
-            List<CommitEntry> commits = browser.getLog(branchName, path, Long.valueOf(commitId));
-            Map<String, String> emailsByUserId = new HashMap<>();
+            LogPage page = browser.getLog(branchName, path, Long.valueOf(commitId));
+
+            Set<String> authorIds = new HashSet<>();
+            for (CommitEntry commit : page.getEntries()) {
+                authorIds.add(commit.getAuthorUserId());
+            }
+            Map<String, HdUser> authorsById = userStore.getUsersByIds(authorIds);
 
             response.setContentType("application/octet-stream");
             response.setStatus(HttpStatus.OK_200);
+            // The client asks for the next page at this commit, when it wants one.
+            if (page.getNextCommitId().isPresent()) {
+                response.setHeader("X-Haberdasher-Log-Next-Commit-Id", String.valueOf(page.getNextCommitId().get()));
+            }
             ProtobufObjectOutputStream objectsOut = ProtobufObjectOutputStream.forOutputStream(response.getOutputStream());
-            for (CommitEntry commit : commits) {
-                final String displayAuthor;
-                if (emailsByUserId.containsKey(commit.getAuthorUserId())) {
-                    displayAuthor = emailsByUserId.get(commit.getAuthorUserId());
-                } else {
-                    Optional<HdUser> author = userStore.getUserById(commit.getAuthorUserId());
-                    if (author.isPresent()) {
-                        displayAuthor = author.get().getEmail();
-                    } else {
-                        displayAuthor = commit.getAuthorUserId();
-                    }
-                    emailsByUserId.put(commit.getAuthorUserId(), displayAuthor);
-                }
+            for (CommitEntry commit : page.getEntries()) {
+                // Special author names like "Haberdasher Merge" aren't users.
+                HdUser author = authorsById.get(commit.getAuthorUserId());
+                final String displayAuthor = (author != null) ? author.getEmail() : commit.getAuthorUserId();
                 CommitEntry commitWithAuthor = commit.withAuthor(displayAuthor);
                 objectsOut.writeCommit(String.valueOf(commitWithAuthor.getCommitId()), commitWithAuthor);
             }
@@ -6,9 +6,11 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
@@ -33,6 +35,7 @@ import com.haberdashervcs.common.protobuf.CommitsProto;
 import com.haberdashervcs.common.protobuf.TasksProto;
 import com.haberdashervcs.server.browser.ContentsForDisplay;
 import com.haberdashervcs.server.browser.FileBrowser;
+import com.haberdashervcs.server.browser.LogPage;
 import com.haberdashervcs.server.browser.RepoBrowser;
 import com.haberdashervcs.server.datastore.HdDatastore;
 import com.haberdashervcs.server.frontend.review.DiffPageHandler;
@@ -564,27 +567,28 @@ public class JettyHttpWebFrontend implements WebFrontend {
                 atCommitId = Long.parseLong(commitIdStr);
             }
 
-            List<CommitEntry> logEntries = browser.getLog(branchName, path, atCommitId);
-            Map<String, String> emailsByUserId = new HashMap<>();
+            LogPage log = browser.getLog(branchName, path, atCommitId);
+            Set<String> authorIds = new HashSet<>();
+            for (CommitEntry c : log.getEntries()) {
+                authorIds.add(c.getAuthorUserId());
+            }
+            Map<String, HdUser> authorsById = userStore.getUsersByIds(authorIds);
 
             List<LogPageEntry> logPageEntries = new ArrayList<>();
-            for (CommitEntry c : logEntries) {
-                final String authorDisplayName;
-                if (emailsByUserId.containsKey(c.getAuthorUserId())) {
-                    authorDisplayName = emailsByUserId.get(c.getAuthorUserId());
-                } else {
-                    // Handle special author names like "Haberdasher Merge" and such.
-                    Optional<HdUser> authorUser = userStore.getUserById(c.getAuthorUserId());
-                    if (authorUser.isPresent()) {
-                        authorDisplayName = authorUser.get().getEmail();
-                    } else {
-                        authorDisplayName = c.getAuthorUserId();
-                    }
-                    emailsByUserId.put(c.getAuthorUserId(), authorDisplayName);
-                }
+            for (CommitEntry c : log.getEntries()) {
+                // Handle special author names like "Haberdasher Merge" and such.
+                HdUser authorUser = authorsById.get(c.getAuthorUserId());
+                final String authorDisplayName = (authorUser != null) ? authorUser.getEmail() : c.getAuthorUserId();
                 logPageEntries.add(new LogPageEntry(c, authorDisplayName));
             }
             pageData.put("logEntries", logPageEntries);
+            if (log.getNextCommitId().isPresent()) {
+                pageData.put("olderLogUrl", String.format(
+                        "/log?branchName=%s&path=%s&commitId=%d",
+                        FrontendHttpUtil.urlEnc(branchName),
+                        FrontendHttpUtil.urlEnc(path),
+                        log.getNextCommitId().get()));
+            }
 
             template.process(pageData, response.getWriter());
         }
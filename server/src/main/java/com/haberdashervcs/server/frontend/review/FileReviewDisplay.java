@@ -84,29 +84,30 @@ final class FileReviewDisplay {
 
         static FileDiffResult deleted(String beforeFileId) {
             Preconditions.checkNotNull(beforeFileId);
-            return new FileDiffResult(Type.DELETED, null, null, beforeFileId, null);
+            return new FileDiffResult(Type.DELETED, null, null, false, beforeFileId, null);
         }
 
         static FileDiffResult ofDiffs(
                 List<DiffHunk> hunks,
                 List<DiffHunkList.ThreadLineNumberEntry> threads,
+                boolean tooLarge,
                 String beforeFileId,
                 String afterFileId) {
             Preconditions.checkNotNull(hunks);
             Preconditions.checkNotNull(beforeFileId);
             Preconditions.checkNotNull(afterFileId);
-            return new FileDiffResult(Type.DIFF, hunks, threads, beforeFileId, afterFileId);
+            return new FileDiffResult(Type.DIFF, hunks, threads, tooLarge, beforeFileId, afterFileId);
         }
 
         static FileDiffResult added(
                 List<DiffHunkList.ThreadLineNumberEntry> threads, String afterFileId) {
             Preconditions.checkNotNull(threads);
             Preconditions.checkNotNull(afterFileId);
-            return new FileDiffResult(Type.ADDED, null, threads, null, afterFileId);
+            return new FileDiffResult(Type.ADDED, null, threads, false, null, afterFileId);
         }
 
         static FileDiffResult addedThenDeleted() {
-            return new FileDiffResult(Type.ADDED_THEN_DELETED, null, null, null, null);
+            return new FileDiffResult(Type.ADDED_THEN_DELETED, null, null, false, null, null);
         }
 
         static FileDiffResult binary(
@@ -119,7 +120,7 @@ final class FileReviewDisplay {
         }
 
         static FileDiffResult noChange() {
-            return new FileDiffResult(Type.NO_CHANGE, null, null, null, null);
+            return new FileDiffResult(Type.NO_CHANGE, null, null, false, null, null);
         }
 
 
@@ -136,6 +137,7 @@ final class FileReviewDisplay {
         private final Type type;
         private final @Nullable List<DiffHunk> hunks;
         private final @Nullable List<DiffHunkList.ThreadLineNumberEntry> threads;
+        private final boolean tooLarge;
 
         private final boolean isBinaryDiff;
         private final long binaryBytesBefore;
@@ -148,11 +150,13 @@ final class FileReviewDisplay {
                 Type type,
                 @Nullable List<DiffHunk> hunks,
                 @Nullable List<DiffHunkList.ThreadLineNumberEntry> threads,
+                boolean tooLarge,
                 @Nullable String beforeFileId,
                 @Nullable String afterFileId) {
             this.type = type;
             this.hunks = hunks;
             this.threads = threads;
+            this.tooLarge = tooLarge;
 
             this.isBinaryDiff = false;
             this.binaryBytesBefore = -1;
@@ -171,6 +175,7 @@ final class FileReviewDisplay {
             this.type = type;
             this.hunks = null;
             this.threads = null;
+            this.tooLarge = false;
 
             this.isBinaryDiff = true;
             this.binaryBytesBefore = binaryBytesBefore;
@@ -194,6 +199,11 @@ final class FileReviewDisplay {
             return threads;
         }
 
+        // Whether any commit's diff in the range was too large to compute, so its hunks cover whole changed regions.
+        boolean isTooLarge() {
+            return tooLarge;
+        }
+
         boolean isBinaryDiff() {
             return isBinaryDiff;
         }
@@ -273,7 +283,8 @@ final class FileReviewDisplay {
 
         } else {
             List<DiffHunk> baseToHead = computeForRange(baseCommitId, headCommitId, threadsMinusOrphans);
-            return FileDiffResult.ofDiffs(baseToHead, threads, state.beforeFileId, state.afterFileId);
+            return FileDiffResult.ofDiffs(
+                    baseToHead, threads, state.diffTooLarge, state.beforeFileId, state.afterFileId);
         }
     }
 
@@ -319,6 +330,8 @@ final class FileReviewDisplay {
         long binaryBytesBefore = -1;
         long binaryBytesAfter = -1;
 
+        boolean diffTooLarge = false;
+
         FileDiffResult.Type getHeadState() {
             Preconditions.checkState(baseCommitId >= 0);
 
@@ -355,6 +368,7 @@ final class FileReviewDisplay {
                 out.lastAddCommit = diff.getCommitId();
                 out.beforeFileId = null;
                 out.afterFileId = diff.getDiff().getThisId();
+                out.diffTooLarge = false;
             } else if (diffType == ReviewsProto.FileDiffEntry.Type.DELETE) {
                 out.lastDeleteCommit = diff.getCommitId();
                 if (out.beforeFileId == null && diff.getCommitId() > baseCommitId) {
@@ -378,6 +392,9 @@ final class FileReviewDisplay {
                 out.beforeFileId = diff.getDiff().getPreviousId();
             }
             out.afterFileId = diff.getDiff().getThisId();
+            if (diff.getCommitId() > baseCommitId && diff.getDiff().getDiffHunks().getTooLarge()) {
+                out.diffTooLarge = true;
+            }
 
             // Binary <-> text
             if (diff.getDiff().getDiffHunks().hasBinaryDiff()) {
@@ -392,6 +409,7 @@ final class FileReviewDisplay {
                     out.beforeFileId = null;
                     out.binaryBytesBefore = -1;
                     out.binaryBytesAfter = -1;
+                    out.diffTooLarge = false;
                 } else {
                     out.binaryBytesAfter = bDiff.getNumBytesModified();
                     if (out.binaryBytesBefore == -1 && diff.getCommitId() > baseCommitId) {
@@ -16,7 +16,6 @@ import com.haberdashervcs.common.diff.DiffHunk;
 import com.haberdashervcs.common.diff.DiffHunkList;
 import com.haberdashervcs.common.diff.LineDiff;
 import com.haberdashervcs.common.diff.git.RabTextSequence;
-import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
 import com.haberdashervcs.common.io.rab.RandomAccessBytes;
 import com.haberdashervcs.common.objects.FileEntry;
 import com.haberdashervcs.common.objects.user.HdUserStore;
@@ -28,6 +27,9 @@ public final class PageDiffFileEntry {
 
     private static final int MAX_FILE_VIEWING_SIZE_BYTES = 16 * 1024;
 
+    // A diff that was too large to compute is one hunk over the whole changed region, which may be most of the file.
+    private static final int MAX_LINES_PER_HUNK_SIDE = 2000;
+
 
     private final ReviewsProto.ReviewContents review;
     private final RepoBrowser browser;
@@ -99,13 +101,17 @@ public final class PageDiffFileEntry {
         Preconditions.checkNotNull(diff.getAfterFileId());
 
         FileEntry beforeEntry = browser.getFile(diff.getBeforeFileId()).get();
-        RandomAccessBytes beforeContents = browser.browseFile(beforeEntry).getWholeContents();
-        RabTextSequence beforeText = new RabTextSequence(beforeContents);
+        RabTextSequence beforeText = browser.browseFile(beforeEntry).getWholeText();
         FileEntry afterEntry = browser.getFile(diff.getAfterFileId()).get();
-        RandomAccessBytes afterContents = browser.browseFile(afterEntry).getWholeContents();
-        RabTextSequence afterText = new RabTextSequence(afterContents);
+        RabTextSequence afterText = browser.browseFile(afterEntry).getWholeText();
 
         List<PageDiffHunkEntry> out = new ArrayList<>();
+        if (diff.isTooLarge()) {
+            LineDiff lineDiff = new LineDiff(
+                    LineDiff.Type.SAME, -1, -1, "(Diff too large, showing the whole changed region)");
+            out.add(new PageDiffHunkEntry(ImmutableList.of(lineDiff), Collections.emptyList()));
+        }
+
         ThreadHunkMerger merger = new ThreadHunkMerger(diff.getHunks(), diff.getThreads());
         List<DiffHunk> hunksWithThreads = merger.merge();
 
@@ -120,15 +126,27 @@ public final class PageDiffFileEntry {
                 continue;
             }
 
-            for (int oLineNum = hunk.originalStart; oLineNum < hunk.originalEnd; ++oLineNum) {
+            int originalEnd = Math.min(hunk.originalEnd, hunk.originalStart + MAX_LINES_PER_HUNK_SIDE);
+            for (int oLineNum = hunk.originalStart; oLineNum < originalEnd; ++oLineNum) {
                 String lineStr = beforeText.getLine(oLineNum);
                 lineDiffs.add(new LineDiff(LineDiff.Type.MINUS, oLineNum, -1, lineStr));
             }
+            if (originalEnd < hunk.originalEnd) {
+                lineDiffs.add(new LineDiff(
+                        LineDiff.Type.MINUS, -1, -1,
+                        String.format("(%d more lines)", hunk.originalEnd - originalEnd)));
+            }
 
-            for (int mLineNum = hunk.modifiedStart; mLineNum < hunk.modifiedEnd; ++mLineNum) {
+            int modifiedEnd = Math.min(hunk.modifiedEnd, hunk.modifiedStart + MAX_LINES_PER_HUNK_SIDE);
+            for (int mLineNum = hunk.modifiedStart; mLineNum < modifiedEnd; ++mLineNum) {
                 String lineStr = afterText.getLine(mLineNum);
                 lineDiffs.add(new LineDiff(LineDiff.Type.PLUS, -1, mLineNum, lineStr));
             }
+            if (modifiedEnd < hunk.modifiedEnd) {
+                lineDiffs.add(new LineDiff(
+                        LineDiff.Type.PLUS, -1, -1,
+                        String.format("(%d more lines)", hunk.modifiedEnd - modifiedEnd)));
+            }
 
             out.add(new PageDiffHunkEntry(lineDiffs, diff.getThreads()));
         }
@@ -147,12 +165,7 @@ public final class PageDiffFileEntry {
 
         // TODO: Cutting it off at a byte number probably causes a unicode error.
         if (contents.length() > MAX_FILE_VIEWING_SIZE_BYTES) {
-            byte[] sample = new byte[MAX_FILE_VIEWING_SIZE_BYTES];
-            for (int i = 0; i < MAX_FILE_VIEWING_SIZE_BYTES; ++i) {
-                // TODO: Use readInto().
-                sample[i] = contents.at(i);
-            }
-            contents = ByteArrayRandomAccessBytes.of(sample);
+            contents = contents.slice(0, MAX_FILE_VIEWING_SIZE_BYTES);
         }
         RabTextSequence text = new RabTextSequence(contents);
 
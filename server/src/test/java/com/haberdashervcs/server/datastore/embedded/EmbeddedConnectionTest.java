@@ -0,0 +1,254 @@
+package com.haberdashervcs.server.datastore.embedded;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.CheckAndMutate;
+import org.apache.hadoop.hbase.client.ColumnFamilyDescriptorBuilder;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.MultiRowRangeFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class EmbeddedConnectionTest {
+
+    private static final TableName TABLE = TableName.valueOf("Test");
+    private static final byte[] CF = Bytes.toBytes("cfMain");
+
+
+    private Path dir;
+    private EmbeddedConnection conn;
+    private Table table;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("embedded-conn-test");
+        conn = EmbeddedConnection.open(dir.resolve("rows.db"));
+        Admin admin = conn.getAdmin();
+        admin.createTable(TableDescriptorBuilder.newBuilder(TABLE)
+                .setColumnFamily(ColumnFamilyDescriptorBuilder.of("cfMain"))
+                .build());
+        table = conn.getTable(TABLE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        conn.close();
+    }
+
+
+    private void putRows(String... rows) throws Exception {
+        List<Put> puts = new ArrayList<>();
+        for (String row : rows) {
+            puts.add(new Put(Bytes.toBytes(row)).addColumn(CF, Bytes.toBytes("value"), Bytes.toBytes("v-" + row)));
+        }
+        table.put(puts);
+    }
+
+    private List<String> scanRows(Scan scan) throws Exception {
+        List<String> out = new ArrayList<>();
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result : scanner) {
+                out.add(Bytes.toString(result.getRow()));
+            }
+        }
+        return out;
+    }
+
+
+    @Test
+    public void getsAndOverwrites() throws Exception {
+        putRows("a");
+        table.put(new Put(Bytes.toBytes("a")).addColumn(CF, Bytes.toBytes("value"), Bytes.toBytes("new")));
+
+        Result result = table.get(new Get(Bytes.toBytes("a")));
+        assertArrayEquals(Bytes.toBytes("new"), result.getValue(CF, Bytes.toBytes("value")));
+        assertTrue(table.get(new Get(Bytes.toBytes("missing"))).isEmpty());
+    }
+
+
+    @Test
+    public void deletesWholeRows() throws Exception {
+        putRows("a", "b", "c");
+        table.put(new Put(Bytes.toBytes("b")).addColumn(CF, Bytes.toBytes("other"), Bytes.toBytes("x")));
+
+        List<Delete> deletes = Lists.newArrayList(new Delete(Bytes.toBytes("b")), new Delete(Bytes.toBytes("c")));
+        table.delete(deletes);
+
+        assertTrue(deletes.isEmpty());
+        assertEquals(ImmutableList.of("a"), scanRows(new Scan()));
+    }
+
+
+    @Test
+    public void scansForwardAndReversed() throws Exception {
+        putRows("a", "b", "c", "d", "e");
+
+        assertEquals(
+                ImmutableList.of("b", "c", "d"),
+                scanRows(new Scan().withStartRow(Bytes.toBytes("b")).withStopRow(Bytes.toBytes("e"))));
+        assertEquals(
+                ImmutableList.of("c", "d", "e"),
+                scanRows(new Scan().withStartRow(Bytes.toBytes("b"), false).withStopRow(Bytes.toBytes("e"), true)));
+        assertEquals(
+                ImmutableList.of("d", "c", "b"),
+                scanRows(new Scan()
+                        .setReversed(true)
+                        .withStartRow(Bytes.toBytes("d"), true)
+                        .withStopRow(Bytes.toBytes("b"), true)));
+        assertEquals(
+                ImmutableList.of("e", "d"),
+                scanRows(new Scan().setReversed(true).setLimit(2)));
+    }
+
+
+    @Test
+    public void scansAcrossBatches() throws Exception {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            rows.add(String.format("row%04d", i));
+        }
+        putRows(rows.toArray(new String[0]));
+
+        assertEquals(rows, scanRows(new Scan()));
+        assertEquals(ImmutableList.of("row0599", "row0598"), scanRows(new Scan().setReversed(true).setLimit(2)));
+        assertEquals(300, scanRows(new Scan().setLimit(300)).size());
+
+        // Ranges that span batches, with rows between them that aren't read.
+        List<MultiRowRangeFilter.RowRange> ranges = Lists.newArrayList(
+                new MultiRowRangeFilter.RowRange(Bytes.toBytes("row0000"), true, Bytes.toBytes("row0300"), false),
+                new MultiRowRangeFilter.RowRange(Bytes.toBytes("row0500"), true, Bytes.toBytes("row0599"), true));
+        List<String> inRanges = new ArrayList<>(rows.subList(0, 300));
+        inRanges.addAll(rows.subList(500, 600));
+        assertEquals(inRanges, scanRows(new Scan().setFilter(new MultiRowRangeFilter(ranges))));
+    }
+
+
+    @Test
+    public void prefixAndFilters() throws Exception {
+        putRows("org:a:1", "org:a:2", "org:b:1", "org:c:1");
+
+        assertEquals(
+                ImmutableList.of("org:a:1", "org:a:2"),
+                scanRows(new Scan().setRowPrefixFilter(Bytes.toBytes("org:a:"))));
+
+        List<MultiRowRangeFilter.RowRange> ranges = Lists.newArrayList(
+                new MultiRowRangeFilter.RowRange(Bytes.toBytes("org:a:2"), true, Bytes.toBytes("org:a:2"), true),
+                new MultiRowRangeFilter.RowRange(Bytes.toBytes("org:c:"), true, Bytes.toBytes("org:d:"), false));
+        assertEquals(
+                ImmutableList.of("org:a:2", "org:c:1"),
+                scanRows(new Scan().setFilter(new MultiRowRangeFilter(ranges))));
+        assertEquals(
+                ImmutableList.of("org:c:1", "org:a:2"),
+                scanRows(new Scan().setReversed(true).setFilter(new MultiRowRangeFilter(ranges))));
+        assertEquals(
+                ImmutableList.of("org:c:1"),
+                scanRows(new Scan().withStartRow(Bytes.toBytes("org:b:")).setFilter(new MultiRowRangeFilter(ranges))));
+
+        try (ResultScanner scanner = table.getScanner(new Scan().setFilter(new KeyOnlyFilter()).setLimit(1))) {
+            Result result = scanner.next();
+            assertEquals(0, result.getValue(CF, Bytes.toBytes("value")).length);
+        }
+    }
+
+
+    @Test
+    public void checkAndMutateAndIncrement() throws Exception {
+        byte[] row = Bytes.toBytes("row");
+        byte[] col = Bytes.toBytes("value");
+
+        CheckAndMutate create = CheckAndMutate.newBuilder(row)
+                .ifNotExists(CF, col)
+                .build(new Put(row).addColumn(CF, col, Bytes.toBytes("one")));
+        assertTrue(table.checkAndMutate(create).isSuccess());
+        assertFalse(table.checkAndMutate(create).isSuccess());
+
+        CheckAndMutate wrongOriginal = CheckAndMutate.newBuilder(row)
+                .ifEquals(CF, col, Bytes.toBytes("other"))
+                .build(new Put(row).addColumn(CF, col, Bytes.toBytes("two")));
+        assertFalse(table.checkAndMutate(wrongOriginal).isSuccess());
+
+        CheckAndMutate update = CheckAndMutate.newBuilder(row)
+                .ifEquals(CF, col, Bytes.toBytes("one"))
+                .build(new Put(row).addColumn(CF, col, Bytes.toBytes("two")));
+        assertTrue(table.checkAndMutate(update).isSuccess());
+        assertArrayEquals(Bytes.toBytes("two"), table.get(new Get(row)).getValue(CF, col));
+
+        byte[] counter = Bytes.toBytes("counter");
+        assertEquals(5L, Bytes.toLong(
+                table.increment(new Increment(row).addColumn(CF, counter, 5)).getValue(CF, counter)));
+        assertEquals(8L, Bytes.toLong(
+                table.increment(new Increment(row).addColumn(CF, counter, 3)).getValue(CF, counter)));
+    }
+
+
+    @Test
+    public void readsDontWaitForWrites() throws Exception {
+        putRows("a");
+        RowStore store = ((EmbeddedTable) table).getStore();
+
+        // Holds the write lock the way a checkAndMutate does, until it's released or times out.
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            synchronized (store) {
+                held.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException interruptedEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+
+        assertEquals(ImmutableList.of("a"), scanRows(new Scan()));
+        assertFalse(table.get(new Get(Bytes.toBytes("a"))).isEmpty());
+        assertTrue(writer.isAlive());
+
+        release.countDown();
+        writer.join();
+    }
+
+
+    @Test
+    public void bufferedMutatorAndReopen() throws Exception {
+        try (BufferedMutator mutator = conn.getBufferedMutator(TABLE)) {
+            mutator.mutate(new Put(Bytes.toBytes("x")).addColumn(CF, Bytes.toBytes("value"), Bytes.toBytes("1")));
+        }
+        conn.close();
+
+        conn = EmbeddedConnection.open(dir.resolve("rows.db"));
+        assertTrue(conn.getAdmin().tableExists(TABLE));
+        table = conn.getTable(TABLE);
+        assertArrayEquals(
+                Bytes.toBytes("1"), table.get(new Get(Bytes.toBytes("x"))).getValue(CF, Bytes.toBytes("value")));
+    }
+}
@@ -0,0 +1,175 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.haberdashervcs.common.diff.git.HistogramDiffer;
+import com.haberdashervcs.common.io.ProtobufObjectInputStream;
+import com.haberdashervcs.common.io.ProtobufObjectOutputStream;
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeResult;
+import com.haberdashervcs.common.objects.RepoEntry;
+import com.haberdashervcs.common.objects.user.OrgSubscription;
+import com.haberdashervcs.common.protobuf.ReposProto;
+import com.haberdashervcs.common.protobuf.ServerProto;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class BranchPathsIndexTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+    private static final String BRANCH = "test_branch";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private OrgSubscription orgSub;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        helper.putRepoEntryIfNotExists(RepoEntry.of(ORG, REPO));
+        rowKeyer = helper.getRowKeyer(ORG, REPO);
+        orgSub = OrgSubscription.of(
+                ORG,
+                OrgSubscription.State.PAID,
+                Collections.emptyList(),
+                OrgSubscription.BillingPlan.SMALL,
+                ReposProto.BillingState.getDefaultInstance());
+
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+        putListing("main", "/a/", 100, "main_a");
+    }
+
+
+    private FolderListing listing(String branch, String path, long commitId, String fileId) {
+        return FolderListing.withoutMergeLock(
+                ImmutableList.of(FolderListing.Entry.forFile(fileId + ".txt", fileId)), path, branch, commitId);
+    }
+
+    private void putListing(String branch, String path, long commitId, String fileId) throws Exception {
+        helper.putFolderIfNotExists(
+                rowKeyer.forFolderAt(branch, path, commitId), listing(branch, path, commitId, fileId));
+    }
+
+
+    // Pushes one commit to the branch, with the given paths changed in it.
+    private void push(long newHeadCommitId, String... paths) throws Exception {
+        ByteArrayOutputStream pushBytes = new ByteArrayOutputStream();
+        ProtobufObjectOutputStream objectsOut = ProtobufObjectOutputStream.forOutputStream(pushBytes);
+        objectsOut.writePushSpec(ServerProto.PushSpec.newBuilder()
+                .setOrg(ORG)
+                .setRepo(REPO)
+                .setBranch(BRANCH)
+                .setBaseCommitId(100)
+                .setNewHeadCommitId(newHeadCommitId)
+                .build());
+        for (String path : paths) {
+            objectsOut.writeFolder(
+                    path + newHeadCommitId, listing(BRANCH, path, newHeadCommitId, path + newHeadCommitId));
+        }
+        objectsOut.writeCommit(
+                String.valueOf(newHeadCommitId),
+                CommitEntry.of(BRANCH, newHeadCommitId, "author", "message", Collections.emptyList()));
+
+        HBasePushHandler pushHandler = new HBasePushHandler(
+                helper,
+                null,
+                orgSub,
+                HBaseRawHelper.DEFAULT_WRITE_BUFFER_BYTES,
+                LineIndexCache.withMaxBytes(0),
+                new HistogramDiffer());
+        pushHandler.writeObjects(
+                "user", ProtobufObjectInputStream.forInputStream(new ByteArrayInputStream(pushBytes.toByteArray())));
+    }
+
+
+    private List<String> fileIdsAt(List<HBaseRawHelper.FolderListingWithOriginalBytes> folders) {
+        List<String> out = new ArrayList<>();
+        for (HBaseRawHelper.FolderListingWithOriginalBytes folder : folders) {
+            out.add(folder.listing.getEntries().get(0).getId());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+
+    @Test
+    public void pushesKeepTheNewestCommitPerPath() throws Exception {
+        push(101, "/a/", "/b/");
+        assertEquals(ImmutableMap.of("/a/", 101L, "/b/", 101L), helper.getBranchPaths(rowKeyer, BRANCH));
+
+        push(102, "/a/", "/c/");
+        assertEquals(
+                ImmutableMap.of("/a/", 102L, "/b/", 101L, "/c/", 102L),
+                helper.getBranchPaths(rowKeyer, BRANCH));
+
+        assertEquals(
+                ImmutableList.of("/a/102", "/b/101", "/c/102"),
+                fileIdsAt(helper.getFoldersOnBranchAt(
+                        rowKeyer, BRANCH, helper.getBranchPaths(rowKeyer, BRANCH), 102)));
+    }
+
+
+    @Test
+    public void entriesPastTheBranchHeadAreSkipped() throws Exception {
+        push(101, "/a/", "/b/");
+
+        // A push that wrote its listings and the index, then failed before updating the branch head.
+        putListing(BRANCH, "/a/", 102, "/a/102");
+        putListing(BRANCH, "/d/", 102, "/d/102");
+        helper.putBranchPaths(rowKeyer, BRANCH, ImmutableMap.of("/a/", 102L, "/d/", 102L));
+        assertEquals(101, helper.getBranch(rowKeyer.forBranch(BRANCH)).get().getHeadCommitId());
+
+        assertEquals(
+                ImmutableList.of("/a/101", "/b/101"),
+                fileIdsAt(helper.getFoldersOnBranchAt(
+                        rowKeyer, BRANCH, helper.getBranchPaths(rowKeyer, BRANCH), 101)));
+
+        // The retried push lands at the same commit id.
+        push(102, "/a/", "/d/");
+        assertEquals(
+                ImmutableList.of("/a/102", "/b/101", "/d/102"),
+                fileIdsAt(helper.getFoldersOnBranchAt(
+                        rowKeyer, BRANCH, helper.getBranchPaths(rowKeyer, BRANCH), 102)));
+    }
+
+
+    @Test
+    public void mergesReadTheBranchHeadThroughTheIndex() throws Exception {
+        push(101, "/a/", "/b/");
+        push(102, "/a/", "/c/");
+
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+        MergeResult result = merger.merge(ORG, REPO, BRANCH, 102, helper);
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, result.getResultType());
+
+        MergeStates mergeStates = MergeStates.fromPastSeconds(
+                System.currentTimeMillis(), TimeUnit.HOURS.toSeconds(1), helper, rowKeyer);
+        FolderHistoryLoader historyLoader = FolderHistoryLoader.forBranch(rowKeyer, "main", helper, mergeStates);
+        final long mainHead = result.getNewCommitIdOnMain();
+        assertEquals("/a/102", historyLoader.getFolderAtCommit(mainHead, "/a/").get().getEntries().get(0).getId());
+        assertEquals("/b/101", historyLoader.getFolderAtCommit(mainHead, "/b/").get().getEntries().get(0).getId());
+        assertEquals("/c/102", historyLoader.getFolderAtCommit(mainHead, "/c/").get().getEntries().get(0).getId());
+    }
+}
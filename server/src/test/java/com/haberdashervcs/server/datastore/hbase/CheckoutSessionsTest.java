@@ -0,0 +1,92 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.haberdashervcs.common.objects.CheckoutPathSet;
+import com.haberdashervcs.common.objects.FolderListing;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CheckoutSessionsTest {
+
+    private static final CheckoutPathSet PATHS = CheckoutPathSet.fromStrings(ImmutableList.of("/"));
+
+
+    private static final class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong(0);
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        private void advanceMillis(long millis) {
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+
+    private static List<FolderListing> folders(int count) {
+        ImmutableList.Builder<FolderListing> out = ImmutableList.builder();
+        for (int i = 0; i < count; ++i) {
+            out.add(FolderListing.withoutMergeLock(
+                    ImmutableList.of(FolderListing.Entry.forFile("a.txt", "id-" + i)), "/f" + i + "/", "main", 5));
+        }
+        return out.build();
+    }
+
+
+    @Test
+    public void sessionsAreSingleUseAndMatchTheirCheckout() throws Exception {
+        CheckoutSessions sessions = CheckoutSessions.withLimits(60_000, 1000, new FakeTicker());
+        String id = sessions.save("org", "repo", "main", 5, PATHS, folders(2), ImmutableSet.of("id-0", "id-1"));
+
+        // A different commit doesn't match, and the session is still used up.
+        assertFalse(sessions.take(id, "org", "repo", "main", 6, PATHS).isPresent());
+        assertFalse(sessions.take(id, "org", "repo", "main", 5, PATHS).isPresent());
+
+        String second = sessions.save("org", "repo", "main", 5, PATHS, folders(2), ImmutableSet.of("id-0"));
+        Optional<CheckoutSessions.Session> taken = sessions.take(second, "org", "repo", "main", 5, PATHS);
+        assertTrue(taken.isPresent());
+        assertEquals(2, taken.get().getFolders().size());
+        assertEquals(ImmutableSet.of("id-0"), taken.get().getFileIds());
+        assertFalse(sessions.take(second, "org", "repo", "main", 5, PATHS).isPresent());
+    }
+
+
+    @Test
+    public void sessionsExpire() throws Exception {
+        FakeTicker ticker = new FakeTicker();
+        CheckoutSessions sessions = CheckoutSessions.withLimits(60_000, 1000, ticker);
+        String early = sessions.save("org", "repo", "main", 5, PATHS, folders(1), ImmutableSet.of());
+        ticker.advanceMillis(30_000);
+        String late = sessions.save("org", "repo", "main", 5, PATHS, folders(1), ImmutableSet.of());
+        ticker.advanceMillis(30_001);
+
+        assertFalse(sessions.take(early, "org", "repo", "main", 5, PATHS).isPresent());
+        assertTrue(sessions.take(late, "org", "repo", "main", 5, PATHS).isPresent());
+    }
+
+
+    @Test
+    public void heavySessionsAreEvicted() throws Exception {
+        // Weighed in folders + file ids. The cache splits its limit across segments, so the big session is well
+        // over any one segment's share.
+        CheckoutSessions sessions = CheckoutSessions.withLimits(60_000, 400, new FakeTicker());
+        String small = sessions.save("org", "repo", "main", 5, PATHS, folders(2), ImmutableSet.of("a", "b"));
+        String tooBig = sessions.save("org", "repo", "main", 5, PATHS, folders(300), ImmutableSet.of());
+
+        assertFalse(sessions.take(tooBig, "org", "repo", "main", 5, PATHS).isPresent());
+        assertTrue(sessions.take(small, "org", "repo", "main", 5, PATHS).isPresent());
+    }
+}
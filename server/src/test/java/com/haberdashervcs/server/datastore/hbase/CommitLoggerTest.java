@@ -0,0 +1,148 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.haberdashervcs.common.objects.HdFolderPath;
+import com.haberdashervcs.server.browser.LogPage;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class CommitLoggerTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+    private static final String BRANCH = "test_branch";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+    }
+
+
+    // Created since the index existed, so it's marked as indexed.
+    private void createBranch() throws Exception {
+        helper.createBranch(rowKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 1, 1));
+    }
+
+    private void putCommit(long commitId, String... changedPaths) throws Exception {
+        List<CommitEntry.CommitChangedPath> paths = new ArrayList<>();
+        for (String path : changedPaths) {
+            paths.add(CommitEntry.CommitChangedPath.added(path, "fileId-" + commitId));
+        }
+        CommitEntry commit = CommitEntry.of(BRANCH, commitId, "author", "commit " + commitId, paths);
+        helper.putCommit(rowKeyer.forCommit(commit), commit);
+        helper.putCommitPaths(rowKeyer, commit);
+    }
+
+    private List<Long> idsOf(LogPage page) {
+        List<Long> out = new ArrayList<>();
+        for (CommitEntry commit : page.getEntries()) {
+            out.add(commit.getCommitId());
+        }
+        return out;
+    }
+
+
+    @Test
+    public void logForSubfolderSkipsOtherCommits() throws Exception {
+        createBranch();
+        putCommit(1, "/a/one.txt");
+        putCommit(2, "/b/two.txt");
+        putCommit(3, "/a/sub/three.txt", "/b/three.txt");
+        putCommit(4);
+
+        CommitLogger logger = CommitLogger.forBranch(BRANCH, helper, rowKeyer);
+        assertEquals(ImmutableList.of(3L, 1L), idsOf(logger.getLog(HdFolderPath.fromFolderListingFormat("/a/"), 4)));
+        assertEquals(ImmutableList.of(3L), idsOf(logger.getLog(HdFolderPath.fromFolderListingFormat("/a/sub/"), 4)));
+        assertEquals(
+                ImmutableList.of(4L, 3L, 2L, 1L),
+                idsOf(logger.getLog(HdFolderPath.fromFolderListingFormat("/"), 4)));
+        assertEquals(ImmutableList.of(2L, 1L), idsOf(logger.getLog(HdFolderPath.fromFolderListingFormat("/"), 2)));
+    }
+
+
+    @Test
+    public void pagesThroughTheLog() throws Exception {
+        createBranch();
+        for (long commitId = 1; commitId <= 7; ++commitId) {
+            putCommit(commitId, "/a/file" + commitId + ".txt");
+        }
+
+        CommitLogger logger = CommitLogger.forBranch(BRANCH, helper, rowKeyer, 3);
+        HdFolderPath path = HdFolderPath.fromFolderListingFormat("/a/");
+
+        LogPage first = logger.getLog(path, 7);
+        assertEquals(ImmutableList.of(7L, 6L, 5L), idsOf(first));
+        assertEquals(Optional.of(4L), first.getNextCommitId());
+
+        LogPage second = logger.getLog(path, first.getNextCommitId().get());
+        assertEquals(ImmutableList.of(4L, 3L, 2L), idsOf(second));
+
+        LogPage last = logger.getLog(path, second.getNextCommitId().get());
+        assertEquals(ImmutableList.of(1L), idsOf(last));
+        assertEquals(Optional.empty(), last.getNextCommitId());
+    }
+
+
+    @Test
+    public void unindexedBranchFallsBackToScanning() throws Exception {
+        for (long commitId = 1; commitId <= 3; ++commitId) {
+            CommitEntry commit = CommitEntry.of(
+                    BRANCH, commitId, "author", "commit " + commitId,
+                    ImmutableList.of(CommitEntry.CommitChangedPath.added("/a/file" + commitId, "fileId")));
+            helper.putCommit(rowKeyer.forCommit(commit), commit);
+        }
+
+        CommitLogger logger = CommitLogger.forBranch(BRANCH, helper, rowKeyer, 2);
+        LogPage page = logger.getLog(HdFolderPath.fromFolderListingFormat("/a/"), 3);
+        assertEquals(ImmutableList.of(3L, 2L), idsOf(page));
+        assertEquals(Optional.of(1L), page.getNextCommitId());
+    }
+
+
+    @Test
+    public void partlyIndexedBranchScansUntilItsMarked() throws Exception {
+        // Pushed before the index existed.
+        List<CommitEntry> older = new ArrayList<>();
+        for (long commitId = 1; commitId <= 2; ++commitId) {
+            CommitEntry commit = CommitEntry.of(
+                    BRANCH, commitId, "author", "commit " + commitId,
+                    ImmutableList.of(CommitEntry.CommitChangedPath.added("/a/file" + commitId, "fileId")));
+            helper.putCommit(rowKeyer.forCommit(commit), commit);
+            older.add(commit);
+        }
+        // And after.
+        putCommit(3, "/a/file3");
+        putCommit(4, "/b/file4");
+
+        CommitLogger logger = CommitLogger.forBranch(BRANCH, helper, rowKeyer);
+        HdFolderPath path = HdFolderPath.fromFolderListingFormat("/a/");
+        assertEquals(ImmutableList.of(3L, 2L, 1L), idsOf(logger.getLog(path, 4)));
+
+        for (CommitEntry commit : older) {
+            helper.putCommitPaths(rowKeyer, commit);
+        }
+        helper.markCommitPathsIndexed(rowKeyer.forBranch(BRANCH));
+        assertTrue(helper.isCommitPathsIndexed(rowKeyer, BRANCH));
+        assertEquals(ImmutableList.of(3L, 2L, 1L), idsOf(logger.getLog(path, 4)));
+    }
+}
@@ -0,0 +1,192 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.diff.git.GitDeltaDiffer;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.protobuf.FilesProto;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DeltaChainRepackerTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+    private static final int NUM_VERSIONS = 8;
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+    }
+
+
+    private static byte[] version(int i) {
+        StringBuilder sb = new StringBuilder(Strings.repeat("a line that stays the same\n", 100));
+        for (int j = 0; j <= i; ++j) {
+            sb.append("edit ").append(j).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes each version as a diff on the one before it, like a client under MAX_DIFF_SEARCH would.
+    private List<String> putChain() throws Exception {
+        List<String> ids = new ArrayList<>();
+        FileEntry full = FileEntry.forFullContents(
+                "v0", ByteArrayRandomAccessBytes.of(version(0)), FileEntry.StorageType.DATASTORE);
+        FileMetadata baseMeta = FileMetadata.forNewEntry(full, Optional.empty(), FileMetadata.UNKNOWN);
+        helper.putFile(rowKeyer.forFile("v0"), full, baseMeta);
+        ids.add("v0");
+
+        for (int i = 1; i < NUM_VERSIONS; ++i) {
+            String id = "v" + i;
+            byte[] diff = GitDeltaDiffer.computeGitDiff(
+                    ByteArrayRandomAccessBytes.of(version(i - 1)), ByteArrayRandomAccessBytes.of(version(i)));
+            FileEntry entry = FileEntry.forDiffGit(
+                    id, ByteArrayRandomAccessBytes.of(diff), ids.get(i - 1), FileEntry.StorageType.DATASTORE);
+            baseMeta = FileMetadata.forNewEntry(entry, Optional.of(baseMeta), FileMetadata.UNKNOWN);
+            helper.putFile(rowKeyer.forFile(id), entry, baseMeta);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private String readThroughBrowser(String id) throws Exception {
+        return readThroughBrowser(rowKeyer, id);
+    }
+
+    private String readThroughBrowser(HBaseRowKeyer keyer, String id) throws Exception {
+        FileEntry entry = helper.getFile(keyer.forFile(id));
+        // Nothing here is in the large file store.
+        HBaseFileBrowser browser = HBaseFileBrowser.forFile(
+                entry, null, keyer, helper, LineIndexCache.withMaxBytes(0));
+        return new String(RandomAccessBytes.toByteArray(browser.getWholeContents()), StandardCharsets.UTF_8);
+    }
+
+    private int chainDepth(String id) throws Exception {
+        return helper.getFileMetadata(rowKeyer, ImmutableList.of(id)).get(id).getChainDepth();
+    }
+
+
+    @Test
+    public void deepChainsAreRebasedOnTheirFullEntry() throws Exception {
+        List<String> ids = putChain();
+        assertEquals(NUM_VERSIONS - 1, chainDepth(ids.get(NUM_VERSIONS - 1)));
+
+        DeltaChainRepacker repacker = DeltaChainRepacker.withMinChainDepth(conn, helper, 3, Long.MAX_VALUE);
+        repacker.repackRepo(ORG, REPO);
+
+        for (int i = 0; i < NUM_VERSIONS; ++i) {
+            assertEquals(new String(version(i), StandardCharsets.UTF_8), readThroughBrowser(ids.get(i)));
+            assertTrue(chainDepth(ids.get(i)) < 3);
+            FileMetadata metadata = helper.getFileMetadata(rowKeyer, ImmutableList.of(ids.get(i))).get(ids.get(i));
+            assertEquals(version(i).length, metadata.getResolvedSizeBytes());
+        }
+        assertTrue(repacker.getProgress().getRebased() > 0);
+        assertEquals(NUM_VERSIONS, repacker.getProgress().getFilesScanned());
+    }
+
+
+    @Test
+    public void shallowChainsAreLeftAlone() throws Exception {
+        List<String> ids = putChain();
+
+        DeltaChainRepacker repacker = DeltaChainRepacker.withMinChainDepth(conn, helper, NUM_VERSIONS, Long.MAX_VALUE);
+        repacker.repackRepo(ORG, REPO);
+
+        assertEquals(0, repacker.getProgress().getRebased());
+        assertEquals(0, repacker.getProgress().getMadeFull());
+        assertEquals(NUM_VERSIONS - 1, chainDepth(ids.get(NUM_VERSIONS - 1)));
+    }
+
+
+    @Test
+    public void rowKeyMigrationDoesNotWaitOnTheWholeScan() throws Exception {
+        List<String> ids = putChain();
+
+        // Slow enough that the scan waits for seconds between rewrites.
+        DeltaChainRepacker repacker = DeltaChainRepacker.withMinChainDepth(conn, helper, 3, 1000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> repack = executor.submit(() -> {
+                repacker.repackRepo(ORG, REPO);
+                return null;
+            });
+            while (repacker.getProgress().getRebased() == 0) {
+                Thread.sleep(10);
+            }
+
+            RowKeyMigrator.forRepoWithMaxWait(conn, helper, ORG, REPO, 1000).migrate();
+            // The repacker stops at its next rewrite, rather than writing under the old keys.
+            repack.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        HBaseRowKeyer binaryKeyer = helper.getRowKeyer(ORG, REPO);
+        assertEquals(HBaseRowKeyer.Layout.V2_BINARY, binaryKeyer.getLayout());
+        assertTrue(repacker.getProgress().getFilesScanned() < NUM_VERSIONS);
+        for (int i = 0; i < NUM_VERSIONS; ++i) {
+            assertEquals(new String(version(i), StandardCharsets.UTF_8), readThroughBrowser(binaryKeyer, ids.get(i)));
+        }
+    }
+
+
+    @Test
+    public void rowsRewrittenSinceTheScanAreLeftAlone() throws Exception {
+        List<String> ids = putChain();
+        String lastId = ids.get(NUM_VERSIONS - 1);
+        byte[] rowKey = rowKeyer.forFile(lastId);
+        byte[] scannedMetadata = metadataBytes(rowKey);
+
+        // Someone else rewrites the row as a full entry after the repacker read its metadata.
+        FileEntry full = FileEntry.forFullContents(
+                lastId, ByteArrayRandomAccessBytes.of(version(NUM_VERSIONS - 1)), FileEntry.StorageType.DATASTORE);
+        helper.putFile(rowKey, full);
+        byte[] rewrittenMetadata = metadataBytes(rowKey);
+
+        FileMetadata stale = FileMetadata.fromProto(lastId, FilesProto.FileMetadata.parseFrom(scannedMetadata));
+        assertFalse(helper.putFileMetadataIfUnchanged(rowKey, scannedMetadata, stale));
+        assertFalse(helper.putFileIfMetadataIs(rowKey, scannedMetadata, helper.getFile(rowKey), stale));
+        assertArrayEquals(rewrittenMetadata, metadataBytes(rowKey));
+
+        assertTrue(helper.putFileMetadataIfUnchanged(rowKey, rewrittenMetadata, stale));
+        assertArrayEquals(scannedMetadata, metadataBytes(rowKey));
+    }
+
+    private byte[] metadataBytes(byte[] rowKey) throws Exception {
+        try (Table filesTable = conn.getTable(TableName.valueOf("Files"))) {
+            return filesTable.get(new Get(rowKey)).getValue(Bytes.toBytes("cfMain"), Bytes.toBytes("metadata"));
+        }
+    }
+}
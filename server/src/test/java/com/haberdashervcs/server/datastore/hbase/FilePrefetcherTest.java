@@ -0,0 +1,190 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.io.HdObjectOutputStream;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeResult;
+import com.haberdashervcs.common.protobuf.ServerProto;
+import com.haberdashervcs.server.datastore.HdLargeFileStore;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class FilePrefetcherTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+
+    private void putFile(String fileId, FileEntry.StorageType storageType) throws Exception {
+        FileEntry entry = FileEntry.forFullContents(
+                fileId,
+                ByteArrayRandomAccessBytes.of(fileId.getBytes(StandardCharsets.UTF_8)),
+                storageType);
+        helper.putFile(
+                rowKeyer.forFile(fileId), entry, FileMetadata.forNewEntry(entry, Optional.empty(), FileMetadata.UNKNOWN));
+    }
+
+
+    // Hands out streams that record being closed, once the test lets the lookup finish.
+    private static final class BlockingLargeFileStore implements HdLargeFileStore {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public FileWithSize getFileById(String org, String repo, String fileId) throws IOException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedEx) {
+                throw new IOException(interruptedEx);
+            }
+
+            byte[] contents = fileId.getBytes(StandardCharsets.UTF_8);
+            InputStream stream = new ByteArrayInputStream(contents) {
+                @Override
+                public void close() throws IOException {
+                    closed.countDown();
+                    super.close();
+                }
+            };
+            return new FileWithSize(stream, contents.length);
+        }
+
+        @Override
+        public RandomAccessBytes getFileRab(String org, String repo, String fileId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long saveFile(String org, String repo, String fileId, InputStream contents) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void start() {
+        }
+    }
+
+
+    // Fails the first file it's given, once the large file lookup is underway.
+    private static final class FailingOutputStream implements HdObjectOutputStream {
+
+        private final CountDownLatch waitFor;
+
+        private FailingOutputStream(CountDownLatch waitFor) {
+            this.waitFor = waitFor;
+        }
+
+        @Override
+        public void writeFolder(String folderId, FolderListing folder) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeFile(String fileId, FileEntry file) throws IOException {
+            failOnceWaited();
+        }
+
+        @Override
+        public void writeStoredFile(String fileId, byte[] fileBytes) throws IOException {
+            failOnceWaited();
+        }
+
+        private void failOnceWaited() throws IOException {
+            try {
+                assertTrue(waitFor.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException interruptedEx) {
+                throw new IOException(interruptedEx);
+            }
+            throw new IOException("Client went away");
+        }
+
+        @Override
+        public void writeCommit(String commitId, CommitEntry commit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeLargeFileContents(FileEntry entry, InputStream contents, int sizeInBytes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeMergeResult(MergeResult mergeResult) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writePushSpec(ServerProto.PushSpec pushSpec) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    @Test
+    public void cancellingARunningLookupClosesItsStream() throws Exception {
+        putFile("small", FileEntry.StorageType.DATASTORE);
+        putFile("big", FileEntry.StorageType.LARGE_FILE_STORE);
+
+        BlockingLargeFileStore largeFileStore = new BlockingLargeFileStore();
+        FilePrefetcher prefetcher = FilePrefetcher.forRepo(
+                rowKeyer, helper, largeFileStore, pool, FilePrefetcher.DEFAULT_MAX_BYTES_IN_FLIGHT);
+
+        try {
+            prefetcher.sendAll(ImmutableList.of("small", "big"), new FailingOutputStream(largeFileStore.started));
+            fail("Expected the send to fail");
+        } catch (IOException expected) {
+            assertEquals("Client went away", expected.getMessage());
+        }
+
+        // The lookup for the large file was given up on while it was running. It finishes afterward, and nobody
+        // else is left to close what it opened.
+        assertEquals(1, largeFileStore.closed.getCount());
+        largeFileStore.release.countDown();
+        assertTrue(largeFileStore.closed.await(10, TimeUnit.SECONDS));
+    }
+}
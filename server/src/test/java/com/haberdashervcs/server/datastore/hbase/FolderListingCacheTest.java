@@ -0,0 +1,45 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.objects.FolderListing;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+public class FolderListingCacheTest extends TestCase {
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        FolderListingCache cache = FolderListingCache.withMaxBytes(FolderListingCache.DEFAULT_MAX_BYTES);
+        FolderListing listing = FolderListing.withoutMergeLock(
+                ImmutableList.of(FolderListing.Entry.forFile("a.txt", "id-a")), "/some/", "main", 5);
+
+        FolderListingCache.Key at5 = FolderListingCache.Key.of("org", "repo", "main", "/some/", 5);
+        FolderListingCache.Key at6 = FolderListingCache.Key.of("org", "repo", "main", "/some/", 6);
+        FolderListingCache.Key missing = FolderListingCache.Key.of("org", "repo", "main", "/missing/", 5);
+
+        assertNull(cache.getIfPresent(at5));
+        cache.put(at5, Optional.of(listing));
+        cache.put(missing, Optional.empty());
+
+        FolderListingCache.Key equalToAt5 = FolderListingCache.Key.of("org", "repo", "main", "/some/", 5);
+        assertEquals(Optional.of(listing), cache.getIfPresent(equalToAt5));
+        assertNull(cache.getIfPresent(at6));
+        assertEquals(Optional.empty(), cache.getIfPresent(missing));
+
+        assertEquals(2, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+    }
+
+
+    @Test
+    public void testZeroSizeCachesNothing() throws Exception {
+        FolderListingCache cache = FolderListingCache.withMaxBytes(0);
+        FolderListingCache.Key key = FolderListingCache.Key.of("org", "repo", "main", "/", 1);
+
+        cache.put(key, Optional.empty());
+        assertNull(cache.getIfPresent(key));
+    }
+}
@@ -0,0 +1,143 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.objects.CheckoutPathSet;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.server.ServerCheckoutSpec;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class HBaseCheckoutHandlerTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+
+    private FolderListing.Entry putFile(String fileId) throws Exception {
+        FileEntry entry = FileEntry.forFullContents(
+                fileId,
+                ByteArrayRandomAccessBytes.of(fileId.getBytes(StandardCharsets.UTF_8)),
+                FileEntry.StorageType.DATASTORE);
+        helper.putFile(
+                rowKeyer.forFile(fileId), entry, FileMetadata.forNewEntry(entry, Optional.empty(), FileMetadata.UNKNOWN));
+        return FolderListing.Entry.forFile(fileId + ".txt", fileId);
+    }
+
+
+    private void putFolder(String path, List<FolderListing.Entry> entries) throws Exception {
+        FolderListing listing = FolderListing.withoutMergeLock(entries, path, "main", 1);
+        helper.putFolderIfNotExists(rowKeyer.forFolderAt("main", path, 1), listing);
+    }
+
+
+    // A root with 6 subfolders, each with 3 subfolders of its own, and a file in every folder.
+    private void writeTree() throws Exception {
+        List<FolderListing.Entry> rootEntries = new ArrayList<>();
+        rootEntries.add(putFile("root"));
+        for (int i = 0; i < 6; ++i) {
+            String dir = "d" + i;
+            rootEntries.add(FolderListing.Entry.forSubFolder(dir));
+
+            List<FolderListing.Entry> dirEntries = new ArrayList<>();
+            dirEntries.add(putFile(dir));
+            for (int j = 0; j < 3; ++j) {
+                String sub = "s" + j;
+                dirEntries.add(FolderListing.Entry.forSubFolder(sub));
+                putFolder("/" + dir + "/" + sub + "/", ImmutableList.of(putFile(dir + sub)));
+            }
+            putFolder("/" + dir + "/", dirEntries);
+        }
+        putFolder("/", rootEntries);
+    }
+
+
+    private CheckoutSessions.Session crawl(ExecutorService executor, int maxLookupsInFlight) throws Exception {
+        CheckoutPathSet paths = CheckoutPathSet.fromStrings(ImmutableList.of("/"));
+        CheckoutSessions sessions = CheckoutSessions.withDefaults();
+        HBaseCheckoutHandler handler = new HBaseCheckoutHandler(
+                rowKeyer,
+                helper,
+                sessions,
+                executor,
+                FolderListingCache.withMaxBytes(0),
+                MergeLockCache.withRetention(TimeUnit.HOURS.toMillis(1)),
+                FilePrefetcher.forRepo(rowKeyer, helper, null, executor, FilePrefetcher.DEFAULT_MAX_BYTES_IN_FLIGHT),
+                paths,
+                maxLookupsInFlight);
+
+        ServerCheckoutSpec spec = handler.computeCheckout(ORG, REPO, "main", 1, Optional.empty());
+        return sessions.take(spec.getCheckoutSessionId().get(), ORG, REPO, "main", 1, paths).get();
+    }
+
+
+    private static List<String> folderPaths(CheckoutSessions.Session session) {
+        List<String> out = new ArrayList<>();
+        for (FolderListing folder : session.getFolders()) {
+            out.add(folder.getPath());
+        }
+        return out;
+    }
+
+
+    @Test
+    public void parallelCrawlMatchesSerialCrawl() throws Exception {
+        writeTree();
+
+        // A direct executor runs each lookup as it's submitted, which is the plain serial crawl.
+        CheckoutSessions.Session serial = crawl(MoreExecutors.newDirectExecutorService(), 1);
+        CheckoutSessions.Session parallel = crawl(pool, 2);
+        CheckoutSessions.Session wide = crawl(pool, HBaseCheckoutHandler.DEFAULT_MAX_LOOKUPS_IN_FLIGHT);
+
+        assertEquals(1 + 6 + 18, serial.getFolders().size());
+        assertEquals(1 + 6 + 18, serial.getFileIds().size());
+        assertTrue(serial.getFileIds().contains("d5s2"));
+        // Breadth-first, in listing order.
+        assertEquals("/", folderPaths(serial).get(0));
+        assertEquals("/d0/", folderPaths(serial).get(1));
+        assertEquals("/d0/s0/", folderPaths(serial).get(7));
+
+        assertEquals(folderPaths(serial), folderPaths(parallel));
+        assertEquals(folderPaths(serial), folderPaths(wide));
+        assertEquals(new HashSet<>(serial.getFileIds()), new HashSet<>(parallel.getFileIds()));
+        assertEquals(new HashSet<>(serial.getFileIds()), new HashSet<>(wide.getFileIds()));
+    }
+}
@@ -1,19 +1,43 @@
 package com.haberdashervcs.server.datastore.hbase;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.haberdashervcs.common.logging.HdLogger;
 import com.haberdashervcs.common.logging.HdLoggers;
 import com.haberdashervcs.common.objects.BranchEntry;
 import com.haberdashervcs.common.objects.FolderListing;
 import com.haberdashervcs.common.objects.MergeLock;
 import com.haberdashervcs.common.objects.MergeResult;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.CheckAndMutate;
+import org.apache.hadoop.hbase.client.CheckAndMutateResult;
 import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 
 public class HBaseMergerTest {
@@ -70,7 +94,9 @@ public class HBaseMergerTest {
                 rowKeyer.forFolderAt(BRANCH, newer.getPath(), newer.getCommitId()),
                 newer);
 
-        HBaseMerger merger = new HBaseMerger();
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
         MergeResult result = merger.merge(ORG, REPO, BRANCH, 101, helper);
 
         assertEquals(MergeResult.ResultType.SUCCESSFUL, result.getResultType());
@@ -124,12 +150,16 @@ public class HBaseMergerTest {
                 newer2);
 
 
-        HBaseMerger merger1 = new HBaseMerger();
+        HBaseMerger merger1 = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
         MergeResult result1 = merger1.merge(ORG, REPO, "branch1", 101, helper);
         assertEquals(MergeResult.ResultType.SUCCESSFUL, result1.getResultType());
         assertEquals(101, result1.getNewCommitIdOnMain());
 
-        HBaseMerger merger2 = new HBaseMerger();
+        HBaseMerger merger2 = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
         MergeResult result2 = merger2.merge(ORG, REPO, "branch2", 101, helper);
         // NOTE: This *should* fail because the head commit on /some/path is now 101, not 100 (the base commit id for
         //     this merge).
@@ -170,15 +200,268 @@ public class HBaseMergerTest {
                 rowKeyer.forFolderAt(BRANCH, newer.getPath(), newer.getCommitId()),
                 newer);
 
-        HBaseMerger merger = new HBaseMerger();
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
         MergeResult result = merger.merge(ORG, REPO, BRANCH, 101, helper);
 
         assertEquals(MergeResult.ResultType.SUCCESSFUL, result.getResultType());
         assertEquals(101, result.getNewCommitIdOnMain());
 
 
-        HBaseMerger mergerRepeated = new HBaseMerger();
+        HBaseMerger mergerRepeated = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
         MergeResult resultRepeated = mergerRepeated.merge(ORG, REPO, BRANCH, 101, helper);
         assertEquals(MergeResult.ResultType.FAILED, resultRepeated.getResultType());
     }
+
+
+    // Writes numPaths folders on the branch at 101, and newer ones on main at 101 for the paths in conflictingIdxs.
+    private void writeBranchAndMain(int numPaths, Set<Integer> conflictingIdxs) throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 101));
+        helper.createBranch(rowKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 100, 101));
+
+        for (int i = 0; i < numPaths; ++i) {
+            String path = pathFor(i);
+            FolderListing onBranch = FolderListing.withoutMergeLock(
+                    ImmutableList.of(FolderListing.Entry.forFile("branch.txt", "branch_" + i)), path, BRANCH, 101);
+            helper.putFolderIfNotExists(rowKeyer.forFolderAt(BRANCH, path, 101), onBranch);
+
+            if (conflictingIdxs.contains(i)) {
+                FolderListing onMain = FolderListing.withoutMergeLock(
+                        ImmutableList.of(FolderListing.Entry.forFile("main.txt", "main_" + i)), path, "main", 101);
+                helper.putFolderIfNotExists(rowKeyer.forFolderAt("main", path, 101), onMain);
+            }
+        }
+    }
+
+    private static String pathFor(int i) {
+        return String.format("/dir%05d/", i);
+    }
+
+
+    @Test
+    public void mergeReportsEveryConflictingPath() throws Exception {
+        // Spread over three conflict check batches.
+        final int numPaths = 2 * HBaseMerger.CONFLICT_CHECK_BATCH_SIZE + 100;
+        Set<Integer> conflictingIdxs = ImmutableSet.of(
+                3, 7, HBaseMerger.CONFLICT_CHECK_BATCH_SIZE + 1, numPaths - 1);
+        writeBranchAndMain(numPaths, conflictingIdxs);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        MergeResult result;
+        try {
+            HBaseMerger merger = new HBaseMerger(
+                    pool, MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+            result = merger.merge(ORG, REPO, BRANCH, 101, helper);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(MergeResult.ResultType.FAILED, result.getResultType());
+        assertEquals(
+                ImmutableList.of(
+                        pathFor(3), pathFor(7), pathFor(HBaseMerger.CONFLICT_CHECK_BATCH_SIZE + 1), pathFor(numPaths - 1)),
+                result.getConflictingPaths());
+    }
+
+
+    @Test
+    public void mergeStopsCheckingPastTheConflictCap() throws Exception {
+        final int numPaths = HBaseMerger.MAX_REPORTED_CONFLICTS + HBaseMerger.CONFLICT_CHECK_BATCH_SIZE;
+        Set<Integer> conflictingIdxs = new HashSet<>();
+        for (int i = 0; i < numPaths; ++i) {
+            conflictingIdxs.add(i);
+        }
+        writeBranchAndMain(numPaths, conflictingIdxs);
+
+        // With a direct executor, batches finish in the order they're submitted, so the check stops after the
+        //     second batch brings it to the cap.
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+        MergeResult result = merger.merge(ORG, REPO, BRANCH, 101, helper);
+
+        assertEquals(MergeResult.ResultType.FAILED, result.getResultType());
+        List<String> reported = result.getConflictingPaths();
+        assertEquals(HBaseMerger.MAX_REPORTED_CONFLICTS, reported.size());
+        assertEquals(Ordering.natural().sortedCopy(reported), reported);
+    }
+
+
+    // A branch based on main:100 with one folder at 101.
+    private void writeBranchWithFolder(String branchName, String path) throws Exception {
+        helper.createBranch(rowKeyer.forBranch(branchName), BranchEntry.of(branchName, 100, 101));
+        FolderListing onBranch = FolderListing.withoutMergeLock(
+                ImmutableList.of(FolderListing.Entry.forFile(branchName + ".txt", "fileId_" + branchName)),
+                path, branchName, 101);
+        helper.putFolderIfNotExists(rowKeyer.forFolderAt(branchName, path, 101), onBranch);
+    }
+
+
+    @Test
+    public void mergeGroupDefersBranchesThatOverlapEarlierOnes() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+        writeBranchWithFolder("first", "/shared/");
+        writeBranchWithFolder("overlapping", "/shared/");
+        writeBranchWithFolder("separate", "/separate/");
+
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+        List<Optional<MergeResult>> results = merger.mergeGroup(
+                ORG,
+                REPO,
+                ImmutableList.of(
+                        HBaseMerger.BranchToMerge.of("first", 101),
+                        HBaseMerger.BranchToMerge.of("overlapping", 101),
+                        HBaseMerger.BranchToMerge.of("separate", 101)),
+                helper);
+
+        assertEquals(3, results.size());
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, results.get(0).get().getResultType());
+        assertEquals(101, results.get(0).get().getNewCommitIdOnMain());
+        assertFalse(results.get(1).isPresent());
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, results.get(2).get().getResultType());
+        assertEquals(102, results.get(2).get().getNewCommitIdOnMain());
+
+        // The deferred branch's next check against main sees the first one's changes.
+        MergeResult retried = merger.merge(ORG, REPO, "overlapping", 101, helper);
+        assertEquals(MergeResult.ResultType.FAILED, retried.getResultType());
+        assertEquals(ImmutableList.of("/shared/"), retried.getConflictingPaths());
+    }
+
+
+    @Test
+    public void mergeGroupFailsOnlyTheBrokenBranch() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+        writeBranchWithFolder("first", "/first/");
+        writeBranchWithFolder("broken", "/broken/");
+        writeBranchWithFolder("last", "/last/");
+        try (Table branchesTable = conn.getTable(TableName.valueOf("Branches"))) {
+            Put garbage = new Put(rowKeyer.forBranch("broken"))
+                    .addColumn(Bytes.toBytes("cfMain"), Bytes.toBytes("branch"), new byte[] { -1, -1, -1 });
+            branchesTable.put(garbage);
+        }
+
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+        List<Optional<MergeResult>> results = merger.mergeGroup(
+                ORG,
+                REPO,
+                ImmutableList.of(
+                        HBaseMerger.BranchToMerge.of("first", 101),
+                        HBaseMerger.BranchToMerge.of("broken", 101),
+                        HBaseMerger.BranchToMerge.of("last", 101)),
+                helper);
+
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, results.get(0).get().getResultType());
+        assertEquals(101, results.get(0).get().getNewCommitIdOnMain());
+        MergeResult broken = results.get(1).get();
+        assertEquals(MergeResult.ResultType.FAILED, broken.getResultType());
+        assertTrue(broken.getMessage(), broken.getMessage().startsWith("Merge failed on the server"));
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, results.get(2).get().getResultType());
+        assertEquals(102, results.get(2).get().getNewCommitIdOnMain());
+    }
+
+
+    // A connection whose writes to main's BranchEntry, once they succeed, wait for the test to let them go on.
+    private static Connection pausingAfterBranchUpdates(
+            Connection conn, CountDownLatch branchUpdated, CountDownLatch resume) {
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                (connProxy, connMethod, connArgs) -> {
+                    Object result = invoke(conn, connMethod, connArgs);
+                    if (!connMethod.getName().equals("getTable")
+                            || !connArgs[0].equals(TableName.valueOf("Branches"))) {
+                        return result;
+                    }
+                    Table table = (Table) result;
+                    return Proxy.newProxyInstance(
+                            Table.class.getClassLoader(),
+                            new Class<?>[] { Table.class },
+                            (tableProxy, tableMethod, tableArgs) -> {
+                                Object tableResult = invoke(table, tableMethod, tableArgs);
+                                if (tableMethod.getName().equals("checkAndMutate")
+                                        && tableArgs[0] instanceof CheckAndMutate
+                                        && ((CheckAndMutateResult) tableResult).isSuccess()
+                                        && ((Put) ((CheckAndMutate) tableArgs[0]).getAction())
+                                                .has(Bytes.toBytes("cfMain"), Bytes.toBytes("branch"))) {
+                                    branchUpdated.countDown();
+                                    assertTrue(resume.await(30, TimeUnit.SECONDS));
+                                }
+                                return tableResult;
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+
+    @Test
+    public void checkoutDuringMergeDoesNotCacheMainWithoutIt() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+        FolderListing older = FolderListing.withoutMergeLock(
+                ImmutableList.of(FolderListing.Entry.forFile("older.txt", "fileId_older")), "/some/path", "main", 100);
+        helper.putFolderIfNotExists(rowKeyer.forFolderAt("main", "/some/path", 100), older);
+        writeBranchWithFolder(BRANCH, "/some/path");
+
+        CountDownLatch headMoved = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        HBaseRawHelper mergingHelper = HBaseRawHelper.forConnection(
+                pausingAfterBranchUpdates(conn, headMoved, resume));
+        HBaseMerger merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+
+        ExecutorService mergeThread = Executors.newSingleThreadExecutor();
+        MergeLockCache checkoutLocks = MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS);
+        FolderListingCache listingCache = FolderListingCache.withMaxBytes(FolderListingCache.DEFAULT_MAX_BYTES);
+        MergeResult result;
+        try {
+            Future<MergeResult> merging = mergeThread.submit(
+                    () -> merger.merge(ORG, REPO, BRANCH, 101, mergingHelper));
+            assertTrue(headMoved.await(30, TimeUnit.SECONDS));
+
+            // Main's head is already at the merge's commit, but the merge's lock is in progress, so main isn't
+            //     settled there and nothing is cached.
+            assertEquals(101, helper.getBranch(rowKeyer.forBranch("main")).get().getHeadCommitId());
+            MergeStates duringMerge = checkoutLocks.getStates(helper, rowKeyer);
+            assertFalse(duringMerge.getSettledMainHead().isPresent());
+            FolderHistoryLoader.forBranchWithCache(rowKeyer, "main", helper, duringMerge, listingCache)
+                    .getFolderAtCommit(101, "/some/path");
+            assertNull(listingCache.getIfPresent(
+                    FolderListingCache.Key.of(ORG, REPO, "main", "/some/path", 101)));
+
+            resume.countDown();
+            result = merging.get(30, TimeUnit.SECONDS);
+        } finally {
+            resume.countDown();
+            mergeThread.shutdownNow();
+        }
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, result.getResultType());
+        assertEquals(101, result.getNewCommitIdOnMain());
+
+        FolderListing afterMerge = FolderHistoryLoader.forBranchWithCache(
+                rowKeyer, "main", helper, checkoutLocks.getStates(helper, rowKeyer), listingCache)
+                .getFolderAtCommit(101, "/some/path").get();
+        assertEquals(ImmutableList.of(BRANCH + ".txt"), entryNames(afterMerge));
+    }
+
+    private static List<String> entryNames(FolderListing listing) {
+        List<String> names = new ArrayList<>();
+        for (FolderListing.Entry entry : listing.getEntries()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
 }
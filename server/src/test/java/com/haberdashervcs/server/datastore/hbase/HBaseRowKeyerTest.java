@@ -0,0 +1,106 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.base.Strings;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class HBaseRowKeyerTest {
+
+    private static final HBaseRowKeyer TEXT = HBaseRowKeyer.forRepo("org", "repo");
+    private static final HBaseRowKeyer BINARY = HBaseRowKeyer.binaryForRepo("org", "repo", 7);
+
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        return Bytes.startsWith(key, prefix);
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        return Bytes.compareTo(a, b);
+    }
+
+
+    @Test
+    public void textKeysAreUnchanged() throws Exception {
+        assertEquals("org:repo:branch:00000000000000000012", Bytes.toString(TEXT.forCommitOnBranch("branch", 12)));
+        assertEquals(
+                "org:repo:branch:/a/:00000000000000000003", Bytes.toString(TEXT.forFolderAt("branch", "/a/", 3)));
+        assertEquals("org:repo:fileId", Bytes.toString(TEXT.forFile("fileId")));
+        assertEquals("org:repo:ID_lock", Bytes.toString(TEXT.forMergeId("lock")));
+        assertEquals("org:repo:55:lock", Bytes.toString(TEXT.forMergeAtTimestamp(55, "lock")));
+        assertEquals("org:repo:", Bytes.toString(TEXT.prefixForRepo()));
+        assertFalse(HBaseRowKeyer.isBinaryKey(TEXT.forBranch("main")));
+    }
+
+
+    @Test
+    public void binaryCommitKeysSortByNumber() throws Exception {
+        // In the binary layout these sort by value, where "9" vs. "10" as unpadded text wouldn't.
+        assertTrue(compare(BINARY.forCommitOnBranch("main", 9), BINARY.forCommitOnBranch("main", 10)) < 0);
+        assertTrue(compare(
+                BINARY.forCommitOnBranch("main", 255), BINARY.forCommitOnBranch("main", 256)) < 0);
+        assertTrue(HBaseRowKeyer.isBinaryKey(BINARY.forCommitOnBranch("main", 1)));
+    }
+
+
+    @Test
+    public void binaryFolderPathsDontInterleave() throws Exception {
+        byte[] aPrefix = BINARY.prefixForCommitPaths("main", "/a/");
+        assertTrue(startsWith(BINARY.forCommitPath("main", "/a/", 5), aPrefix));
+        assertFalse(startsWith(BINARY.forCommitPath("main", "/a/b/", 5), aPrefix));
+
+        // Every row for "/a/" comes before every row for "/a/b/", whatever the commit ids.
+        assertTrue(compare(BINARY.forFolderAt("main", "/a/", Long.MAX_VALUE), BINARY.forFolderAt("main", "/a/b/", 0))
+                < 0);
+
+        assertTrue(startsWith(BINARY.forFolderAt("main", "/a/", 1), BINARY.prefixForFoldersOnBranch("main")));
+        assertFalse(startsWith(BINARY.forFolderAt("main2", "/a/", 1), BINARY.prefixForFoldersOnBranch("main")));
+    }
+
+
+    @Test
+    public void binaryFileIds() throws Exception {
+        String sha = Strings.repeat("0123456789abcdef", 4);
+        // Version byte, 4-byte repo id, tag byte, 32 raw bytes.
+        assertEquals(1 + 4 + 1 + 32, BINARY.forFile(sha).length);
+
+        String other = "not-a-hash";
+        assertEquals(1 + 4 + 1 + other.length(), BINARY.forFile(other).length);
+
+        // Uppercase hex isn't collapsed, so it can't collide with the lowercase id.
+        assertNotEquals(Bytes.toString(BINARY.forFile(sha)), Bytes.toString(BINARY.forFile(sha.toUpperCase())));
+    }
+
+
+    @Test
+    public void binaryMergeLocksByTimestamp() throws Exception {
+        byte[] prefix = BINARY.prefixForMergeLocksAtTimestamp(1000);
+        assertTrue(startsWith(BINARY.forMergeAtTimestamp(1000, "lock"), prefix));
+        assertTrue(compare(BINARY.forMergeAtTimestamp(999, "zzz"), prefix) < 0);
+        assertTrue(compare(BINARY.forMergeAtTimestamp(1001, "aaa"), prefix) > 0);
+        // Lookups by id are kept apart from the timestamp range.
+        assertFalse(startsWith(BINARY.forMergeId("lock"), BINARY.prefixForMergeLocksAtTimestamp(0)));
+    }
+
+
+    @Test
+    public void reposAndReviewsStayText() throws Exception {
+        assertArrayEquals(TEXT.forRepoEntry(), BINARY.forRepoEntry());
+        assertArrayEquals(TEXT.forReview("a", "b", 3), BINARY.forReview("a", "b", 3));
+        assertEquals("org:repo", new String(BINARY.forRepoEntry(), StandardCharsets.UTF_8));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryStringsCantHoldNul() throws Exception {
+        BINARY.forBranch("bad\0branch");
+    }
+}
@@ -2,9 +2,13 @@ package com.haberdashervcs.server.datastore.hbase;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import com.google.common.base.Preconditions;
 import com.haberdashervcs.server.datastore.HdLargeFileStore;
+import com.haberdashervcs.server.datastore.embedded.EmbeddedConnection;
+import com.haberdashervcs.server.datastore.embedded.LocalLargeFileStore;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.TableName;
@@ -21,8 +25,13 @@ import org.apache.hadoop.hbase.util.Bytes;
 public final class HBaseTestingUtils {
 
 
+    // Run with -Dhd.testing.embedded=true to test against an embedded store in a temp dir instead of a local cluster.
+    private static final boolean EMBEDDED = Boolean.getBoolean("hd.testing.embedded");
+
+
     private static Configuration conf = null;
     private static Connection conn = null;
+    private static Path embeddedDir = null;
 
 
     public static synchronized Connection getTestConn() throws IOException  {
@@ -30,6 +39,12 @@ public final class HBaseTestingUtils {
             return conn;
         }
 
+        if (EMBEDDED) {
+            embeddedDir = Files.createTempDirectory("hd-embedded-test");
+            conn = EmbeddedConnection.open(embeddedDir.resolve("rows.db"));
+            return conn;
+        }
+
         conf = HBaseConfiguration.create();
         conf.clear();
         conn = ConnectionFactory.createConnection(conf);
@@ -53,7 +68,9 @@ public final class HBaseTestingUtils {
     public static synchronized void resetTables() throws IOException {
         Preconditions.checkState(conn != null, "testClusterConn is null");
 
-        HdLargeFileStore largeFileStore = HdfsLargeFileStore.forConfiguration(conf);
+        HdLargeFileStore largeFileStore = EMBEDDED
+                ? LocalLargeFileStore.atRoot(embeddedDir.resolve("large-files"))
+                : HdfsLargeFileStore.forConfiguration(conf);
         HBaseDatastore datastore = HBaseDatastore.forConnection(conn, largeFileStore);
         datastore.resetAllData();
     }
@@ -0,0 +1,72 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.io.ProtobufObjectByteConverter;
+import com.haberdashervcs.common.objects.user.HdUser;
+import com.haberdashervcs.common.objects.user.HdUserStore;
+import com.haberdashervcs.common.protobuf.UsersProto;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class HBaseUserStoreTest {
+
+    private Connection conn;
+    private HdUserStore userStore;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        // Lookups don't touch billing.
+        userStore = HBaseUserStore.of(conn, null);
+    }
+
+
+    private void putUser(String userId, String email) throws Exception {
+        HdUser user = HdUser.of(
+                userId, email, "test_org", HdUser.Role.AUTHOR, UsersProto.HdUserPreferences.getDefaultInstance());
+        try (Table usersTable = conn.getTable(TableName.valueOf("Users"))) {
+            Put put = new Put(userId.getBytes(StandardCharsets.UTF_8)).addColumn(
+                    Bytes.toBytes("cfIdToUser"),
+                    Bytes.toBytes("user"),
+                    ProtobufObjectByteConverter.getInstance().userToBytes(user, "bcrypted"));
+            usersTable.put(put);
+        }
+    }
+
+
+    @Test
+    public void getUsersByIdsSkipsUnknownIds() throws Exception {
+        putUser("user-a", "a@example.com");
+        putUser("user-b", "b@example.com");
+        putUser("user-c", "c@example.com");
+
+        Map<String, HdUser> users = userStore.getUsersByIds(
+                ImmutableList.of("user-b", "Haberdasher Merge", "user-a"));
+
+        assertEquals(2, users.size());
+        assertEquals("a@example.com", users.get("user-a").getEmail());
+        assertEquals("b@example.com", users.get("user-b").getEmail());
+        assertEquals("user-b", users.get("user-b").getUserId());
+    }
+
+
+    @Test
+    public void getUsersByIdsWithNoIds() throws Exception {
+        putUser("user-a", "a@example.com");
+        assertTrue(userStore.getUsersByIds(ImmutableList.of()).isEmpty());
+    }
+}
@@ -0,0 +1,87 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import com.haberdashervcs.common.objects.BranchEntry;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class HeadCommitNumberTakerTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private HeadCommitNumberTaker numberTaker;
+
+    @Before
+    public void setUp() throws Exception {
+        Connection conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+        numberTaker = HeadCommitNumberTaker.forDb(helper, rowKeyer);
+    }
+
+
+    private BranchEntry getMain() throws Exception {
+        return helper.getBranch(rowKeyer.forBranch("main")).get();
+    }
+
+
+    @Test
+    public void reservationsAreConsecutiveFromMainsHead() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+
+        assertEquals(101, numberTaker.reserveCommitIds(1));
+        assertEquals(101, getMain().getHeadCommitId());
+
+        assertEquals(102, numberTaker.reserveCommitIds(3));
+        assertEquals(104, getMain().getHeadCommitId());
+
+        // Another taker shares the counter.
+        assertEquals(105, HeadCommitNumberTaker.forDb(helper, rowKeyer).reserveCommitIds(2));
+        assertEquals(106, getMain().getHeadCommitId());
+    }
+
+
+    @Test
+    public void counterStartsOnlyOnce() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+        assertEquals(101, numberTaker.reserveCommitIds(1));
+
+        // Ids already reserved aren't handed out again, even if main's head is behind them.
+        BranchEntry behind = BranchEntry.of("main", -1, 100);
+        helper.updateBranchIfUnchanged(
+                rowKeyer.forBranch("main"),
+                behind,
+                helper.getBranchWithOriginalBytes(rowKeyer.forBranch("main")).get().originalBytes);
+
+        assertEquals(102, numberTaker.reserveCommitIds(1));
+        assertEquals(102, getMain().getHeadCommitId());
+    }
+
+
+    @Test
+    public void advanceHeadToNeverMovesItBack() throws Exception {
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", 7, 100));
+        final byte[] mainRowKey = rowKeyer.forBranch("main");
+
+        numberTaker.advanceHeadTo(mainRowKey, 105);
+        assertEquals(105, getMain().getHeadCommitId());
+
+        // A reservation that finishes after a later one leaves the head where it is.
+        numberTaker.advanceHeadTo(mainRowKey, 103);
+        assertEquals(105, getMain().getHeadCommitId());
+
+        numberTaker.advanceHeadTo(mainRowKey, 108);
+        BranchEntry main = getMain();
+        assertEquals(108, main.getHeadCommitId());
+        assertEquals(7, main.getBaseCommitId());
+    }
+}
@@ -0,0 +1,48 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.nio.charset.StandardCharsets;
+
+import com.haberdashervcs.common.diff.git.LineIndex;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class LineIndexCacheTest {
+
+    private static LineIndex indexOf(String text) {
+        return LineIndex.of(ByteArrayRandomAccessBytes.of(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+
+    @Test
+    public void hitsAndMisses() throws Exception {
+        LineIndexCache cache = LineIndexCache.withMaxBytes(LineIndexCache.DEFAULT_MAX_BYTES);
+        LineIndex index = indexOf("apple\nbanana\n");
+
+        LineIndexCache.Key fileA = LineIndexCache.Key.of("org", "repo", "id-a");
+        LineIndexCache.Key otherRepo = LineIndexCache.Key.of("org", "other", "id-a");
+
+        assertNull(cache.getIfPresent(fileA));
+        cache.put(fileA, index);
+
+        assertSame(index, cache.getIfPresent(LineIndexCache.Key.of("org", "repo", "id-a")));
+        assertNull(cache.getIfPresent(otherRepo));
+
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(2, cache.getStats().missCount());
+    }
+
+
+    @Test
+    public void zeroSizeCachesNothing() throws Exception {
+        LineIndexCache cache = LineIndexCache.withMaxBytes(0);
+        LineIndexCache.Key key = LineIndexCache.Key.of("org", "repo", "id");
+
+        cache.put(key, indexOf("text\n"));
+        assertNull(cache.getIfPresent(key));
+    }
+}
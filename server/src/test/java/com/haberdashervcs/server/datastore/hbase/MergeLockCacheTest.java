@@ -0,0 +1,68 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.concurrent.TimeUnit;
+
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.MergeLock;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class MergeLockCacheTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+    }
+
+
+    @Test
+    public void seesNewAndCompletedMerges() throws Exception {
+        MergeLockCache cache = MergeLockCache.withRetention(TimeUnit.HOURS.toMillis(1));
+        final long nowTs = System.currentTimeMillis();
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+
+        MergeLock first = MergeLock.of("first", "branch1", MergeLock.State.IN_PROGRESS, nowTs);
+        helper.putMerge(rowKeyer, first);
+        MergeStates before = cache.getStates(helper, rowKeyer);
+        assertEquals(MergeLock.State.IN_PROGRESS, before.forMergeLockId("first").getState());
+        // The snapshot itself has the merge, not just the lookup by id.
+        assertFalse(before.getSettledMainHead().isPresent());
+
+        helper.putMerge(rowKeyer, MergeLock.of("first", "branch1", MergeLock.State.COMPLETED, nowTs));
+        helper.putMerge(rowKeyer, MergeLock.of("second", "branch2", MergeLock.State.IN_PROGRESS, nowTs + 1));
+        MergeStates after = cache.getStates(helper, rowKeyer);
+        assertEquals(MergeLock.State.COMPLETED, after.forMergeLockId("first").getState());
+        assertEquals(MergeLock.State.IN_PROGRESS, after.forMergeLockId("second").getState());
+
+        // Snapshots don't change once they're handed out.
+        assertEquals(MergeLock.State.IN_PROGRESS, before.forMergeLockId("first").getState());
+    }
+
+
+    @Test
+    public void olderMergesAreLookedUpById() throws Exception {
+        MergeLockCache cache = MergeLockCache.withRetention(TimeUnit.MINUTES.toMillis(5));
+        final long longAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+
+        helper.putMerge(rowKeyer, MergeLock.of("old", "branch1", MergeLock.State.COMPLETED, longAgo));
+        MergeStates states = cache.getStates(helper, rowKeyer);
+        assertEquals(MergeLock.State.COMPLETED, states.forMergeLockId("old").getState());
+    }
+}
@@ -0,0 +1,178 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeResult;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class MergeQueueTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    // Holds the queue's drain tasks until the test runs them, so merges can pile up behind the first one.
+    private static final class HeldExecutor implements Executor {
+        private final List<Runnable> held = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            held.add(task);
+        }
+
+        private synchronized List<Runnable> takeAll() {
+            List<Runnable> out = new ArrayList<>(held);
+            held.clear();
+            return out;
+        }
+    }
+
+
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private HBaseMerger merger;
+    private ExecutorService clients;
+
+    @Before
+    public void setUp() throws Exception {
+        Connection conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+        merger = new HBaseMerger(
+                MoreExecutors.newDirectExecutorService(),
+                MergeLockCache.withRetention(MergeLockCache.DEFAULT_RETENTION_MILLIS));
+        clients = Executors.newCachedThreadPool();
+
+        helper.createBranch(rowKeyer.forBranch("main"), BranchEntry.of("main", -1, 100));
+    }
+
+    @After
+    public void tearDown() {
+        clients.shutdownNow();
+    }
+
+
+    // A branch based on main:100 with one folder at 101.
+    private void writeBranchWithFolder(String branchName, String path) throws Exception {
+        helper.createBranch(rowKeyer.forBranch(branchName), BranchEntry.of(branchName, 100, 101));
+        FolderListing onBranch = FolderListing.withoutMergeLock(
+                ImmutableList.of(FolderListing.Entry.forFile(branchName + ".txt", "fileId_" + branchName)),
+                path, branchName, 101);
+        helper.putFolderIfNotExists(rowKeyer.forFolderAt(branchName, path, 101), onBranch);
+    }
+
+
+    // Starts a merge from another thread, and returns once it's queued and waiting.
+    private Future<MergeResult> startMerge(MergeQueue queue, String branchName) throws Exception {
+        List<Thread> mergingThread = new ArrayList<>();
+        Future<MergeResult> result = clients.submit(() -> {
+            synchronized (mergingThread) {
+                mergingThread.add(Thread.currentThread());
+                mergingThread.notifyAll();
+            }
+            return queue.merge(ORG, REPO, branchName, 101);
+        });
+
+        Thread thread;
+        synchronized (mergingThread) {
+            while (mergingThread.isEmpty()) {
+                mergingThread.wait();
+            }
+            thread = mergingThread.get(0);
+        }
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+        return result;
+    }
+
+
+    @Test
+    public void queuedMergesRunAsOneGroup() throws Exception {
+        writeBranchWithFolder("first", "/first/");
+        writeBranchWithFolder("second", "/second/");
+        writeBranchWithFolder("third", "/third/");
+
+        HeldExecutor executor = new HeldExecutor();
+        MergeQueue queue = MergeQueue.of(merger, helper, executor, MergeQueue.DEFAULT_MAX_GROUP_SIZE);
+        Future<MergeResult> first = startMerge(queue, "first");
+        Future<MergeResult> second = startMerge(queue, "second");
+        Future<MergeResult> third = startMerge(queue, "third");
+
+        // Only the first merge starts a drain. The others join its lane.
+        List<Runnable> drains = executor.takeAll();
+        assertEquals(1, drains.size());
+        drains.get(0).run();
+
+        assertEquals(101, first.get().getNewCommitIdOnMain());
+        assertEquals(102, second.get().getNewCommitIdOnMain());
+        assertEquals(103, third.get().getNewCommitIdOnMain());
+        assertEquals(103, helper.getBranch(rowKeyer.forBranch("main")).get().getHeadCommitId());
+        assertEquals(0, executor.takeAll().size());
+    }
+
+
+    @Test
+    public void overlappingMergeIsDeferredToTheNextGroup() throws Exception {
+        writeBranchWithFolder("first", "/shared/");
+        writeBranchWithFolder("overlapping", "/shared/");
+        writeBranchWithFolder("separate", "/separate/");
+
+        HeldExecutor executor = new HeldExecutor();
+        MergeQueue queue = MergeQueue.of(merger, helper, executor, MergeQueue.DEFAULT_MAX_GROUP_SIZE);
+        Future<MergeResult> first = startMerge(queue, "first");
+        Future<MergeResult> overlapping = startMerge(queue, "overlapping");
+        Future<MergeResult> separate = startMerge(queue, "separate");
+        executor.takeAll().get(0).run();
+
+        // The separate branch is written in the first group, ahead of the one that had to wait.
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, first.get().getResultType());
+        assertEquals(101, first.get().getNewCommitIdOnMain());
+        assertEquals(MergeResult.ResultType.SUCCESSFUL, separate.get().getResultType());
+        assertEquals(102, separate.get().getNewCommitIdOnMain());
+
+        // In its own group, the check against main sees the first branch's changes.
+        MergeResult deferred = overlapping.get();
+        assertEquals(MergeResult.ResultType.FAILED, deferred.getResultType());
+        assertEquals(ImmutableList.of("/shared/"), deferred.getConflictingPaths());
+    }
+
+
+    @Test
+    public void groupsAreCappedAtTheMaxSize() throws Exception {
+        writeBranchWithFolder("first", "/shared/");
+        writeBranchWithFolder("second", "/second/");
+        writeBranchWithFolder("overlapping", "/shared/");
+
+        // With groups of two, the overlapping branch comes after the first one's group and isn't deferred: it just
+        //     fails its check against main.
+        HeldExecutor executor = new HeldExecutor();
+        MergeQueue queue = MergeQueue.of(merger, helper, executor, 2);
+        Future<MergeResult> first = startMerge(queue, "first");
+        Future<MergeResult> second = startMerge(queue, "second");
+        Future<MergeResult> overlapping = startMerge(queue, "overlapping");
+        executor.takeAll().get(0).run();
+
+        assertEquals(101, first.get().getNewCommitIdOnMain());
+        assertEquals(102, second.get().getNewCommitIdOnMain());
+        assertEquals(MergeResult.ResultType.FAILED, overlapping.get().getResultType());
+        assertEquals(102, helper.getBranch(rowKeyer.forBranch("main")).get().getHeadCommitId());
+    }
+}
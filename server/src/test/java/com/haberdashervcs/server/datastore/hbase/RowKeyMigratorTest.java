@@ -0,0 +1,191 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.haberdashervcs.common.io.rab.ByteArrayRandomAccessBytes;
+import com.haberdashervcs.common.io.rab.RandomAccessBytes;
+import com.haberdashervcs.common.objects.BranchEntry;
+import com.haberdashervcs.common.objects.CommitEntry;
+import com.haberdashervcs.common.objects.FileEntry;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.HdFolderPath;
+import com.haberdashervcs.common.objects.MergeLock;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RowKeyMigratorTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+    private static final String BRANCH = "test_branch";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer textKeyer;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        textKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+    }
+
+
+    @Test
+    public void migratedRepoReadsTheSame() throws Exception {
+        String fileId = Strings.repeat("ab", 32);
+        helper.putFile(textKeyer.forFile(fileId), FileEntry.forFullContents(
+                fileId,
+                ByteArrayRandomAccessBytes.of("hello".getBytes(StandardCharsets.UTF_8)),
+                FileEntry.StorageType.DATASTORE));
+
+        helper.createBranch(textKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 1, 2));
+        helper.putBranchPaths(textKeyer, BRANCH, ImmutableMap.of("/a/", 2L));
+        for (long commitId = 1; commitId <= 2; ++commitId) {
+            FolderListing folder = FolderListing.withoutMergeLock(
+                    ImmutableList.of(FolderListing.Entry.forFile("file.txt", fileId)), "/a/", BRANCH, commitId);
+            helper.putFolderIfNotExists(textKeyer.forFolderAt(BRANCH, "/a/", commitId), folder);
+            CommitEntry commit = CommitEntry.of(BRANCH, commitId, "author", "commit " + commitId,
+                    ImmutableList.of(CommitEntry.CommitChangedPath.added("/a/file.txt", fileId)));
+            helper.putCommit(textKeyer.forCommit(commit), commit);
+            helper.putCommitPaths(textKeyer, commit);
+        }
+        helper.putMerge(textKeyer, MergeLock.of("lock", BRANCH, MergeLock.State.COMPLETED, 1000));
+
+        RowKeyMigrator.forRepoWithMaxWait(conn, helper, ORG, REPO, 0).migrate();
+
+        HBaseRowKeyer binaryKeyer = helper.getRowKeyer(ORG, REPO);
+        assertEquals(HBaseRowKeyer.Layout.V2_BINARY, binaryKeyer.getLayout());
+        try (HBaseRawHelper.RepoWrite repoWrite = helper.startRepoWrite(ORG, REPO)) {
+            assertEquals(binaryKeyer.getLayout(), repoWrite.getRowKeyer().getLayout());
+        }
+
+        assertEquals(
+                "hello",
+                new String(
+                        RandomAccessBytes.toByteArray(helper.getFile(binaryKeyer.forFile(fileId)).getEntryContents()),
+                        StandardCharsets.UTF_8));
+        assertEquals(2, helper.getBranch(binaryKeyer.forBranch(BRANCH)).get().getHeadCommitId());
+        assertEquals(ImmutableMap.of("/a/", 2L), helper.getBranchPaths(binaryKeyer, BRANCH));
+        assertEquals(MergeLock.State.COMPLETED, helper.getMergeById(binaryKeyer, "lock").get().getState());
+
+        List<FolderListing> listings =
+                helper.getListingsSinceCommitIgnoringMergeLocks(binaryKeyer, BRANCH, 0, "/a/");
+        assertEquals(2, listings.size());
+        assertEquals(2, listings.get(0).getCommitId());
+
+        CommitLogger logger = CommitLogger.forBranch(BRANCH, helper, binaryKeyer);
+        assertEquals(2, logger.getLog(HdFolderPath.fromFolderListingFormat("/a/"), 2).getEntries().size());
+    }
+
+
+    @Test
+    public void writesFailWhileMigrating() throws Exception {
+        helper.updateRowKeyLayout(ORG, REPO, null, HBaseRawHelper.KEY_LAYOUT_MIGRATING);
+
+        try {
+            helper.startRepoWrite(ORG, REPO);
+            fail("Expected the write to be refused");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, helper.getActiveRepoWrites(ORG, REPO));
+    }
+
+
+    @Test
+    public void migrationWaitsForRunningWrites() throws Exception {
+        helper.createBranch(textKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 1, 2));
+
+        HBaseRawHelper.RepoWrite running = helper.startRepoWrite(ORG, REPO);
+        assertEquals(1, helper.getActiveRepoWrites(ORG, REPO));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> migration = executor.submit(() -> {
+                RowKeyMigrator.forRepoWithMaxWait(conn, helper, ORG, REPO, TimeUnit.MINUTES.toMillis(1)).migrate();
+                return null;
+            });
+
+            while (!helper.isMigratingRowKeys(ORG, REPO)) {
+                Thread.sleep(10);
+            }
+            // The running write can still move the head under the old key. The migration waits for it.
+            HBaseRawHelper.BranchWithOriginalBytes branch =
+                    helper.getBranchWithOriginalBytes(textKeyer.forBranch(BRANCH)).get();
+            Thread.sleep(300);
+            assertFalse(migration.isDone());
+            assertTrue(helper.updateBranchIfUnchanged(
+                    textKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 1, 3), branch.originalBytes));
+            running.close();
+
+            migration.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        HBaseRowKeyer binaryKeyer = helper.getRowKeyer(ORG, REPO);
+        assertEquals(HBaseRowKeyer.Layout.V2_BINARY, binaryKeyer.getLayout());
+        assertEquals(3, helper.getBranch(binaryKeyer.forBranch(BRANCH)).get().getHeadCommitId());
+    }
+
+
+    @Test
+    public void stuckWriteStopsTheMigrationUntilItsRerun() throws Exception {
+        helper.createBranch(textKeyer.forBranch(BRANCH), BranchEntry.of(BRANCH, 1, 2));
+        HBaseRawHelper.RepoWrite stuck = helper.startRepoWrite(ORG, REPO);
+
+        try {
+            RowKeyMigrator.forRepoWithMaxWait(conn, helper, ORG, REPO, 0).migrate();
+            fail("Expected the migration to stop");
+        } catch (IOException expected) {
+        }
+        assertTrue(helper.isMigratingRowKeys(ORG, REPO));
+
+        stuck.close();
+        RowKeyMigrator.forRepoWithMaxWait(conn, helper, ORG, REPO, 0).migrate();
+
+        HBaseRowKeyer binaryKeyer = helper.getRowKeyer(ORG, REPO);
+        assertEquals(HBaseRowKeyer.Layout.V2_BINARY, binaryKeyer.getLayout());
+        assertEquals(2, helper.getBranch(binaryKeyer.forBranch(BRANCH)).get().getHeadCommitId());
+    }
+
+
+    @Test
+    public void translatesEveryKeyShape() throws Exception {
+        HBaseRowKeyer binaryKeyer = HBaseRowKeyer.binaryForRepo(ORG, REPO, 3);
+        assertTranslated("Commits", textKeyer.forCommitOnBranch("b:x", 9), binaryKeyer.forCommitOnBranch("b:x", 9));
+        assertTranslated("Folders", textKeyer.forFolderAt("b", "/a:b/", 4), binaryKeyer.forFolderAt("b", "/a:b/", 4));
+        assertTranslated(
+                "CommitPaths", textKeyer.forCommitPath("b", "/a/", 4), binaryKeyer.forCommitPath("b", "/a/", 4));
+        assertTranslated("Merges", textKeyer.forMergeId("id"), binaryKeyer.forMergeId("id"));
+        assertTranslated(
+                "Merges", textKeyer.forMergeAtTimestamp(77, "id"), binaryKeyer.forMergeAtTimestamp(77, "id"));
+        assertTranslated("Files", textKeyer.forFile("some-id"), binaryKeyer.forFile("some-id"));
+        assertTranslated("BranchPaths", textKeyer.forBranchPaths("b"), binaryKeyer.forBranchPaths("b"));
+    }
+
+    private void assertTranslated(String table, byte[] textKey, byte[] expected) {
+        HBaseRowKeyer binaryKeyer = HBaseRowKeyer.binaryForRepo(ORG, REPO, 3);
+        assertArrayEquals(table, expected, RowKeyMigrator.binaryKeyFor(table, textKey, textKeyer, binaryKeyer));
+    }
+}
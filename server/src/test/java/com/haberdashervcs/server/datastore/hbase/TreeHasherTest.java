@@ -0,0 +1,157 @@
+package com.haberdashervcs.server.datastore.hbase;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.haberdashervcs.common.objects.FolderListing;
+import com.haberdashervcs.common.objects.MergeLock;
+import org.apache.hadoop.hbase.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TreeHasherTest {
+
+    private static final String ORG = "test_org";
+    private static final String REPO = "test_repo";
+
+
+    private Connection conn;
+    private HBaseRawHelper helper;
+    private HBaseRowKeyer rowKeyer;
+    private MergeLockCache mergeLockCache;
+    private long nowTs;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = HBaseTestingUtils.getTestConn();
+        HBaseTestingUtils.resetTables();
+
+        helper = HBaseRawHelper.forConnection(conn);
+        rowKeyer = HBaseRowKeyer.forRepo(ORG, REPO);
+        mergeLockCache = MergeLockCache.withRetention(TimeUnit.HOURS.toMillis(1));
+        nowTs = System.currentTimeMillis();
+    }
+
+
+    private FolderListing putFolder(
+            String path, long commitId, Optional<String> mergeLockId, FolderListing.Entry... entries)
+            throws Exception {
+        FolderListing listing = (mergeLockId.isPresent())
+                ? FolderListing.withMergeLock(ImmutableList.copyOf(entries), path, "main", commitId, mergeLockId.get())
+                : FolderListing.withoutMergeLock(ImmutableList.copyOf(entries), path, "main", commitId);
+        helper.putFolderIfNotExists(rowKeyer.forFolderAt("main", path, commitId), listing);
+        return listing;
+    }
+
+
+    private void setMergeState(String mergeLockId, MergeLock.State state) throws Exception {
+        helper.putMerge(rowKeyer, MergeLock.of(mergeLockId, "branch-" + mergeLockId, state, nowTs));
+    }
+
+
+    private Optional<String> hashAt(long commitId, String path) throws Exception {
+        return TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .getTreeHash(commitId, path);
+    }
+
+
+    @Test
+    public void concurrentMergesDontLeaveStaleAncestorHashes() throws Exception {
+        FolderListing root = putFolder(
+                "/", 1, Optional.empty(),
+                FolderListing.Entry.forSubFolder("a"), FolderListing.Entry.forSubFolder("b"));
+        FolderListing a1 = putFolder("/a/", 1, Optional.empty(), FolderListing.Entry.forFile("x.txt", "x1"));
+        FolderListing b1 = putFolder("/b/", 1, Optional.empty(), FolderListing.Entry.forFile("y.txt", "y1"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(1, ImmutableList.of(root, a1, b1), Optional.empty());
+        Optional<String> rootAt1 = hashAt(1, "/");
+        assertTrue(rootAt1.isPresent());
+
+        // Merge A changes /a/ at commit 2. While it's in progress, merge B (as if on another server) changes /b/ at
+        // commit 3, without seeing A's changes.
+        setMergeState("A", MergeLock.State.IN_PROGRESS);
+        setMergeState("B", MergeLock.State.IN_PROGRESS);
+        MergeStates duringBoth = mergeLockCache.getStates(helper, rowKeyer);
+        FolderListing a2 = putFolder("/a/", 2, Optional.of("A"), FolderListing.Entry.forFile("x.txt", "x2"));
+        TreeHasher.forMain(rowKeyer, helper, duringBoth).writeTreeHashes(2, ImmutableList.of(a2), Optional.of("A"));
+        FolderListing b3 = putFolder("/b/", 3, Optional.of("B"), FolderListing.Entry.forFile("y.txt", "y3"));
+        TreeHasher.forMain(rowKeyer, helper, duringBoth).writeTreeHashes(3, ImmutableList.of(b3), Optional.of("B"));
+
+        setMergeState("A", MergeLock.State.COMPLETED);
+        setMergeState("B", MergeLock.State.COMPLETED);
+
+        // B's root hash doesn't cover A's change, so it's unknown rather than wrong.
+        assertFalse(hashAt(3, "/").isPresent());
+        assertTrue(hashAt(2, "/").isPresent());
+        assertNotEquals(rootAt1, hashAt(2, "/"));
+        assertTrue(hashAt(3, "/b/").isPresent());
+        assertEquals(hashAt(2, "/a/"), hashAt(3, "/a/"));
+
+        // The next merge that touches the root writes a good hash again.
+        FolderListing b4 = putFolder("/b/", 4, Optional.empty(), FolderListing.Entry.forFile("y.txt", "y4"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(4, ImmutableList.of(b4), Optional.empty());
+        assertTrue(hashAt(4, "/").isPresent());
+    }
+
+
+    @Test
+    public void serialMergesKeepTheirHashes() throws Exception {
+        FolderListing root = putFolder("/", 1, Optional.empty(), FolderListing.Entry.forSubFolder("a"));
+        FolderListing a1 = putFolder("/a/", 1, Optional.empty(), FolderListing.Entry.forFile("x.txt", "x1"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(1, ImmutableList.of(root, a1), Optional.empty());
+
+        setMergeState("A", MergeLock.State.IN_PROGRESS);
+        FolderListing a2 = putFolder("/a/", 2, Optional.of("A"), FolderListing.Entry.forFile("x.txt", "x2"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(2, ImmutableList.of(a2), Optional.of("A"));
+
+        // Not visible until the merge completes.
+        assertEquals(hashAt(1, "/"), hashAt(2, "/"));
+        setMergeState("A", MergeLock.State.COMPLETED);
+        assertTrue(hashAt(2, "/").isPresent());
+        assertNotEquals(hashAt(1, "/"), hashAt(2, "/"));
+    }
+
+
+    @Test
+    public void mergesLeaveUnhashedFoldersForTheBackfill() throws Exception {
+        // From before hashes existed: nothing is hashed.
+        putFolder(
+                "/", 1, Optional.empty(),
+                FolderListing.Entry.forSubFolder("a"), FolderListing.Entry.forSubFolder("b"));
+        putFolder("/a/", 1, Optional.empty(), FolderListing.Entry.forFile("x.txt", "x1"));
+        putFolder("/b/", 1, Optional.empty(), FolderListing.Entry.forSubFolder("c"));
+        putFolder("/b/c/", 1, Optional.empty(), FolderListing.Entry.forFile("y.txt", "y1"));
+
+        FolderListing a2 = putFolder("/a/", 2, Optional.empty(), FolderListing.Entry.forFile("x.txt", "x2"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(2, ImmutableList.of(a2), Optional.empty());
+
+        // The merge doesn't hash /b/, so the root stays unknown.
+        assertTrue(hashAt(2, "/a/").isPresent());
+        assertFalse(hashAt(2, "/b/").isPresent());
+        assertFalse(hashAt(2, "/").isPresent());
+
+        int written = TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer)).backfill(2);
+        assertEquals(3, written);
+        assertTrue(hashAt(2, "/b/c/").isPresent());
+        assertTrue(hashAt(2, "/b/").isPresent());
+        assertTrue(hashAt(2, "/").isPresent());
+
+        // Later merges build on the backfilled hashes.
+        FolderListing a3 = putFolder("/a/", 3, Optional.empty(), FolderListing.Entry.forFile("x.txt", "x3"));
+        TreeHasher.forMain(rowKeyer, helper, mergeLockCache.getStates(helper, rowKeyer))
+                .writeTreeHashes(3, ImmutableList.of(a3), Optional.empty());
+        assertTrue(hashAt(3, "/").isPresent());
+        assertEquals(hashAt(2, "/b/"), hashAt(3, "/b/"));
+    }
+}